@@ -1,9 +1,8 @@
 package com.webtrekk.SDKTest;
 
-import android.content.SharedPreferences;
 import android.support.test.filters.LargeTest;
 
-import com.webtrekk.webtrekksdk.Utils.HelperFunctions;
+import com.webtrekk.webtrekksdk.Utils.StateStore;
 
 import org.junit.After;
 import org.junit.Rule;
@@ -41,7 +40,7 @@ public class AppinstallGoalTest extends WebtrekkBaseMainTest {
         super.before();
         if (WebtrekkBaseMainTest.mTestName.equals("testGoalReceived")){
             //remove test processed goal
-            getPreference().edit().remove("appinstallGoalProcessed").apply();
+            StateStore.getInstance(mApplication).remove(StateStore.KEY_APPINSTALL_GOAL_PROCESSED);
         }
         this.initWebtrekk(R.raw.webtrekk_config_no_auto_track);
     }
@@ -96,8 +95,4 @@ public class AppinstallGoalTest extends WebtrekkBaseMainTest {
         }
     }
 
-    private SharedPreferences getPreference(){
-        return HelperFunctions.getWebTrekkSharedPreference(mApplication);
-    }
-
 }
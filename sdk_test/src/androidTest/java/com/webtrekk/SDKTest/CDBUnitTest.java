@@ -18,11 +18,10 @@
 
 package com.webtrekk.SDKTest;
 
-import android.content.SharedPreferences;
 import android.support.test.filters.LargeTest;
 import android.util.Log;
 
-import com.webtrekk.webtrekksdk.Utils.HelperFunctions;
+import com.webtrekk.webtrekksdk.Utils.StateStore;
 import com.webtrekk.webtrekksdk.WebtrekkUserParameters;
 
 import org.junit.After;
@@ -66,7 +65,6 @@ public class CDBUnitTest extends WebtrekkBaseMainTest {
     @Test
     public void testCDBRepeatTest(){
 
-        final String LAST_CBD_REQUEST_DATE = "LAST_CBD_REQUEST_DATE";
         final long DATE_DELIMETER = 1000*60*60*24;
 
         this.initWebtrekk(R.raw.webtrekk_config_no_auto_track);
@@ -101,17 +99,15 @@ public class CDBUnitTest extends WebtrekkBaseMainTest {
         long expected = (long)System.currentTimeMillis()/DATE_DELIMETER;
 
         // value actual
-        SharedPreferences preferences = HelperFunctions.getWebTrekkSharedPreference(mApplication.getApplicationContext());
+        StateStore stateStore = StateStore.getInstance(mApplication.getApplicationContext());
 
-        long dates = preferences.getLong(LAST_CBD_REQUEST_DATE, 0);
+        long dates = stateStore.getLastCDBRequestDate();
 
         // check
         assertEquals(dates, expected);
 
         // change settings
-        SharedPreferences.Editor editor = preferences.edit();
-        editor.putLong(LAST_CBD_REQUEST_DATE, expected - 1);
-        editor.apply();
+        stateStore.setLastCDBRequestDate(expected - 1);
 
         mActivityRule.launchActivity(null);
         // do some page request
@@ -19,7 +19,7 @@
 package com.webtrekk.SDKTest;
 
 import com.webtrekk.webtrekksdk.TrackingParameter;
-import com.webtrekk.webtrekksdk.Utils.HelperFunctions;
+import com.webtrekk.webtrekksdk.Utils.StateStore;
 import com.webtrekk.webtrekksdk.Webtrekk;
 
 import org.junit.After;
@@ -54,7 +54,7 @@ public class TagIntegrationTest extends WebtrekkBaseMainTest {
     @Test
     public void testTagIntegration()
     {
-        while (!HelperFunctions.getWebTrekkSharedPreference(getInstrumentation().getTargetContext()).
+        while (!StateStore.getInstance(getInstrumentation().getTargetContext()).
                   contains(Webtrekk.PREFERENCE_KEY_CONFIGURATION))
         {
             getInstrumentation().waitForIdleSync();
@@ -23,13 +23,12 @@ import android.app.Activity;
 import android.app.Application;
 import android.app.Instrumentation;
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.PowerManager;
 import android.support.test.InstrumentationRegistry;
 
-import com.webtrekk.webtrekksdk.Utils.HelperFunctions;
+import com.webtrekk.webtrekksdk.Utils.StateStore;
 import com.webtrekk.webtrekksdk.Utils.WebtrekkLogging;
 import com.webtrekk.webtrekksdk.Webtrekk;
 
@@ -158,10 +157,7 @@ public class WebtrekkBaseSDKTest extends Assert implements WebtrekkTestRule.Test
 
     private void deleteCDBRepeatRequestInfo()
     {
-        SharedPreferences preferences = HelperFunctions.getWebTrekkSharedPreference(mApplication);
-
-        if (preferences.contains("LAST_CBD_REQUEST_DATE"))
-            preferences.edit().remove("LAST_CBD_REQUEST_DATE").apply();
+        StateStore.getInstance(mApplication).setLastCDBRequestDate(-1);
     }
 
     static private Object getFieldValue(Object instance, String valueName) {
@@ -200,8 +196,7 @@ public class WebtrekkBaseSDKTest extends Assert implements WebtrekkTestRule.Test
 
     protected void cleanConfigPreference()
     {
-        SharedPreferences sharedPrefs = HelperFunctions.getWebTrekkSharedPreference(mApplication);
-        sharedPrefs.edit().remove(Webtrekk.PREFERENCE_KEY_CONFIGURATION).apply();
+        StateStore.getInstance(mApplication).setConfiguration(null);
     }
 
     protected Instrumentation getInstrumentation(){
@@ -229,8 +224,7 @@ public class WebtrekkBaseSDKTest extends Assert implements WebtrekkTestRule.Test
     }
 
     protected boolean isCampaignProcessFinished(){
-        final SharedPreferences preference = HelperFunctions.getWebTrekkSharedPreference(mApplication);
-        return preference.getBoolean("CAMPAIGN_PROCESS_FINISHED", false);
+        return StateStore.getInstance(mApplication).isCampaignProcessFinished();
     }
 
     protected void initWebtrekk() {
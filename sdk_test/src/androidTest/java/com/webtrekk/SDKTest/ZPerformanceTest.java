@@ -20,8 +20,11 @@ package com.webtrekk.SDKTest;
 
 import android.support.test.filters.LargeTest;
 
+import com.webtrekk.webtrekksdk.Request.RequestStore;
 import com.webtrekk.webtrekksdk.Request.RequestUrlStore;
+import com.webtrekk.webtrekksdk.Request.SQLiteRequestStore;
 import com.webtrekk.webtrekksdk.Utils.WebtrekkLogging;
+import com.webtrekk.webtrekksdk.Utils.WebtrekkMetrics;
 
 import org.junit.After;
 import org.junit.Rule;
@@ -29,6 +32,8 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 
 /**
  * Name it with Z to call it at last.
@@ -165,4 +170,84 @@ public class ZPerformanceTest extends WebtrekkBaseMainTest {
         waitForTrackedURLs();
         file.setReadable(true, false);
     }
+
+    @Test
+    //works in reality only on real HW
+    public void testRecoveryTimePerformance() throws IOException
+    {
+        if (isRestrictedMode()){
+            return;
+        }
+
+        final int numberOfURLs = 10000;
+        final String suffix = "-recovery-test";
+        RequestUrlStore urlStore = new RequestUrlStore(getInstrumentation().getTargetContext(), suffix, 0,
+                WebtrekkMetrics.Gauge.STORE_SIZE);
+
+        for (int i = 0; i < numberOfURLs; i++) {
+            urlStore.addURL("https://q3.webtrekk.net/123451234512345/wt?p=432,test_page,0,0,0,0," + i);
+        }
+        urlStore.flush();
+
+        // cut last record as it happens if process is killed during write
+        RandomAccessFile file = new RandomAccessFile(urlStore.getRequestStoreFile(), "rw");
+        file.setLength(file.length() - 5);
+        file.close();
+
+        long before = System.currentTimeMillis();
+        RequestUrlStore recoveredStore = new RequestUrlStore(getInstrumentation().getTargetContext(), suffix, 0,
+                WebtrekkMetrics.Gauge.STORE_SIZE);
+        long recoveryTime = System.currentTimeMillis() - before;
+
+        WebtrekkLogging.log("Recovery of " + numberOfURLs + " urls takes:" + recoveryTime + " milliseconds");
+        assertEquals(numberOfURLs - 1, recoveredStore.size());
+        recoveredStore.clearAllTrackingData();
+        assertTrue("Recovery of " + numberOfURLs + " urls takes:" + recoveryTime + " milliseconds", recoveryTime < 20);
+    }
+
+    @Test
+    //compares request store implementations on backlog profile: urls are added while network is down and sent later
+    public void testRequestStoreBenchmark()
+    {
+        if (isRestrictedMode()){
+            return;
+        }
+
+        final String suffix = "-benchmark-test";
+        benchmarkStore("file", new RequestUrlStore(getInstrumentation().getTargetContext(), suffix, 0,
+                WebtrekkMetrics.Gauge.STORE_SIZE));
+        benchmarkStore("sqlite", new SQLiteRequestStore(getInstrumentation().getTargetContext(), suffix, 0,
+                WebtrekkMetrics.Gauge.STORE_SIZE));
+    }
+
+    private void benchmarkStore(String name, RequestStore store)
+    {
+        final int numberOfURLs = 5000;
+        final int flushInterval = 100;
+
+        store.clearAllTrackingData();
+
+        long before = System.nanoTime();
+        for (int i = 0; i < numberOfURLs; i++) {
+            store.addURL("https://q3.webtrekk.net/123451234512345/wt?p=432,test_page,0,0,0,0," + i);
+            if (i % flushInterval == flushInterval - 1) {
+                store.flush();
+            }
+        }
+        store.flush();
+        final long addTime = System.nanoTime() - before;
+
+        before = System.nanoTime();
+        for (int i = 0; i < numberOfURLs; i++) {
+            assertTrue(store.peek().endsWith("," + i));
+            store.removeLastURL();
+        }
+        store.flush();
+        final long sendTime = System.nanoTime() - before;
+
+        WebtrekkLogging.log(name + " store: add of " + numberOfURLs + " urls takes:" + addTime / 1000000
+                + " milliseconds, peek and remove takes:" + sendTime / 1000000 + " milliseconds");
+        assertEquals(0, store.size());
+        store.clearAllTrackingData();
+    }
 }
@@ -0,0 +1,134 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk;
+
+import android.app.Application;
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+
+import com.webtrekk.webtrekksdk.Modules.Campaign;
+import com.webtrekk.webtrekksdk.Request.RequestUrlStore;
+import com.webtrekk.webtrekksdk.Utils.HelperFunctions;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Calls that are done while deferred initialization is in progress
+ */
+public class AsyncInitTest extends AndroidTestCase {
+
+    private Webtrekk mWebtrekk;
+    private Application mApplication;
+    private final CountDownLatch mInitLatch = new CountDownLatch(1);
+    private final boolean[] mInitResult = new boolean[1];
+    private final Webtrekk.InitListener mListener = new Webtrekk.InitListener() {
+        @Override
+        public void onInitCompleted(boolean success) {
+            mInitResult[0] = success;
+            mInitLatch.countDown();
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        SharedPreferences.Editor editor = HelperFunctions.getWebTrekkSharedPreference(getContext()).edit();
+        editor.clear();
+        editor.apply();
+
+        Campaign.getFirstStartInitiated(getContext(), true);
+        editor.putBoolean("CAMPAIGN_PROCESS_FINISHED", true).apply();
+
+        mApplication = (Application) getContext().getApplicationContext();
+        mWebtrekk = new Webtrekk();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        new RequestUrlStore(getContext()).deleteRequestsFile();
+        super.tearDown();
+    }
+
+    public void testGettersDuringInit() throws InterruptedException {
+        mWebtrekk.initWebtrekkAsync(mApplication, mListener);
+
+        // configuration getters return defaults and don't throw until configuration is published
+        mWebtrekk.getVersion();
+        mWebtrekk.getSendDelay();
+        mWebtrekk.isAutoTracked();
+        mWebtrekk.getTrackId();
+        mWebtrekk.getCurrentActivityName();
+        mWebtrekk.getGlobalTrackingParameter();
+        mWebtrekk.isOptout();
+        assertNotNull(mWebtrekk.getRecommendations());
+
+        assertTrue(mInitLatch.await(10, TimeUnit.SECONDS));
+        assertTrue(mInitResult[0]);
+        assertTrue(mWebtrekk.isInitialized());
+        assertNotNull(mWebtrekk.getTrackingConfiguration());
+        assertNotNull(mWebtrekk.getRecommendations());
+    }
+
+    public void testSettersDuringInitAreApplied() throws InterruptedException {
+        final TrackingParameter globalParameter = new TrackingParameter();
+        globalParameter.add(TrackingParameter.Parameter.ACTION_NAME, "global");
+        final Map<String, String> customParameter = new HashMap<>();
+        customParameter.put("key", "value");
+        final String everId = "1234567890123456789";
+
+        mWebtrekk.initWebtrekkAsync(mApplication, mListener);
+        mWebtrekk.setGlobalTrackingParameter(globalParameter);
+        mWebtrekk.setCustomParameter(customParameter);
+        mWebtrekk.setCustomPageName("page");
+        mWebtrekk.setOptout(false);
+        mWebtrekk.setEverId(everId);
+        mWebtrekk.send();
+
+        assertTrue(mInitLatch.await(10, TimeUnit.SECONDS));
+        assertTrue(mInitResult[0]);
+        assertSame(globalParameter, mWebtrekk.getGlobalTrackingParameter());
+        assertSame(customParameter, mWebtrekk.getCustomParameter());
+        assertEquals(everId, mWebtrekk.getEverId());
+        assertEquals(everId, mWebtrekk.getRequestFactory().getWebtrekkParameter().get(TrackingParameter.Parameter.EVERID));
+        assertFalse(mWebtrekk.isOptout());
+    }
+
+    public void testSyncInitWaitsForDeferredInit() throws InterruptedException {
+        mWebtrekk.initWebtrekkAsync(mApplication, mListener);
+        mWebtrekk.initWebtrekk(mApplication);
+
+        // configuration is initialized once, synchronous call returns after deferred one is done
+        assertTrue(mWebtrekk.isInitialized());
+        assertNotNull(mWebtrekk.getTrackingConfiguration());
+        assertNotNull(mWebtrekk.getRequestFactory().getRequestUrlStore());
+
+        assertTrue(mInitLatch.await(10, TimeUnit.SECONDS));
+        assertTrue(mInitResult[0]);
+    }
+
+    public void testAsyncInitAfterSyncInit() throws InterruptedException {
+        mWebtrekk.initWebtrekk(mApplication);
+        mWebtrekk.initWebtrekkAsync(mApplication, mListener);
+
+        assertTrue(mInitLatch.await(10, TimeUnit.SECONDS));
+        assertTrue(mInitResult[0]);
+        assertTrue(mWebtrekk.isInitialized());
+    }
+}
@@ -0,0 +1,438 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk;
+
+import android.util.Log;
+
+import com.webtrekk.webtrekksdk.Request.RequestProcessor;
+import com.webtrekk.webtrekksdk.Utils.LatencyHistogram;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal HTTP/1.1 track server for load tests. Unlike SDKTest HttpServer it doesn't keep received
+ * urls and doesn't use preferences, it only counts requests and their bytes, so millions of
+ * requests can be received. It supports keep alive and can inject latency, 500, 429, 503 responses
+ * and partial failures (connection is closed after request is read, without response).
+ * If timestamp parameter is set, end to end latency is calculated from its value in query
+ * (System.currentTimeMillis() when event is tracked).
+ * SDK sends requests to collector by plain http with {@link #getConnectionFactory()}.
+ * Collector uses only java.net and LatencyHistogram, so it can be started on desktop JVM with {@link #main(String[])}
+ * as well, SDK classes should be in class path then.
+ */
+public class FakeCollector {
+    private static final String TAG = "FakeCollector";
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    // android.util.Log isn't available on desktop JVM, main() prints to console instead
+    private static volatile boolean sIsConsoleLog;
+
+    private final ServerSocket mServerSocket;
+    private final ExecutorService mExecutor;
+    private final Random mRandom = new Random();
+
+    private volatile long mLatencyMillis;
+    private volatile double mErrorRate;
+    private volatile double mThrottleRate;
+    private volatile double mUnavailableRate;
+    private volatile double mPartialFailureRate;
+    private volatile String mTimestampParameter;
+    private volatile boolean mIsStopped;
+
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mAccepted = new AtomicLong();
+    private final AtomicLong mErrors = new AtomicLong();
+    private final AtomicLong mThrottled = new AtomicLong();
+    private final AtomicLong mUnavailable = new AtomicLong();
+    private final AtomicLong mPartialFailures = new AtomicLong();
+    private final AtomicLong mRequestBytes = new AtomicLong();
+    private final AtomicLong mAcceptedBytes = new AtomicLong();
+    private volatile LatencyHistogram mLatency = new LatencyHistogram();
+
+    /**
+     * @param port port to listen on loopback interface, 0 for any free port
+     */
+    public FakeCollector(int port) throws IOException {
+        this(port, InetAddress.getByName("127.0.0.1"));
+    }
+
+    /**
+     * @param address interface to listen on, null for all interfaces
+     */
+    public FakeCollector(int port, InetAddress address) throws IOException {
+        mServerSocket = new ServerSocket(port, 50, address);
+        mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = Executors.defaultThreadFactory().newThread(r);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * @return factory for {@link com.webtrekk.webtrekksdk.Request.RequestFactory#setConnectionFactory(RequestProcessor.ConnectionFactory)},
+     * it opens plain http connections to collector
+     */
+    public RequestProcessor.ConnectionFactory getConnectionFactory() {
+        return new RequestProcessor.ConnectionFactory() {
+            @Override
+            public HttpURLConnection openConnection(URL url) throws IOException {
+                return (HttpURLConnection) url.openConnection();
+            }
+        };
+    }
+
+    public void start() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        });
+    }
+
+    public void stop() {
+        mIsStopped = true;
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            //nothing to do, server is closed anyway
+        }
+        mExecutor.shutdownNow();
+    }
+
+    public int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    /**
+     * @return track domain that points to this collector when it listens on loopback interface
+     */
+    public String getTrackDomain() {
+        return "http://127.0.0.1:" + getPort();
+    }
+
+    /**
+     * delay before each response
+     */
+    public void setLatency(long millis) {
+        mLatencyMillis = millis;
+    }
+
+    /**
+     * share of requests that receive 500
+     */
+    public void setErrorRate(double rate) {
+        mErrorRate = rate;
+    }
+
+    /**
+     * share of requests that receive 429
+     */
+    public void setThrottleRate(double rate) {
+        mThrottleRate = rate;
+    }
+
+    /**
+     * share of requests that receive 503
+     */
+    public void setUnavailableRate(double rate) {
+        mUnavailableRate = rate;
+    }
+
+    /**
+     * share of requests that are read completely, but connection is closed without response
+     */
+    public void setPartialFailureRate(double rate) {
+        mPartialFailureRate = rate;
+    }
+
+    /**
+     * @param name query parameter with track time in milliseconds, e.g. "cp990". Null disables latency calculation
+     */
+    public void setTimestampParameter(String name) {
+        mTimestampParameter = name;
+    }
+
+    public long getRequests() {
+        return mRequests.get();
+    }
+
+    /**
+     * @return number of requests that receive 200
+     */
+    public long getAccepted() {
+        return mAccepted.get();
+    }
+
+    public long getErrors() {
+        return mErrors.get();
+    }
+
+    public long getThrottled() {
+        return mThrottled.get();
+    }
+
+    public long getUnavailable() {
+        return mUnavailable.get();
+    }
+
+    public long getPartialFailures() {
+        return mPartialFailures.get();
+    }
+
+    /**
+     * @return bytes of all received requests (request line and headers)
+     */
+    public long getRequestBytes() {
+        return mRequestBytes.get();
+    }
+
+    /**
+     * @return bytes of requests that receive 200
+     */
+    public long getAcceptedBytes() {
+        return mAcceptedBytes.get();
+    }
+
+    /**
+     * @return end to end latency of accepted requests
+     */
+    public LatencyHistogram.Snapshot getLatency() {
+        return mLatency.getSnapshot();
+    }
+
+    public void reset() {
+        mRequests.set(0);
+        mAccepted.set(0);
+        mErrors.set(0);
+        mThrottled.set(0);
+        mUnavailable.set(0);
+        mPartialFailures.set(0);
+        mRequestBytes.set(0);
+        mAcceptedBytes.set(0);
+        mLatency = new LatencyHistogram();
+    }
+
+    @Override
+    public String toString() {
+        return "requests:" + getRequests() + " accepted:" + getAccepted() + " 500:" + getErrors()
+                + " 429:" + getThrottled() + " 503:" + getUnavailable() + " partial:" + getPartialFailures()
+                + " bytes:" + getRequestBytes() + " latency:" + getLatency();
+    }
+
+    private void acceptConnections() {
+        while (!mIsStopped) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (IOException e) {
+                if (!mIsStopped) {
+                    warn("accept failed", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * serves keep alive connection until client closes it or failure is injected
+     */
+    private void serve(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            final InputStream in = new BufferedInputStream(socket.getInputStream());
+            final OutputStream out = socket.getOutputStream();
+            final StringBuilder line = new StringBuilder();
+
+            while (!mIsStopped) {
+                int bytes = readLine(in, line);
+                if (bytes < 0) {
+                    return;
+                }
+                final String requestLine = line.toString();
+                boolean close = false;
+
+                //skip headers, GET requests don't have body
+                int headerBytes;
+                while ((headerBytes = readLine(in, line)) > 2) {
+                    bytes += headerBytes;
+                    if (line.toString().toLowerCase().equals("connection: close")) {
+                        close = true;
+                    }
+                }
+                if (headerBytes < 0) {
+                    return;
+                }
+                bytes += headerBytes;
+
+                mRequests.incrementAndGet();
+                mRequestBytes.addAndGet(bytes);
+
+                if (mLatencyMillis > 0) {
+                    Thread.sleep(mLatencyMillis);
+                }
+
+                final double draw;
+                synchronized (mRandom) {
+                    draw = mRandom.nextDouble();
+                }
+
+                double threshold = mPartialFailureRate;
+                if (draw < threshold) {
+                    mPartialFailures.incrementAndGet();
+                    return;
+                }
+                if (draw < (threshold += mUnavailableRate)) {
+                    mUnavailable.incrementAndGet();
+                    writeResponse(out, "503 Service Unavailable");
+                } else if (draw < (threshold += mThrottleRate)) {
+                    mThrottled.incrementAndGet();
+                    writeResponse(out, "429 Too Many Requests");
+                } else if (draw < threshold + mErrorRate) {
+                    mErrors.incrementAndGet();
+                    writeResponse(out, "500 Internal Server Error");
+                } else {
+                    mAccepted.incrementAndGet();
+                    mAcceptedBytes.addAndGet(bytes);
+                    recordLatency(requestLine);
+                    writeResponse(out, "200 OK");
+                }
+
+                if (close) {
+                    return;
+                }
+            }
+        } catch (SocketException e) {
+            //client closed connection
+        } catch (IOException e) {
+            warn("connection failed", e);
+        } catch (InterruptedException e) {
+            //collector is stopped
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                //nothing to do
+            }
+        }
+    }
+
+    private void recordLatency(String requestLine) {
+        final String parameter = mTimestampParameter;
+        if (parameter == null) {
+            return;
+        }
+
+        final int start = Math.max(requestLine.indexOf("?" + parameter + "="), requestLine.indexOf("&" + parameter + "="));
+        if (start < 0) {
+            return;
+        }
+
+        long trackTime = 0;
+        for (int i = start + parameter.length() + 2; i < requestLine.length(); i++) {
+            final char c = requestLine.charAt(i);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            trackTime = trackTime * 10 + (c - '0');
+        }
+        mLatency.record((System.currentTimeMillis() - trackTime) * 1000);
+    }
+
+    private static void writeResponse(OutputStream out, String status) throws IOException {
+        final String response = "HTTP/1.1 " + status + "\r\nContent-Type: image/gif\r\nContent-Length: 0\r\n"
+                + (status.startsWith("2") ? "" : "Retry-After: 1\r\n") + "\r\n";
+        out.write(response.getBytes("US-ASCII"));
+        out.flush();
+    }
+
+    /**
+     * reads line without CRLF to builder
+     * @return number of read bytes including CRLF or -1 if stream is closed
+     */
+    private static int readLine(InputStream in, StringBuilder line) throws IOException {
+        line.setLength(0);
+        int bytes = 0;
+        int c;
+
+        while ((c = in.read()) >= 0) {
+            bytes++;
+            if (c == '\n') {
+                final int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return bytes;
+            }
+            if (bytes > MAX_LINE_LENGTH) {
+                throw new IOException("Request line is too long");
+            }
+            line.append((char) c);
+        }
+        return -1;
+    }
+
+    private static void warn(String message, Throwable e) {
+        if (sIsConsoleLog) {
+            System.err.println(TAG + ": " + message + ":" + e);
+        } else {
+            Log.w(TAG, message, e);
+        }
+    }
+
+    /**
+     * Starts collector on desktop JVM. Arguments are port and optional latency in milliseconds,
+     * 500, 429, 503 and partial failure rates. Statistic is printed every 10 seconds.
+     */
+    public static void main(String[] args) throws Exception {
+        sIsConsoleLog = true;
+        final FakeCollector collector = new FakeCollector(args.length > 0 ? Integer.parseInt(args[0]) : 8080, null);
+
+        collector.setLatency(args.length > 1 ? Long.parseLong(args[1]) : 0);
+        collector.setErrorRate(args.length > 2 ? Double.parseDouble(args[2]) : 0);
+        collector.setThrottleRate(args.length > 3 ? Double.parseDouble(args[3]) : 0);
+        collector.setUnavailableRate(args.length > 4 ? Double.parseDouble(args[4]) : 0);
+        collector.setPartialFailureRate(args.length > 5 ? Double.parseDouble(args[5]) : 0);
+        collector.start();
+        System.out.println("FakeCollector is listening on port " + collector.getPort());
+
+        while (true) {
+            Thread.sleep(10000);
+            System.out.println(collector);
+        }
+    }
+}
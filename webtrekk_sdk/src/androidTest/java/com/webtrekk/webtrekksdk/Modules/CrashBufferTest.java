@@ -0,0 +1,116 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Modules;
+
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * tests record format, reopen and overflow of crash buffer
+ */
+public class CrashBufferTest extends AndroidTestCase {
+    private static final int MAX_FIELD_LENGTH = 255;
+
+    private CrashBuffer mBuffer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        new File(getContext().getFilesDir(), CrashBuffer.FILE_NAME).delete();
+        mBuffer = new CrashBuffer();
+        assertTrue(mBuffer.open(getContext(), ""));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        new File(getContext().getFilesDir(), CrashBuffer.FILE_NAME).delete();
+        super.tearDown();
+    }
+
+    public void testSaveAndRead() {
+        final Throwable cause = new IllegalStateException("cause message");
+        assertTrue(mBuffer.save(new RuntimeException("message", cause), MAX_FIELD_LENGTH));
+
+        final List<String[]> records = mBuffer.read();
+        assertEquals(1, records.size());
+        final String[] fields = records.get(0);
+        assertEquals(CrashBuffer.FIELDS_NUMBER, fields.length);
+        assertEquals(RuntimeException.class.getName(), fields[0]);
+        assertEquals("message", fields[1]);
+        assertTrue(fields[2].contains("cause message"));
+        assertNotNull(fields[3]);
+        assertNotNull(fields[4]);
+    }
+
+    public void testNullFields() {
+        assertTrue(mBuffer.save(new RuntimeException(), MAX_FIELD_LENGTH));
+
+        final String[] fields = mBuffer.read().get(0);
+        assertNull(fields[1]);
+        assertNull(fields[2]);
+        assertNull(fields[4]);
+    }
+
+    public void testRecordsSurviveReopen() {
+        assertTrue(mBuffer.save(new RuntimeException("first"), MAX_FIELD_LENGTH));
+
+        CrashBuffer reopened = new CrashBuffer();
+        assertTrue(reopened.open(getContext(), ""));
+        assertTrue(reopened.save(new RuntimeException("second"), MAX_FIELD_LENGTH));
+
+        final List<String[]> records = reopened.read();
+        assertEquals(2, records.size());
+        assertEquals("first", records.get(0)[1]);
+        assertEquals("second", records.get(1)[1]);
+
+        reopened.clear();
+        assertEquals(0, reopened.read().size());
+    }
+
+    public void testStackHasNoTrailingSeparator() {
+        final Throwable ex = new RuntimeException("stack");
+
+        for (int maxLength = 1; maxLength < MAX_FIELD_LENGTH; maxLength += 7) {
+            mBuffer.clear();
+            assertTrue(mBuffer.save(ex, maxLength));
+            final String stack = mBuffer.read().get(0)[3];
+
+            assertTrue(stack.length() <= maxLength);
+            assertFalse(stack.endsWith("|"));
+            assertFalse(stack.startsWith("|"));
+        }
+    }
+
+    public void testFullBuffer() {
+        final RuntimeException ex = new RuntimeException("full");
+        int saved = 0;
+
+        while (mBuffer.save(ex, MAX_FIELD_LENGTH)) {
+            saved++;
+            assertTrue(saved < CrashBuffer.BUFFER_SIZE);
+        }
+
+        final List<String[]> records = mBuffer.read();
+        assertEquals(saved, records.size());
+        for (String[] fields : records) {
+            assertEquals(CrashBuffer.FIELDS_NUMBER, fields.length);
+            assertFalse(fields[3] != null && fields[3].endsWith("|"));
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Modules;
+
+import android.test.AndroidTestCase;
+
+import java.util.List;
+
+/**
+ * tests aggregation, flush and rate limit of repeated exceptions
+ */
+public class ExceptionAggregatorTest extends AndroidTestCase {
+    private static final long START = 1000000;
+    private static final int TYPE = ExceptionHandler.Type.CATCHED.ordinal();
+
+    private ExceptionAggregator mAggregator;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mAggregator = new ExceptionAggregator();
+    }
+
+    private ExceptionAggregator.Event add(long fingerprint, long now) {
+        ExceptionAggregator.Event event = mAggregator.add(fingerprint, now);
+
+        if (event != null) {
+            event.setFields(TYPE, "name" + fingerprint, "message", null, "stack", null);
+        }
+        return event;
+    }
+
+    public void testFirstOccurrenceIsTrackedImmediately() {
+        ExceptionAggregator.Event event = add(1, START);
+
+        assertNotNull(event);
+        assertEquals(1, event.mCount);
+        assertEquals("name1", event.mName);
+        assertEquals(Long.MAX_VALUE, mAggregator.getNextFlushTime());
+    }
+
+    public void testOccurrencesInWindowAreAggregated() {
+        add(1, START);
+        assertNull(add(1, START + 10));
+        assertNull(add(1, START + 20));
+        assertEquals(START + ExceptionAggregator.WINDOW_MILLISECONDS, mAggregator.getNextFlushTime());
+
+        // window isn't over yet
+        assertTrue(mAggregator.flush(START + 30, false).isEmpty());
+
+        List<ExceptionAggregator.Event> events = mAggregator.flush(START + ExceptionAggregator.WINDOW_MILLISECONDS, false);
+        assertEquals(1, events.size());
+        assertEquals(2, events.get(0).mCount);
+        assertEquals(START + 10, events.get(0).mFirstTime);
+        assertEquals(START + 20, events.get(0).mLastTime);
+        assertEquals("name1", events.get(0).mName);
+
+        // everything is reported
+        assertTrue(mAggregator.flush(START + 3 * ExceptionAggregator.WINDOW_MILLISECONDS, false).isEmpty());
+        assertEquals(Long.MAX_VALUE, mAggregator.getNextFlushTime());
+    }
+
+    public void testForceFlushIgnoresWindow() {
+        add(1, START);
+        add(1, START + 10);
+
+        assertTrue(mAggregator.flush(START + 20, false).isEmpty());
+        List<ExceptionAggregator.Event> events = mAggregator.flush(START + 20, true);
+        assertEquals(1, events.size());
+        assertEquals(1, events.get(0).mCount);
+    }
+
+    public void testOccurrenceAfterWindowIsTrackedWithCount() {
+        add(1, START);
+        add(1, START + 10);
+
+        ExceptionAggregator.Event event = add(1, START + ExceptionAggregator.WINDOW_MILLISECONDS);
+        assertNotNull(event);
+        assertEquals(2, event.mCount);
+        assertEquals(START + 10, event.mFirstTime);
+    }
+
+    public void testFingerprintsAreAggregatedSeparately() {
+        assertNotNull(add(1, START));
+        assertNotNull(add(2, START));
+        assertNull(add(1, START + 10));
+        assertNull(add(2, START + 10));
+
+        assertEquals(2, mAggregator.flush(START + 10, true).size());
+    }
+
+    public void testRateIsLimited() {
+        long now = START;
+
+        for (int i = 0; i < ExceptionAggregator.MAX_EVENTS_PER_PERIOD; i++) {
+            assertNotNull(add(1, now));
+            now += ExceptionAggregator.WINDOW_MILLISECONDS;
+        }
+
+        // limit is reached, occurrences are counted till period is over
+        assertNull(add(1, now));
+        assertNull(add(1, now + 10));
+        assertTrue(mAggregator.flush(now + 20, true).isEmpty());
+        assertEquals(START + ExceptionAggregator.RATE_PERIOD_MILLISECONDS, mAggregator.getNextFlushTime());
+
+        List<ExceptionAggregator.Event> events = mAggregator.flush(START + ExceptionAggregator.RATE_PERIOD_MILLISECONDS, false);
+        assertEquals(1, events.size());
+        assertEquals(2, events.get(0).mCount);
+    }
+
+    public void testEvictedOccurrencesAreReported() {
+        add(0, START);
+        assertNull(add(0, START + 10));
+
+        for (int i = 1; i <= ExceptionAggregator.MAX_FINGERPRINTS; i++) {
+            add(i, START + 20);
+        }
+
+        List<ExceptionAggregator.Event> evicted = mAggregator.takeEvicted();
+        assertEquals(1, evicted.size());
+        assertEquals("name0", evicted.get(0).mName);
+        assertEquals(1, evicted.get(0).mCount);
+        assertTrue(mAggregator.takeEvicted().isEmpty());
+    }
+
+    public void testEventKeepsFieldsOfItsException() {
+        ExceptionAggregator.Event first = mAggregator.add(1, START);
+        first.setFields(TYPE, "name", "first", null, null, null);
+
+        ExceptionAggregator.Event second = mAggregator.add(1, START + ExceptionAggregator.WINDOW_MILLISECONDS);
+        second.setFields(TYPE, "name", "second", null, null, null);
+
+        // first event can be tracked without lock while entry gets next exception
+        assertEquals("first", first.mMessage);
+        assertEquals("second", second.mMessage);
+    }
+
+    public void testUnusedFingerprintIsForgotten() {
+        add(1, START);
+        mAggregator.flush(START + ExceptionAggregator.RATE_PERIOD_MILLISECONDS, false);
+
+        // fingerprint is new again, so first occurrence is tracked
+        assertNotNull(add(1, START + ExceptionAggregator.RATE_PERIOD_MILLISECONDS + 10));
+    }
+
+    public void testFingerprint() {
+        StackTraceElement[] stack = new StackTraceElement[]{
+                new StackTraceElement("com.example.Class", "method", "Class.java", 10),
+                new StackTraceElement("com.example.Class", "caller", "Class.java", 20)};
+        StackTraceElement[] otherLine = new StackTraceElement[]{
+                new StackTraceElement("com.example.Class", "method", "Class.java", 11),
+                new StackTraceElement("com.example.Class", "caller", "Class.java", 20)};
+
+        assertEquals(ExceptionAggregator.getFingerprint(TYPE, "name", stack),
+                ExceptionAggregator.getFingerprint(TYPE, "name", stack.clone()));
+        assertFalse(ExceptionAggregator.getFingerprint(TYPE, "name", stack) ==
+                ExceptionAggregator.getFingerprint(TYPE, "name", otherLine));
+        assertFalse(ExceptionAggregator.getFingerprint(TYPE, "name", stack) ==
+                ExceptionAggregator.getFingerprint(TYPE, "other", stack));
+        assertFalse(ExceptionAggregator.getFingerprint(TYPE, "name", "message") ==
+                ExceptionAggregator.getFingerprint(TYPE, "name", "other message"));
+    }
+}
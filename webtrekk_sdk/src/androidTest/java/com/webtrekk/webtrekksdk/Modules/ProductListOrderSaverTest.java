@@ -0,0 +1,168 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Modules;
+
+import android.test.AndroidTestCase;
+
+import com.webtrekk.webtrekksdk.ProductParameterBuilder;
+import com.webtrekk.webtrekksdk.TrackingParameter;
+import com.webtrekk.webtrekksdk.TrackingParameter.Parameter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * tests product order journal replay, compaction and recovery of broken tail
+ */
+public class ProductListOrderSaverTest extends AndroidTestCase {
+    private static final String PROCESS_SUFFIX = ".test";
+
+    private File mJournalFile;
+    private ProductListOrderSaver mSaver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mJournalFile = new File(getContext().getFilesDir(), "wt-product-order-journal" + PROCESS_SUFFIX);
+        mSaver = new ProductListOrderSaver(getContext(), PROCESS_SUFFIX);
+        mSaver.clear();
+        mSaver.load();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSaver.clear();
+        super.tearDown();
+    }
+
+    private static TrackingParameter product(String productId) {
+        return new TrackingParameter().add(Parameter.PRODUCT, productId);
+    }
+
+    private void savePosition(String productId, int position) {
+        Map<Integer, TrackingParameter> positions = new HashMap<>();
+        positions.put(position, product(productId));
+        mSaver.saveProductPositions(positions);
+    }
+
+    private void addProduct(String productId) {
+        mSaver.trackAddedProducts(product(productId)
+                .add(Parameter.PRODUCT_STATUS, ProductParameterBuilder.ActionType.add.toString()));
+    }
+
+    private ProductListOrderSaver reload() {
+        ProductListOrderSaver saver = new ProductListOrderSaver(getContext(), PROCESS_SUFFIX);
+        saver.load();
+        return saver;
+    }
+
+    public void testJournalIsReplayed() {
+        savePosition("product1", 1);
+        savePosition("product1", 5);
+        savePosition("product2", 2);
+        addProduct("product2");
+        addProduct("product1");
+
+        ProductListOrderSaver saver = reload();
+        assertEquals(1, saver.getProductFirstDefinedPosition("product1"));
+        assertEquals(5, saver.getProductLastDefinedPosition("product1"));
+        assertEquals(2, saver.getProductFirstDefinedPosition("product2"));
+        assertEquals(2, saver.getProductLastDefinedPosition("product2"));
+        assertEquals(0, saver.getProductAddOrderPosition("product2"));
+        assertEquals(1, saver.getProductAddOrderPosition("product1"));
+        assertEquals(ProductListOrderSaver.NOT_DEFINED_ORDER, saver.getProductFirstDefinedPosition("product3"));
+    }
+
+    public void testCompactedJournalIsReplayed() {
+        savePosition("product1", 1);
+        savePosition("product1", 4);
+        savePosition("product1", 5);
+        addProduct("product1");
+        final long length = mJournalFile.length();
+
+        mSaver.savePermanent();
+        assertTrue(mJournalFile.length() < length);
+
+        ProductListOrderSaver saver = reload();
+        assertEquals(1, saver.getProductFirstDefinedPosition("product1"));
+        assertEquals(5, saver.getProductLastDefinedPosition("product1"));
+        assertEquals(0, saver.getProductAddOrderPosition("product1"));
+    }
+
+    public void testTornTailIsTruncated() throws IOException {
+        savePosition("product1", 1);
+        addProduct("product1");
+        final long validLength = mJournalFile.length();
+
+        // half of next record is written
+        FileOutputStream out = new FileOutputStream(mJournalFile, true);
+        out.write(new byte[]{0, 0, 0, 20, 1, 2});
+        out.close();
+
+        ProductListOrderSaver saver = reload();
+        assertEquals(validLength, mJournalFile.length());
+        assertEquals(1, saver.getProductFirstDefinedPosition("product1"));
+        assertEquals(0, saver.getProductAddOrderPosition("product1"));
+
+        // records that are appended after recovery are read
+        Map<Integer, TrackingParameter> positions = new HashMap<>();
+        positions.put(7, product("product2"));
+        saver.saveProductPositions(positions);
+        saver = reload();
+        assertEquals(1, saver.getProductFirstDefinedPosition("product1"));
+        assertEquals(7, saver.getProductFirstDefinedPosition("product2"));
+    }
+
+    public void testJournalIsTruncatedAtCorruptedRecord() throws IOException {
+        savePosition("product1", 1);
+        final long validLength = mJournalFile.length();
+        savePosition("product2", 2);
+        savePosition("product3", 3);
+
+        // change product id of second record, so its checksum is wrong
+        RandomAccessFile file = new RandomAccessFile(mJournalFile, "rw");
+        file.seek(mJournalFile.length() - (mJournalFile.length() - validLength) / 2 - 1);
+        file.write('x');
+        file.close();
+
+        ProductListOrderSaver saver = reload();
+        assertEquals(validLength, mJournalFile.length());
+        assertEquals(1, saver.getProductFirstDefinedPosition("product1"));
+        assertEquals(ProductListOrderSaver.NOT_DEFINED_ORDER, saver.getProductFirstDefinedPosition("product2"));
+        // third record follows corrupted one, it is dropped too
+        assertEquals(ProductListOrderSaver.NOT_DEFINED_ORDER, saver.getProductFirstDefinedPosition("product3"));
+    }
+
+    public void testUnknownJournalFormatIsRemoved() throws IOException {
+        FileOutputStream out = new FileOutputStream(mJournalFile);
+        out.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12});
+        out.close();
+
+        ProductListOrderSaver saver = reload();
+        assertFalse(mJournalFile.exists());
+        assertEquals(ProductListOrderSaver.NOT_DEFINED_ORDER, saver.getProductFirstDefinedPosition("product1"));
+
+        Map<Integer, TrackingParameter> positions = new HashMap<>();
+        positions.put(4, product("product1"));
+        saver.saveProductPositions(positions);
+        assertEquals(4, reload().getProductFirstDefinedPosition("product1"));
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk;
+
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.webtrekk.webtrekksdk.Configuration.TrackingConfiguration;
+import com.webtrekk.webtrekksdk.Modules.Campaign;
+import com.webtrekk.webtrekksdk.Request.RequestStore;
+import com.webtrekk.webtrekksdk.Request.RequestUrlStore;
+import com.webtrekk.webtrekksdk.TrackingParameter.Parameter;
+import com.webtrekk.webtrekksdk.Utils.HelperFunctions;
+import com.webtrekk.webtrekksdk.Utils.LatencyHistogram;
+import com.webtrekk.webtrekksdk.Utils.StateStore;
+
+/**
+ * Load test for complete pipeline: Webtrekk.track -> RequestFactory -> RequestUrlStore -> RequestProcessor
+ * -> {@link FakeCollector}. Synthetic events contain track time, so collector calculates end to end latency.
+ * Result is printed to logcat with "PipelineLoadTest" tag: events per second, latency percentiles in
+ * microseconds and bytes per event. Number of events can be increased to millions for longer runs.
+ */
+public class PipelineLoadTest extends AndroidTestCase {
+    private static final String TAG = "PipelineLoadTest";
+    private static final String TIMESTAMP_INDEX = "990";
+    private static final int EVENTS_NUMBER = 1000000;
+    private static final int EVENTS_NUMBER_WITH_FAILURES = 100000;
+    // producer waits if there are more not sent urls to keep store below max requests
+    private static final int MAX_PENDING = 2000;
+    private static final long SEND_INTERVAL = 5;
+    private static final long DRAIN_TIMEOUT = 10 * 60 * 1000;
+    // backlog that is saved to file before sending, it is read from file during drain
+    private static final int BACKLOG_NUMBER = 20000;
+    private static final int BACKLOG_NUMBER_WITH_LATENCY = 1000;
+    private static final long COLLECTOR_LATENCY = 200;
+
+    private Webtrekk mWebtrekk;
+    private FakeCollector mCollector;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        SharedPreferences.Editor editor = HelperFunctions.getWebTrekkSharedPreference(getContext()).edit();
+        editor.clear();
+        editor.apply();
+        Campaign.getFirstStartInitiated(getContext(), true);
+        StateStore.getInstance(getContext()).setCampaignProcessFinished();
+
+        mCollector = new FakeCollector(0);
+        mCollector.setTimestampParameter(Parameter.PAGE + TIMESTAMP_INDEX);
+        mCollector.start();
+
+        mWebtrekk = new Webtrekk();
+        mWebtrekk.getRequestFactory().setConnectionFactory(mCollector.getConnectionFactory());
+        mWebtrekk.initWebtrekk(getContext());
+        mWebtrekk.getRequestFactory().getRequestUrlStore().clearAllTrackingData();
+
+        TrackingConfiguration configuration = mWebtrekk.getTrackingConfiguration();
+        configuration.setTrackDomain(mCollector.getTrackDomain());
+        configuration.setSendDelay(0);
+        configuration.setMaxRequests(MAX_PENDING * 2);
+        mWebtrekk.setTrackingConfiguration(configuration);
+        mWebtrekk.getRequestFactory().setCurrentActivityName(TAG);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mWebtrekk.getRequestFactory().stopSendURLProcess();
+        mCollector.stop();
+        new RequestUrlStore(getContext()).deleteRequestsFile();
+        super.tearDown();
+    }
+
+    public void testThroughput() throws InterruptedException {
+        runLoad(EVENTS_NUMBER);
+
+        assertEquals(mCollector.toString(), EVENTS_NUMBER, mCollector.getAccepted());
+    }
+
+    public void testThroughputWithFailures() throws InterruptedException {
+        mCollector.setLatency(2);
+        mCollector.setErrorRate(0.01);
+        mCollector.setUnavailableRate(0.01);
+        mCollector.setThrottleRate(0.005);
+        mCollector.setPartialFailureRate(0.005);
+
+        runLoad(EVENTS_NUMBER_WITH_FAILURES);
+
+        // 5xx are resent, 429 and partial failures can be removed from queue by request processor
+        final long dropped = mCollector.getThrottled() + mCollector.getPartialFailures();
+        assertTrue(mCollector.toString(), mCollector.getAccepted() + dropped >= EVENTS_NUMBER_WITH_FAILURES);
+        assertTrue(mCollector.toString(), mCollector.getAccepted() <= EVENTS_NUMBER_WITH_FAILURES);
+    }
+
+    public void testDrainThroughput() throws InterruptedException {
+        runDrain(BACKLOG_NUMBER, 0);
+
+        assertEquals(mCollector.toString(), BACKLOG_NUMBER, mCollector.getAccepted());
+    }
+
+    public void testDrainThroughputWithLatency() throws InterruptedException {
+        runDrain(BACKLOG_NUMBER_WITH_LATENCY, COLLECTOR_LATENCY);
+
+        assertEquals(mCollector.toString(), BACKLOG_NUMBER_WITH_LATENCY, mCollector.getAccepted());
+    }
+
+    /**
+     * tracks events without sending, saves them to file and measures how fast they are sent
+     */
+    private void runDrain(int eventsNumber, long latency) throws InterruptedException {
+        mCollector.setLatency(latency);
+        final RequestStore store = mWebtrekk.getRequestFactory().getRequestUrlStore();
+
+        for (int i = 0; i < eventsNumber; i++) {
+            TrackingParameter tp = new TrackingParameter();
+            tp.add(Parameter.PAGE, TIMESTAMP_INDEX, Long.toString(System.currentTimeMillis()));
+            mWebtrekk.track(tp);
+        }
+        mWebtrekk.getRequestFactory().flush();
+
+        final long start = System.nanoTime();
+        final long drainFinish = System.currentTimeMillis() + DRAIN_TIMEOUT;
+        while (store.size() > 0 && System.currentTimeMillis() < drainFinish) {
+            mWebtrekk.send();
+            Thread.sleep(SEND_INTERVAL);
+        }
+        final long drainNanos = System.nanoTime() - start;
+
+        Log.i(TAG, "drain of events:" + eventsNumber + " latency ms:" + latency
+                + " delivered events/s:" + mCollector.getAccepted() * 1000000000L / Math.max(drainNanos, 1));
+        Log.i(TAG, "collector: " + mCollector);
+    }
+
+    private void runLoad(int eventsNumber) throws InterruptedException {
+        final RequestStore store = mWebtrekk.getRequestFactory().getRequestUrlStore();
+        final Thread sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!Thread.interrupted()) {
+                        mWebtrekk.send();
+                        Thread.sleep(SEND_INTERVAL);
+                    }
+                } catch (InterruptedException e) {
+                    //load is finished
+                }
+            }
+        });
+
+        final long start = System.nanoTime();
+        sender.start();
+
+        try {
+            for (int i = 0; i < eventsNumber; i++) {
+                while (store.size() >= MAX_PENDING) {
+                    Thread.sleep(1);
+                }
+                TrackingParameter tp = new TrackingParameter();
+                tp.add(Parameter.PAGE, TIMESTAMP_INDEX, Long.toString(System.currentTimeMillis()));
+                mWebtrekk.track(tp);
+            }
+
+            final long trackTime = System.nanoTime() - start;
+            final long drainFinish = System.currentTimeMillis() + DRAIN_TIMEOUT;
+            while (store.size() > 0 && System.currentTimeMillis() < drainFinish) {
+                Thread.sleep(10);
+            }
+
+            report(eventsNumber, trackTime, System.nanoTime() - start);
+        } finally {
+            sender.interrupt();
+            sender.join();
+        }
+    }
+
+    private void report(int eventsNumber, long trackNanos, long totalNanos) {
+        final LatencyHistogram.Snapshot latency = mCollector.getLatency();
+        final long accepted = mCollector.getAccepted();
+
+        Log.i(TAG, "events:" + eventsNumber + " accepted:" + accepted
+                + " track events/s:" + eventsNumber * 1000000000L / Math.max(trackNanos, 1)
+                + " delivered events/s:" + accepted * 1000000000L / Math.max(totalNanos, 1));
+        Log.i(TAG, "end to end latency us: p50=" + latency.getPercentile(50) + " p90=" + latency.getPercentile(90)
+                + " p99=" + latency.getPercentile(99) + " p99.9=" + latency.getPercentile(99.9) + " max=" + latency.getMax());
+        Log.i(TAG, "bytes per event: " + (accepted == 0 ? 0 : mCollector.getAcceptedBytes() / accepted)
+                + " wire bytes per event with retries: " + mCollector.getRequestBytes() / Math.max(eventsNumber, 1));
+        Log.i(TAG, "collector: " + mCollector);
+        Log.i(TAG, "sdk: " + mWebtrekk.getMetricsSnapshot());
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk;
+
+import android.test.AndroidTestCase;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * tests caching and coalescing of recommendation queries
+ */
+public class RecommendationCacheTest extends AndroidTestCase {
+    private static final String RESPONSE = "[{\"reco\":[{\"value\":\"product1\",\"identifier\":\"id\",\"type\":\"text\"},"
+            + "{\"value\":\"title1\",\"identifier\":\"campaignTitle\",\"type\":\"text\"}]}]";
+    private static final long TTL = 60 * 1000;
+
+    private RecommendationServer mServer;
+    private RecommendationCache mCache;
+
+    /**
+     * answers each request with one recommendation, counts requests
+     */
+    private static class RecommendationServer implements Runnable {
+        private final ServerSocket mServerSocket;
+        private final AtomicInteger mRequests = new AtomicInteger();
+        private volatile long mDelayMillis;
+
+        RecommendationServer() throws IOException {
+            mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            final Thread thread = new Thread(this, "RecommendationServer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        String getUrl(String placement) {
+            return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/reco?placement=" + placement;
+        }
+
+        @Override
+        public void run() {
+            while (!mServerSocket.isClosed()) {
+                Socket socket = null;
+                try {
+                    socket = mServerSocket.accept();
+                    final BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+                    String line;
+                    while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                        //skip headers
+                    }
+                    mRequests.incrementAndGet();
+                    Thread.sleep(mDelayMillis);
+
+                    final byte[] body = RESPONSE.getBytes("UTF-8");
+                    final OutputStream out = socket.getOutputStream();
+                    out.write(("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nContent-Length: " + body.length
+                            + "\r\nConnection: close\r\n\r\n").getBytes("UTF-8"));
+                    out.write(body);
+                    out.flush();
+                } catch (IOException e) {
+                    //server is closed
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    if (socket != null) {
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                            //connection is done anyway
+                        }
+                    }
+                }
+            }
+        }
+
+        void close() throws IOException {
+            mServerSocket.close();
+        }
+    }
+
+    /**
+     * collects results of callbacks that are called on executor thread
+     */
+    private static class Callback implements WebtrekkRecommendations.RecommendationCallback {
+        private final CountDownLatch mLatch;
+        final List<List<WebtrekkRecommendations.RecommendationProduct>> mProducts = new ArrayList<>();
+        final List<WebtrekkRecommendations.QueryRecommendationResult> mResults = new ArrayList<>();
+
+        Callback(int calls) {
+            mLatch = new CountDownLatch(calls);
+        }
+
+        @Override
+        public synchronized void onReceiveRecommendations(List<WebtrekkRecommendations.RecommendationProduct> products,
+                                                          WebtrekkRecommendations.QueryRecommendationResult result) {
+            mProducts.add(products);
+            mResults.add(result);
+            mLatch.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue(mLatch.await(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new RecommendationServer();
+        mCache = new RecommendationCache();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.close();
+        super.tearDown();
+    }
+
+    private Callback query(String url, long ttl) throws InterruptedException {
+        final Callback callback = new Callback(1);
+        mCache.query(url, ttl, callback, null);
+        callback.await();
+        return callback;
+    }
+
+    private static void assertReceived(Callback callback) {
+        assertEquals(WebtrekkRecommendations.QueryRecommendationResult.RECEIVED_OK, callback.mResults.get(0));
+        assertEquals(1, callback.mProducts.get(0).size());
+        assertEquals("product1", callback.mProducts.get(0).get(0).getId());
+        assertEquals("title1", callback.mProducts.get(0).get(0).getTitle());
+    }
+
+    public void testResponseIsCached() throws InterruptedException {
+        final String url = mServer.getUrl("cached");
+
+        final Callback first = query(url, TTL);
+        final Callback second = query(url, TTL);
+
+        assertReceived(first);
+        assertReceived(second);
+        assertEquals(1, mServer.mRequests.get());
+        // each callback receives own list
+        assertNotSame(first.mProducts.get(0), second.mProducts.get(0));
+    }
+
+    public void testOtherUrlIsRequested() throws InterruptedException {
+        assertReceived(query(mServer.getUrl("first"), TTL));
+        assertReceived(query(mServer.getUrl("second"), TTL));
+        assertEquals(2, mServer.mRequests.get());
+    }
+
+    public void testZeroTTLIsNotCached() throws InterruptedException {
+        final String url = mServer.getUrl("not-cached");
+
+        assertReceived(query(url, 0));
+        assertReceived(query(url, 0));
+        assertEquals(2, mServer.mRequests.get());
+    }
+
+    public void testExpiredResponseIsRequestedAgain() throws InterruptedException {
+        final String url = mServer.getUrl("expired");
+
+        assertReceived(query(url, 1));
+        Thread.sleep(10);
+        assertReceived(query(url, 1));
+        assertEquals(2, mServer.mRequests.get());
+    }
+
+    public void testIdenticalQueriesWaitForOneRequest() throws InterruptedException {
+        final String url = mServer.getUrl("coalesced");
+        final Callback callback = new Callback(3);
+
+        mServer.mDelayMillis = 500;
+        for (int i = 0; i < 3; i++) {
+            mCache.query(url, TTL, callback, null);
+        }
+        callback.await();
+
+        assertEquals(1, mServer.mRequests.get());
+        for (WebtrekkRecommendations.QueryRecommendationResult result : callback.mResults) {
+            assertEquals(WebtrekkRecommendations.QueryRecommendationResult.RECEIVED_OK, result);
+        }
+    }
+
+    public void testNoConnectionIsDeliveredAndNotCached() throws IOException, InterruptedException {
+        final String url = mServer.getUrl("offline");
+        mServer.close();
+
+        for (int i = 0; i < 2; i++) {
+            final Callback callback = query(url, TTL);
+            assertEquals(WebtrekkRecommendations.QueryRecommendationResult.NO_CONNECTION, callback.mResults.get(0));
+            assertNull(callback.mProducts.get(0));
+        }
+        assertEquals(0, mServer.mRequests.get());
+    }
+}
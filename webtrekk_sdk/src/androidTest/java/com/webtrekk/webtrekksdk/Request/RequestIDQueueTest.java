@@ -0,0 +1,220 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.webtrekk.webtrekksdk.Request;
+
+import android.test.AndroidTestCase;
+
+import java.util.NoSuchElementException;
+
+/**
+ * tests circular buffer of request ids, how it wraps around, grows and shrinks
+ */
+public class RequestIDQueueTest extends AndroidTestCase {
+    private RequestIDQueue mQueue;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mQueue = new RequestIDQueue();
+    }
+
+    public void testAddAndRemove() {
+        assertTrue(mQueue.isEmpty());
+        for (int id = 0; id < 10; id++) {
+            mQueue.add(id, 1000 + id);
+            mQueue.setOffset(id, id * 100);
+        }
+
+        assertEquals(10, mQueue.size());
+        assertEquals(0, mQueue.firstKey());
+        assertEquals(9, mQueue.lastKey());
+        assertEquals(500, mQueue.getOffset(5));
+        assertEquals(1005, mQueue.getTime(5));
+
+        assertTrue(mQueue.remove(0));
+        assertFalse(mQueue.remove(0));
+        assertEquals(1, mQueue.firstKey());
+        assertEquals(-1, mQueue.getOffset(0));
+        assertEquals(0, mQueue.getTime(0));
+    }
+
+    public void testRemoveInMiddle() {
+        for (int id = 0; id < 5; id++) {
+            mQueue.add(id, id);
+        }
+
+        assertTrue(mQueue.remove(2));
+        assertFalse(mQueue.containsKey(2));
+        assertEquals(0, mQueue.firstKey());
+        assertEquals(4, mQueue.lastKey());
+
+        // head and tail skip ids that were removed in the middle
+        mQueue.remove(1);
+        mQueue.remove(0);
+        assertEquals(3, mQueue.firstKey());
+        mQueue.remove(4);
+        assertEquals(3, mQueue.lastKey());
+        assertEquals(1, mQueue.size());
+    }
+
+    public void testWrapAround() {
+        final int capacity = RequestIDQueue.INITIAL_CAPACITY;
+        int head = 0;
+
+        // queue keeps half of capacity while ids go around arrays several times
+        for (int id = 0; id < capacity * 5; id++) {
+            mQueue.add(id, id + 1);
+            mQueue.setOffset(id, id * 10);
+            if (mQueue.size() > capacity / 2) {
+                assertTrue(mQueue.remove(head++));
+            }
+        }
+
+        assertEquals(capacity, mQueue.capacity());
+        assertEquals(capacity / 2, mQueue.size());
+        assertEquals(head, mQueue.firstKey());
+        assertEquals(capacity * 5 - 1, mQueue.lastKey());
+        for (int id = head; id < capacity * 5; id++) {
+            assertEquals(id * 10, mQueue.getOffset(id));
+            assertEquals(id + 1, mQueue.getTime(id));
+        }
+        assertFalse(mQueue.containsKey(head - 1));
+    }
+
+    public void testGrowth() {
+        final int count = RequestIDQueue.INITIAL_CAPACITY * 4 + 1;
+
+        // head isn't at slot 0, so growth has to unwrap ids
+        mQueue.add(40, 0);
+        mQueue.remove(40);
+        for (int id = 41; id < 41 + count; id++) {
+            mQueue.add(id, id);
+            mQueue.setOffset(id, id * 2);
+        }
+
+        assertEquals(RequestIDQueue.INITIAL_CAPACITY * 8, mQueue.capacity());
+        assertEquals(count, mQueue.size());
+        for (int id = 41; id < 41 + count; id++) {
+            assertEquals(id * 2, mQueue.getOffset(id));
+            assertEquals(id, mQueue.getTime(id));
+        }
+    }
+
+    public void testSkippedIDsAreRemoved() {
+        mQueue.add(0, 1);
+        mQueue.add(RequestIDQueue.INITIAL_CAPACITY * 2, 2);
+
+        assertEquals(2, mQueue.size());
+        assertFalse(mQueue.containsKey(1));
+        assertTrue(mQueue.capacity() > RequestIDQueue.INITIAL_CAPACITY * 2);
+
+        mQueue.remove(0);
+        assertEquals(RequestIDQueue.INITIAL_CAPACITY * 2, mQueue.firstKey());
+    }
+
+    public void testAddOfOlderIDFails() {
+        mQueue.add(5, 0);
+        try {
+            mQueue.add(5, 0);
+            fail("id that isn't newer is added");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testShrink() {
+        final int count = RequestIDQueue.INITIAL_CAPACITY * 16;
+        for (int id = 0; id < count; id++) {
+            mQueue.add(id, id);
+            mQueue.setOffset(id, id);
+        }
+        assertEquals(count, mQueue.capacity());
+
+        // arrays aren't halved while range uses at least quarter of them
+        for (int id = 0; id < count * 3 / 4; id++) {
+            mQueue.remove(id);
+        }
+        assertEquals(count, mQueue.capacity());
+
+        mQueue.remove(count * 3 / 4);
+        assertEquals(count / 2, mQueue.capacity());
+
+        final int left = 10;
+        for (int id = count * 3 / 4 + 1; id < count - left; id++) {
+            mQueue.remove(id);
+        }
+        assertEquals(RequestIDQueue.INITIAL_CAPACITY, mQueue.capacity());
+        assertEquals(left, mQueue.size());
+        for (int id = count - left; id < count; id++) {
+            assertEquals(id, mQueue.getOffset(id));
+            assertEquals(id, mQueue.getTime(id));
+        }
+
+        // queue still grows after it was shrunk
+        for (int id = count; id < count + RequestIDQueue.INITIAL_CAPACITY; id++) {
+            mQueue.add(id, id);
+        }
+        assertEquals(RequestIDQueue.INITIAL_CAPACITY * 2, mQueue.capacity());
+        assertEquals(count - left, mQueue.firstKey());
+    }
+
+    public void testShrinkKeepsRangeWithRemovedIDs() {
+        final int count = RequestIDQueue.INITIAL_CAPACITY * 8;
+        for (int id = 0; id < count; id++) {
+            mQueue.add(id, id);
+        }
+
+        // ids in the middle are removed, but range between head and tail is still whole queue
+        for (int id = 1; id < count - 1; id++) {
+            mQueue.remove(id);
+        }
+        assertEquals(2, mQueue.size());
+        assertEquals(count, mQueue.capacity());
+
+        mQueue.remove(0);
+        assertEquals(RequestIDQueue.INITIAL_CAPACITY, mQueue.capacity());
+        assertEquals(count - 1, mQueue.firstKey());
+        assertEquals(count - 1, mQueue.getTime(count - 1));
+    }
+
+    public void testReset() {
+        mQueue.reset(RequestIDQueue.INITIAL_CAPACITY * 2 + 1, 77);
+
+        assertEquals(RequestIDQueue.INITIAL_CAPACITY * 4, mQueue.capacity());
+        assertEquals(RequestIDQueue.INITIAL_CAPACITY * 2 + 1, mQueue.size());
+        assertEquals(77, mQueue.getOffset(0));
+        assertEquals(-1, mQueue.getOffset(1));
+        assertEquals(0, mQueue.getTime(1));
+    }
+
+    public void testClear() {
+        for (int id = 0; id < RequestIDQueue.INITIAL_CAPACITY * 2; id++) {
+            mQueue.add(id, id);
+        }
+
+        mQueue.clear();
+        assertTrue(mQueue.isEmpty());
+        assertEquals(RequestIDQueue.INITIAL_CAPACITY, mQueue.capacity());
+        try {
+            mQueue.firstKey();
+            fail("empty queue has first id");
+        } catch (NoSuchElementException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Request;
+
+import android.test.AndroidTestCase;
+
+import com.webtrekk.webtrekksdk.Utils.WebtrekkMetrics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * tests batching, deletion of sent rows, expiration and migration of SQLite request store
+ */
+public class SQLiteRequestStoreTest extends AndroidTestCase {
+    private static final String SUFFIX = "-sqlite-test";
+    private static final String URL_PREFIX = "https://nglab.org/sqlite?event=";
+    private static final long START_TIME = 1500000000000L;
+
+    private final List<SQLiteRequestStore> mStores = new ArrayList<>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(SQLiteRequestStore.getDatabaseName(SUFFIX));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (SQLiteRequestStore store : mStores) {
+            store.clearAllTrackingData();
+            store.deleteDatabase();
+        }
+        mStores.clear();
+        final RequestUrlStore fileStore = new RequestUrlStore(getContext(), SUFFIX, 0, WebtrekkMetrics.Gauge.STORE_SIZE);
+        fileStore.clearAllTrackingData();
+        fileStore.deleteRequestsFile();
+        super.tearDown();
+    }
+
+    private SQLiteRequestStore openStore() {
+        final SQLiteRequestStore store = new SQLiteRequestStore(getContext(), SUFFIX, 0, WebtrekkMetrics.Gauge.STORE_SIZE);
+        mStores.add(store);
+        return store;
+    }
+
+    private static String url(int index) {
+        return URL_PREFIX + index;
+    }
+
+    private static void addURLs(RequestStore store, int from, int count) {
+        for (int i = from; i < from + count; i++) {
+            assertTrue(store.addURL(url(i), START_TIME + i));
+        }
+    }
+
+    private static void assertHead(RequestStore store, int index) {
+        assertEquals(url(index), store.peek());
+        assertEquals(START_TIME + index, store.getHeadTime());
+    }
+
+    public void testBatchInsertAndLoad() {
+        final int count = SQLiteRequestStore.BATCH_SIZE * 3 + 5;
+        final SQLiteRequestStore store = openStore();
+
+        addURLs(store, 0, count);
+        assertEquals(count, store.size());
+        store.flush();
+
+        // rows are read in groups, all of them are loaded in insertion order
+        final SQLiteRequestStore reopened = openStore();
+        assertEquals(count, reopened.size());
+        for (int i = 0; i < count; i++) {
+            assertHead(reopened, i);
+            reopened.removeLastURL();
+        }
+        assertEquals(0, reopened.size());
+    }
+
+    public void testNewURLsFollowSavedRows() {
+        final SQLiteRequestStore store = openStore();
+
+        addURLs(store, 0, SQLiteRequestStore.BATCH_SIZE);
+        store.flush();
+        addURLs(store, SQLiteRequestStore.BATCH_SIZE, 3);
+
+        final List<String> urls = store.peek(SQLiteRequestStore.BATCH_SIZE + 3);
+        assertEquals(SQLiteRequestStore.BATCH_SIZE + 3, urls.size());
+        for (int i = 0; i < urls.size(); i++) {
+            assertEquals(url(i), urls.get(i));
+        }
+    }
+
+    public void testSentRowsAreDeleted() {
+        final int count = SQLiteRequestStore.BATCH_SIZE * 2;
+        final int sent = SQLiteRequestStore.BATCH_SIZE + 3;
+        final SQLiteRequestStore store = openStore();
+
+        addURLs(store, 0, count);
+        store.flush();
+        for (int i = 0; i < sent; i++) {
+            assertHead(store, i);
+            store.removeLastURL();
+        }
+        store.flush();
+
+        // sent rows are deleted from database, so they aren't loaded again
+        final SQLiteRequestStore reopened = openStore();
+        assertEquals(count - sent, reopened.size());
+        assertHead(reopened, sent);
+    }
+
+    public void testHeadAttemptsAreSaved() {
+        final SQLiteRequestStore store = openStore();
+
+        addURLs(store, 0, 2);
+        store.peek();
+        store.setHeadAttempts(3);
+        assertEquals(3, store.getHeadAttempts());
+        store.flush();
+
+        final SQLiteRequestStore reopened = openStore();
+        assertHead(reopened, 0);
+        assertEquals(3, reopened.getHeadAttempts());
+        reopened.setHeadAttempts(4);
+        assertEquals(4, openStore().getHeadAttempts());
+    }
+
+    public void testExpiredByEnqueueTime() {
+        final int saved = SQLiteRequestStore.BATCH_SIZE + 10;
+        final SQLiteRequestStore store = openStore();
+
+        addURLs(store, 0, saved);
+        store.flush();
+        addURLs(store, saved, 10);
+
+        // saved rows and new urls that are added before min time are removed
+        final int expired = saved + 5;
+        assertEquals(expired, store.removeExpired(START_TIME + expired));
+        assertEquals(5, store.size());
+        assertHead(store, expired);
+        store.flush();
+
+        final SQLiteRequestStore reopened = openStore();
+        assertEquals(5, reopened.size());
+        assertHead(reopened, expired);
+        assertEquals(0, reopened.removeExpired(START_TIME));
+    }
+
+    public void testMigrationKeepsEnqueueTime() {
+        final int count = SQLiteRequestStore.BATCH_SIZE + 7;
+        final RequestUrlStore fileStore = new RequestUrlStore(getContext(), SUFFIX, 0, WebtrekkMetrics.Gauge.STORE_SIZE);
+        fileStore.clearAllTrackingData();
+        addURLs(fileStore, 0, count);
+        fileStore.flush();
+
+        final SQLiteRequestStore sqliteStore = openStore();
+        RequestFactory.moveURLs(fileStore, sqliteStore);
+        assertEquals(0, fileStore.size());
+        assertEquals(count, sqliteStore.size());
+        assertHead(sqliteStore, 0);
+
+        // and back, time of each url is kept
+        final RequestUrlStore restoredStore = new RequestUrlStore(getContext(), SUFFIX, 0, WebtrekkMetrics.Gauge.STORE_SIZE);
+        RequestFactory.moveURLs(sqliteStore, restoredStore);
+        assertEquals(0, sqliteStore.size());
+        assertEquals(count, restoredStore.size());
+        for (int i = 0; i < count; i++) {
+            assertHead(restoredStore, i);
+            restoredStore.removeLastURL();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Request;
+
+import android.test.AndroidTestCase;
+
+import com.webtrekk.webtrekksdk.Configuration.ConfigurationHolder;
+import com.webtrekk.webtrekksdk.Configuration.TrackingConfiguration;
+import com.webtrekk.webtrekksdk.Utils.WebtrekkMetrics;
+
+/**
+ * tests reservation of storage quota and eviction order of lanes that share it
+ */
+public class StorageQuotaTest extends AndroidTestCase {
+    private static final String URL_PREFIX = "https://nglab.org/quota?event=";
+    private static final int QUOTA_URLS = 10;
+
+    private ConfigurationHolder mHolder;
+    private TrackingConfiguration mConfiguration;
+    private StorageQuota mQuota;
+    private RequestUrlStore mGeneralStore;
+    private RequestUrlStore mExceptionStore;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mConfiguration = new TrackingConfiguration();
+        mConfiguration.setMaxStorageBytes((int)(getURLBytes(url("g", 10)) * QUOTA_URLS));
+        mHolder = new ConfigurationHolder();
+        mHolder.publish(mConfiguration);
+        mQuota = new StorageQuota(mHolder);
+
+        mGeneralStore = new RequestUrlStore(getContext(), "-quota-test-general", 0, WebtrekkMetrics.Gauge.STORE_SIZE);
+        mExceptionStore = new RequestUrlStore(getContext(), "-quota-test-exception", 0, WebtrekkMetrics.Gauge.STORE_SIZE);
+        mGeneralStore.clearAllTrackingData();
+        mExceptionStore.clearAllTrackingData();
+        // general lane has lower priority, so it is evicted first
+        mQuota.addEvictableStore(mGeneralStore);
+        mQuota.addEvictableStore(mExceptionStore);
+        mGeneralStore.setStorageQuota(mQuota);
+        mExceptionStore.setStorageQuota(mQuota);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mGeneralStore.clearAllTrackingData();
+        mExceptionStore.clearAllTrackingData();
+        mGeneralStore.deleteRequestsFile();
+        mExceptionStore.deleteRequestsFile();
+        super.tearDown();
+    }
+
+    private static String url(String lane, int index) {
+        return URL_PREFIX + lane + index;
+    }
+
+    private static long getURLBytes(String url) {
+        return RequestFile.RECORD_HEADER_SIZE + url.length() + RequestFile.INDEX_ENTRY_SIZE;
+    }
+
+    public void testReserveAndRelease() {
+        final long maxBytes = mQuota.getMaxBytes();
+
+        assertTrue(mQuota.tryReserve(maxBytes));
+        assertFalse(mQuota.tryReserve(1));
+        assertEquals(maxBytes, mQuota.getUsedBytes());
+        mQuota.release(maxBytes);
+        assertEquals(0, mQuota.getUsedBytes());
+
+        // limit isn't checked for bytes that are used already
+        mQuota.add(maxBytes * 2);
+        assertFalse(mQuota.tryReserve(1));
+        mQuota.release(maxBytes * 2);
+
+        mConfiguration.setMaxStorageBytes(0);
+        mHolder.publish(mConfiguration);
+        assertTrue(mQuota.tryReserve(maxBytes * 2));
+        mQuota.release(maxBytes * 2);
+    }
+
+    public void testGeneralFloodDoesNotEvictExceptions() {
+        for (int i = 10; i < 15; i++) {
+            assertTrue(mExceptionStore.addURL(url("e", i)));
+        }
+        for (int i = 10; i < 99; i++) {
+            assertTrue(mGeneralStore.addURL(url("g", i)));
+        }
+
+        assertEquals(5, mExceptionStore.size());
+        assertEquals(QUOTA_URLS - 5, mGeneralStore.size());
+        assertEquals(url("g", 94), mGeneralStore.peek());
+        assertTrue(mQuota.getUsedBytes() <= mQuota.getMaxBytes());
+    }
+
+    public void testExceptionEvictsGeneralFirst() {
+        for (int i = 10; i < 10 + QUOTA_URLS; i++) {
+            assertTrue(mGeneralStore.addURL(url("g", i)));
+        }
+        for (int i = 10; i < 10 + QUOTA_URLS; i++) {
+            assertTrue(mExceptionStore.addURL(url("e", i)));
+        }
+        assertEquals(0, mGeneralStore.size());
+        assertEquals(QUOTA_URLS, mExceptionStore.size());
+
+        // exception lane evicts own oldest url if lower lanes are empty
+        assertTrue(mExceptionStore.addURL(url("e", 99)));
+        assertEquals(url("e", 11), mExceptionStore.peek());
+        // general lane can't evict exceptions
+        assertFalse(mGeneralStore.addURL(url("g", 99)));
+        assertEquals(0, mGeneralStore.size());
+    }
+
+    public void testRejectPolicy() {
+        mConfiguration.setStorageQuotaPolicy(TrackingConfiguration.STORAGE_QUOTA_POLICY_REJECT);
+        mHolder.publish(mConfiguration);
+
+        for (int i = 10; i < 10 + QUOTA_URLS; i++) {
+            assertTrue(mGeneralStore.addURL(url("g", i)));
+        }
+        assertFalse(mExceptionStore.addURL(url("e", 10)));
+        assertEquals(QUOTA_URLS, mGeneralStore.size());
+
+        mGeneralStore.clearAllTrackingData();
+        assertEquals(0, mQuota.getUsedBytes());
+        assertTrue(mExceptionStore.addURL(url("e", 10)));
+    }
+
+    public void testExpiredSavedURLsReleaseBytes() throws InterruptedException {
+        mConfiguration.setMaxStorageBytes(0);
+        mHolder.publish(mConfiguration);
+
+        for (int i = 1000; i < 1300; i++) {
+            mGeneralStore.addURL(url("g", i));
+        }
+        Thread.sleep(5);
+        final long minTime = System.currentTimeMillis();
+        Thread.sleep(5);
+        for (int i = 1300; i < 1600; i++) {
+            mGeneralStore.addURL(url("g", i));
+        }
+        // expired urls are saved to file and aren't loaded
+        mGeneralStore.flush();
+
+        assertEquals(300, mGeneralStore.removeExpired(minTime));
+        assertEquals(300 * getURLBytes(url("g", 1000)), mQuota.getUsedBytes());
+        assertEquals(mGeneralStore.getQueuedBytes(), mQuota.getUsedBytes());
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.webtrekk.webtrekksdk.Request;
+
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * tests window of urls and eviction of url that is replaced by url of newer id
+ */
+public class URLWindowTest extends AndroidTestCase {
+    private static final int CAPACITY = 4;
+
+    private final List<Integer> mEvictedIDs = new ArrayList<Integer>();
+    private final List<String> mEvictedURLs = new ArrayList<String>();
+    private URLWindow mWindow;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mEvictedIDs.clear();
+        mEvictedURLs.clear();
+        mWindow = new URLWindow(CAPACITY) {
+            @Override
+            protected void entryEvicted(int id, String url) {
+                // lock isn't held while listener is called
+                assertFalse(Thread.holdsLock(this));
+                mEvictedIDs.add(id);
+                mEvictedURLs.add(url);
+            }
+        };
+    }
+
+    public void testPutAndGet() {
+        for (int id = 0; id < CAPACITY; id++) {
+            mWindow.put(id, url(id));
+        }
+
+        assertEquals(CAPACITY, mWindow.size());
+        for (int id = 0; id < CAPACITY; id++) {
+            assertEquals(url(id), mWindow.get(id));
+        }
+        assertNull(mWindow.get(CAPACITY));
+        assertTrue(mEvictedIDs.isEmpty());
+    }
+
+    public void testEviction() {
+        for (int id = 0; id < CAPACITY * 2 + 1; id++) {
+            mWindow.put(id, url(id));
+        }
+
+        assertEquals(CAPACITY, mWindow.size());
+        assertEquals(CAPACITY + 1, mEvictedIDs.size());
+        for (int i = 0; i < mEvictedIDs.size(); i++) {
+            assertEquals(i, (int)mEvictedIDs.get(i));
+            assertEquals(url(i), mEvictedURLs.get(i));
+            assertNull(mWindow.get(i));
+        }
+        assertEquals(url(CAPACITY * 2), mWindow.get(CAPACITY * 2));
+    }
+
+    public void testPutOfSameIDDoesNotEvict() {
+        mWindow.put(1, url(1));
+        mWindow.put(1, "replaced");
+
+        assertTrue(mEvictedIDs.isEmpty());
+        assertEquals(1, mWindow.size());
+        assertEquals("replaced", mWindow.get(1));
+    }
+
+    public void testRemovedURLIsNotEvicted() {
+        mWindow.put(2, url(2));
+        assertEquals(url(2), mWindow.remove(2));
+        assertNull(mWindow.remove(2));
+        assertEquals(0, mWindow.size());
+
+        mWindow.put(2 + CAPACITY, url(2 + CAPACITY));
+        assertTrue(mEvictedIDs.isEmpty());
+        assertEquals(1, mWindow.size());
+    }
+
+    public void testRemoveOfOtherIDInSlot() {
+        mWindow.put(CAPACITY, url(CAPACITY));
+
+        assertNull(mWindow.remove(0));
+        assertEquals(url(CAPACITY), mWindow.get(CAPACITY));
+        assertEquals(1, mWindow.size());
+    }
+
+    public void testClear() {
+        for (int id = 0; id < CAPACITY; id++) {
+            mWindow.put(id, url(id));
+        }
+
+        mWindow.clear();
+        assertEquals(0, mWindow.size());
+        assertNull(mWindow.get(0));
+
+        // cleared urls aren't evicted by urls of newer ids
+        mWindow.put(CAPACITY, url(CAPACITY));
+        assertTrue(mEvictedIDs.isEmpty());
+    }
+
+    private static String url(int id) {
+        return "https://nglab.org/window?id=" + id;
+    }
+}
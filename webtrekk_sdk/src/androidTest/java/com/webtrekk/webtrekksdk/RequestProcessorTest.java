@@ -20,17 +20,31 @@ package com.webtrekk.webtrekksdk;
 
 import android.test.AndroidTestCase;
 
+import com.webtrekk.webtrekksdk.Request.RequestLane;
 import com.webtrekk.webtrekksdk.Request.RequestProcessor;
 import com.webtrekk.webtrekksdk.Request.RequestUrlStore;
+import com.webtrekk.webtrekksdk.Utils.PinConnectionValidator;
+import com.webtrekk.webtrekksdk.Utils.WebtrekkMetrics;
+
+import org.mockito.InOrder;
 
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.EnumMap;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
 
 import static org.mockito.Mockito.*;
 
 
 public class RequestProcessorTest extends AndroidTestCase {
+    private static final int OFFLINE_EVENTS = 20;
+    // more runs than attempts that are needed to quarantine and drop request on server errors
+    private static final int OFFLINE_RUNS = 30;
+
     private RequestUrlStore requestUrlStore;
     private RequestProcessor requestProcessor;
 
@@ -146,4 +160,82 @@ public class RequestProcessorTest extends AndroidTestCase {
         verify(mockHttpURLConnection, times(1)).disconnect();
     }
 
+    public void testLanePriority() throws IOException {
+        RequestUrlStore generalStore = mock(RequestUrlStore.class);
+        RequestUrlStore exceptionStore = mock(RequestUrlStore.class);
+        Map<RequestLane, RequestUrlStore> stores = new EnumMap<>(RequestLane.class);
+        stores.put(RequestLane.EXCEPTION, exceptionStore);
+        stores.put(RequestLane.GENERAL, generalStore);
+
+        requestProcessor = spy(new RequestProcessor(stores, new PinConnectionValidator(null)));
+        when(generalStore.size()).thenReturn(2).thenReturn(2).thenReturn(1).thenReturn(0);
+        when(exceptionStore.size()).thenReturn(1).thenReturn(0);
+        when(generalStore.peek()).thenReturn("http://nglab.org/general");
+        when(exceptionStore.peek()).thenReturn("http://nglab.org/exception");
+        HttpURLConnection mockHttpURLConnection = mock(HttpURLConnection.class);
+        when(mockHttpURLConnection.getResponseCode()).thenReturn(200);
+        doReturn(mockHttpURLConnection).when(requestProcessor).getUrlConnection((URL) any());
+        requestProcessor.run();
+        // exception is sent before general requests that are queued before it
+        InOrder inOrder = inOrder(exceptionStore, generalStore);
+        inOrder.verify(exceptionStore).removeLastURL();
+        inOrder.verify(generalStore, times(2)).removeLastURL();
+    }
+
+    public void testPoisonRequestQuarantine() throws IOException {
+        RequestUrlStore quarantineStore = mock(RequestUrlStore.class);
+        requestProcessor.setQuarantine(quarantineStore, false);
+        requestProcessor = spy(requestProcessor);
+        when(requestUrlStore.size()).thenReturn(2).thenReturn(1).thenReturn(0);
+        when(requestUrlStore.peek()).thenReturn("http://nglab.org/poison").thenReturn("http://nglab.org");
+        // request is failed before, so next failure moves it to quarantine
+        when(requestUrlStore.getHeadAttempts()).thenReturn(2).thenReturn(0);
+        HttpURLConnection mockHttpURLConnection = mock(HttpURLConnection.class);
+        when(mockHttpURLConnection.getResponseCode()).thenReturn(500).thenReturn(200);
+        doReturn(mockHttpURLConnection).when(requestProcessor).getUrlConnection((URL) any());
+        requestProcessor.run();
+        // next request is sent after poison one is quarantined
+        verify(quarantineStore, times(1)).addURL("http://nglab.org/poison");
+        verify(requestUrlStore, times(2)).removeLastURL();
+        verify(mockHttpURLConnection, times(2)).connect();
+        verify(requestUrlStore, times(0)).setHeadAttempts(anyInt());
+    }
+
+    public void testOfflineThenReconnect() throws IOException {
+        RequestUrlStore laneStore = new RequestUrlStore(getContext(), "-offline-test", 0, WebtrekkMetrics.Gauge.STORE_SIZE);
+        RequestUrlStore quarantineStore = new RequestUrlStore(getContext(), "-offline-test-quarantine", 0, WebtrekkMetrics.Gauge.QUARANTINE_SIZE);
+        laneStore.clearAllTrackingData();
+        quarantineStore.clearAllTrackingData();
+
+        try {
+            for (int i = 0; i < OFFLINE_EVENTS; i++) {
+                laneStore.addURL("https://nglab.org/offline?event=" + i);
+            }
+
+            requestProcessor = spy(new RequestProcessor(laneStore, new PinConnectionValidator(null)));
+            requestProcessor.setQuarantine(quarantineStore, true);
+            HttpsURLConnection mockConnection = mock(HttpsURLConnection.class);
+            doThrow(new UnknownHostException("offline")).when(mockConnection).connect();
+            doReturn(mockConnection).when(requestProcessor).getUrlConnection((URL) any());
+
+            for (int i = 0; i < OFFLINE_RUNS; i++) {
+                requestProcessor.run();
+            }
+            // connectivity errors don't count attempts, so nothing is quarantined or dropped
+            assertEquals(OFFLINE_EVENTS, laneStore.size());
+            assertEquals(0, laneStore.getHeadAttempts());
+            assertEquals(0, quarantineStore.size());
+
+            // network is available again
+            doNothing().when(mockConnection).connect();
+            when(mockConnection.getResponseCode()).thenReturn(200);
+            requestProcessor.run();
+
+            assertEquals(0, laneStore.size());
+            verify(mockConnection, times(OFFLINE_EVENTS)).getResponseCode();
+        } finally {
+            laneStore.clearAllTrackingData();
+            quarantineStore.clearAllTrackingData();
+        }
+    }
 }
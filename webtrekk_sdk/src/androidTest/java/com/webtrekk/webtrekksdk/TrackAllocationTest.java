@@ -0,0 +1,213 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk;
+
+import android.content.SharedPreferences;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.webtrekk.webtrekksdk.Configuration.TrackingConfiguration;
+import com.webtrekk.webtrekksdk.Modules.Campaign;
+import com.webtrekk.webtrekksdk.Request.RequestFactory;
+import com.webtrekk.webtrekksdk.Request.RequestLane;
+import com.webtrekk.webtrekksdk.Request.TrackingRequest;
+import com.webtrekk.webtrekksdk.TrackingParameter.Parameter;
+import com.webtrekk.webtrekksdk.Utils.HelperFunctions;
+import com.webtrekk.webtrekksdk.Utils.StateStore;
+
+/**
+ * Allocation budget for track path: parameters, createTrackingRequest, getUrlString and adding url to store.
+ * Bytes allocated by current thread are measured with runtime allocation counters, as ThreadMXBean
+ * isn't available on Android. Test fails if average allocation per track is bigger than budget, and also if
+ * runtime doesn't count allocations, so budget is never silently unchecked.
+ * Budgets are upper limits with headroom, they should be lowered when allocations are reduced.
+ */
+public class TrackAllocationTest extends AndroidTestCase {
+    private static final String TAG = "TrackAllocationTest";
+    private static final int WARM_UP_ITERATIONS = 200;
+    private static final int ITERATIONS = 1000;
+    // store is cleared regularly outside of measurement to keep it below max requests
+    private static final int CLEAR_STORE_INTERVAL = 100;
+
+    private static final long PAGE_VIEW_BUDGET = 24 * 1024;
+    private static final long ACTION_BUDGET = 24 * 1024;
+    private static final long ECOMMERCE_BUDGET = 64 * 1024;
+    private static final long CDB_MERGED_BUDGET = 40 * 1024;
+    private static final int PRODUCTS_NUMBER = 20;
+
+    private interface RequestBuilder {
+        TrackingRequest build(RequestFactory factory);
+    }
+
+    private Webtrekk mWebtrekk;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        SharedPreferences.Editor editor = HelperFunctions.getWebTrekkSharedPreference(getContext()).edit();
+        editor.clear();
+        editor.apply();
+        Campaign.getFirstStartInitiated(getContext(), true);
+        StateStore.getInstance(getContext()).setCampaignProcessFinished();
+
+        mWebtrekk = new Webtrekk();
+        mWebtrekk.initWebtrekk(getContext());
+        mWebtrekk.getRequestFactory().clearAllTrackingData();
+
+        // manual send mode, urls stay in store
+        TrackingConfiguration configuration = mWebtrekk.getTrackingConfiguration();
+        configuration.setSendDelay(0);
+        mWebtrekk.setTrackingConfiguration(configuration);
+        mWebtrekk.getRequestFactory().setCurrentActivityName(TAG);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        final RequestFactory factory = mWebtrekk.getRequestFactory();
+        for (RequestLane lane : RequestLane.values()) {
+            factory.getRequestUrlStore(lane).deleteRequestsFile();
+        }
+        factory.getQuarantineStore().deleteRequestsFile();
+        super.tearDown();
+    }
+
+    public void testPageViewAllocation() {
+        assertBudget("page view", PAGE_VIEW_BUDGET, new RequestBuilder() {
+            @Override
+            public TrackingRequest build(RequestFactory factory) {
+                TrackingParameter tp = new TrackingParameter();
+                tp.add(Parameter.PAGE, "1", "page parameter");
+                tp.add(Parameter.PAGE_CAT, "1", "page category");
+                return factory.createTrackingRequest(tp);
+            }
+        });
+    }
+
+    public void testActionAllocation() {
+        assertBudget("action", ACTION_BUDGET, new RequestBuilder() {
+            @Override
+            public TrackingRequest build(RequestFactory factory) {
+                TrackingParameter tp = new TrackingParameter();
+                tp.add(Parameter.ACTION_NAME, "button_click");
+                tp.add(Parameter.ACTION, "1", "action parameter");
+                tp.add(Parameter.SESSION, "1", "session parameter");
+                return factory.createTrackingRequest(tp);
+            }
+        });
+    }
+
+    public void testEcommerceAllocation() {
+        final StringBuilder products = new StringBuilder();
+        final StringBuilder costs = new StringBuilder();
+        final StringBuilder counts = new StringBuilder();
+
+        for (int i = 0; i < PRODUCTS_NUMBER; i++) {
+            if (i > 0) {
+                products.append(TrackingParameter.PRODUCT_LIST_SEPARATOR);
+                costs.append(TrackingParameter.PRODUCT_LIST_SEPARATOR);
+                counts.append(TrackingParameter.PRODUCT_LIST_SEPARATOR);
+            }
+            products.append("product").append(i);
+            costs.append(i + 1).append(".99");
+            counts.append(i % 3 + 1);
+        }
+
+        assertBudget("e-commerce " + PRODUCTS_NUMBER + " products", ECOMMERCE_BUDGET, new RequestBuilder() {
+            @Override
+            public TrackingRequest build(RequestFactory factory) {
+                TrackingParameter tp = new TrackingParameter();
+                tp.add(Parameter.PRODUCT, products.toString());
+                tp.add(Parameter.PRODUCT_COST, costs.toString());
+                tp.add(Parameter.PRODUCT_COUNT, counts.toString());
+                tp.add(Parameter.PRODUCT_STATUS, "conf");
+                tp.add(Parameter.ORDER_TOTAL, "250.50");
+                tp.add(Parameter.ORDER_NUMBER, "order-1");
+                tp.add(Parameter.CURRENCY, "EUR");
+                tp.add(Parameter.ECOM, "1", "ecom parameter");
+                tp.add(Parameter.PRODUCT_CAT, "1", "product category");
+                return factory.createTrackingRequest(tp);
+            }
+        });
+    }
+
+    public void testCDBMergedAllocation() {
+        final WebtrekkUserParameters userParameters = new WebtrekkUserParameters()
+                .setEmail("test@webtrekk.com")
+                .setPhone("+49 123 456789")
+                .setAndroidId("android-id")
+                .setCustom(1, "custom user parameter");
+
+        assertBudget("CDB merged", CDB_MERGED_BUDGET, new RequestBuilder() {
+            @Override
+            public TrackingRequest build(RequestFactory factory) {
+                TrackingParameter tp = new TrackingParameter();
+                tp.add(Parameter.PAGE, "1", "page parameter");
+                tp.add(userParameters.getParameters());
+                tp.setCustomUserParameters(userParameters.getCustomParameters());
+                TrackingRequest request = factory.createTrackingRequest(tp);
+                request.setMergedRequest(TrackingRequest.RequestType.CDB);
+                return request;
+            }
+        });
+    }
+
+    private void assertBudget(String name, long budget, RequestBuilder builder) {
+        final long average = measure(builder);
+
+        if (average < 0) {
+            fail("Allocation counting isn't supported by runtime, " + name + " budget can't be checked");
+        }
+
+        Log.i(TAG, name + ": " + average + " bytes per track, budget " + budget);
+        assertTrue(name + " allocates " + average + " bytes per track, budget is " + budget, average <= budget);
+    }
+
+    /**
+     * @return average bytes that are allocated per track or -1 if allocations can't be counted
+     */
+    @SuppressWarnings("deprecation")
+    private long measure(RequestBuilder builder) {
+        final RequestFactory factory = mWebtrekk.getRequestFactory();
+
+        for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+            factory.addRequest(builder.build(factory));
+        }
+        factory.clearAllTrackingData();
+
+        long allocated = 0;
+        Debug.startAllocCounting();
+        try {
+            for (int i = 0; i < ITERATIONS; i++) {
+                if (i % CLEAR_STORE_INTERVAL == 0) {
+                    factory.clearAllTrackingData();
+                }
+
+                Debug.resetThreadAllocSize();
+                TrackingRequest request = builder.build(factory);
+                factory.addRequest(request);
+                allocated += Debug.getThreadAllocSize();
+            }
+        } finally {
+            Debug.stopAllocCounting();
+            factory.clearAllTrackingData();
+        }
+
+        return allocated == 0 ? -1 : allocated / ITERATIONS;
+    }
+}
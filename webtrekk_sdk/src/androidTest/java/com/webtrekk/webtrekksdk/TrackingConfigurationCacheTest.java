@@ -0,0 +1,163 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk;
+
+import android.test.AndroidTestCase;
+
+import com.webtrekk.webtrekksdk.Configuration.ActivityConfiguration;
+import com.webtrekk.webtrekksdk.Configuration.TrackingConfiguration;
+import com.webtrekk.webtrekksdk.Configuration.TrackingConfigurationCache;
+import com.webtrekk.webtrekksdk.TrackingParameter.Parameter;
+import com.webtrekk.webtrekksdk.Utils.StateStore;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * tests binary snapshot of parsed configuration and its key
+ */
+public class TrackingConfigurationCacheTest extends AndroidTestCase {
+    private static final String LIBRARY_VERSION = "4.0";
+    private static final byte[] RESOURCE = "<webtrekkConfiguration><version>3</version></webtrekkConfiguration>".getBytes();
+
+    private TrackingConfigurationCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = new TrackingConfigurationCache(getContext());
+        mCache.clear();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCache.clear();
+        super.tearDown();
+    }
+
+    private static TrackingConfiguration createConfiguration() {
+        TrackingConfiguration configuration = new TrackingConfiguration();
+
+        configuration.setVersion(3);
+        configuration.setTrackId("123451234512345");
+        configuration.setTrackDomain("https://q3.webtrekk.net");
+        configuration.setSendDelay(30);
+
+        TrackingParameter globalParameter = new TrackingParameter();
+        globalParameter.add(Parameter.PAGE, "1", "page value");
+        globalParameter.add(Parameter.CURRENCY, "EUR");
+        configuration.setGlobalTrackingParameter(globalParameter);
+
+        Map<String, ActivityConfiguration> activities = new HashMap<>();
+        activities.put("MainActivity", new ActivityConfiguration("com.example.MainActivity", "Start", true, null, null));
+        configuration.setActivityConfigurations(activities);
+
+        Map<String, String> customParameter = new HashMap<>();
+        customParameter.put("key", "value");
+        configuration.setCustomParameter(customParameter);
+
+        Map<String, Integer> recommendationTTL = new HashMap<>();
+        recommendationTTL.put("placement", 60);
+        configuration.setRecommendationTTL(recommendationTTL);
+
+        return configuration;
+    }
+
+    public void testSavedConfigurationIsLoaded() {
+        final long key = TrackingConfigurationCache.getKey(RESOURCE, 0);
+
+        mCache.save(key, LIBRARY_VERSION, createConfiguration());
+        TrackingConfiguration configuration = new TrackingConfigurationCache(getContext()).load(key, LIBRARY_VERSION);
+
+        assertNotNull(configuration);
+        assertEquals(3, configuration.getVersion());
+        assertEquals("123451234512345", configuration.getTrackId());
+        assertEquals("https://q3.webtrekk.net", configuration.getTrackDomain());
+        assertEquals(30, configuration.getSendDelay());
+        assertEquals("page value", configuration.getGlobalTrackingParameter().getPageParameter().get("1"));
+        assertEquals("EUR", configuration.getGlobalTrackingParameter().getDefaultParameter().get(Parameter.CURRENCY));
+
+        ActivityConfiguration activity = configuration.getActivityConfigurations().get("MainActivity");
+        assertEquals("com.example.MainActivity", activity.getClassName());
+        assertEquals("Start", activity.getMappingName());
+        assertTrue(activity.isAutoTrack());
+
+        assertEquals("value", configuration.getCustomParameter().get("key"));
+        assertEquals(Integer.valueOf(60), configuration.getRecommendationTTL().get("placement"));
+    }
+
+    public void testOtherKeyIsNotLoaded() {
+        mCache.save(TrackingConfigurationCache.getKey(RESOURCE, 0), LIBRARY_VERSION, createConfiguration());
+
+        assertNull(mCache.load(TrackingConfigurationCache.getKey(RESOURCE, 1), LIBRARY_VERSION));
+        assertNull(mCache.load(TrackingConfigurationCache.getKey("<other/>".getBytes(), 0), LIBRARY_VERSION));
+    }
+
+    public void testOtherLibraryVersionIsNotLoaded() {
+        final long key = TrackingConfigurationCache.getKey(RESOURCE, 0);
+
+        mCache.save(key, LIBRARY_VERSION, createConfiguration());
+        assertNull(mCache.load(key, "4.1"));
+    }
+
+    public void testMissingAndCorruptedCacheIsNotLoaded() throws IOException {
+        final long key = TrackingConfigurationCache.getKey(RESOURCE, 0);
+
+        assertNull(mCache.load(key, LIBRARY_VERSION));
+
+        FileOutputStream out = new FileOutputStream(new File(getContext().getFilesDir(), "wt-configuration-cache"));
+        out.write(new byte[]{1, 2, 3});
+        out.close();
+        assertNull(mCache.load(key, LIBRARY_VERSION));
+    }
+
+    public void testClearedCacheIsNotLoaded() {
+        final long key = TrackingConfigurationCache.getKey(RESOURCE, 0);
+
+        mCache.save(key, LIBRARY_VERSION, createConfiguration());
+        mCache.clear();
+        assertNull(mCache.load(key, LIBRARY_VERSION));
+    }
+
+    public void testRemoteConfigurationHashIsStoredWithConfiguration() {
+        final StateStore store = StateStore.getInstance(getContext());
+        final String storedConfiguration = store.getConfiguration();
+
+        try {
+            store.setConfiguration(null);
+            assertEquals(0, store.getConfigurationHash());
+
+            store.setConfiguration("<webtrekkConfiguration><version>4</version></webtrekkConfiguration>");
+            final long hash = store.getConfigurationHash();
+            assertTrue(hash != 0);
+
+            store.setConfiguration("<webtrekkConfiguration><version>5</version></webtrekkConfiguration>");
+            assertTrue(hash != store.getConfigurationHash());
+
+            store.setConfiguration("<webtrekkConfiguration><version>4</version></webtrekkConfiguration>");
+            assertEquals(hash, store.getConfigurationHash());
+
+            // remote configuration changes key of snapshot
+            assertTrue(TrackingConfigurationCache.getKey(RESOURCE, 0) != TrackingConfigurationCache.getKey(RESOURCE, hash));
+        } finally {
+            store.setConfiguration(storedConfiguration);
+        }
+    }
+}
@@ -18,16 +18,27 @@
 
 package com.webtrekk.webtrekksdk;
 
-import android.content.Context;
-import android.content.SharedPreferences;
 import android.test.InstrumentationTestCase;
 import android.util.Log;
 
 import com.webtrekk.webtrekksdk.Utils.AsyncTest;
+import com.webtrekk.webtrekksdk.Utils.StateStore;
 import com.webtrekk.webtrekksdk.Configuration.TrackingConfigurationDownloadTask;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.mockito.Mockito.*;
 
@@ -35,6 +46,80 @@ public class TrackingConfigurationDownloadTaskTest extends InstrumentationTestCa
     private static boolean called;
     Webtrekk webtrekk;
     private SynchronizedWaiter synchronizedWaiter;
+    private ConfigurationServer mServer;
+
+    // configuration that isn't newer than local one, body after version tag isn't read
+    private static final String NOT_NEWER_CONFIGURATION = "<webtrekkConfiguration><version>1</version><broken";
+
+    /**
+     * answers requests with configured response, keeps headers of last request
+     */
+    private static class ConfigurationServer implements Runnable {
+        private final ServerSocket mServerSocket;
+        volatile String mStatus = "200 OK";
+        volatile String mHeaders = "";
+        volatile String mBody = NOT_NEWER_CONFIGURATION;
+        volatile Map<String, String> mRequestHeaders;
+        volatile int mRequests;
+
+        ConfigurationServer() throws IOException {
+            mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            final Thread thread = new Thread(this, "ConfigurationServer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        String getUrl(String name) {
+            return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/" + name + ".xml";
+        }
+
+        @Override
+        public void run() {
+            while (!mServerSocket.isClosed()) {
+                Socket socket = null;
+                try {
+                    socket = mServerSocket.accept();
+                    final BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+                    final Map<String, String> headers = new HashMap<>();
+                    String line = reader.readLine();
+
+                    while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                        final int separator = line.indexOf(':');
+                        if (separator > 0) {
+                            headers.put(line.substring(0, separator).trim().toLowerCase(), line.substring(separator + 1).trim());
+                        }
+                    }
+                    mRequestHeaders = headers;
+                    mRequests++;
+
+                    final boolean hasBody = mStatus.startsWith("200");
+                    final byte[] body = mBody.getBytes("UTF-8");
+                    final OutputStream out = socket.getOutputStream();
+                    out.write(("HTTP/1.1 " + mStatus + "\r\n" + mHeaders
+                            + (hasBody ? "Content-Length: " + body.length + "\r\n" : "")
+                            + "Connection: close\r\n\r\n").getBytes("UTF-8"));
+                    if (hasBody) {
+                        out.write(body);
+                    }
+                    out.flush();
+                } catch (IOException e) {
+                    //server is closed
+                } finally {
+                    if (socket != null) {
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                            //connection is done anyway
+                        }
+                    }
+                }
+            }
+        }
+
+        void close() throws IOException {
+            mServerSocket.close();
+        }
+    }
 
     protected void setUp() throws Exception {
         super.setUp();
@@ -47,9 +132,90 @@ public class TrackingConfigurationDownloadTaskTest extends InstrumentationTestCa
     }
 
     protected void tearDown() throws Exception {
+        if (mServer != null) {
+            mServer.close();
+        }
         super.tearDown();
     }
 
+    private void download(String url) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        new TrackingConfigurationDownloadTask(webtrekk, new AsyncTest() {
+            @Override
+            public void workDone() {
+                latch.countDown();
+            }
+        }).execute(url);
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+    }
+
+    /**
+     * validators of response are sent with next request and 304 response keeps current configuration
+     */
+    public void testValidatorsAreSentBack() throws Throwable {
+        mServer = new ConfigurationServer();
+        final String url = mServer.getUrl("validators");
+        final int version = webtrekk.getTrackingConfiguration().getVersion();
+
+        mServer.mHeaders = "ETag: \"v1\"\r\nLast-Modified: Mon, 19 Oct 2026 10:00:00 GMT\r\n";
+        download(url);
+        assertNull(mServer.mRequestHeaders.get("if-none-match"));
+        assertNull(mServer.mRequestHeaders.get("if-modified-since"));
+
+        mServer.mStatus = "304 Not Modified";
+        download(url);
+        assertEquals(2, mServer.mRequests);
+        assertEquals("\"v1\"", mServer.mRequestHeaders.get("if-none-match"));
+        assertEquals("Mon, 19 Oct 2026 10:00:00 GMT", mServer.mRequestHeaders.get("if-modified-since"));
+        assertEquals(version, webtrekk.getTrackingConfiguration().getVersion());
+
+        // validators of other url aren't sent
+        download(mServer.getUrl("other"));
+        assertNull(mServer.mRequestHeaders.get("if-none-match"));
+    }
+
+    /**
+     * parsing stops on version tag that isn't newer, so broken rest of response is ignored and check is saved
+     */
+    public void testNotNewerConfigurationIsNotParsed() throws Throwable {
+        mServer = new ConfigurationServer();
+        final String url = mServer.getUrl("not-newer");
+        final int version = webtrekk.getTrackingConfiguration().getVersion();
+
+        assertTrue(TrackingConfigurationDownloadTask.isRefreshRequired(getInstrumentation().getContext(), url));
+        download(url);
+
+        assertEquals(version, webtrekk.getTrackingConfiguration().getVersion());
+        assertFalse(TrackingConfigurationDownloadTask.isRefreshRequired(getInstrumentation().getContext(), url));
+    }
+
+    /**
+     * refresh interval is max-age of Cache-Control header
+     */
+    public void testRefreshIntervalIsMaxAge() throws Throwable {
+        mServer = new ConfigurationServer();
+        final String url = mServer.getUrl("max-age");
+
+        mServer.mHeaders = "Cache-Control: public, max-age=0\r\n";
+        download(url);
+        assertTrue(TrackingConfigurationDownloadTask.isRefreshRequired(getInstrumentation().getContext(), url));
+
+        mServer.mHeaders = "Cache-Control: no-cache\r\n";
+        download(url);
+        assertTrue(TrackingConfigurationDownloadTask.isRefreshRequired(getInstrumentation().getContext(), url));
+
+        mServer.mHeaders = "Cache-Control: max-age=3600\r\n";
+        download(url);
+        assertFalse(TrackingConfigurationDownloadTask.isRefreshRequired(getInstrumentation().getContext(), url));
+
+        // 304 response changes interval as well
+        mServer.mStatus = "304 Not Modified";
+        mServer.mHeaders = "Cache-Control: max-age=0\r\n";
+        download(url);
+        assertTrue(TrackingConfigurationDownloadTask.isRefreshRequired(getInstrumentation().getContext(), url));
+    }
+
     /**
      * make sure that it never throws an exception or overrides the config with null,
      * in case of a network error it uses the local one
@@ -81,7 +247,7 @@ public class TrackingConfigurationDownloadTaskTest extends InstrumentationTestCa
         Log.d("TEST", "task started");
         TrackingConfigurationDownloadTask task = new TrackingConfigurationDownloadTask(webtrekk, asyncTest);
         task = spy(task);
-        doReturn("foo").when(task).getXmlFromUrl("http://foourl.de/config.xml");
+        doReturn(new ByteArrayInputStream("foo".getBytes("UTF-8"))).when(task).getConfigurationStream("http://foourl.de/config.xml");
         try {
             task.execute("http://nglab.org/config.xml");
 
@@ -108,7 +274,7 @@ public class TrackingConfigurationDownloadTaskTest extends InstrumentationTestCa
         String config = "<webtrekkConfiguration>\n" +
                 "    <!--the version number for this configuration file -->\n" +
                 "    <version>2</version><trackDomain>http://trackingtest.nglab.org</trackDomain><trackId>12345</trackId></webtrekkConfiguration>";
-        doReturn(config).when(task).getXmlFromUrl(anyString());
+        doReturn(new ByteArrayInputStream(config.getBytes("UTF-8"))).when(task).getConfigurationStream(anyString());
         try {
             task.execute("http://nglab.org/config.xml");
 
@@ -129,8 +295,7 @@ public class TrackingConfigurationDownloadTaskTest extends InstrumentationTestCa
      * @throws Throwable
      */
     public void testTrackingConfigurationDownloadTaskNewConfigVersion() throws Throwable {
-        SharedPreferences preferences = getInstrumentation().getContext().getSharedPreferences(Webtrekk.PREFERENCE_FILE_NAME, Context.MODE_PRIVATE);
-        preferences.edit().remove(Webtrekk.PREFERENCE_KEY_EVER_ID).commit();
+        StateStore.getInstance(getInstrumentation().getContext()).remove(Webtrekk.PREFERENCE_KEY_EVER_ID);
         synchronizedWaiter = new SynchronizedWaiter();
         AsyncTest asyncTest = this;
         String config = "<webtrekkConfiguration>\n" +
@@ -138,8 +303,8 @@ public class TrackingConfigurationDownloadTaskTest extends InstrumentationTestCa
                 "    <version>3</version></webtrekkConfiguration>";
 
         TrackingConfigurationDownloadTask task = spy(new TrackingConfigurationDownloadTask(webtrekk, asyncTest));
-        doReturn(config).when(task).getXmlFromUrl(anyString());
-        //when(task.getXmlFromUrl(anyString())).thenReturn(config);
+        doReturn(new ByteArrayInputStream(config.getBytes("UTF-8"))).when(task).getConfigurationStream(anyString());
+        //when(task.getConfigurationStream(anyString())).thenReturn(config);
                 assertNotNull(webtrekk.getTrackingConfiguration());
         // make sure it uses config version 2 before
        // assertEquals(2, webtrekk.getTrackingConfiguration().getVersion());
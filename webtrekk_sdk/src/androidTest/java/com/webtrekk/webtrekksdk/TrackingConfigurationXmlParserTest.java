@@ -177,6 +177,11 @@ public class TrackingConfigurationXmlParserTest extends AndroidTestCase {
         assertEquals("http://remotehost/tracking_config.xml", config.getTrackingConfigurationUrl());
         assertEquals(true, config.isAutoTrackRequestUrlStoreSize());
         assertEquals(30, config.getResendOnStartEventTime());
+        assertEquals(604800, config.getEventTtl());
+        assertEquals(50000000, config.getMaxStorageBytes());
+        assertEquals(TrackingConfiguration.STORAGE_QUOTA_POLICY_REJECT, config.getStorageQuotaPolicy());
+        assertTrue(config.isMultiProcess());
+        assertEquals(TrackingConfiguration.REQUEST_STORE_SQLITE, config.getRequestStore());
 
     }
 
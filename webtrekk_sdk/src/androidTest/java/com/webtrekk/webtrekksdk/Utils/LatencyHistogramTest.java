@@ -0,0 +1,113 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Utils;
+
+import android.test.AndroidTestCase;
+
+/**
+ * tests bucket mapping and percentiles of latency histogram
+ */
+public class LatencyHistogramTest extends AndroidTestCase {
+    private LatencyHistogram mHistogram;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHistogram = new LatencyHistogram();
+    }
+
+    public void testSmallValuesHaveOwnBuckets() {
+        for (int value = 0; value < LatencyHistogram.SUB_BUCKETS; value++) {
+            assertEquals(value, LatencyHistogram.getBucketIndex(value));
+            assertEquals(value, LatencyHistogram.getBucketUpperBound(value));
+        }
+    }
+
+    public void testValueIsInsideItsBucket() {
+        for (long value = 0; value <= LatencyHistogram.MAX_VALUE; value = value * 3 / 2 + 1) {
+            final int index = LatencyHistogram.getBucketIndex(value);
+
+            assertTrue(value <= LatencyHistogram.getBucketUpperBound(index));
+            if (index > 0) {
+                assertTrue(value > LatencyHistogram.getBucketUpperBound(index - 1));
+            }
+            // relative error is less than 1/16
+            assertTrue(LatencyHistogram.getBucketUpperBound(index) - value <= value / LatencyHistogram.SUB_BUCKETS);
+        }
+    }
+
+    public void testBucketsCoverValueRange() {
+        assertEquals(LatencyHistogram.BUCKETS_NUMBER - 1, LatencyHistogram.getBucketIndex(LatencyHistogram.MAX_VALUE));
+        assertEquals(LatencyHistogram.MAX_VALUE, LatencyHistogram.getBucketUpperBound(LatencyHistogram.BUCKETS_NUMBER - 1));
+
+        for (int index = 1; index < LatencyHistogram.BUCKETS_NUMBER; index++) {
+            // buckets follow each other without gaps
+            assertEquals(index, LatencyHistogram.getBucketIndex(LatencyHistogram.getBucketUpperBound(index - 1) + 1));
+        }
+    }
+
+    public void testOutOfRangeValuesAreClamped() {
+        mHistogram.record(-5);
+        mHistogram.record(LatencyHistogram.MAX_VALUE + 1000);
+
+        LatencyHistogram.Snapshot snapshot = mHistogram.getSnapshot();
+        assertEquals(2, snapshot.getCount());
+        assertEquals(1, snapshot.getBucketCount(0));
+        assertEquals(1, snapshot.getBucketCount(LatencyHistogram.BUCKETS_NUMBER - 1));
+        assertEquals(LatencyHistogram.MAX_VALUE, snapshot.getMax());
+    }
+
+    public void testPercentiles() {
+        for (int value = 1; value <= 100; value++) {
+            mHistogram.record(value * 1000);
+        }
+
+        LatencyHistogram.Snapshot snapshot = mHistogram.getSnapshot();
+        assertEquals(100, snapshot.getCount());
+        assertEquals(100000, snapshot.getMax());
+        assertEquals(50500, snapshot.getMean());
+        assertInBucket(50000, snapshot.getPercentile(50));
+        assertInBucket(90000, snapshot.getPercentile(90));
+        // bucket of 99000 contains max value too
+        assertEquals(100000, snapshot.getPercentile(99));
+        // percentile isn't above max value
+        assertEquals(100000, snapshot.getPercentile(100));
+        assertInBucket(1000, snapshot.getPercentile(0));
+    }
+
+    public void testEmptySnapshot() {
+        LatencyHistogram.Snapshot snapshot = mHistogram.getSnapshot();
+
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getMean());
+        assertEquals(0, snapshot.getPercentile(50));
+    }
+
+    public void testSnapshotIsNotChangedByNextValues() {
+        mHistogram.record(10);
+        LatencyHistogram.Snapshot snapshot = mHistogram.getSnapshot();
+        mHistogram.record(20);
+
+        assertEquals(1, snapshot.getCount());
+        assertEquals(10, snapshot.getMax());
+        assertEquals(2, mHistogram.getSnapshot().getCount());
+    }
+
+    private static void assertInBucket(long expected, long percentile) {
+        assertEquals(LatencyHistogram.getBucketUpperBound(LatencyHistogram.getBucketIndex(expected)), percentile);
+    }
+}
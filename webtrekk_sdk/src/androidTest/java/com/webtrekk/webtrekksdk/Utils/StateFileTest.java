@@ -0,0 +1,215 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Utils;
+
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * tests record log of state file: value types, recovery of truncated tail, compaction, blobs and
+ * sharing of directory by several instances like by several processes
+ */
+public class StateFileTest extends AndroidTestCase {
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(getContext().getFilesDir(), "state-file-test");
+        deleteDirectory();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDirectory();
+        super.tearDown();
+    }
+
+    private void deleteDirectory() {
+        final File[] files = mDirectory.listFiles();
+
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    private StateFile openFile() {
+        final StateFile file = new StateFile(mDirectory);
+        assertTrue(file.open());
+        return file;
+    }
+
+    private static String createLongString(char c) {
+        final StringBuilder builder = new StringBuilder(StateFile.BLOB_THRESHOLD + 10);
+
+        for (int i = 0; i < StateFile.BLOB_THRESHOLD + 10; i++) {
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+
+    private int countBlobs() {
+        int blobs = 0;
+
+        for (String name : mDirectory.list()) {
+            if (name.startsWith("blob-")) {
+                blobs++;
+            }
+        }
+        return blobs;
+    }
+
+    public void testValueTypes() {
+        StateFile file = openFile();
+        assertTrue(file.isCreated());
+
+        final Map<String, Object> changes = new HashMap<>();
+        changes.put("string", "value");
+        changes.put("boolean", true);
+        changes.put("int", 42);
+        changes.put("long", 1L << 40);
+        changes.put("float", 1.5f);
+        file.write(changes);
+        file.remove("int");
+
+        file = openFile();
+        assertFalse(file.isCreated());
+        assertEquals("value", file.get("string"));
+        assertEquals(Boolean.TRUE, file.get("boolean"));
+        assertFalse(file.contains("int"));
+        assertEquals(1L << 40, file.get("long"));
+        assertEquals(1.5f, file.get("float"));
+        assertEquals(4, file.getAll().size());
+    }
+
+    public void testTruncatedTailIsDropped() throws IOException {
+        StateFile file = openFile();
+        file.put("first", "value1");
+        file.put("second", "value2");
+
+        final File log = new File(mDirectory, StateFile.LOG_FILE_NAME);
+        final RandomAccessFile raf = new RandomAccessFile(log, "rw");
+        try {
+            // process is killed during write of last record
+            raf.setLength(raf.length() - 3);
+        } finally {
+            raf.close();
+        }
+
+        file = openFile();
+        assertEquals("value1", file.get("first"));
+        assertFalse(file.contains("second"));
+
+        // log is rewritten, so new records are appended after valid ones
+        file.put("third", "value3");
+        file = openFile();
+        assertEquals("value1", file.get("first"));
+        assertEquals("value3", file.get("third"));
+    }
+
+    public void testCompaction() {
+        StateFile file = openFile();
+
+        for (int i = 0; i < StateFile.MIN_COMPACTION_RECORDS * 4; i++) {
+            file.put("counter", i);
+        }
+
+        final long logLength = new File(mDirectory, StateFile.LOG_FILE_NAME).length();
+        // log has only few records of one key after compaction
+        assertTrue(logLength < StateFile.MIN_COMPACTION_RECORDS * 2 * 20);
+
+        file = openFile();
+        assertEquals(StateFile.MIN_COMPACTION_RECORDS * 4 - 1, file.get("counter"));
+    }
+
+    public void testBlobRoundTrip() {
+        final String first = createLongString('a');
+        final String second = createLongString('b');
+
+        StateFile file = openFile();
+        file.put("configuration", first);
+        assertEquals(1, countBlobs());
+        // blob values aren't kept in memory
+        assertFalse(file.getAll().containsKey("configuration"));
+        assertEquals(first, file.get("configuration"));
+
+        file.put("configuration", second);
+        // replaced blob is deleted after new value is saved
+        assertEquals(1, countBlobs());
+
+        file = openFile();
+        assertEquals(second, file.get("configuration"));
+
+        file.remove("configuration");
+        file = openFile();
+        assertNull(file.get("configuration"));
+        assertEquals(0, countBlobs());
+    }
+
+    public void testClear() {
+        StateFile file = openFile();
+        file.put("key", "value");
+        file.put("configuration", createLongString('c'));
+        file.clear();
+
+        assertFalse(file.contains("key"));
+        assertEquals(0, countBlobs());
+        file = openFile();
+        assertFalse(file.contains("key"));
+    }
+
+    public void testSharedDirectory() {
+        final StateFile first = openFile();
+        final StateFile second = openFile();
+
+        first.put("first", "value1");
+        // second instance reads changes of first one before its write, so they aren't lost
+        second.put("second", "value2");
+        assertEquals("value1", second.get("first"));
+        assertEquals("value2", first.get("second"));
+
+        // compaction of one instance replaces log, other one reopens it
+        for (int i = 0; i < StateFile.MIN_COMPACTION_RECORDS * 4; i++) {
+            first.put("counter", i);
+        }
+        second.put("third", "value3");
+
+        final StateFile reopened = openFile();
+        assertEquals("value1", reopened.get("first"));
+        assertEquals("value2", reopened.get("second"));
+        assertEquals("value3", reopened.get("third"));
+        assertEquals(StateFile.MIN_COMPACTION_RECORDS * 4 - 1, reopened.get("counter"));
+    }
+
+    public void testPutIfAbsent() {
+        final StateFile first = openFile();
+        final StateFile second = openFile();
+
+        assertEquals("id1", first.putIfAbsent("everId", "id1"));
+        // value that is saved by other instance is returned
+        assertEquals("id1", second.putIfAbsent("everId", "id2"));
+        assertEquals("id1", openFile().get("everId"));
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Utils;
+
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * tests message format, level filter and ring buffer of SDK logging
+ */
+public class WebtrekkLoggingTest extends AndroidTestCase {
+    private boolean mIsLogging;
+    private int mLevel;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mIsLogging = WebtrekkLogging.isLogging();
+        mLevel = WebtrekkLogging.getLevel();
+        WebtrekkLogging.setIsLogging(false);
+        WebtrekkLogging.setLevel(WebtrekkLogging.DEBUG);
+        WebtrekkLogging.setRecentEventsBufferSize(3);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        WebtrekkLogging.setRecentEventsBufferSize(0);
+        WebtrekkLogging.setLevel(mLevel);
+        WebtrekkLogging.setIsLogging(mIsLogging);
+        super.tearDown();
+    }
+
+    public void testFormatReplacesPlaceholders() {
+        assertEquals("no arguments", WebtrekkLogging.format("no arguments", 0, null, null, null, null));
+        assertEquals("a=1", WebtrekkLogging.format("a={}", 1, 1, null, null, null));
+        assertEquals("1, two", WebtrekkLogging.format("{}, {}", 2, 1, "two", null, null));
+        assertEquals("1 2 3", WebtrekkLogging.format("{} {} {}", 3, 1, 2, 3, null));
+        assertEquals("[1][2][3][4] end", WebtrekkLogging.format("[{}][{}][{}][{}] end", 4, 1, 2, 3, 4));
+    }
+
+    public void testFormatWithWrongPlaceholderNumber() {
+        // extra arguments are ignored, extra placeholders are kept
+        assertEquals("a=1", WebtrekkLogging.format("a={}", 2, 1, 2, null, null));
+        assertEquals("1 {}", WebtrekkLogging.format("{} {}", 1, 1, null, null, null));
+        assertEquals("null value", WebtrekkLogging.format("{} value", 1, null, null, null, null));
+        assertEquals("null", WebtrekkLogging.format(null, 1, 1, null, null, null));
+    }
+
+    public void testLoggedCallsHaveTheirLevel() {
+        WebtrekkLogging.setLevel(WebtrekkLogging.VERBOSE);
+        WebtrekkLogging.log("debug");
+        WebtrekkLogging.log(WebtrekkLogging.WARN, "warn {}", 1);
+        WebtrekkLogging.log(WebtrekkLogging.ERROR, "error {} {}", 1, 2);
+
+        List<String> events = WebtrekkLogging.getRecentEvents();
+        assertEquals(3, events.size());
+        assertTrue(events.get(0).endsWith(" D debug"));
+        assertTrue(events.get(1).endsWith(" W warn 1"));
+        assertTrue(events.get(2).endsWith(" E error 1 2"));
+
+        WebtrekkLogging.log(WebtrekkLogging.VERBOSE, "verbose");
+        WebtrekkLogging.log(WebtrekkLogging.INFO, "info {} {} {}", 1, 2, 3);
+        events = WebtrekkLogging.getRecentEvents();
+        assertTrue(events.get(1).endsWith(" V verbose"));
+        assertTrue(events.get(2).endsWith(" I info 1 2 3"));
+    }
+
+    public void testLevelFiltersCalls() {
+        WebtrekkLogging.setLevel(WebtrekkLogging.WARN);
+
+        assertFalse(WebtrekkLogging.isLoggable(WebtrekkLogging.DEBUG));
+        assertTrue(WebtrekkLogging.isLoggable(WebtrekkLogging.WARN));
+
+        WebtrekkLogging.log("debug");
+        WebtrekkLogging.log(WebtrekkLogging.INFO, "info {}", 1);
+        WebtrekkLogging.log(WebtrekkLogging.ERROR, "error {}", 1);
+
+        List<String> events = WebtrekkLogging.getRecentEvents();
+        assertEquals(1, events.size());
+        assertTrue(events.get(0).endsWith(" E error 1"));
+    }
+
+    public void testNothingIsLoggableWithoutOutput() {
+        WebtrekkLogging.setRecentEventsBufferSize(0);
+
+        assertFalse(WebtrekkLogging.isLoggable(WebtrekkLogging.ERROR));
+        WebtrekkLogging.log(WebtrekkLogging.ERROR, "error");
+        assertTrue(WebtrekkLogging.getRecentEvents().isEmpty());
+    }
+
+    public void testRingBufferWrapsAround() {
+        for (int i = 1; i <= 7; i++) {
+            WebtrekkLogging.log(WebtrekkLogging.INFO, "event {}", i);
+        }
+
+        // only last events are kept from oldest to newest
+        List<String> events = WebtrekkLogging.getRecentEvents();
+        assertEquals(3, events.size());
+        assertTrue(events.get(0).endsWith("event 5"));
+        assertTrue(events.get(1).endsWith("event 6"));
+        assertTrue(events.get(2).endsWith("event 7"));
+    }
+
+    public void testRingBufferKeepsValueOfMutableArgument() {
+        final List<String> list = new ArrayList<>();
+
+        list.add("first");
+        WebtrekkLogging.log(WebtrekkLogging.INFO, "list {}", list);
+        list.add("second");
+
+        assertTrue(WebtrekkLogging.getRecentEvents().get(0).endsWith("list [first]"));
+    }
+
+    public void testRingBufferKeepsThrowable() {
+        WebtrekkLogging.log("failed", new IllegalStateException("reason"));
+
+        assertTrue(WebtrekkLogging.getRecentEvents().get(0).endsWith("failed java.lang.IllegalStateException: reason"));
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Utils;
+
+import android.support.annotation.NonNull;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * tests snapshots and listener of SDK metrics. Metrics are process wide, so changes are checked as difference
+ * of snapshots.
+ */
+public class WebtrekkMetricsTest extends AndroidTestCase {
+    private WebtrekkMetrics mMetrics;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMetrics = WebtrekkMetrics.getInstance();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mMetrics.setListener(null);
+        super.tearDown();
+    }
+
+    public void testCountersAreCounted() {
+        final MetricsSnapshot before = mMetrics.getSnapshot();
+
+        mMetrics.increment(WebtrekkMetrics.Counter.SENT);
+        mMetrics.increment(WebtrekkMetrics.Counter.SENT);
+        mMetrics.add(WebtrekkMetrics.Counter.EXPIRED, 5);
+
+        final MetricsSnapshot after = mMetrics.getSnapshot();
+        assertEquals(2, after.getCounter(WebtrekkMetrics.Counter.SENT) - before.getCounter(WebtrekkMetrics.Counter.SENT));
+        assertEquals(5, after.getCounter(WebtrekkMetrics.Counter.EXPIRED) - before.getCounter(WebtrekkMetrics.Counter.EXPIRED));
+        assertTrue(after.getTime() >= before.getTime());
+    }
+
+    public void testGauges() {
+        mMetrics.setGauge(WebtrekkMetrics.Gauge.QUARANTINE_SIZE, 10);
+        mMetrics.addGauge(WebtrekkMetrics.Gauge.QUARANTINE_SIZE, -3);
+
+        assertEquals(7, mMetrics.getSnapshot().getGauge(WebtrekkMetrics.Gauge.QUARANTINE_SIZE));
+        mMetrics.setGauge(WebtrekkMetrics.Gauge.QUARANTINE_SIZE, 0);
+    }
+
+    public void testSnapshotIsImmutable() {
+        final MetricsSnapshot snapshot = mMetrics.getSnapshot();
+        final long sent = snapshot.getCounter(WebtrekkMetrics.Counter.SENT);
+        final long sendCount = snapshot.getHistogram(WebtrekkMetrics.Timer.SEND).getCount();
+
+        mMetrics.increment(WebtrekkMetrics.Counter.SENT);
+        mMetrics.recordTime(WebtrekkMetrics.Timer.SEND, System.nanoTime());
+
+        assertEquals(sent, snapshot.getCounter(WebtrekkMetrics.Counter.SENT));
+        assertEquals(sendCount, snapshot.getHistogram(WebtrekkMetrics.Timer.SEND).getCount());
+    }
+
+    public void testTimeIsRecordedInMicroseconds() {
+        final long before = mMetrics.getSnapshot().getHistogram(WebtrekkMetrics.Timer.URL_BUILD).getCount();
+
+        // operation is started 5 ms ago
+        mMetrics.recordTime(WebtrekkMetrics.Timer.URL_BUILD, System.nanoTime() - 5000000);
+
+        final LatencyHistogram.Snapshot histogram = mMetrics.getSnapshot().getHistogram(WebtrekkMetrics.Timer.URL_BUILD);
+        assertEquals(before + 1, histogram.getCount());
+        assertTrue(histogram.getMax() >= 5000);
+    }
+
+    public void testListenerReceivesSnapshot() {
+        final List<MetricsSnapshot> snapshots = new ArrayList<>();
+
+        mMetrics.setListener(new WebtrekkMetrics.Listener() {
+            @Override
+            public void onMetrics(@NonNull MetricsSnapshot snapshot) {
+                snapshots.add(snapshot);
+            }
+        });
+        mMetrics.increment(WebtrekkMetrics.Counter.RETRIED);
+        mMetrics.notifyListener();
+
+        assertEquals(1, snapshots.size());
+        assertEquals(mMetrics.getSnapshot().getCounter(WebtrekkMetrics.Counter.RETRIED),
+                snapshots.get(0).getCounter(WebtrekkMetrics.Counter.RETRIED));
+
+        mMetrics.setListener(null);
+        mMetrics.notifyListener();
+        assertEquals(1, snapshots.size());
+    }
+
+    public void testFailedListenerIsIgnored() {
+        mMetrics.setListener(new WebtrekkMetrics.Listener() {
+            @Override
+            public void onMetrics(@NonNull MetricsSnapshot snapshot) {
+                throw new IllegalStateException("listener error");
+            }
+        });
+
+        mMetrics.notifyListener();
+    }
+
+    public void testSnapshotString() {
+        final String text = mMetrics.getSnapshot().toString();
+
+        for (WebtrekkMetrics.Counter counter : WebtrekkMetrics.Counter.values()) {
+            assertTrue(text.contains(counter.name() + "="));
+        }
+        for (WebtrekkMetrics.Gauge gauge : WebtrekkMetrics.Gauge.values()) {
+            assertTrue(text.contains(gauge.name() + "="));
+        }
+        for (WebtrekkMetrics.Timer timer : WebtrekkMetrics.Timer.values()) {
+            assertTrue(text.contains(timer.name() + ": count="));
+        }
+    }
+}
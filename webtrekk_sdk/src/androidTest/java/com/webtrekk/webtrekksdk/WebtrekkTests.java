@@ -36,6 +36,7 @@ import com.webtrekk.webtrekksdk.TrackingParameter.Parameter;
 import com.webtrekk.webtrekksdk.Configuration.ActivityConfiguration;
 import com.webtrekk.webtrekksdk.Utils.ActivityListener;
 import com.webtrekk.webtrekksdk.Utils.HelperFunctions;
+import com.webtrekk.webtrekksdk.Utils.StateStore;
 import com.webtrekk.webtrekksdk.Configuration.TrackingConfiguration;
 
 import java.util.HashMap;
@@ -283,8 +284,7 @@ public class WebtrekkTests extends AndroidTestCase {
 
     public void testFirstParameter() {
         // make shure one gets send once and only once when a new session starts
-        SharedPreferences preferences = getContext().getSharedPreferences(Webtrekk.PREFERENCE_FILE_NAME, Context.MODE_PRIVATE);
-        preferences.edit().remove(Webtrekk.PREFERENCE_KEY_EVER_ID).commit();
+        StateStore.getInstance(getContext()).remove(Webtrekk.PREFERENCE_KEY_EVER_ID);
         webtrekk.initWebtrekk(getContext());
         ActivityListener lifecycleCallbacks = new ActivityListener(webtrekk);
 
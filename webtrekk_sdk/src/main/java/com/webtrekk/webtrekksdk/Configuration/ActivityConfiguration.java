@@ -90,16 +90,5 @@ public class ActivityConfiguration {
         }
     }
 
-    public void setOverridenPageURL(String url)
-    {
-        mConstActivityTrackingParameter.getDefaultParameter().put(TrackingParameter.Parameter.PAGE_URL, url);
-    }
-
-    public void resetOverridenPageURL()
-    {
-        if (mConstActivityTrackingParameter!= null && mConstActivityTrackingParameter.getDefaultParameter() != null)
-          mConstActivityTrackingParameter.getDefaultParameter().remove(TrackingParameter.Parameter.PAGE_URL);
-    }
-
 
 }
@@ -0,0 +1,93 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Configuration;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.webtrekk.webtrekksdk.Utils.WebtrekkLogging;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps current {@link ConfigurationSnapshot} in one atomic reference. New configuration is published
+ * with one step, snapshot and derived structures are built by thread that publishes it, so it can be
+ * done in background. Listeners are notified after snapshot is published.
+ */
+public class ConfigurationHolder {
+
+    /**
+     * Listener for components that keep state derived from configuration, like timers
+     */
+    public interface OnConfigurationChangedListener {
+        void onConfigurationChanged(@Nullable ConfigurationSnapshot oldSnapshot, @NonNull ConfigurationSnapshot newSnapshot);
+    }
+
+    private final AtomicReference<ConfigurationSnapshot> mSnapshot = new AtomicReference<>();
+    private final List<OnConfigurationChangedListener> mListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * @return current snapshot or null if configuration isn't published yet
+     */
+    @Nullable
+    public ConfigurationSnapshot getSnapshot() {
+        return mSnapshot.get();
+    }
+
+    /**
+     * @return configuration of current snapshot or null if configuration isn't published yet
+     */
+    @Nullable
+    public TrackingConfiguration getConfiguration() {
+        final ConfigurationSnapshot snapshot = mSnapshot.get();
+        return snapshot == null ? null : snapshot.getConfiguration();
+    }
+
+    /**
+     * Creates new snapshot for configuration and makes it current one.
+     */
+    @NonNull
+    public ConfigurationSnapshot publish(@NonNull TrackingConfiguration configuration) {
+        ConfigurationSnapshot oldSnapshot;
+        ConfigurationSnapshot newSnapshot;
+
+        do {
+            oldSnapshot = mSnapshot.get();
+            newSnapshot = new ConfigurationSnapshot(configuration, oldSnapshot == null ? 1 : oldSnapshot.getSequence() + 1);
+        } while (!mSnapshot.compareAndSet(oldSnapshot, newSnapshot));
+
+        WebtrekkLogging.log("configuration snapshot " + newSnapshot.getSequence() + " is published, version: " + configuration.getVersion());
+
+        for (OnConfigurationChangedListener listener : mListeners) {
+            listener.onConfigurationChanged(oldSnapshot, newSnapshot);
+        }
+
+        return newSnapshot;
+    }
+
+    public void addListener(@NonNull OnConfigurationChangedListener listener) {
+        if (!mListeners.contains(listener)) {
+            mListeners.add(listener);
+        }
+    }
+
+    public void removeListener(@NonNull OnConfigurationChangedListener listener) {
+        mListeners.remove(listener);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Configuration;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Versioned snapshot of {@link TrackingConfiguration} with structures that are derived from it.
+ * Snapshot is created once for each published configuration, configuration shouldn't be changed after it.
+ * Components get current snapshot from {@link ConfigurationHolder} for each operation.
+ */
+public final class ConfigurationSnapshot {
+    private final TrackingConfiguration mConfiguration;
+    private final long mSequence;
+    private final String mUrlPrefix;
+    private final List<String> mTrackIds;
+    private final int mSendDelay;
+
+    ConfigurationSnapshot(@NonNull TrackingConfiguration configuration, long sequence) {
+        mConfiguration = configuration;
+        mSequence = sequence;
+        mSendDelay = configuration.getSendDelay();
+
+        final String trackId = configuration.getTrackId();
+        mUrlPrefix = configuration.getTrackDomain() + "/" + trackId + "/wt?";
+        mTrackIds = trackId == null ? Collections.<String>emptyList() :
+                Collections.unmodifiableList(Arrays.asList(trackId.split(",")));
+    }
+
+    @NonNull
+    public TrackingConfiguration getConfiguration() {
+        return mConfiguration;
+    }
+
+    /**
+     * @return number of snapshot, it is increased each time when new configuration is published
+     */
+    public long getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * @return address and track id part of request that is common for all requests
+     */
+    @NonNull
+    public String getUrlPrefix() {
+        return mUrlPrefix;
+    }
+
+    @NonNull
+    public List<String> getTrackIds() {
+        return mTrackIds;
+    }
+
+    public int getSendDelay() {
+        return mSendDelay;
+    }
+}
@@ -32,6 +32,11 @@ import java.util.SortedMap;
  * all plugins, activity and other tracking details are configured here
  */
 public class TrackingConfiguration {
+    public static final String STORAGE_QUOTA_POLICY_EVICT = "evict";
+    public static final String STORAGE_QUOTA_POLICY_REJECT = "reject";
+    public static final String REQUEST_STORE_FILE = "file";
+    public static final String REQUEST_STORE_SQLITE = "sqlite";
+
     // the current version of the configuration, used to check if a new one is available
     private int version = 0;
 
@@ -68,6 +73,16 @@ public class TrackingConfiguration {
     private boolean mEnableCampaignTracking = true;
     // interval when autotracked start activity is send again
     private int resendOnStartEventTime = 30;
+    // time in seconds after that not sent request is removed, 0 means requests don't expire
+    private int eventTtl;
+    // maximum bytes of all request queue files, 0 means no limit
+    private int maxStorageBytes;
+    // what is done with new request if storage quota is exceeded
+    private String storageQuotaPolicy = STORAGE_QUOTA_POLICY_EVICT;
+    // each process saves requests to own segment, one process sends requests of all processes
+    private boolean multiProcess;
+    // implementation of request store, file is default
+    private String requestStore = REQUEST_STORE_FILE;
     private boolean mErrorLogEnable;
     private int mErrorLogLevel = 3;
 
@@ -82,6 +97,8 @@ public class TrackingConfiguration {
     // the customParameter map from the xml configuration
     private Map<String, String> customParameter;
     private Map<String, String> mRecommendationConfiguration;
+    //cache time to live in seconds for recommendation name
+    private Map<String, Integer> mRecommendationTTL = new HashMap<>();
 
 
     public enum AutoTrackedParameters{
@@ -143,6 +160,22 @@ public class TrackingConfiguration {
             WebtrekkLogging.log("invalid sampling Value");
             valid = false;
         }
+        if(eventTtl < 0) {
+            WebtrekkLogging.log("invalid eventTtl Value");
+            valid = false;
+        }
+        if(maxStorageBytes < 0) {
+            WebtrekkLogging.log("invalid maxStorageBytes Value");
+            valid = false;
+        }
+        if(!STORAGE_QUOTA_POLICY_EVICT.equals(storageQuotaPolicy) && !STORAGE_QUOTA_POLICY_REJECT.equals(storageQuotaPolicy)) {
+            WebtrekkLogging.log("invalid storageQuotaPolicy Value");
+            valid = false;
+        }
+        if(!REQUEST_STORE_FILE.equals(requestStore) && !REQUEST_STORE_SQLITE.equals(requestStore)) {
+            WebtrekkLogging.log("invalid requestStore Value");
+            valid = false;
+        }
         if(maxRequests < 100) {
             WebtrekkLogging.log("invalid maxRequests Value");
             valid = false;
@@ -228,6 +261,54 @@ public class TrackingConfiguration {
         this.resendOnStartEventTime = resendOnStartEventTime;
     }
 
+    public int getEventTtl() {
+        return eventTtl;
+    }
+
+    public void setEventTtl(int eventTtl) {
+        this.eventTtl = eventTtl;
+    }
+
+    public int getMaxStorageBytes() {
+        return maxStorageBytes;
+    }
+
+    public void setMaxStorageBytes(int maxStorageBytes) {
+        this.maxStorageBytes = maxStorageBytes;
+    }
+
+    /**
+     * @return {@link #STORAGE_QUOTA_POLICY_EVICT} to remove oldest requests or {@link #STORAGE_QUOTA_POLICY_REJECT}
+     * to reject new ones when storage quota is exceeded
+     */
+    public String getStorageQuotaPolicy() {
+        return storageQuotaPolicy;
+    }
+
+    public void setStorageQuotaPolicy(String storageQuotaPolicy) {
+        this.storageQuotaPolicy = storageQuotaPolicy;
+    }
+
+    public boolean isMultiProcess() {
+        return multiProcess;
+    }
+
+    public void setMultiProcess(boolean multiProcess) {
+        this.multiProcess = multiProcess;
+    }
+
+    /**
+     * @return {@link #REQUEST_STORE_FILE} to save requests to own file format or {@link #REQUEST_STORE_SQLITE}
+     * to save them to SQLite database
+     */
+    public String getRequestStore() {
+        return requestStore;
+    }
+
+    public void setRequestStore(String requestStore) {
+        this.requestStore = requestStore;
+    }
+
     public int getMaxRequests() {
         return maxRequests;
     }
@@ -441,6 +522,22 @@ public class TrackingConfiguration {
         mRecommendationConfiguration = recommendationConfiguration;
     }
 
+    /**
+     * @return cache time to live in seconds for recommendation, 0 if recommendation response isn't cached
+     */
+    public int getRecommendationTTL(String recommendationName) {
+        Integer ttl = mRecommendationTTL.get(recommendationName);
+        return ttl == null ? 0 : ttl;
+    }
+
+    public Map<String, Integer> getRecommendationTTL() {
+        return mRecommendationTTL;
+    }
+
+    public void setRecommendationTTL(Map<String, Integer> recommendationTTL) {
+        mRecommendationTTL = recommendationTTL;
+    }
+
     // process custom Parameters
     public TrackingParameter getAutoTrackedParameters(Map<String, String> autoParameters, boolean isActionRequest){
         TrackingParameter tp  = new TrackingParameter();
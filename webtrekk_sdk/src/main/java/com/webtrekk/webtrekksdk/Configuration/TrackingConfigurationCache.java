@@ -0,0 +1,410 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Configuration;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.webtrekk.webtrekksdk.TrackingParameter;
+import com.webtrekk.webtrekksdk.TrackingParameter.Parameter;
+import com.webtrekk.webtrekksdk.Utils.WebtrekkLogging;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.zip.CRC32;
+
+/**
+ * Binary snapshot of parsed {@link TrackingConfiguration}. Snapshot is keyed by hash of raw xml
+ * resource and hash of stored remote configuration, so xml is parsed only if one of them is changed.
+ * Stored remote configuration itself isn't read to check the key.
+ * Snapshot is read with one sequential read from files dir. File is shared by all processes in multi process
+ * mode, so it is replaced only with rename of temporary file that is own for each process.
+ */
+public class TrackingConfigurationCache {
+    static final String FILE_NAME = "wt-configuration-cache";
+    private static final int MAGIC = 0x57544343;
+    //should be increased each time when format or TrackingConfiguration fields are changed
+    private static final int FORMAT_VERSION = 5;
+
+    private static final Parameter[] PARAMETER_MAPS = {Parameter.PAGE, Parameter.SESSION, Parameter.ECOM,
+            Parameter.USER_CAT, Parameter.PAGE_CAT, Parameter.AD, Parameter.ACTION, Parameter.PRODUCT_CAT,
+            Parameter.MEDIA_CAT, Parameter.CUSTOM_USER_PAR};
+
+    private final File mFile;
+
+    public TrackingConfigurationCache(@NonNull Context context) {
+        mFile = new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    /**
+     * @param resource raw xml configuration
+     * @param remoteConfigurationHash hash of stored remote configuration from
+     * {@link com.webtrekk.webtrekksdk.Utils.StateStore#getConfigurationHash()}, 0 if there is no one
+     * @return key of configuration snapshot
+     */
+    public static long getKey(@NonNull byte[] resource, long remoteConfigurationHash) {
+        CRC32 crc = new CRC32();
+        crc.update(resource);
+        final long resourceHash = crc.getValue() ^ resource.length;
+
+        return (resourceHash << 32) ^ remoteConfigurationHash;
+    }
+
+    /**
+     * @return configuration snapshot or null if there is no snapshot for this key
+     */
+    @Nullable
+    public TrackingConfiguration load(long key, @Nullable String libraryVersion) {
+        if (!mFile.exists()) {
+            return null;
+        }
+
+        RandomAccessFile file = null;
+
+        try {
+            file = new RandomAccessFile(mFile, "r");
+            final byte[] data = new byte[(int) file.length()];
+            file.readFully(data);
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION || in.readLong() != key
+                    || !in.readUTF().equals(libraryVersion == null ? "" : libraryVersion)) {
+                WebtrekkLogging.log("Configuration cache is outdated");
+                return null;
+            }
+
+            TrackingConfiguration configuration = readConfiguration(in);
+            WebtrekkLogging.log("Configuration is loaded from cache, version: " + configuration.getVersion());
+            return configuration;
+        } catch (IOException e) {
+            WebtrekkLogging.log("Can't read configuration cache:" + e);
+        } catch (IllegalArgumentException e) {
+            WebtrekkLogging.log("Incorrect configuration cache:" + e);
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    WebtrekkLogging.log("Can't close configuration cache:" + e);
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * save configuration snapshot for this key
+     */
+    public void save(long key, @Nullable String libraryVersion, @NonNull TrackingConfiguration configuration) {
+        // processes can save snapshot at the same time, each of them writes own temporary file
+        final File tmpFile = new File(mFile.getPath() + "." + android.os.Process.myPid() + ".tmp");
+        FileOutputStream fileStream = null;
+
+        try {
+            ByteArrayOutputStream data = new ByteArrayOutputStream(4 * 1024);
+            DataOutputStream out = new DataOutputStream(data);
+
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(key);
+            out.writeUTF(libraryVersion == null ? "" : libraryVersion);
+            writeConfiguration(out, configuration);
+            out.flush();
+
+            fileStream = new FileOutputStream(tmpFile);
+            data.writeTo(fileStream);
+            fileStream.close();
+            fileStream = null;
+
+            if (!tmpFile.renameTo(mFile)) {
+                WebtrekkLogging.log("Can't replace configuration cache");
+                tmpFile.delete();
+            }
+        } catch (IOException e) {
+            WebtrekkLogging.log("Can't save configuration cache:" + e);
+            tmpFile.delete();
+        } finally {
+            if (fileStream != null) {
+                try {
+                    fileStream.close();
+                } catch (IOException e) {
+                    WebtrekkLogging.log("Can't close configuration cache:" + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * remove configuration snapshot
+     */
+    public void clear() {
+        if (mFile.exists() && !mFile.delete()) {
+            WebtrekkLogging.log("Can't delete configuration cache");
+        }
+    }
+
+    private void writeConfiguration(DataOutputStream out, TrackingConfiguration config) throws IOException {
+        out.writeInt(config.getVersion());
+        writeString(out, config.getTrackDomain());
+        writeString(out, config.getTrackId());
+        out.writeInt(config.getSampling());
+        out.writeInt(config.getSendDelay());
+        out.writeInt(config.getMaxRequests());
+        out.writeInt(config.getResendOnStartEventTime());
+        out.writeInt(config.getEventTtl());
+        out.writeInt(config.getMaxStorageBytes());
+        writeString(out, config.getStorageQuotaPolicy());
+        out.writeBoolean(config.isMultiProcess());
+        writeString(out, config.getRequestStore());
+        out.writeBoolean(config.isAutoTracked());
+        out.writeBoolean(config.isAutoTrackAppUpdate());
+        out.writeBoolean(config.isAutoTrackAdClearId());
+        out.writeBoolean(config.isAutoTrackAdvertiserId());
+        out.writeBoolean(config.isAutoTrackAppVersionName());
+        out.writeBoolean(config.isAutoTrackAppVersionCode());
+        out.writeBoolean(config.isAutoTrackAppPreInstalled());
+        out.writeBoolean(config.isAutoTrackPlaystoreUsername());
+        out.writeBoolean(config.isAutoTrackPlaystoreMail());
+        out.writeBoolean(config.isAutoTrackPlaystoreGivenName());
+        out.writeBoolean(config.isAutoTrackPlaystoreFamilyName());
+        out.writeBoolean(config.isAutoTrackApiLevel());
+        out.writeBoolean(config.isAutoTrackScreenorientation());
+        out.writeBoolean(config.isAutoTrackConnectionType());
+        out.writeBoolean(config.isAutoTrackAdvertismentOptOut());
+        out.writeBoolean(config.isEnableRemoteConfiguration());
+        writeString(out, config.getTrackingConfigurationUrl());
+        out.writeBoolean(config.isAutoTrackRequestUrlStoreSize());
+        out.writeBoolean(config.isEnableCampaignTracking());
+        out.writeBoolean(config.isErrorLogEnable());
+        out.writeInt(config.getErrorLogLevel());
+        writeParameter(out, config.getGlobalTrackingParameter());
+        writeParameter(out, config.getConstGlobalTrackingParameter());
+
+        final Map<String, ActivityConfiguration> activities = config.getActivityConfigurations();
+        out.writeInt(activities == null ? -1 : activities.size());
+        if (activities != null) {
+            for (Map.Entry<String, ActivityConfiguration> entry : activities.entrySet()) {
+                final ActivityConfiguration activity = entry.getValue();
+                writeString(out, entry.getKey());
+                writeString(out, activity.getClassName());
+                writeString(out, activity.getMappingName());
+                out.writeBoolean(activity.isAutoTrack());
+                writeParameter(out, activity.getActivityTrackingParameter());
+                writeParameter(out, activity.getConstActivityTrackingParameter());
+            }
+        }
+
+        writeStringMap(out, config.getCustomParameter());
+        writeStringMap(out, config.getRecommendationConfiguration());
+
+        final Map<String, Integer> ttl = config.getRecommendationTTL();
+        out.writeInt(ttl == null ? -1 : ttl.size());
+        if (ttl != null) {
+            for (Map.Entry<String, Integer> entry : ttl.entrySet()) {
+                writeString(out, entry.getKey());
+                out.writeInt(entry.getValue());
+            }
+        }
+    }
+
+    private TrackingConfiguration readConfiguration(DataInputStream in) throws IOException {
+        TrackingConfiguration config = new TrackingConfiguration();
+
+        config.setVersion(in.readInt());
+        config.setTrackDomain(readString(in));
+        config.setTrackId(readString(in));
+        config.setSampling(in.readInt());
+        config.setSendDelay(in.readInt());
+        config.setMaxRequests(in.readInt());
+        config.setResendOnStartEventTime(in.readInt());
+        config.setEventTtl(in.readInt());
+        config.setMaxStorageBytes(in.readInt());
+        config.setStorageQuotaPolicy(readString(in));
+        config.setMultiProcess(in.readBoolean());
+        config.setRequestStore(readString(in));
+        config.setAutoTracked(in.readBoolean());
+        config.setAutoTrackAppUpdate(in.readBoolean());
+        config.setAutoTrackAdClearId(in.readBoolean());
+        config.setAutoTrackAdvertiserId(in.readBoolean());
+        config.setAutoTrackAppVersionName(in.readBoolean());
+        config.setAutoTrackAppVersionCode(in.readBoolean());
+        config.setAutoTrackAppPreInstalled(in.readBoolean());
+        config.setAutoTrackPlaystoreUsername(in.readBoolean());
+        config.setAutoTrackPlaystoreMail(in.readBoolean());
+        config.setAutoTrackPlaystoreGivenName(in.readBoolean());
+        config.setAutoTrackPlaystoreFamilyName(in.readBoolean());
+        config.setAutoTrackApiLevel(in.readBoolean());
+        config.setAutoTrackScreenorientation(in.readBoolean());
+        config.setAutoTrackConnectionType(in.readBoolean());
+        config.setAutoTrackAdvertismentOptOut(in.readBoolean());
+        config.setEnableRemoteConfiguration(in.readBoolean());
+        config.setTrackingConfigurationUrl(readString(in));
+        config.setAutoTrackRequestUrlStoreSize(in.readBoolean());
+        config.setEnableCampaignTracking(in.readBoolean());
+        config.setErrorLogEnable(in.readBoolean());
+        config.setErrorLogLevel(in.readInt());
+        config.setGlobalTrackingParameter(readParameter(in));
+        config.setConstGlobalTrackingParameter(readParameter(in));
+
+        final int activitiesSize = in.readInt();
+        if (activitiesSize >= 0) {
+            Map<String, ActivityConfiguration> activities = new HashMap<>();
+            for (int i = 0; i < activitiesSize; i++) {
+                final String key = readString(in);
+                final String className = readString(in);
+                final String mappingName = readString(in);
+                final boolean isAutoTrack = in.readBoolean();
+                final TrackingParameter parameter = readParameter(in);
+                final TrackingParameter constParameter = readParameter(in);
+                activities.put(key, new ActivityConfiguration(className, mappingName, isAutoTrack, parameter, constParameter));
+            }
+            config.setActivityConfigurations(activities);
+        } else {
+            config.setActivityConfigurations(null);
+        }
+
+        config.setCustomParameter(readStringMap(in));
+        config.setRecommendationConfiguration(readStringMap(in));
+
+        final int ttlSize = in.readInt();
+        Map<String, Integer> ttl = new HashMap<>();
+        for (int i = 0; i < ttlSize; i++) {
+            ttl.put(readString(in), in.readInt());
+        }
+        config.setRecommendationTTL(ttl);
+
+        return config;
+    }
+
+    private void writeParameter(DataOutputStream out, TrackingParameter parameter) throws IOException {
+        out.writeBoolean(parameter != null);
+        if (parameter == null) {
+            return;
+        }
+
+        final SortedMap<Parameter, String> defaultParameter = parameter.getDefaultParameter();
+        out.writeInt(defaultParameter.size());
+        for (Map.Entry<Parameter, String> entry : defaultParameter.entrySet()) {
+            out.writeUTF(entry.getKey().name());
+            writeString(out, entry.getValue());
+        }
+
+        for (Parameter type : PARAMETER_MAPS) {
+            writeStringMap(out, getParameterMap(parameter, type));
+        }
+    }
+
+    private TrackingParameter readParameter(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+
+        TrackingParameter parameter = new TrackingParameter();
+        final int defaultSize = in.readInt();
+
+        for (int i = 0; i < defaultSize; i++) {
+            final Parameter key = Parameter.valueOf(in.readUTF());
+            parameter.getDefaultParameter().put(key, readString(in));
+        }
+
+        for (Parameter type : PARAMETER_MAPS) {
+            final int size = in.readInt();
+            final Map<String, String> map = getParameterMap(parameter, type);
+            for (int i = 0; i < size; i++) {
+                final String key = readString(in);
+                map.put(key, readString(in));
+            }
+        }
+
+        return parameter;
+    }
+
+    private static Map<String, String> getParameterMap(TrackingParameter parameter, Parameter type) {
+        switch (type) {
+            case PAGE:
+                return parameter.getPageParameter();
+            case SESSION:
+                return parameter.getSessionParameter();
+            case ECOM:
+                return parameter.getEcomParameter();
+            case USER_CAT:
+                return parameter.getUserCategories();
+            case PAGE_CAT:
+                return parameter.getPageCategories();
+            case AD:
+                return parameter.getAdParameter();
+            case ACTION:
+                return parameter.getActionParameter();
+            case PRODUCT_CAT:
+                return parameter.getProductCategories();
+            case MEDIA_CAT:
+                return parameter.getMediaCategories();
+            case CUSTOM_USER_PAR:
+                return parameter.getCustomUserParameters();
+            default:
+                throw new IllegalArgumentException("invalid TrackingParameter type");
+        }
+    }
+
+    private void writeStringMap(DataOutputStream out, Map<String, String> map) throws IOException {
+        out.writeInt(map == null ? -1 : map.size());
+        if (map != null) {
+            for (Map.Entry<String, String> entry : map.entrySet()) {
+                writeString(out, entry.getKey());
+                writeString(out, entry.getValue());
+            }
+        }
+    }
+
+    private Map<String, String> readStringMap(DataInputStream in) throws IOException {
+        final int size = in.readInt();
+
+        if (size < 0) {
+            return null;
+        }
+
+        Map<String, String> map = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            final String key = readString(in);
+            map.put(key, readString(in));
+        }
+        return map;
+    }
+
+    private void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
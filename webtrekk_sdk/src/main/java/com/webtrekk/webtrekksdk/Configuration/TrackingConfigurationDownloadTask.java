@@ -21,42 +21,112 @@ package com.webtrekk.webtrekksdk.Configuration;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.AsyncTask;
-import android.preference.PreferenceManager;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import com.webtrekk.webtrekksdk.Request.RequestProcessor;
 import com.webtrekk.webtrekksdk.Utils.AsyncTest;
 import com.webtrekk.webtrekksdk.Utils.HelperFunctions;
+import com.webtrekk.webtrekksdk.Utils.StateStore;
 import com.webtrekk.webtrekksdk.Utils.WebtrekkLogging;
 import com.webtrekk.webtrekksdk.Webtrekk;
 
 import org.xmlpull.v1.XmlPullParserException;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.ProtocolException;
 import java.net.URL;
 
 /**
  * This classe downloads the xml configuration from the configured remote url,
- * it runs asynchronous in the background during application start if enabled
+ * it runs asynchronous in the background during application start if enabled.
+ * Request is conditional, ETag and Last-Modified of last response are sent back and 304 response
+ * skips download and parsing. Response is parsed directly from stream and parsing is stopped as soon as
+ * version tag shows that remote configuration isn't newer than current one.
+ * Configuration isn't checked again during refresh interval. Interval is max-age of Cache-Control header of
+ * last response, {@link #DEFAULT_REFRESH_INTERVAL} is used if server doesn't send it.
  */
 public class TrackingConfigurationDownloadTask extends AsyncTask<String, Void, TrackingConfiguration> {
+    // refresh interval if response has no Cache-Control max-age
+    public static final long DEFAULT_REFRESH_INTERVAL = 60 * 60 * 1000;
+    // max-age of response isn't used above this limit, so changed configuration is loaded at least once a day
+    public static final long MAX_REFRESH_INTERVAL = 24 * 60 * 60 * 1000;
+    static final int MAX_CONFIGURATION_SIZE = 1024 * 1024;
+
+    private static final String PREFERENCE_KEY_CONFIGURATION_URL = "webtrekkConfigurationUrl";
+    private static final String PREFERENCE_KEY_CONFIGURATION_ETAG = "webtrekkConfigurationETag";
+    private static final String PREFERENCE_KEY_CONFIGURATION_LAST_MODIFIED = "webtrekkConfigurationLastModified";
+    private static final String PREFERENCE_KEY_CONFIGURATION_CHECK_TIME = "webtrekkConfigurationCheckTime";
+    private static final String PREFERENCE_KEY_CONFIGURATION_REFRESH_INTERVAL = "webtrekkConfigurationRefreshInterval";
+
     private Context context;
     private Webtrekk webtrekk;
     private TrackingConfiguration trackingConfiguration;
     private String trackingConfigurationString;
     // this interface is for testing asynchronous calls, only used during unit tests to notify that the task is done
     private AsyncTest asyncTest;
+    private int mCurrentVersion;
+    private String mUrl;
+    private String mETag;
+    private String mLastModified;
+    private long mRefreshInterval = DEFAULT_REFRESH_INTERVAL;
+    // true if server confirms that configuration isn't changed or parsing is stopped on version tag
+    private boolean mIsUpToDate;
+    private HttpURLConnection mConnection;
 
 
     public TrackingConfigurationDownloadTask(Webtrekk webtrekk, AsyncTest asyncTest) {
         this.webtrekk = webtrekk;
         this.context = webtrekk.getContext();
         this.asyncTest = asyncTest;
+        this.mCurrentVersion = webtrekk.getTrackingConfiguration().getVersion();
+    }
+
+    /**
+     * @return false if configuration from this url was checked less than refresh interval of last response ago
+     */
+    public static boolean isRefreshRequired(@NonNull Context context, @Nullable String url) {
+        SharedPreferences sharedPrefs = HelperFunctions.getWebTrekkSharedPreference(context);
+        final long checkTime = sharedPrefs.getLong(PREFERENCE_KEY_CONFIGURATION_CHECK_TIME, 0);
+        final long refreshInterval = sharedPrefs.getLong(PREFERENCE_KEY_CONFIGURATION_REFRESH_INTERVAL, DEFAULT_REFRESH_INTERVAL);
+        final long now = System.currentTimeMillis();
+
+        return url == null || !url.equals(sharedPrefs.getString(PREFERENCE_KEY_CONFIGURATION_URL, null))
+                || now - checkTime >= refreshInterval || now < checkTime;
+    }
+
+    /**
+     * @param cacheControl value of Cache-Control header, can be null
+     * @return refresh interval in milliseconds: max-age limited by {@link #MAX_REFRESH_INTERVAL}, 0 for no-cache
+     * and no-store or {@link #DEFAULT_REFRESH_INTERVAL} if header has no max-age
+     */
+    static long getRefreshInterval(@Nullable String cacheControl) {
+        if (cacheControl == null) {
+            return DEFAULT_REFRESH_INTERVAL;
+        }
+
+        long refreshInterval = DEFAULT_REFRESH_INTERVAL;
+
+        for (String directive : cacheControl.split(",")) {
+            directive = directive.trim().toLowerCase();
+
+            if (directive.equals("no-cache") || directive.equals("no-store")) {
+                return 0;
+            }
+            if (directive.startsWith("max-age=")) {
+                try {
+                    final long maxAge = Long.parseLong(directive.substring("max-age=".length()).replace("\"", ""));
+                    refreshInterval = Math.max(0, Math.min(maxAge, MAX_REFRESH_INTERVAL / 1000)) * 1000;
+                } catch (NumberFormatException e) {
+                    WebtrekkLogging.log("incorrect max-age of remote configuration: " + directive);
+                }
+            }
+        }
+
+        return refreshInterval;
     }
 
     /**
@@ -68,43 +138,76 @@ public class TrackingConfigurationDownloadTask extends AsyncTask<String, Void, T
     @Override
     protected TrackingConfiguration doInBackground(String... urls) {
         WebtrekkLogging.log("trying to get remote configuration url: " + urls[0]);
+        mUrl = urls[0];
+        final TrackingConfiguration config = downloadConfiguration();
+
+        // new configuration is published in background, so snapshot isn't built on main thread
+        applyConfiguration(config);
+        return config;
+    }
+
+    @Nullable
+    private TrackingConfiguration downloadConfiguration() {
         // Instantiate the parser
         TrackingConfigurationXmlParser trackingConfigurationParser = new TrackingConfigurationXmlParser();
-        //stream = downloadUrl(urls[0]);
+        CapturingInputStream stream = null;
 
         try {
-            trackingConfigurationString = getXmlFromUrl(urls[0]);
-            WebtrekkLogging.log("remote configuration string: " + trackingConfigurationString);
-            if (trackingConfigurationString != null) {
-                trackingConfiguration = trackingConfigurationParser.parse(trackingConfigurationString);
+            InputStream inputStream = getConfigurationStream(mUrl);
+
+            if (inputStream != null) {
+                stream = new CapturingInputStream(inputStream, MAX_CONFIGURATION_SIZE);
+                trackingConfiguration = trackingConfigurationParser.parse(stream, mCurrentVersion);
+                if (trackingConfiguration == null) {
+                    mIsUpToDate = true;
+                    return null;
+                }
+                trackingConfigurationString = stream.readToString();
+                WebtrekkLogging.log("remote configuration string: " + trackingConfigurationString);
                 return trackingConfiguration;
-            } else {
-                WebtrekkLogging.log("error getting the xml configuration string from url: " + urls[0]);
+            } else if (!mIsUpToDate) {
+                WebtrekkLogging.log("error getting the xml configuration string from url: " + mUrl);
             }
-
-            // Makes sure that the InputStream is closed after the app is
-            // finished using it.
         } catch (IOException e) {
             WebtrekkLogging.log("xml parser error, ioexception", e);
         } catch (XmlPullParserException e) {
             WebtrekkLogging.log("xml parser error, no validate xml configuration file", e);
         } catch (Exception e) {
             WebtrekkLogging.log("error getting remove configuration", e);
+        } finally {
+            // Makes sure that the InputStream is closed after the app is
+            // finished using it.
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    WebtrekkLogging.log("can't close remote configuration stream", e);
+                }
+            }
+            if (mConnection != null) {
+                mConnection.disconnect();
+            }
         }
 
         return null;
     }
 
     /**
-     * this method gets called when the doInBackground method is finished it replaces the current
+     * this method gets called when the download is finished it replaces the current
      * TrackingConfiguration with a newer one if one was found online, and also store it in the shared prefs
      *
      * @param config
      */
-    @Override
-    protected void onPostExecute(TrackingConfiguration config) {
+    private void applyConfiguration(@Nullable TrackingConfiguration config) {
+        SharedPreferences sharedPrefs = HelperFunctions.getWebTrekkSharedPreference(context);
+
         if (config == null) {
-            WebtrekkLogging.log("error getting a new valid configuration from remote url, tracking with the old config");
+            if (mIsUpToDate) {
+                WebtrekkLogging.log("remote configuration isn't changed, doing nothing");
+                saveValidators(sharedPrefs);
+            } else {
+                WebtrekkLogging.log("error getting a new valid configuration from remote url, tracking with the old config");
+            }
         } else {
             WebtrekkLogging.log("successful downloaded remote configuration");
 
@@ -112,9 +215,9 @@ public class TrackingConfigurationDownloadTask extends AsyncTask<String, Void, T
                 if(config.validateConfiguration()) {
                     WebtrekkLogging.log("found a new version online, updating current version");
                     // either store it as xml on the internal storage or save it as xml string in the shared prefs
-                    WebtrekkLogging.log("saving new trackingConfiguration to preferences");
-                    SharedPreferences sharedPrefs = HelperFunctions.getWebTrekkSharedPreference(context);
-                    sharedPrefs.edit().putString(Webtrekk.PREFERENCE_KEY_CONFIGURATION, trackingConfigurationString).apply();
+                    WebtrekkLogging.log("saving new trackingConfiguration to state file");
+                    StateStore.getInstance(context).setConfiguration(trackingConfigurationString);
+                    saveValidators(sharedPrefs);
 
                     //TODO: update the current configuration only if valid and newer
                     WebtrekkLogging.log("updating current trackingConfiguration");
@@ -125,9 +228,13 @@ public class TrackingConfigurationDownloadTask extends AsyncTask<String, Void, T
 
             } else {
                 WebtrekkLogging.log("local config is already up to date, doing nothing");
+                saveValidators(sharedPrefs);
             }
         }
+    }
 
+    @Override
+    protected void onPostExecute(TrackingConfiguration config) {
         if (asyncTest != null) {
             asyncTest.workDone();
             WebtrekkLogging.log("asyncTest: workdDone()");
@@ -136,62 +243,128 @@ public class TrackingConfigurationDownloadTask extends AsyncTask<String, Void, T
     }
 
     /**
-     * Reads a stream and writes it into a string. Closes inputStream when done.
+     * save validators of last response and time of check, so next request can be conditional
+     */
+    private void saveValidators(SharedPreferences sharedPrefs) {
+        SharedPreferences.Editor editor = sharedPrefs.edit();
+
+        editor.putString(PREFERENCE_KEY_CONFIGURATION_URL, mUrl);
+        editor.putLong(PREFERENCE_KEY_CONFIGURATION_CHECK_TIME, System.currentTimeMillis());
+        editor.putLong(PREFERENCE_KEY_CONFIGURATION_REFRESH_INTERVAL, mRefreshInterval);
+        if (mETag != null || mLastModified != null) {
+            editor.putString(PREFERENCE_KEY_CONFIGURATION_ETAG, mETag);
+            editor.putString(PREFERENCE_KEY_CONFIGURATION_LAST_MODIFIED, mLastModified);
+        }
+        editor.apply();
+    }
+
+    /**
+     * Opens conditional GET request to configuration url.
      *
-     * @param inputStream The stream to read
-     * @return A string, containing stream data
-     * @throws java.io.IOException
+     * @return response stream or null if configuration isn't modified or in case of error
      */
-    String stringFromStream(InputStream inputStream) throws java.io.IOException {
-        final String encoding = "UTF-8";
-        final long maxSize = 1024*1024;
-        final StringBuilder builder = new StringBuilder();
-        final BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, encoding));
+    public InputStream getConfigurationStream(String url) throws IOException {
+        SharedPreferences sharedPrefs = HelperFunctions.getWebTrekkSharedPreference(context);
+        final boolean isSameUrl = url.equals(sharedPrefs.getString(PREFERENCE_KEY_CONFIGURATION_URL, null));
+        final String eTag = isSameUrl ? sharedPrefs.getString(PREFERENCE_KEY_CONFIGURATION_ETAG, null) : null;
+        final String lastModified = isSameUrl ? sharedPrefs.getString(PREFERENCE_KEY_CONFIGURATION_LAST_MODIFIED, null) : null;
 
-        try {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                builder.append(line);
+        mConnection = (HttpURLConnection) new URL(url).openConnection();
+        mConnection.setRequestMethod("GET");
+        mConnection.setConnectTimeout(RequestProcessor.NETWORK_CONNECTION_TIMEOUT);
+        mConnection.setReadTimeout(RequestProcessor.NETWORK_CONNECTION_TIMEOUT);
+        mConnection.setRequestProperty("Content-Type", "application/xml");
+        if (eTag != null) {
+            mConnection.setRequestProperty("If-None-Match", eTag);
+        }
+        if (lastModified != null) {
+            mConnection.setRequestProperty("If-Modified-Since", lastModified);
+        }
+        mConnection.connect();
 
-                if (builder.length() > maxSize) {
-                    WebtrekkLogging.log("Error load remote configuration xml. Exceeded size (>=" + maxSize + ")");
-                    return null;
-                }
-            }
-        }finally {
-            reader.close();
+        final int response = mConnection.getResponseCode();
+        // 304 response has Cache-Control of cached configuration as well
+        mRefreshInterval = getRefreshInterval(mConnection.getHeaderField("Cache-Control"));
+
+        if (response == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            WebtrekkLogging.log("remote configuration isn't modified: " + url);
+            mIsUpToDate = true;
+            return null;
+        }
+
+        if (response != HttpURLConnection.HTTP_OK) {
+            WebtrekkLogging.log("can't get remote configuration, response code: " + response);
+            return null;
         }
 
-        return builder.toString();
+        mETag = mConnection.getHeaderField("ETag");
+        mLastModified = mConnection.getHeaderField("Last-Modified");
+        return mConnection.getInputStream();
     }
 
-    public String getXmlFromUrl(String url) throws IOException {
-        // defaultHttpClient
-        HttpURLConnection urlConnection;
-        InputStream is = null;
-        try {
-            URL trackingConfigurationUrl = new URL(url);
-            urlConnection = (HttpURLConnection) trackingConfigurationUrl.openConnection();
-            urlConnection.setRequestMethod("GET");
-            urlConnection.setConnectTimeout(RequestProcessor.NETWORK_CONNECTION_TIMEOUT);
-            urlConnection.setReadTimeout(RequestProcessor.NETWORK_CONNECTION_TIMEOUT);
-            urlConnection.setRequestProperty("Content-Type", "application/xml");
-            urlConnection.connect();
-            int response = urlConnection.getResponseCode();
-            is = urlConnection.getInputStream();
-            String xmlConfiguration = stringFromStream(is);
-            return xmlConfiguration;
-        } catch (MalformedURLException e) {
-            WebtrekkLogging.log("getXmlFromUrl: invalid URL", e);
-        } catch (ProtocolException e) {
-            WebtrekkLogging.log("getXmlFromUrl: invalid URL", e);
-        } catch (IOException e) {
-            WebtrekkLogging.log("getXmlFromUrl: invalid URL", e);
-        } finally {
-            if (is != null) {
-                is.close();
+    /**
+     * Keeps read bytes, so configuration can be saved to preferences without second read.
+     * Throws IOException if more than limit bytes are read.
+     */
+    private static class CapturingInputStream extends FilterInputStream {
+        private final ByteArrayOutputStream mCapture = new ByteArrayOutputStream(8 * 1024);
+        private final int mLimit;
+
+        CapturingInputStream(InputStream in, int limit) {
+            super(in);
+            mLimit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int value = super.read();
+
+            if (value >= 0) {
+                checkLimit(1);
+                mCapture.write(value);
+            }
+            return value;
+        }
+
+        @Override
+        public int read(@NonNull byte[] buffer, int offset, int count) throws IOException {
+            final int read = super.read(buffer, offset, count);
+
+            if (read > 0) {
+                checkLimit(read);
+                mCapture.write(buffer, offset, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            // skipped bytes should be captured as well
+            byte[] buffer = new byte[(int) Math.min(count, 1024)];
+            final int read = read(buffer, 0, buffer.length);
+            return read < 0 ? 0 : read;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /**
+         * read rest of stream and return all bytes as UTF-8 string
+         */
+        String readToString() throws IOException {
+            byte[] buffer = new byte[1024];
+            while (read(buffer, 0, buffer.length) >= 0) {
+                // just capture rest of stream
+            }
+            return mCapture.toString("UTF-8");
+        }
+
+        private void checkLimit(int read) throws IOException {
+            if (mCapture.size() + read > mLimit) {
+                throw new IOException("Error load remote configuration xml. Exceeded size (>=" + mLimit + ")");
             }
         }
-        return null;
     }
-}
\ No newline at end of file
+}
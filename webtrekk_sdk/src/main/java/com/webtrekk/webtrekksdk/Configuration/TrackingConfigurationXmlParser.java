@@ -26,6 +26,7 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.StringReader;
 import java.util.HashMap;
 import java.util.Map;
@@ -287,6 +288,51 @@ public class TrackingConfigurationXmlParser {
             }
         }, Integer.class),
 
+        EVENT_TTL(new ParameterAction(){
+            @Override
+            public <T> void process(TrackingConfiguration config, XmlPullParser parser, @NonNull T value, TrackingConfigurationXmlParser confParser, String errorMessage) throws XmlPullParserException, IOException  {
+                Integer eventTtl = (Integer) value;
+
+                config.setEventTtl(eventTtl);
+            }
+        }, Integer.class),
+
+        MAX_STORAGE_BYTES(new ParameterAction(){
+            @Override
+            public <T> void process(TrackingConfiguration config, XmlPullParser parser, @NonNull T value, TrackingConfigurationXmlParser confParser, String errorMessage) throws XmlPullParserException, IOException  {
+                Integer maxStorageBytes = (Integer) value;
+
+                config.setMaxStorageBytes(maxStorageBytes);
+            }
+        }, Integer.class),
+
+        STORAGE_QUOTA_POLICY(new ParameterAction(){
+            @Override
+            public <T> void process(TrackingConfiguration config, XmlPullParser parser, @NonNull T value, TrackingConfigurationXmlParser confParser, String errorMessage) throws XmlPullParserException, IOException  {
+                String policy = (String) value;
+
+                config.setStorageQuotaPolicy(policy.trim().toLowerCase());
+            }
+        }, String.class),
+
+        MULTI_PROCESS(new ParameterAction(){
+            @Override
+            public <T> void process(TrackingConfiguration config, XmlPullParser parser, @NonNull T value, TrackingConfigurationXmlParser confParser, String errorMessage) throws XmlPullParserException, IOException  {
+                Boolean boolValue = (Boolean) value;
+
+                config.setMultiProcess(boolValue);
+            }
+        }, Boolean.class),
+
+        REQUEST_STORE(new ParameterAction(){
+            @Override
+            public <T> void process(TrackingConfiguration config, XmlPullParser parser, @NonNull T value, TrackingConfigurationXmlParser confParser, String errorMessage) throws XmlPullParserException, IOException  {
+                String requestStore = (String) value;
+
+                config.setRequestStore(requestStore.trim().toLowerCase());
+            }
+        }, String.class),
+
         ERROR_LOG_ENABLED(new ParameterAction(){
             @Override
             public <T> void process(TrackingConfiguration config, XmlPullParser parser, @NonNull T value, TrackingConfigurationXmlParser confParser, String errorMessage) throws XmlPullParserException, IOException  {
@@ -341,8 +387,10 @@ public class TrackingConfigurationXmlParser {
         RECOMMENDATIONS(new ParameterAction(){
             @Override
             public <T> void process(TrackingConfiguration config, XmlPullParser parser, @Nullable T value, TrackingConfigurationXmlParser confParser, String errorMessage) throws XmlPullParserException, IOException  {
-                Map<String, String> recConfig = confParser.readRecommendationConfig(parser);
+                Map<String, Integer> recTTL = new HashMap<>();
+                Map<String, String> recConfig = confParser.readRecommendationConfig(parser, recTTL);
                 config.setRecommendationConfiguration(recConfig);
+                config.setRecommendationTTL(recTTL);
             }
         }),
 
@@ -392,18 +440,38 @@ public class TrackingConfigurationXmlParser {
         parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
         parser.setInput(new StringReader(in));
         parser.nextTag();
-        return readConfig(parser);
+        return readConfig(parser, Integer.MIN_VALUE);
+    }
+
+    /**
+     * parses the TrackingConfiguration directly from stream. Parsing is stopped when version tag
+     * is found and version isn't newer than current one.
+     *
+     * @param in UTF-8 stream containing the xml configuration
+     * @param currentVersion version of current configuration
+     * @return returns a TrackingConfiguration object or null if configuration isn't newer
+     * @throws XmlPullParserException
+     * @throws IOException
+     */
+    @Nullable
+    public TrackingConfiguration parse(InputStream in, int currentVersion) throws XmlPullParserException, IOException {
+        XmlPullParser parser = Xml.newPullParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
+        parser.setInput(in, "UTF-8");
+        parser.nextTag();
+        return readConfig(parser, currentVersion);
     }
 
     /**
      * reads the tags and sets the related configuration values in the TrackingConfiguration object
      *
      * @param parser
+     * @param currentVersion reading is stopped and null is returned if version isn't newer
      * @return
      * @throws XmlPullParserException
      * @throws IOException
      */
-    private TrackingConfiguration readConfig(XmlPullParser parser) throws XmlPullParserException, IOException {
+    private TrackingConfiguration readConfig(XmlPullParser parser, int currentVersion) throws XmlPullParserException, IOException {
         TrackingConfiguration config = new TrackingConfiguration();
         parser.require(XmlPullParser.START_TAG, ns, "webtrekkConfiguration");
 
@@ -434,6 +502,11 @@ public class TrackingConfigurationXmlParser {
         actionMap.put("enableRemoteConfiguration", ParType.ENABLE_REMOTE_CONFIGURATION);
         actionMap.put("trackingConfigurationUrl", ParType.TRACKING_CONFIGURATION_URL);
         actionMap.put("resendOnStartEventTime", ParType.RESEND_ON_START_EVENT_TIME);
+        actionMap.put("eventTtl", ParType.EVENT_TTL);
+        actionMap.put("maxStorageBytes", ParType.MAX_STORAGE_BYTES);
+        actionMap.put("storageQuotaPolicy", ParType.STORAGE_QUOTA_POLICY);
+        actionMap.put("multiProcess", ParType.MULTI_PROCESS);
+        actionMap.put("requestStore", ParType.REQUEST_STORE);
         actionMap.put("errorLogEnable", ParType.ERROR_LOG_ENABLED);
         actionMap.put("errorLogLevel", ParType.ERROR_LOG_LEVEL);
         actionMap.put("enableCampaignTracking", ParType.ENABLE_CAMPAIGN_TRACKING);
@@ -491,6 +564,11 @@ public class TrackingConfigurationXmlParser {
                         ParameterAction action = parType.getAction();
 
                         action.process(config, parser, objValue, this, errorMessage);
+
+                        if (parType == ParType.VERSION && (Integer) objValue <= currentVersion) {
+                            WebtrekkLogging.log("configuration version " + objValue + " isn't newer than " + currentVersion + ", stop reading");
+                            return null;
+                        }
                     }
 
                     parser.require(XmlPullParser.END_TAG, ns, name);
@@ -747,7 +825,7 @@ public class TrackingConfigurationXmlParser {
     }
 
 
-    private Map<String, String> readRecommendationConfig(XmlPullParser parser) throws XmlPullParserException, IOException {
+    private Map<String, String> readRecommendationConfig(XmlPullParser parser, Map<String, Integer> ttlConfig) throws XmlPullParserException, IOException {
 
         Map<String, String> retValue = new HashMap<>();
         while (parser.next() != XmlPullParser.END_TAG) {
@@ -761,12 +839,20 @@ public class TrackingConfigurationXmlParser {
             {
                 parser.require(XmlPullParser.START_TAG, ns, "recommendation");
                 String recName = parser.getAttributeValue(ns, "name");
+                String ttl = parser.getAttributeValue(ns, "ttl");
                 String value = readText(parser);
 
                 if (recName == null || value == null || !HelperFunctions.testIsValidURL(value)) {
                     WebtrekkLogging.log("invalid parameter configuration while reading recommendation value, missing name or value or value URL incorrect");
                 } else {
                     retValue.put(recName, value);
+                    if (ttl != null) {
+                        try {
+                            ttlConfig.put(recName, Math.max(0, Integer.parseInt(ttl)));
+                        } catch (NumberFormatException e) {
+                            WebtrekkLogging.log("invalid recommendation ttl value for " + recName + ": " + ttl);
+                        }
+                    }
                 }
             }
         }
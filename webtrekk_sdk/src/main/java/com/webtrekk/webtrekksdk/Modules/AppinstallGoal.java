@@ -23,44 +23,37 @@ package com.webtrekk.webtrekksdk.Modules;
  */
 
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.support.annotation.NonNull;
 
-import com.webtrekk.webtrekksdk.Utils.HelperFunctions;
+import com.webtrekk.webtrekksdk.Utils.StateStore;
 
 public class AppinstallGoal {
-    private static final String appinstallGoal = "appinstallGoal";
-    private static final String appinstallGoalProcessed = "appinstallGoalProcessed";
 
     //init appinstall goal if it isn't processed yet
     public void initAppinstallGoal(@NonNull Context context){
         if (!isAppinstallGoalProcessed(context)){
-            SharedPreferences.Editor editor = getPreferences(context).edit();
-            editor.putBoolean(AppinstallGoal.appinstallGoal, true).apply();
+            getState(context).setAppinstallGoal(true);
         }
     }
 
     //return if there is appinstall goal to process
     public boolean isAppinstallGoal(@NonNull Context context){
-        return getPreferences(context).getBoolean(AppinstallGoal.appinstallGoal, false);
+        return getState(context).isAppinstallGoal();
     }
 
     //finish applinstall goal
     public void finishAppinstallGoal(@NonNull Context context){
         if (isAppinstallGoal(context)){
-            SharedPreferences.Editor editor = getPreferences(context).edit();
-            editor.remove(AppinstallGoal.appinstallGoal);
-            editor.putBoolean(AppinstallGoal.appinstallGoalProcessed, true);
-            editor.apply();
+            getState(context).finishAppinstallGoal();
         }
     }
 
     //check if applinstall goal already processed
     private boolean isAppinstallGoalProcessed(@NonNull Context context){
-        return getPreferences(context).getBoolean(AppinstallGoal.appinstallGoalProcessed, false);
+        return getState(context).isAppinstallGoalProcessed();
     }
 
-    private SharedPreferences getPreferences(@NonNull Context context){
-        return HelperFunctions.getWebTrekkSharedPreference(context);
+    private StateStore getState(@NonNull Context context){
+        return StateStore.getInstance(context);
     }
 }
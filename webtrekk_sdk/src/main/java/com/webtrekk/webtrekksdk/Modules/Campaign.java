@@ -29,9 +29,11 @@ import android.util.JsonReader;
 import com.webtrekk.webtrekksdk.ReferrerReceiver;
 import com.webtrekk.webtrekksdk.Request.TrackingRequest;
 import com.webtrekk.webtrekksdk.Request.RequestProcessor;
+import com.webtrekk.webtrekksdk.Request.RequestUrlStore;
 import com.webtrekk.webtrekksdk.TrackingParameter;
 import com.webtrekk.webtrekksdk.Utils.HelperFunctions;
 import com.webtrekk.webtrekksdk.Utils.PinConnectionValidator;
+import com.webtrekk.webtrekksdk.Utils.StateStore;
 import com.webtrekk.webtrekksdk.Utils.WebtrekkLogging;
 
 import java.io.IOException;
@@ -61,13 +63,11 @@ public class Campaign extends Thread
 
     private String mMediaCode;
 
-    private static final String ADV_ID = "INSTALL_SETTINGS_ADV_ID";
-    private static final String MEDIA_CODE = "INSTALL_SETTINGS_MEDIA_CODE";
-    private static final String OPT_OUT = "INSTALL_SETTINGS_OPT_OUT";
+    private static final String ADV_ID = StateStore.KEY_ADV_ID;
+    private static final String MEDIA_CODE = StateStore.KEY_MEDIA_CODE;
     private static final String FIRST_START_INITIATED = "FIRST_START_INITIATED";//old flag need to support old settings
     private static final String FIRST_START_INITIATED_TIME = "FIRST_START_INITIATED_TIME";//old flag need to support old settings
     private static final String CAMPAIGN_MEDIA_CODE_DEFINED_MESSAGE = "com.Webtrekk.CampainMediaMessage";
-    private static final String CAMPAIGN_PROCESS_FINISHED = "CAMPAIGN_PROCESS_FINISHED";
     private static final long CAMPAIGN_ANALYZE_TIMEOUT = 60000;
     private static final long CAMPAIGN_ANALYZE_PERIOD = 20000;
 
@@ -300,7 +300,7 @@ public class Campaign extends Thread
      */
     private String requestMediaCode(String advID, String clickID, String userAgent)
     {
-        RequestProcessor requestProcessor = new RequestProcessor(null, mValidator);
+        RequestProcessor requestProcessor = new RequestProcessor((RequestUrlStore) null, mValidator);
 
         final TrackingParameter tp = new TrackingParameter();
 
@@ -386,16 +386,9 @@ public class Campaign extends Thread
      */
     private void SaveCodeAndAdID(String mediaCode, String advertizingID, boolean isOptOut)
     {
-        SharedPreferences.Editor editor = HelperFunctions.getWebTrekkSharedPreference(mContext).edit();
-
         WebtrekkLogging.log("Campain data is saved mediaCode:" + mediaCode + " advertizingID:" + advertizingID + " isOptOut:" + isOptOut);
 
-        if (mediaCode != null)
-            editor.putString(MEDIA_CODE, mediaCode);
-        if (advertizingID != null)
-            editor.putString(ADV_ID, advertizingID);
-        editor.putBoolean(OPT_OUT, isOptOut);
-        editor.apply();
+        StateStore.getInstance(mContext).setCampaignData(mediaCode, advertizingID, isOptOut);
     }
 
     /**
@@ -410,8 +403,7 @@ public class Campaign extends Thread
 
     private void finishProcessCampaign(@NonNull Context context){
         getFirstStartInitiated(context, true);
-        SharedPreferences.Editor editor = HelperFunctions.getWebTrekkSharedPreference(context).edit();
-        editor.putBoolean(Campaign.CAMPAIGN_PROCESS_FINISHED, true).apply();
+        StateStore.getInstance(context).setCampaignProcessFinished();
     }
 
     /**
@@ -421,8 +413,7 @@ public class Campaign extends Thread
      * @return true if campaign processing is finished
      */
     static public boolean isCampaignProcessingFinished(@NonNull Context context){
-        SharedPreferences preferences = HelperFunctions.getWebTrekkSharedPreference(context);
-        return preferences.getBoolean(Campaign.CAMPAIGN_PROCESS_FINISHED, false);
+        return StateStore.getInstance(context).isCampaignProcessFinished();
     }
 
     /**
@@ -461,35 +452,17 @@ public class Campaign extends Thread
 
     public static String getAdvId(@NonNull Context context)
     {
-        return getAndRemoveInstallSpecificCode(context, ADV_ID, false);
+        return StateStore.getInstance(context).getAdvId();
     }
 
     public static String getMediaCode(@NonNull Context context)
     {
-        return getAndRemoveInstallSpecificCode(context, MEDIA_CODE, true);
+        return StateStore.getInstance(context).getMediaCode(true);
     }
 
     public static boolean getOptOut(@NonNull Context context)
     {
-        SharedPreferences preferences = HelperFunctions.getWebTrekkSharedPreference(context);
-        return preferences.getBoolean(OPT_OUT, false);
-    }
-
-    /**
-     * help funtion that get information from setting and optionally remove it
-     * @param context
-     * @param key
-     * @param remove
-     * @return
-     */
-    static private String getAndRemoveInstallSpecificCode(@NonNull Context context, @NonNull String key, boolean remove)
-    {
-        String value;
-        SharedPreferences preferences = HelperFunctions.getWebTrekkSharedPreference(context);
-        value = preferences.getString(key, null);
-        if (value != null && remove)
-            preferences.edit().remove(key).apply();
-        return value;
+        return StateStore.getInstance(context).getOptOut();
     }
 
     /**
@@ -0,0 +1,325 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Modules;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+
+import com.webtrekk.webtrekksdk.Utils.WebtrekkLogging;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fixed size memory mapped file for fatal exceptions. File is allocated and mapped during init, so
+ * saving of exception doesn't open files or create streams and it works even if there is no free memory.
+ * Each record is [state][name][message][cause message][stack][cause stack], where every field is
+ * short length (-1 for null) and UTF-8 bytes. State is set after record is completely written.
+ */
+class CrashBuffer {
+    static final String FILE_NAME = "wt-crash-buffer";
+    static final int BUFFER_SIZE = 16 * 1024;
+    static final int FIELDS_NUMBER = 5;
+
+    private static final int MAGIC = 0x57544342;
+    private static final int HEADER_SIZE = 4;
+    private static final byte RECORD_NONE = 0;
+    private static final byte RECORD_SAVED = 1;
+    private static final char LINE_SEPARATOR = '|';
+
+    private MappedByteBuffer mBuffer;
+    private int mWriteOffset = HEADER_SIZE;
+
+    /**
+     * allocate and map crash file. Should be called before any save or read
+     * @param processSuffix suffix of file name, each process has own buffer in multi process mode, because
+     *                      records are written to mapped file without locks
+     * @return true if buffer can be used
+     */
+    boolean open(@NonNull Context context, @NonNull String processSuffix){
+        RandomAccessFile file = null;
+
+        try {
+            file = new RandomAccessFile(new File(context.getFilesDir(), FILE_NAME + processSuffix), "rw");
+            final boolean isNew = file.length() != BUFFER_SIZE;
+
+            if (isNew) {
+                file.setLength(BUFFER_SIZE);
+            }
+
+            mBuffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, BUFFER_SIZE);
+
+            if (isNew || mBuffer.getInt(0) != MAGIC){
+                mBuffer.putInt(0, MAGIC);
+                clear();
+            } else {
+                mWriteOffset = findEnd();
+            }
+            return true;
+        } catch (IOException e) {
+            WebtrekkLogging.log("Can't allocate crash buffer file:" + e);
+            mBuffer = null;
+            return false;
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    WebtrekkLogging.log("Can't close crash buffer file:" + e);
+                }
+            }
+        }
+    }
+
+    boolean isOpened(){
+        return mBuffer != null;
+    }
+
+    /**
+     * Saves exception to buffer. Doesn't allocate anything except stack trace copy.
+     * @param maxFieldLength maximum characters number of each field
+     * @return false if there is no space for exception
+     */
+    synchronized boolean save(@NonNull Throwable ex, int maxFieldLength){
+        if (mBuffer == null || mWriteOffset + 1 + FIELDS_NUMBER * 2 > BUFFER_SIZE){
+            return false;
+        }
+
+        final Throwable cause = ex.getCause();
+        final int recordStart = mWriteOffset;
+
+        mBuffer.position(recordStart);
+        mBuffer.put(RECORD_NONE);
+        //limit keeps space for length of next fields
+        mBuffer.limit(BUFFER_SIZE - 8);
+        putString(ex.getClass().getName(), maxFieldLength);
+        mBuffer.limit(BUFFER_SIZE - 6);
+        putString(ex.getMessage(), maxFieldLength);
+        mBuffer.limit(BUFFER_SIZE - 4);
+        putString(cause == null ? null : cause.getMessage(), maxFieldLength);
+        mBuffer.limit(BUFFER_SIZE - 2);
+        putStack(ex.getStackTrace(), maxFieldLength);
+        mBuffer.limit(BUFFER_SIZE);
+        putStack(cause == null ? null : cause.getStackTrace(), maxFieldLength);
+
+        mWriteOffset = mBuffer.position();
+        if (mWriteOffset < BUFFER_SIZE) {
+            mBuffer.put(mWriteOffset, RECORD_NONE);
+        }
+        mBuffer.put(recordStart, RECORD_SAVED);
+        mBuffer.force();
+        return true;
+    }
+
+    /**
+     * @return fields of all saved exceptions. Null values are kept as null
+     */
+    synchronized List<String[]> read(){
+        final List<String[]> records = new ArrayList<>();
+
+        if (mBuffer == null){
+            return records;
+        }
+
+        mBuffer.position(HEADER_SIZE);
+
+        try {
+            while (mBuffer.remaining() > 0 && mBuffer.get() == RECORD_SAVED) {
+                String[] fields = new String[FIELDS_NUMBER];
+                for (int i = 0; i < FIELDS_NUMBER; i++) {
+                    fields[i] = getString();
+                }
+                records.add(fields);
+            }
+        } catch (BufferUnderflowException e) {
+            WebtrekkLogging.log("Crash buffer is corrupted:" + e);
+        } catch (IllegalArgumentException e) {
+            WebtrekkLogging.log("Crash buffer is corrupted:" + e);
+        } catch (UnsupportedEncodingException e) {
+            WebtrekkLogging.log("Can't decode crash buffer:" + e);
+        }
+
+        return records;
+    }
+
+    /**
+     * remove all saved exceptions
+     */
+    synchronized void clear(){
+        if (mBuffer == null){
+            return;
+        }
+
+        mWriteOffset = HEADER_SIZE;
+        mBuffer.put(HEADER_SIZE, RECORD_NONE);
+        mBuffer.force();
+    }
+
+    private int findEnd(){
+        mBuffer.position(HEADER_SIZE);
+
+        try {
+            while (mBuffer.remaining() > 0 && mBuffer.get(mBuffer.position()) == RECORD_SAVED) {
+                mBuffer.get();
+                for (int i = 0; i < FIELDS_NUMBER; i++) {
+                    final short length = mBuffer.getShort();
+                    if (length > 0) {
+                        mBuffer.position(mBuffer.position() + length);
+                    }
+                }
+            }
+            return mBuffer.position();
+        } catch (BufferUnderflowException e) {
+            WebtrekkLogging.log("Crash buffer is corrupted:" + e);
+            return BUFFER_SIZE;
+        } catch (IllegalArgumentException e) {
+            WebtrekkLogging.log("Crash buffer is corrupted:" + e);
+            return BUFFER_SIZE;
+        }
+    }
+
+    private String getString() throws UnsupportedEncodingException {
+        final short length = mBuffer.getShort();
+
+        if (length < 0){
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        mBuffer.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private void putString(String value, int maxLength){
+        final int lengthPosition = mBuffer.position();
+
+        if (mBuffer.remaining() < 2){
+            return;
+        }
+
+        mBuffer.putShort((short)-1);
+        if (value == null){
+            return;
+        }
+
+        final int start = mBuffer.position();
+        putChars(value, Math.min(value.length(), maxLength));
+        mBuffer.putShort(lengthPosition, (short)(mBuffer.position() - start));
+    }
+
+    /**
+     * writes stack in the same format as {@link ExceptionHandler} does. Frames are separated by '|'.
+     * Frame is written together with its separator and only if both fit to maxLength and buffer completely.
+     */
+    private void putStack(StackTraceElement[] stack, int maxLength){
+        final int lengthPosition = mBuffer.position();
+
+        if (mBuffer.remaining() < 2){
+            return;
+        }
+
+        mBuffer.putShort((short)-1);
+        if (stack == null){
+            return;
+        }
+
+        final int start = mBuffer.position();
+        int written = 0;
+
+        for (StackTraceElement element: stack){
+            final String className = element.getClassName();
+            final String methodName = element.getMethodName();
+            final String fileName = String.valueOf(element.getFileName());
+            final int lineNumber = (className.contains("android.app.") || className.contains("java.lang.")) ? -1 : element.getLineNumber();
+
+            int frameLength = className.length() + methodName.length() + fileName.length() + 3;
+            if (lineNumber >= 0){
+                frameLength += 1 + digitsNumber(lineNumber);
+            }
+            final int separatorLength = written > 0 ? 1 : 0;
+
+            if (written + separatorLength + frameLength > maxLength || mBuffer.remaining() < separatorLength + frameLength * 3){
+                break;
+            }
+
+            if (separatorLength > 0){
+                mBuffer.put((byte)LINE_SEPARATOR);
+            }
+            putChars(className, className.length());
+            mBuffer.put((byte)'.');
+            putChars(methodName, methodName.length());
+            mBuffer.put((byte)'(');
+            putChars(fileName, fileName.length());
+            if (lineNumber >= 0){
+                mBuffer.put((byte)':');
+                putNumber(lineNumber);
+            }
+            mBuffer.put((byte)')');
+            written += separatorLength + frameLength;
+        }
+
+        mBuffer.putShort(lengthPosition, (short)(mBuffer.position() - start));
+    }
+
+    private void putChars(String value, int length){
+        for (int i = 0; i < length; i++){
+            final char c = value.charAt(i);
+
+            if (c < 0x80){
+                if (mBuffer.remaining() < 1) return;
+                mBuffer.put((byte)c);
+            } else if (c < 0x800){
+                if (mBuffer.remaining() < 2) return;
+                mBuffer.put((byte)(0xC0 | (c >> 6)));
+                mBuffer.put((byte)(0x80 | (c & 0x3F)));
+            } else {
+                if (mBuffer.remaining() < 3) return;
+                mBuffer.put((byte)(0xE0 | (c >> 12)));
+                mBuffer.put((byte)(0x80 | ((c >> 6) & 0x3F)));
+                mBuffer.put((byte)(0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private void putNumber(int value){
+        int divider = 1;
+        while (value / divider >= 10){
+            divider *= 10;
+        }
+
+        while (divider > 0){
+            mBuffer.put((byte)('0' + value / divider % 10));
+            divider /= 10;
+        }
+    }
+
+    private static int digitsNumber(int value){
+        int digits = 1;
+        while (value >= 10){
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Modules;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aggregates repeated not fatal exceptions. Exceptions are identified by fingerprint (type, name
+ * and top stack frames). First exception in window is tracked immediately, next ones are only counted
+ * and reported with one event when window is over. Number of events per fingerprint is limited per hour.
+ * Class isn't thread safe, access is synchronized by {@link ExceptionHandler}.
+ */
+class ExceptionAggregator {
+    static final int FINGERPRINT_FRAMES = 5;
+    static final long WINDOW_MILLISECONDS = 60 * 1000;
+    static final long RATE_PERIOD_MILLISECONDS = 60 * 60 * 1000;
+    static final int MAX_EVENTS_PER_PERIOD = 10;
+    static final int MAX_FINGERPRINTS = 100;
+
+    /**
+     * Aggregated occurrences of one fingerprint
+     */
+    static class Entry {
+        int mType;
+        String mName;
+        String mMessage;
+        String mCauseMessage;
+        String mStack;
+        String mCauseStack;
+
+        //occurrences that aren't reported yet
+        int mCount;
+        long mFirstTime;
+        long mLastTime;
+
+        long mWindowStart;
+        long mPeriodStart;
+        int mPeriodEvents;
+        boolean mHasFields;
+
+        /**
+         * set values that are tracked with event
+         */
+        void setFields(int type, String name, String message, String causeMessage, String stack, String causeStack){
+            mType = type;
+            mName = name;
+            mMessage = message;
+            mCauseMessage = causeMessage;
+            mStack = stack;
+            mCauseStack = causeStack;
+            mHasFields = true;
+        }
+    }
+
+    /**
+     * Values of one event to track. Fields of entry are copied, so event can be tracked without lock
+     * while entry is changed by next exceptions.
+     */
+    static class Event {
+        final Entry mEntry;
+        final int mCount;
+        final long mFirstTime;
+        final long mLastTime;
+
+        int mType;
+        String mName;
+        String mMessage;
+        String mCauseMessage;
+        String mStack;
+        String mCauseStack;
+
+        Event(Entry entry, int count, long firstTime, long lastTime){
+            mEntry = entry;
+            mCount = count;
+            mFirstTime = firstTime;
+            mLastTime = lastTime;
+            copyFields();
+        }
+
+        /**
+         * set values of entry and of this event from current exception
+         */
+        void setFields(int type, String name, String message, String causeMessage, String stack, String causeStack){
+            mEntry.setFields(type, name, message, causeMessage, stack, causeStack);
+            copyFields();
+        }
+
+        private void copyFields(){
+            mType = mEntry.mType;
+            mName = mEntry.mName;
+            mMessage = mEntry.mMessage;
+            mCauseMessage = mEntry.mCauseMessage;
+            mStack = mEntry.mStack;
+            mCauseStack = mEntry.mCauseStack;
+        }
+    }
+
+    //events of evicted fingerprints that aren't tracked yet
+    private final List<Event> mEvictedEvents = new ArrayList<>();
+    //time of current add() or flush(), is used for events of evicted fingerprints
+    private long mNow;
+
+    private final Map<Long, Entry> mEntries = new LinkedHashMap<Long, Entry>(16, 0.75f, true){
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+            if (size() <= MAX_FINGERPRINTS) {
+                return false;
+            }
+
+            final Entry entry = eldest.getValue();
+            //occurrences of evicted fingerprint are reported, otherwise they are lost
+            if (entry.mCount > 0 && entry.mHasFields && isRateAllowed(entry, mNow)) {
+                mEvictedEvents.add(createEvent(entry, mNow));
+            }
+            return true;
+        }
+    };
+
+    /**
+     * Count exception occurrence.
+     * @return event that should be tracked now or null if occurrence is just counted. Caller should
+     * set fields of event from current exception with {@link Event#setFields}.
+     */
+    @Nullable
+    Event add(long fingerprint, long now){
+        mNow = now;
+        Entry entry = mEntries.get(fingerprint);
+
+        if (entry == null){
+            entry = new Entry();
+            entry.mWindowStart = -WINDOW_MILLISECONDS;
+            entry.mPeriodStart = now;
+            mEntries.put(fingerprint, entry);
+        }
+
+        if (entry.mCount == 0){
+            entry.mFirstTime = now;
+        }
+        entry.mCount++;
+        entry.mLastTime = now;
+
+        return isEventAllowed(entry, now) ? createEvent(entry, now) : null;
+    }
+
+    /**
+     * @param force if true ignore time window. Is used when application goes to background.
+     * @return events for fingerprints that have not reported occurrences
+     */
+    @NonNull
+    List<Event> flush(long now, boolean force){
+        List<Event> events = takeEvicted();
+        Iterator<Entry> iterator = mEntries.values().iterator();
+
+        while (iterator.hasNext()){
+            Entry entry = iterator.next();
+
+            if (entry.mCount == 0){
+                if (now - entry.mWindowStart >= RATE_PERIOD_MILLISECONDS) {
+                    //nothing happens for a long time, forget fingerprint
+                    iterator.remove();
+                }
+                continue;
+            }
+
+            if (entry.mHasFields && (force || now - entry.mWindowStart >= WINDOW_MILLISECONDS)
+                    && isRateAllowed(entry, now)){
+                events.add(createEvent(entry, now));
+            }
+        }
+
+        return events;
+    }
+
+    /**
+     * @return events of fingerprints that are evicted by {@link #add(long, long)} because of
+     * {@link #MAX_FINGERPRINTS} limit
+     */
+    @NonNull
+    List<Event> takeEvicted(){
+        final List<Event> events = new ArrayList<>(mEvictedEvents);
+        mEvictedEvents.clear();
+        return events;
+    }
+
+    /**
+     * @return time when {@link #flush(long, boolean)} reports not reported occurrences, Long.MAX_VALUE
+     * if there are no such occurrences
+     */
+    long getNextFlushTime(){
+        long flushTime = Long.MAX_VALUE;
+
+        for (Entry entry : mEntries.values()){
+            if (entry.mCount == 0 || !entry.mHasFields){
+                continue;
+            }
+
+            long entryTime = entry.mWindowStart + WINDOW_MILLISECONDS;
+            if (entry.mPeriodEvents >= MAX_EVENTS_PER_PERIOD){
+                entryTime = Math.max(entryTime, entry.mPeriodStart + RATE_PERIOD_MILLISECONDS);
+            }
+            flushTime = Math.min(flushTime, entryTime);
+        }
+
+        return flushTime;
+    }
+
+    private boolean isEventAllowed(Entry entry, long now){
+        return now - entry.mWindowStart >= WINDOW_MILLISECONDS && isRateAllowed(entry, now);
+    }
+
+    private boolean isRateAllowed(Entry entry, long now){
+        if (now - entry.mPeriodStart >= RATE_PERIOD_MILLISECONDS){
+            entry.mPeriodStart = now;
+            entry.mPeriodEvents = 0;
+        }
+
+        return entry.mPeriodEvents < MAX_EVENTS_PER_PERIOD;
+    }
+
+    private Event createEvent(Entry entry, long now){
+        Event event = new Event(entry, entry.mCount, entry.mFirstTime, entry.mLastTime);
+
+        entry.mCount = 0;
+        entry.mWindowStart = now;
+        entry.mPeriodEvents++;
+        return event;
+    }
+
+    /**
+     * fingerprint of exception based on exception type, name and top stack frames
+     */
+    static long getFingerprint(int type, @NonNull String name, @Nullable StackTraceElement[] stack){
+        long hash = mix(type, name.hashCode());
+
+        if (stack != null){
+            final int frames = Math.min(stack.length, FINGERPRINT_FRAMES);
+            for (int i = 0; i < frames; i++){
+                final StackTraceElement element = stack[i];
+                hash = mix(hash, element.getClassName().hashCode());
+                hash = mix(hash, element.getMethodName().hashCode());
+                hash = mix(hash, element.getLineNumber());
+            }
+        }
+
+        return hash;
+    }
+
+    /**
+     * fingerprint of info message based on name and message
+     */
+    static long getFingerprint(int type, @NonNull String name, @Nullable String message){
+        long hash = mix(type, name.hashCode());
+        return mix(hash, message == null ? 0 : message.hashCode());
+    }
+
+    private static long mix(long hash, int value){
+        hash = (hash ^ value) * 0x100000001B3L;
+        return hash ^ (hash >>> 29);
+    }
+}
@@ -19,6 +19,8 @@
 package com.webtrekk.webtrekksdk.Modules;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 
 import com.webtrekk.webtrekksdk.Request.RequestFactory;
 import com.webtrekk.webtrekksdk.Request.TrackingRequest;
@@ -34,6 +36,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.List;
 
 /**
  * Class is required to handle exception
@@ -48,6 +51,25 @@ public class ExceptionHandler implements Thread.UncaughtExceptionHandler
     private static final String START_EX_STRING = "wte_start";
     private static final String END_EX_STRING = "wte_end";
     private static final String EX_LINE_SEPARATOR = "|";
+    private final CrashBuffer mCrashBuffer = new CrashBuffer();
+    private final ExceptionAggregator mAggregator = new ExceptionAggregator();
+    private Handler mFlushHandler;
+    private long mScheduledFlushTime = Long.MAX_VALUE;
+    //reports aggregated occurrences when their window is over, even if no other exception comes
+    private final Runnable mFlushAction = new Runnable() {
+        @Override
+        public void run() {
+            final List<ExceptionAggregator.Event> events;
+
+            synchronized (mAggregator) {
+                mScheduledFlushTime = Long.MAX_VALUE;
+                final long now = System.currentTimeMillis();
+                events = mAggregator.flush(now, false);
+                scheduleFlush(now);
+            }
+            trackEvents(events);
+        }
+    };
 
     enum Type
     {
@@ -68,10 +90,12 @@ public class ExceptionHandler implements Thread.UncaughtExceptionHandler
     {
         mRequestFactory = requestFactory;
         mContext = context;
+        mFlushHandler = new Handler(Looper.getMainLooper());
 
         if (isLevelAllowed(Type.FATAL)) {
             mOldHandler = Thread.getDefaultUncaughtExceptionHandler();
             Thread.setDefaultUncaughtExceptionHandler(this);
+            mCrashBuffer.open(context, requestFactory.getProcessSuffix());
             loadAndTrack();
         }
     }
@@ -80,7 +104,10 @@ public class ExceptionHandler implements Thread.UncaughtExceptionHandler
     public void uncaughtException(Thread thread, Throwable ex)
     {
         WebtrekkLogging.log("caught uncatched exception");
-        save(ex);
+        //use pre-allocated buffer, file is used only if buffer isn't available or full
+        if (ex == null || !mCrashBuffer.save(ex, MAX_PARAMETER_NUMBER)) {
+            save(ex);
+        }
 
        if (mOldHandler != null)
            mOldHandler.uncaughtException(thread, ex);
@@ -101,9 +128,29 @@ public class ExceptionHandler implements Thread.UncaughtExceptionHandler
             return;
         }
 
-        track(Type.CATCHED.ordinal(), getExceptionName(ex), getExceptionMessage(ex), getExceptionMessage(ex.getCause()),
-                ex.getStackTrace() == null ? null : getExceptionStackString(ex.getStackTrace(), EX_LINE_SEPARATOR),
-                ex.getCause() == null ? null : getExceptionStackString(ex.getCause().getStackTrace(), EX_LINE_SEPARATOR));
+        final long now = System.currentTimeMillis();
+        final StackTraceElement[] stack = ex.getStackTrace();
+
+        //events are copied with lock and tracked after it, so other threads don't wait for request creation
+        final List<ExceptionAggregator.Event> events;
+
+        synchronized (mAggregator) {
+            events = mAggregator.flush(now, false);
+            ExceptionAggregator.Event event = mAggregator.add(ExceptionAggregator.getFingerprint(Type.CATCHED.ordinal(),
+                    getExceptionName(ex), stack), now);
+
+            events.addAll(mAggregator.takeEvicted());
+            if (event == null) {
+                WebtrekkLogging.log("Exception " + getExceptionName(ex) + " is aggregated");
+                scheduleFlush(now);
+            } else {
+                event.setFields(Type.CATCHED.ordinal(), getExceptionName(ex), getExceptionMessage(ex), getExceptionMessage(ex.getCause()),
+                        stack == null ? null : getExceptionStackString(stack, EX_LINE_SEPARATOR),
+                        ex.getCause() == null ? null : getExceptionStackString(ex.getCause().getStackTrace(), EX_LINE_SEPARATOR));
+                events.add(event);
+            }
+        }
+        trackEvents(events);
     }
 
     /**
@@ -116,7 +163,70 @@ public class ExceptionHandler implements Thread.UncaughtExceptionHandler
         if (!isLevelAllowed(Type.INFO))
             return;
 
-        track(Type.INFO.ordinal(), name, message, null, null, null);
+        if (name == null) {
+            track(Type.INFO.ordinal(), name, message, null, null, null, null);
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+
+        final List<ExceptionAggregator.Event> events;
+
+        synchronized (mAggregator) {
+            events = mAggregator.flush(now, false);
+            ExceptionAggregator.Event event = mAggregator.add(ExceptionAggregator.getFingerprint(Type.INFO.ordinal(),
+                    name, message), now);
+
+            events.addAll(mAggregator.takeEvicted());
+            if (event == null) {
+                WebtrekkLogging.log("Exception info " + name + " is aggregated");
+                scheduleFlush(now);
+            } else {
+                event.setFields(Type.INFO.ordinal(), name, message, null, null, null);
+                events.add(event);
+            }
+        }
+        trackEvents(events);
+    }
+
+    /**
+     * track aggregated exceptions that aren't reported yet. Is called when application goes to background
+     * or is closed.
+     */
+    public void flush()
+    {
+        final List<ExceptionAggregator.Event> events;
+
+        synchronized (mAggregator) {
+            events = mAggregator.flush(System.currentTimeMillis(), true);
+        }
+        trackEvents(events);
+    }
+
+    /**
+     * track events that are taken from aggregator. Is called without mAggregator lock.
+     */
+    private void trackEvents(List<ExceptionAggregator.Event> events)
+    {
+        for (ExceptionAggregator.Event event: events) {
+            track(event.mType, event.mName, event.mMessage, event.mCauseMessage, event.mStack, event.mCauseStack, event);
+        }
+    }
+
+    /**
+     * schedule tracking of aggregated occurrences when the nearest window is over. Is called with mAggregator lock.
+     */
+    private void scheduleFlush(long now)
+    {
+        final long flushTime = mAggregator.getNextFlushTime();
+
+        if (mFlushHandler == null || flushTime >= mScheduledFlushTime) {
+            return;
+        }
+
+        mScheduledFlushTime = flushTime;
+        mFlushHandler.removeCallbacks(mFlushAction);
+        mFlushHandler.postDelayed(mFlushAction, Math.max(0, flushTime - now));
     }
 
     /**
@@ -126,8 +236,10 @@ public class ExceptionHandler implements Thread.UncaughtExceptionHandler
      * @param message of exception can be null
      * @param stack of exception can be null
      * @param causeStack of cause stack of exception can be null
+     * @param event aggregated event, count and time of occurrences are added if there are more then one
      */
-    private void track(int type, String name, String message, String causeMessage, String stack, String causeStack)
+    private void track(int type, String name, String message, String causeMessage, String stack, String causeStack,
+                       ExceptionAggregator.Event event)
     {
         TrackingParameter trackingParameter = new TrackingParameter();
 
@@ -153,11 +265,38 @@ public class ExceptionHandler implements Thread.UncaughtExceptionHandler
         if (causeStack != null)
           trackingParameter.add(Parameter.ACTION, "915", normalizeField(causeStack));
 
-        TrackingRequest request = new TrackingRequest(trackingParameter, mRequestFactory.getTrackingConfiguration(), TrackingRequest.RequestType.ECXEPTION);
+        if (event != null && event.mCount > 1) {
+            trackingParameter.add(Parameter.ACTION, "916", String.valueOf(event.mCount));
+            trackingParameter.add(Parameter.ACTION, "917", String.valueOf(event.mFirstTime));
+            trackingParameter.add(Parameter.ACTION, "918", String.valueOf(event.mLastTime));
+        }
+
+        TrackingRequest request = new TrackingRequest(trackingParameter, mRequestFactory.getConfigurationHolder().getSnapshot(), TrackingRequest.RequestType.ECXEPTION);
         mRequestFactory.addRequest(request);
      }
 
     private void loadAndTrack()
+    {
+        loadAndTrackFile();
+
+        final List<String[]> records = mCrashBuffer.read();
+
+        for (String[] record: records){
+            track(Type.FATAL.ordinal(), record[0], emptyToNull(record[1]), emptyToNull(record[2]),
+                    emptyToNull(record[3]), emptyToNull(record[4]), null);
+        }
+
+        if (!records.isEmpty()) {
+            mCrashBuffer.clear();
+        }
+    }
+
+    private String emptyToNull(String value)
+    {
+        return value == null || value.isEmpty() ? null : value;
+    }
+
+    private void loadAndTrackFile()
     {
         String fileName = getFileName(false);
         File loadFile = new File(fileName);
@@ -178,7 +317,7 @@ public class ExceptionHandler implements Thread.UncaughtExceptionHandler
 
                     track(Type.FATAL.ordinal(), exReader.getName(), exReader.getMessage(),
                             exReader.getCauseMessage(), exReader.getStack(),
-                            exReader.getCauseStack());
+                            exReader.getCauseStack(), null);
                 }
             }catch (IncorrectErrorFileFormatException e)
             {
@@ -25,6 +25,7 @@ import android.support.annotation.NonNull;
 
 import com.webtrekk.webtrekksdk.ProductParameterBuilder;
 import com.webtrekk.webtrekksdk.TrackingParameter;
+import com.webtrekk.webtrekksdk.Utils.Crc32c;
 import com.webtrekk.webtrekksdk.Utils.HelperFunctions;
 import com.webtrekk.webtrekksdk.Utils.WebtrekkLogging;
 
@@ -32,12 +33,29 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.HashMap;
 import java.util.Map;
 
 /**
  * Maintain product position and product add order.
- * Database or products is based on the follow JSON:
+ * Database of products is append only journal file: [int magic][int version][record]...
+ * Each record is delta for one product field, it is framed like records of request file:
+ * [int payload length][int CRC32C of payload][byte field type][int value][UTF-8 product id]
+ * Journal is replayed in {@link #load()} and compacted to one record per defined field when it
+ * grows much bigger then number of products. So adding product costs one small append and not full rewrite.
+ * Only tail of journal can be broken (e.g. process is killed during append), so journal is truncated
+ * at the first incomplete or corrupted record and next appends follow the last valid one.
+ * Previous versions saved products as JSON in shared preferences, this JSON is migrated on first load:
  [
   {
  "id": "productId1",
@@ -52,13 +70,30 @@ import java.util.Map;
 public class ProductListOrderSaver {
 
     private final static String PRODUCTS_ORDER_LIST = "PRODUCTS_ORDER_LIST";
+    private final static String JOURNAL_FILE_NAME = "wt-product-order-journal";
     private final static String JSON_ID_FIELD = "id";
     private final static String JSON_ADD_ORDER_FIELD = "add_order";
     private final static String JSON_PFIRST_FIELD = "p_first";
     private final static String JSON_PLAST_FIELD = "p_last";
+    private final static byte RECORD_ADD_ORDER = 1;
+    private final static byte RECORD_PFIRST = 2;
+    private final static byte RECORD_PLAST = 3;
+    private final static int JOURNAL_MAGIC = 0x5754504F;
+    private final static int JOURNAL_VERSION = 1;
+    private final static int JOURNAL_HEADER_SIZE = 8;
+    private final static int RECORD_HEADER_SIZE = 8;
+    // field type and value
+    private final static int RECORD_MIN_PAYLOAD = 5;
+    private final static int RECORD_MAX_PAYLOAD = 64 * 1024;
+    // compact journal if it has more records then this minimum and factor * products number
+    private final static int COMPACT_MIN_RECORDS = 500;
+    private final static int COMPACT_FACTOR = 4;
     public final static int NOT_DEFINED_ORDER = Integer.MAX_VALUE;
     private int mProductCurrentAddPosition;
+    private int mJournalRecords;
     final Context mContext;
+    final private File mJournalFile;
+    final private Crc32c mCrc = new Crc32c();
 
     private Map<String, ProductOrderProperties> mProducts = new HashMap<>();
 
@@ -99,88 +134,308 @@ public class ProductListOrderSaver {
 
     }
 
+    /**
+     * journal writer. Records are buffered and written to file with one append on {@link #close()}.
+     * If append fails, journal is truncated to its length before append, so partial record isn't left in it.
+     */
+    private class JournalWriter {
+        private DataOutputStream mStream;
+        private long mAppendStart;
+        private boolean mFailed;
+
+        void write(byte type, int value, @NonNull String productId) throws IOException {
+            try {
+                if (mStream == null){
+                    mAppendStart = mJournalFile.length();
+                    if (mAppendStart < JOURNAL_HEADER_SIZE) {
+                        // new journal, incomplete header is replaced
+                        mAppendStart = 0;
+                        mStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mJournalFile, false)));
+                        writeHeader(mStream);
+                    } else {
+                        mStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mJournalFile, true)));
+                    }
+                }
+                writeRecord(mStream, type, value, productId);
+                mJournalRecords++;
+            } catch (IOException e) {
+                mFailed = true;
+                throw e;
+            }
+        }
+
+        void close(){
+            if (mStream != null){
+                try {
+                    mStream.close();
+                } catch (IOException e) {
+                    WebtrekkLogging.log("Can't save product list order journal:" + e.getLocalizedMessage());
+                    mFailed = true;
+                }
+                mStream = null;
+            }
+
+            if (mFailed) {
+                truncateJournal(mAppendStart);
+            }
+        }
+    }
+
     public ProductListOrderSaver(@NonNull Context context){
+        this(context, "");
+    }
+
+    /**
+     * @param processSuffix suffix of journal file name. Journal is appended without locks, so each process has
+     *                      own journal in multi process mode
+     */
+    public ProductListOrderSaver(@NonNull Context context, @NonNull String processSuffix){
         mContext = context;
+        mJournalFile = new File(context.getFilesDir(), JOURNAL_FILE_NAME + processSuffix);
     }
 
     public void load(){
+        mProducts.clear();
+        mProductCurrentAddPosition = 0;
+        mJournalRecords = 0;
+
+        if (migrateFromPreferences()){
+            return;
+        }
+
+        if (!mJournalFile.exists()){
+            return;
+        }
+
+        final long journalLength = mJournalFile.length();
+        long validEnd = 0;
+        DataInputStream stream = null;
+        try {
+            stream = new DataInputStream(new BufferedInputStream(new FileInputStream(mJournalFile)));
+
+            if (journalLength < JOURNAL_HEADER_SIZE || stream.readInt() != JOURNAL_MAGIC
+                    || stream.readInt() != JOURNAL_VERSION) {
+                WebtrekkLogging.log(WebtrekkLogging.WARN, "Product list order journal {} has unknown format, it is removed",
+                        mJournalFile.getName());
+                closeStream(stream);
+                stream = null;
+                mJournalFile.delete();
+                return;
+            }
+
+            validEnd = JOURNAL_HEADER_SIZE;
+            while (journalLength - validEnd >= RECORD_HEADER_SIZE) {
+                final int length = stream.readInt();
+                final int crc = stream.readInt();
+
+                if (length < RECORD_MIN_PAYLOAD || length > RECORD_MAX_PAYLOAD
+                        || length > journalLength - validEnd - RECORD_HEADER_SIZE) {
+                    break;
+                }
+
+                final byte[] payload = new byte[length];
+                stream.readFully(payload);
+                mCrc.reset();
+                mCrc.update(payload, 0, length);
+                if ((int) mCrc.getValue() != crc) {
+                    break;
+                }
+
+                final int value = (payload[1] & 0xFF) << 24 | (payload[2] & 0xFF) << 16 | (payload[3] & 0xFF) << 8 | (payload[4] & 0xFF);
+                applyRecord(payload[0], value, new String(payload, RECORD_MIN_PAYLOAD, length - RECORD_MIN_PAYLOAD, "UTF-8"));
+                mJournalRecords++;
+                validEnd += RECORD_HEADER_SIZE + length;
+            }
+        } catch (IOException e) {
+            WebtrekkLogging.log("Can't read product list order journal:" + e.getLocalizedMessage());
+        } finally {
+            closeStream(stream);
+        }
+
+        if (validEnd > 0 && validEnd < journalLength) {
+            // record is incomplete or corrupted, journal is truncated after records that are read before it,
+            // so next appends aren't lost behind it
+            WebtrekkLogging.log(WebtrekkLogging.WARN, "Product list order journal {} is truncated to last valid record, {} bytes are removed",
+                    mJournalFile.getName(), journalLength - validEnd);
+            truncateJournal(validEnd);
+        }
+
+        compactIfRequired();
+    }
+
+    private void applyRecord(byte type, int value, @NonNull String productId){
+        final ProductOrderProperties properties = getActualProperties(productId);
+
+        switch (type){
+            case RECORD_ADD_ORDER:
+                properties.setAddOrder(value);
+                // next added product gets order after the biggest saved one
+                if (value >= mProductCurrentAddPosition && value != NOT_DEFINED_ORDER) {
+                    mProductCurrentAddPosition = value + 1;
+                }
+                break;
+            case RECORD_PFIRST:
+                properties.setPFirst(value);
+                break;
+            case RECORD_PLAST:
+                properties.setPLast(value);
+                break;
+            default:
+                WebtrekkLogging.log("Unknown product list order journal record type:" + type);
+                break;
+        }
+    }
+
+    /**
+     * Move old JSON product order from shared preferences to journal.
+     * @return true if migration is done
+     */
+    private boolean migrateFromPreferences(){
         SharedPreferences preferences = HelperFunctions.getWebTrekkSharedPreference(mContext);
         String json = preferences.getString(PRODUCTS_ORDER_LIST, null);
 
         //exit if there is no shared preferences
         if (json == null){
-            return;
+            return false;
         }
 
         try {
             JSONArray array = new JSONArray(json);
-            mProducts.clear();
-            mProductCurrentAddPosition = 0;
 
             for (int i = 0; i < array.length(); i++){
                 final JSONObject object = array.getJSONObject(i);
-                final ProductOrderProperties properties = new ProductOrderProperties();
-
                 final String id = object.getString(JSON_ID_FIELD);
-                final int addOrder = object.getInt(JSON_ADD_ORDER_FIELD);
 
-                properties.setAddOrder(addOrder);
-                properties.setPFirst(object.getInt(JSON_PFIRST_FIELD));
-                properties.setPLast(object.getInt(JSON_PLAST_FIELD));
-
-                mProducts.put(id, properties);
-
-                if (addOrder > mProductCurrentAddPosition && addOrder != NOT_DEFINED_ORDER) {
-                    mProductCurrentAddPosition = addOrder;
-                }
+                applyRecord(RECORD_ADD_ORDER, object.getInt(JSON_ADD_ORDER_FIELD), id);
+                applyRecord(RECORD_PFIRST, object.getInt(JSON_PFIRST_FIELD), id);
+                applyRecord(RECORD_PLAST, object.getInt(JSON_PLAST_FIELD), id);
             }
         } catch (JSONException e) {
             WebtrekkLogging.log("Incorrect JSON for saved product list order information:" + e.getLocalizedMessage());
         }
+
+        compact();
+        preferences.edit().remove(PRODUCTS_ORDER_LIST).apply();
+        return true;
     }
 
+    /**
+     * rewrite journal with one record per defined product field.
+     */
     public void savePermanent(){
-        final SharedPreferences.Editor editor = HelperFunctions.getWebTrekkSharedPreference(mContext).edit();
-        final JSONArray array = new JSONArray();
+        compact();
+    }
+
+    private void compactIfRequired(){
+        if (mJournalRecords > COMPACT_MIN_RECORDS && mJournalRecords > mProducts.size() * COMPACT_FACTOR){
+            compact();
+        }
+    }
+
+    private void compact(){
+        final File tempFile = new File(mJournalFile.getPath() + ".tmp");
+        DataOutputStream stream = null;
+        int records = 0;
 
         try {
-        for (Map.Entry<String, ProductOrderProperties> item: mProducts.entrySet()){
-            final JSONObject object = new JSONObject();
-            final ProductOrderProperties properties = item.getValue();
+            stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            writeHeader(stream);
+            for (Map.Entry<String, ProductOrderProperties> item: mProducts.entrySet()){
+                final ProductOrderProperties properties = item.getValue();
+                records += writeIfDefined(stream, RECORD_ADD_ORDER, properties.getAddOrder(), item.getKey());
+                records += writeIfDefined(stream, RECORD_PFIRST, properties.getPFirst(), item.getKey());
+                records += writeIfDefined(stream, RECORD_PLAST, properties.getPLast(), item.getKey());
+            }
+            stream.close();
+            stream = null;
 
-            object.put(JSON_ID_FIELD, item.getKey());
-            object.put(JSON_ADD_ORDER_FIELD, properties.getAddOrder());
-            object.put(JSON_PFIRST_FIELD, properties.getPFirst());
-            object.put(JSON_PLAST_FIELD, properties.getPLast());
-            array.put(object);
+            if (tempFile.renameTo(mJournalFile)) {
+                mJournalRecords = records;
+            } else {
+                WebtrekkLogging.log("Can't replace product list order journal with compacted one");
+            }
+        } catch (IOException e) {
+            WebtrekkLogging.log("Can't save product list order journal:" + e.getLocalizedMessage());
+        } finally {
+            closeStream(stream);
         }
+    }
 
-            editor.putString(PRODUCTS_ORDER_LIST, array.toString());
-            editor.apply();
+    private int writeIfDefined(DataOutputStream stream, byte type, int value, String productId) throws IOException {
+        if (value == NOT_DEFINED_ORDER){
+            return 0;
+        }
+        writeRecord(stream, type, value, productId);
+        return 1;
+    }
 
-        } catch (JSONException e) {
-            WebtrekkLogging.log("Can't save JSON for saved product list order information:" + e.getLocalizedMessage());
+    private void writeHeader(DataOutputStream stream) throws IOException {
+        stream.writeInt(JOURNAL_MAGIC);
+        stream.writeInt(JOURNAL_VERSION);
+    }
+
+    private void writeRecord(DataOutputStream stream, byte type, int value, String productId) throws IOException {
+        final byte[] id = productId.getBytes("UTF-8");
+        final byte[] payload = new byte[RECORD_MIN_PAYLOAD + id.length];
+
+        payload[0] = type;
+        payload[1] = (byte) (value >>> 24);
+        payload[2] = (byte) (value >>> 16);
+        payload[3] = (byte) (value >>> 8);
+        payload[4] = (byte) value;
+        System.arraycopy(id, 0, payload, RECORD_MIN_PAYLOAD, id.length);
+
+        if (payload.length > RECORD_MAX_PAYLOAD) {
+            throw new IOException("product id is too long");
+        }
+
+        mCrc.reset();
+        mCrc.update(payload, 0, payload.length);
+        stream.writeInt(payload.length);
+        stream.writeInt((int) mCrc.getValue());
+        stream.write(payload);
+    }
+
+    private void truncateJournal(long length) {
+        RandomAccessFile file = null;
+
+        try {
+            file = new RandomAccessFile(mJournalFile, "rw");
+            file.setLength(length);
+        } catch (IOException e) {
+            WebtrekkLogging.log("Can't truncate product list order journal:" + e.getLocalizedMessage());
+        } finally {
+            closeStream(file);
         }
     }
 
     public void saveProductPositions(@NonNull Map<Integer, TrackingParameter> parametersToTrack){
+        final JournalWriter writer = new JournalWriter();
 
-        for (Map.Entry<Integer, TrackingParameter> parameterEntry: parametersToTrack.entrySet()){
-            final String productId = parameterEntry.getValue().getDefaultParameter().get(TrackingParameter.Parameter.PRODUCT);
+        try {
+            for (Map.Entry<Integer, TrackingParameter> parameterEntry : parametersToTrack.entrySet()) {
+                final String productId = parameterEntry.getValue().getDefaultParameter().get(TrackingParameter.Parameter.PRODUCT);
 
-            if (productId != null) {
-                saveProductPosition(productId, parameterEntry.getKey());
+                if (productId != null) {
+                    saveProductPosition(writer, productId, parameterEntry.getKey());
+                }
             }
+        } catch (IOException e) {
+            WebtrekkLogging.log("Can't save product list order journal:" + e.getLocalizedMessage());
+        } finally {
+            writer.close();
         }
-        savePermanent();
+        compactIfRequired();
     }
 
-    private void saveProductPosition(@NonNull String productId, int position){
+    private void saveProductPosition(@NonNull JournalWriter writer, @NonNull String productId, int position) throws IOException {
         ProductOrderProperties properties = getActualProperties(productId);
         if (properties.getPFirst() == NOT_DEFINED_ORDER){
             properties.setPFirst(position);
-        } else {
+            writer.write(RECORD_PFIRST, position, productId);
+        } else if (properties.getPLast() != position) {
             properties.setPLast(position);
+            writer.write(RECORD_PLAST, position, productId);
         }
     }
 
@@ -189,14 +444,22 @@ public class ProductListOrderSaver {
         final String trackType = parameter.getDefaultParameter().get(TrackingParameter.Parameter.PRODUCT_STATUS);
         if (productId != null && trackType != null &&
                 trackType.equals(ProductParameterBuilder.ActionType.add.toString())){
-            productAdded(productId);
-            savePermanent();
+            final JournalWriter writer = new JournalWriter();
+            try {
+                writer.write(RECORD_ADD_ORDER, productAdded(productId), productId);
+            } catch (IOException e) {
+                WebtrekkLogging.log("Can't save product list order journal:" + e.getLocalizedMessage());
+            } finally {
+                writer.close();
+            }
+            compactIfRequired();
         }
     }
 
-    private void productAdded(@NonNull String productId){
+    private int productAdded(@NonNull String productId){
         ProductOrderProperties properties = getActualProperties(productId);
         properties.setAddOrder(mProductCurrentAddPosition++);
+        return properties.getAddOrder();
     }
 
     public void clear(){
@@ -204,6 +467,10 @@ public class ProductListOrderSaver {
         final SharedPreferences.Editor editor = HelperFunctions.getWebTrekkSharedPreference(mContext).edit();
         editor.remove(PRODUCTS_ORDER_LIST);
         editor.apply();
+        if (mJournalFile.exists() && !mJournalFile.delete()){
+            WebtrekkLogging.log("Can't delete product list order journal");
+        }
+        mJournalRecords = 0;
         mProductCurrentAddPosition = 0;
     }
 
@@ -241,4 +508,14 @@ public class ProductListOrderSaver {
 
         return properties;
     }
+
+    private void closeStream(Closeable stream){
+        if (stream != null){
+            try {
+                stream.close();
+            } catch (IOException e) {
+                WebtrekkLogging.log("Can't close product list order journal:" + e.getLocalizedMessage());
+            }
+        }
+    }
 }
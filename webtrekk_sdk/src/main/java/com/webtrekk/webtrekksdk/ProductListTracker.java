@@ -23,11 +23,15 @@ import android.os.Handler;
 import android.support.annotation.IntRange;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.support.v4.view.ViewCompat;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.StaggeredGridLayoutManager;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
+import android.view.View;
 
+import com.webtrekk.webtrekksdk.Configuration.ConfigurationHolder;
 import com.webtrekk.webtrekksdk.Configuration.TrackingConfiguration;
 import com.webtrekk.webtrekksdk.Modules.ProductListOrderSaver;
 import com.webtrekk.webtrekksdk.Utils.WebtrekkLogging;
@@ -40,6 +44,7 @@ import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
@@ -90,6 +95,10 @@ public class ProductListTracker {
         TrackingParameter getItem(int position);
     }
 
+    //limit of positions that are kept in memory before they are sent. Protects endless lists
+    //from unlimited growth if send() isn't called for a long time
+    static final int MAX_POSITION_ITEMS = 500;
+
     final private SortedMap<Integer, TrackingParameter> mProductPositionItems = new TreeMap<>();
     final private SortedMap<Integer, TrackingParameter> mPendingProductPositionItems = new TreeMap<>();
     final private List<TrackingParameter> mProductItems = new ArrayList<>();
@@ -99,7 +108,20 @@ public class ProductListTracker {
         @Override
         public void run() {
             if (!mPendingProductPositionItems.isEmpty()) {
-                mProductPositionItems.putAll(mPendingProductPositionItems);
+                final int free = MAX_POSITION_ITEMS - mProductPositionItems.size();
+                if (mPendingProductPositionItems.size() > free){
+                    WebtrekkLogging.log("Product position limit is reached. Rest of positions is collected again after send()");
+                    int added = 0;
+                    for (Map.Entry<Integer, TrackingParameter> entry : mPendingProductPositionItems.entrySet()){
+                        if (added++ >= free) {
+                            break;
+                        }
+                        mProductPositionItems.put(entry.getKey(), entry.getValue());
+                    }
+                    //range isn't reset, positions that don't fit are requested from callback after send()
+                } else {
+                    mProductPositionItems.putAll(mPendingProductPositionItems);
+                }
                 WebtrekkLogging.log(mPendingProductPositionItems.size() + " products add to tracking");
                 mPendingProductPositionItems.clear();
             }
@@ -107,13 +129,59 @@ public class ProductListTracker {
     };
 
     private RecyclerView.OnItemTouchListener mOnTouсhEventListener;
-    private final TrackingConfiguration mTrackingConfiguration;
+    private RecyclerView mRegisteredView;
+    private RecyclerView.Adapter mObservedAdapter;
+    //positions of visible range and pending items are outdated when adapter data is changed
+    final private RecyclerView.AdapterDataObserver mDataObserver = new RecyclerView.AdapterDataObserver() {
+        @Override
+        public void onChanged() {
+            onDataChanged();
+        }
+
+        @Override
+        public void onItemRangeChanged(int positionStart, int itemCount) {
+            onDataChanged();
+        }
+
+        @Override
+        public void onItemRangeInserted(int positionStart, int itemCount) {
+            onDataChanged();
+        }
+
+        @Override
+        public void onItemRangeRemoved(int positionStart, int itemCount) {
+            onDataChanged();
+        }
+
+        @Override
+        public void onItemRangeMoved(int fromPosition, int toPosition, int itemCount) {
+            onDataChanged();
+        }
+    };
+    private ProductListItemCallback mItemCallback;
+    private long mTimeoutMilliseconds;
+    //visible range processed in the last pass. Only positions outside of it are requested from callback
+    private int mVisibleFirst = RecyclerView.NO_POSITION;
+    private int mVisibleLast = RecyclerView.NO_POSITION;
+    private final int[] mRange = new int[2];
+    private int[] mSpanPositions;
+    private boolean mVisiblePassScheduled;
+    final private Runnable mVisiblePassAction = new Runnable() {
+        @Override
+        public void run() {
+            mVisiblePassScheduled = false;
+            if (mRegisteredView != null) {
+                updatePendingList(mRegisteredView);
+            }
+        }
+    };
+    private final ConfigurationHolder mConfigurationHolder;
     private final ProductListOrderSaver mOrderSaver;
 
 
-    ProductListTracker(TrackingConfiguration configuration, Context context){
-        mTrackingConfiguration = configuration;
-        mOrderSaver = new ProductListOrderSaver(context);
+    ProductListTracker(ConfigurationHolder configurationHolder, Context context, String processSuffix){
+        mConfigurationHolder = configurationHolder;
+        mOrderSaver = new ProductListOrderSaver(context, processSuffix);
         mOrderSaver.load();
     }
 
@@ -151,6 +219,8 @@ public class ProductListTracker {
         mOrderSaver.saveProductPositions(mProductPositionItems);
 
         mProductPositionItems.clear();
+        //items that are still visible are collected again in next pass
+        mVisibleFirst = mVisibleLast = RecyclerView.NO_POSITION;
     }
 
     /**
@@ -164,6 +234,7 @@ public class ProductListTracker {
         }
 
         Webtrekk webtrekk = Webtrekk.getInstance();
+        final TrackingConfiguration configuration = mConfigurationHolder.getConfiguration();
         TrackingParameter mergedParameters = constructTrackingParameter(addIgnoreAction);
         TrackingParameter mergedBaseParameters = constructTrackingParameter(false);
 
@@ -177,7 +248,7 @@ public class ProductListTracker {
 
         for (TrackingParameter item: parametersToTrack){
             TrackingParameter parameters = mergedParameters.mergeProducts(item,
-                    mergedBaseParameters, mTrackingConfiguration);
+                    mergedBaseParameters, configuration);
 
             // parameters value is more then 255
             if (parameters == null){
@@ -185,7 +256,7 @@ public class ProductListTracker {
                 mergedParameters = constructTrackingParameter(addIgnoreAction);
                 // we assume that one product list won't have field with length more then 255
                 mergedParameters = mergedParameters.mergeProducts(item,
-                        mergedBaseParameters, mTrackingConfiguration);
+                        mergedBaseParameters, configuration);
             } else{
                 mergedParameters = parameters;
             }
@@ -371,7 +442,8 @@ public class ProductListTracker {
 
     /**
      * Register Recycler view for product list tracking. Please call {@link #unregisterView(RecyclerView)}
-     * after RecyclerView is hided
+     * after RecyclerView is hided. LinearLayoutManager, GridLayoutManager and StaggeredGridLayoutManager
+     * are supported. Callback is called only for items that become completely visible.
      * @param view RecyclerView instance
      * @param timeoutMilliseconds timeout that is used when list is scrolled. Position of product
      * is tracked if list has this delay after scrolling or first show-up
@@ -380,31 +452,37 @@ public class ProductListTracker {
 
     public void registerView(@NonNull RecyclerView view, @IntRange(from=0) final long timeoutMilliseconds, @NonNull final ProductListItemCallback itemCallback){
 
-        final RecyclerView.LayoutManager layoutManager = view.getLayoutManager();
-        //we not support others layout managers then LinearLayoutManager
-        if (!(layoutManager instanceof LinearLayoutManager)) {
-            WebtrekkLogging.log("Error: not LinearLayouManager isn't supported");
+        if (view.getLayoutManager() == null) {
+            WebtrekkLogging.log("Error: RecyclerView doesn't have LayoutManager");
             return;
         }
 
+        if (mRegisteredView != null){
+            unregisterView(mRegisteredView);
+        }
+
+        mRegisteredView = view;
+        mItemCallback = itemCallback;
+        mTimeoutMilliseconds = timeoutMilliseconds;
         mDelayHandler = new Handler();
         mScrollListener = new RecyclerView.OnScrollListener() {
             @Override
             public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
 
                 if (newState == RecyclerView.SCROLL_STATE_IDLE){
-                    initPendingList(recyclerView, timeoutMilliseconds, itemCallback);
+                    scheduleVisiblePass(recyclerView);
                 }else{
-                    clearPendingEvents();
+                    //keep pending items, they are checked against visible range after scrolling
+                    mDelayHandler.removeCallbacks(mApplyPendingAction);
                 }
             }
 
             @Override
             public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
                 super.onScrolled(recyclerView, dx, dy);
-                //it equals zero on the first list start in that case start pending
-                if (dy == 0){
-                    initPendingList(recyclerView, timeoutMilliseconds, itemCallback);
+                //it is called on the first list start, layout changes and scrolling without dragging
+                if (recyclerView.getScrollState() == RecyclerView.SCROLL_STATE_IDLE){
+                    scheduleVisiblePass(recyclerView);
                 }
             }
         };
@@ -413,7 +491,12 @@ public class ProductListTracker {
 
         mOnTouсhEventListener = new RecyclerItemClickListener(view.getContext(), view);
         view.addOnItemTouchListener(mOnTouсhEventListener);
-        initPendingList(view, timeoutMilliseconds, itemCallback);
+
+        mObservedAdapter = view.getAdapter();
+        if (mObservedAdapter != null) {
+            mObservedAdapter.registerAdapterDataObserver(mDataObserver);
+        }
+        scheduleVisiblePass(view);
     }
 
     /**
@@ -429,15 +512,36 @@ public class ProductListTracker {
             view.removeOnItemTouchListener(mOnTouсhEventListener);
         }
 
+        if (mObservedAdapter != null) {
+            mObservedAdapter.unregisterAdapterDataObserver(mDataObserver);
+            mObservedAdapter = null;
+        }
+
+        view.removeCallbacks(mVisiblePassAction);
+        mVisiblePassScheduled = false;
         clearPendingEvents();
 
         //send all items
         send();
+        mVisibleFirst = mVisibleLast = RecyclerView.NO_POSITION;
+        mRegisteredView = null;
+        mItemCallback = null;
         mDelayHandler = null;
         mOnTouсhEventListener = null;
         mScrollListener = null;
     }
 
+    /**
+     * items can be at other positions after data change, so visible range is processed from scratch
+     */
+    private void onDataChanged(){
+        clearPendingEvents();
+        mVisibleFirst = mVisibleLast = RecyclerView.NO_POSITION;
+        if (mRegisteredView != null) {
+            scheduleVisiblePass(mRegisteredView);
+        }
+    }
+
     private void clearPendingEvents(){
         mPendingProductPositionItems.clear();
         if (mDelayHandler != null) {
@@ -445,19 +549,122 @@ public class ProductListTracker {
         }
     }
 
-    private void initPendingList(@NonNull RecyclerView view, long timeOut,
-                                 ProductListItemCallback itemCallback){
-        final LinearLayoutManager linearLayoutManager = (LinearLayoutManager)view.getLayoutManager();
-        final int firstCompletelyItem = linearLayoutManager.findFirstCompletelyVisibleItemPosition();
-        final int lastCompletelyItem = linearLayoutManager.findLastCompletelyVisibleItemPosition();
+    /**
+     * schedule visible range processing. Scroll callbacks can come several times per frame, so
+     * at most one pass is done per frame.
+     */
+    private void scheduleVisiblePass(@NonNull RecyclerView view){
+        if (!mVisiblePassScheduled) {
+            mVisiblePassScheduled = true;
+            ViewCompat.postOnAnimation(view, mVisiblePassAction);
+        }
+    }
+
+    /**
+     * Diff current visible range with previous one. Pending items that aren't visible any more are
+     * removed and callback is called only for positions that became visible.
+     */
+    private void updatePendingList(@NonNull RecyclerView view){
+        if (!findCompletelyVisibleRange(view.getLayoutManager())){
+            mPendingProductPositionItems.clear();
+            mVisibleFirst = mVisibleLast = RecyclerView.NO_POSITION;
+            return;
+        }
+
+        if (mProductPositionItems.size() >= MAX_POSITION_ITEMS){
+            //nothing can be added until send(), range is reset there and visible items are collected again
+            mPendingProductPositionItems.clear();
+            return;
+        }
+
+        final int first = mRange[0];
+        final int last = mRange[1];
 
-        for (int position = firstCompletelyItem; position <= lastCompletelyItem; position++){
-            if (!mProductPositionItems.containsKey(position) && position >= 0) {
-                mPendingProductPositionItems.put(position, itemCallback.getItem(position));
+        mPendingProductPositionItems.headMap(first).clear();
+        mPendingProductPositionItems.tailMap(last + 1).clear();
+
+        //last position that is processed, range is advanced only to it if pending limit is reached
+        int processedLast = last;
+        for (int position = first; position <= last; position++){
+            if (position >= mVisibleFirst && position <= mVisibleLast) {
+                continue;
+            }
+            if (mPendingProductPositionItems.size() >= MAX_POSITION_ITEMS){
+                WebtrekkLogging.log("Product position pending limit is reached. Rest of visible items is processed in next pass");
+                processedLast = position - 1;
+                break;
+            }
+            if (!mProductPositionItems.containsKey(position)) {
+                mPendingProductPositionItems.put(position, mItemCallback.getItem(position));
             }
         }
 
-        mDelayHandler.postDelayed(mApplyPendingAction, timeOut);
+        mVisibleFirst = first;
+        mVisibleLast = processedLast;
+
+        if (view.getScrollState() == RecyclerView.SCROLL_STATE_IDLE && !mPendingProductPositionItems.isEmpty()) {
+            mDelayHandler.removeCallbacks(mApplyPendingAction);
+            mDelayHandler.postDelayed(mApplyPendingAction, mTimeoutMilliseconds);
+        }
     }
-}
 
+    /**
+     * find first and last completely visible positions and put them to mRange
+     * @return false if there is no completely visible items
+     */
+    private boolean findCompletelyVisibleRange(@Nullable RecyclerView.LayoutManager layoutManager){
+        int first = RecyclerView.NO_POSITION;
+        int last = RecyclerView.NO_POSITION;
+
+        if (layoutManager instanceof LinearLayoutManager){
+            //GridLayoutManager is LinearLayoutManager as well
+            final LinearLayoutManager linearLayoutManager = (LinearLayoutManager)layoutManager;
+            first = linearLayoutManager.findFirstCompletelyVisibleItemPosition();
+            last = linearLayoutManager.findLastCompletelyVisibleItemPosition();
+        } else if (layoutManager instanceof StaggeredGridLayoutManager){
+            final StaggeredGridLayoutManager staggeredLayoutManager = (StaggeredGridLayoutManager)layoutManager;
+            final int spanCount = staggeredLayoutManager.getSpanCount();
+
+            if (mSpanPositions == null || mSpanPositions.length != spanCount){
+                mSpanPositions = new int[spanCount];
+            }
+
+            staggeredLayoutManager.findFirstCompletelyVisibleItemPositions(mSpanPositions);
+            for (int position : mSpanPositions){
+                if (position != RecyclerView.NO_POSITION && (first == RecyclerView.NO_POSITION || position < first)){
+                    first = position;
+                }
+            }
+
+            staggeredLayoutManager.findLastCompletelyVisibleItemPositions(mSpanPositions);
+            for (int position : mSpanPositions){
+                if (position > last){
+                    last = position;
+                }
+            }
+        } else if (layoutManager != null){
+            //custom layout managers, check attached children
+            for (int i = 0; i < layoutManager.getChildCount(); i++){
+                final View child = layoutManager.getChildAt(i);
+                if (child == null || !layoutManager.isViewPartiallyVisible(child, true, false)){
+                    continue;
+                }
+                final int position = layoutManager.getPosition(child);
+                if (position != RecyclerView.NO_POSITION && (first == RecyclerView.NO_POSITION || position < first)){
+                    first = position;
+                }
+                if (position > last){
+                    last = position;
+                }
+            }
+        }
+
+        if (first < 0 || last < first){
+            return false;
+        }
+
+        mRange[0] = first;
+        mRange[1] = last;
+        return true;
+    }
+}
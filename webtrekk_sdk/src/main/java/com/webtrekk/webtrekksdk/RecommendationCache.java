@@ -0,0 +1,174 @@
+package com.webtrekk.webtrekksdk;
+
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.LruCache;
+
+import com.webtrekk.webtrekksdk.Utils.WebtrekkLogging;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Shared cache for recommendation responses. Responses are cached by request URL (placement, user,
+ * product and category) for time to live configured for recommendation and evicted with LRU. Identical
+ * queries that are done while request is in progress wait for the same response. Requests are done
+ * on shared executor. Cache isn't invalidated explicitly: user is part of url, so responses of other ever id
+ * aren't returned, and entries of changed configuration expire with their time to live.
+ */
+class RecommendationCache {
+    static final int MAX_ENTRIES = 32;
+    static final int THREADS_NUMBER = 2;
+
+    private static class Entry {
+        final List<WebtrekkRecommendations.RecommendationProduct> mProducts;
+        final long mExpireTime;
+
+        Entry(List<WebtrekkRecommendations.RecommendationProduct> products, long expireTime) {
+            mProducts = products;
+            mExpireTime = expireTime;
+        }
+    }
+
+    private static class Waiter {
+        final WebtrekkRecommendations.RecommendationCallback mCallback;
+        final Handler mHandler;
+
+        Waiter(WebtrekkRecommendations.RecommendationCallback callback, Handler handler) {
+            mCallback = callback;
+            mHandler = handler;
+        }
+    }
+
+    private final LruCache<String, Entry> mCache = new LruCache<>(MAX_ENTRIES);
+    private final Map<String, List<Waiter>> mInProgress = new HashMap<>();
+    private ExecutorService mExecutorService;
+
+    /**
+     * Query recommendations. Callback is called with handler if it isn't null, otherwise on executor thread.
+     * @param url request url that is used as key
+     * @param ttlMilliseconds cache time for successful response, 0 disables caching
+     */
+    void query(@NonNull final String url, final long ttlMilliseconds,
+               @NonNull WebtrekkRecommendations.RecommendationCallback callback, @Nullable Handler handler) {
+        final Waiter waiter = new Waiter(callback, handler);
+        Entry entry = null;
+
+        synchronized (this) {
+            if (ttlMilliseconds > 0) {
+                entry = mCache.get(url);
+                if (entry != null && entry.mExpireTime <= System.currentTimeMillis()) {
+                    mCache.remove(url);
+                    entry = null;
+                }
+            }
+
+            if (entry == null) {
+                List<Waiter> waiters = mInProgress.get(url);
+
+                if (waiters != null) {
+                    WebtrekkLogging.log("Recommendation request is in progress, wait for it: " + url);
+                    waiters.add(waiter);
+                    return;
+                }
+
+                waiters = new ArrayList<>();
+                waiters.add(waiter);
+                mInProgress.put(url, waiters);
+                getExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        load(url, ttlMilliseconds);
+                    }
+                });
+                return;
+            }
+        }
+
+        WebtrekkLogging.log("Recommendation is received from cache: " + url);
+        deliver(waiter, entry.mProducts, WebtrekkRecommendations.QueryRecommendationResult.RECEIVED_OK);
+    }
+
+    private void load(String url, long ttlMilliseconds) {
+        WebtrekkRecommendations.RecommendationCall call = new WebtrekkRecommendations.RecommendationCall(url);
+        List<WebtrekkRecommendations.RecommendationProduct> products = null;
+        WebtrekkRecommendations.QueryRecommendationResult result = WebtrekkRecommendations.QueryRecommendationResult.NO_CONNECTION;
+
+        try {
+            call.run();
+            products = call.getProductList();
+            result = call.getQueryResult();
+        } finally {
+            // waiters are always released, otherwise next requests of url wait for this load forever
+            final List<Waiter> waiters;
+
+            synchronized (this) {
+                waiters = mInProgress.remove(url);
+                if (ttlMilliseconds > 0 && result == WebtrekkRecommendations.QueryRecommendationResult.RECEIVED_OK) {
+                    mCache.put(url, new Entry(products, System.currentTimeMillis() + ttlMilliseconds));
+                }
+            }
+
+            if (waiters != null) {
+                for (Waiter waiter : waiters) {
+                    deliver(waiter, products, result);
+                }
+            }
+        }
+    }
+
+    private void deliver(final Waiter waiter, List<WebtrekkRecommendations.RecommendationProduct> products,
+                         final WebtrekkRecommendations.QueryRecommendationResult result) {
+        //each callback receives own list, so application can change it
+        final List<WebtrekkRecommendations.RecommendationProduct> productsCopy = products == null ? null : new ArrayList<>(products);
+
+        if (waiter.mHandler == null) {
+            waiter.mCallback.onReceiveRecommendations(productsCopy, result);
+        } else {
+            waiter.mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    waiter.mCallback.onReceiveRecommendations(productsCopy, result);
+                }
+            });
+        }
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (mExecutorService == null) {
+            // use daemon thread.
+            mExecutorService = Executors.newFixedThreadPool(THREADS_NUMBER, new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = Executors.defaultThreadFactory().newThread(r);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return mExecutorService;
+    }
+}
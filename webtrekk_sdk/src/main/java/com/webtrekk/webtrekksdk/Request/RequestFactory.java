@@ -22,6 +22,8 @@ import android.content.Context;
 import android.content.SharedPreferences;
 
 import com.webtrekk.webtrekksdk.Configuration.ActivityConfiguration;
+import com.webtrekk.webtrekksdk.Configuration.ConfigurationHolder;
+import com.webtrekk.webtrekksdk.Configuration.ConfigurationSnapshot;
 import com.webtrekk.webtrekksdk.Modules.AppinstallGoal;
 import com.webtrekk.webtrekksdk.Modules.Campaign;
 import com.webtrekk.webtrekksdk.Configuration.TrackingConfiguration;
@@ -30,8 +32,14 @@ import com.webtrekk.webtrekksdk.TrackingParameter.Parameter;
 import com.webtrekk.webtrekksdk.Utils.HelperFunctions;
 import com.webtrekk.webtrekksdk.Utils.PinConnectionValidator;
 import com.webtrekk.webtrekksdk.Utils.WebtrekkLogging;
+import com.webtrekk.webtrekksdk.Utils.WebtrekkMetrics;
 import com.webtrekk.webtrekksdk.Webtrekk;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -57,12 +65,19 @@ public class RequestFactory {
     public static final String PREFERENCE_KEY_SAMPLING = "sampling";
 
     private Context mContext;
-    private TrackingConfiguration mTrackingConfiguration;
+    // current configuration snapshot, it is read for each operation and can be replaced at any time
+    private final ConfigurationHolder mConfigurationHolder = new ConfigurationHolder();
     private volatile Campaign mCampaign;
     private final AppinstallGoal mAppinstallGoal = new AppinstallGoal();
     TrackingRequestTemporaryStore mPendingRequestStore;
     private PinConnectionValidator mValidator;
+    // opens connections of request processor in tests, null in production
+    private volatile RequestProcessor.ConnectionFactory mConnectionFactory;
     private static final long PENDING_INTERVAL = 30000;
+    private static final String QUARANTINE_STORE_SUFFIX = "-quarantine";
+    private static final int QUARANTINE_CAPACITY = 100;
+    // quarantined requests are retried not often than this interval
+    private static final long QUARANTINE_RETRY_INTERVAL = 10 * 60 * 1000;
 
     //additional customer params, this is a globally available HashMap
     //before the requests are sent, the keys of this HashMap are matched with the keys in the xml configuration or the global/
@@ -71,7 +86,8 @@ public class RequestFactory {
     // before the request url is generated this keys will be replaced with values from this map
     // the customParameter are set by the user and are only valid for the current activity
     private Map<String, String> mCustomParameter;
-    private Map<String, String> mAutoCustomParameter;
+    // map is replaced when configuration is changed, so tracking thread doesn't see partly built map
+    private volatile Map<String, String> mAutoCustomParameter;
 
     // this hashmap contains all the default parameter which are defined by webtrekk and have an url mapping
     private HashMap<Parameter, String> mWebtrekkParameter;
@@ -92,8 +108,19 @@ public class RequestFactory {
     // same as the globalTrackingParameter but will not be replaced, fixed values can be added from code or xml
     private TrackingParameter mConstGlobalTrackingParameter;
 
-    private RequestUrlStore mRequestUrlStore;
+    // store of general lane, it is used by default
+    private RequestStore mRequestUrlStore;
+    private final Map<RequestLane, RequestStore> mLaneStores = new EnumMap<>(RequestLane.class);
+    // requests that receive server errors repeatedly
+    private RequestStore mQuarantineStore;
+    private long mLastQuarantineRetryTime;
+    // bytes of all request stores and pending requests
+    volatile private StorageQuota mStorageQuota;
+    // null if multi process mode is disabled
+    private RequestSegments mSegments;
     private String mCustomPageName;
+    // page url of current activity that is set by application, it isn't saved in shared configuration snapshot
+    private String mPageURL;
 
     private ScheduledExecutorService mURLSendTimerService;
     private ScheduledFuture<?> mURLSendTimerFuture;
@@ -108,7 +135,10 @@ public class RequestFactory {
     public void init(Context context, TrackingConfiguration trackingConfiguration, Webtrekk wt, Set<String> validPins)
     {
         mContext = context;
-        mTrackingConfiguration = trackingConfiguration;
+        if (mConfigurationHolder.getConfiguration() != trackingConfiguration) {
+            mConfigurationHolder.publish(trackingConfiguration);
+        }
+        mConfigurationHolder.addListener(mConfigurationListener);
 
         if(mCustomParameter == null) {
             mCustomParameter = new HashMap<>();
@@ -126,13 +156,58 @@ public class RequestFactory {
         initURLSendTimerService();
         initFlashTimerService();
 
-        mRequestUrlStore = new RequestUrlStore(mContext);
+        if (trackingConfiguration.isMultiProcess() && mSegments == null) {
+            mSegments = new RequestSegments(mContext);
+        }
+        // each process has own files in multi process mode
+        final String processSuffix = getProcessSuffix();
+        boolean isSQLite = TrackingConfiguration.REQUEST_STORE_SQLITE.equals(trackingConfiguration.getRequestStore());
+
+        if (isSQLite && mSegments != null) {
+            // segments of other processes are request files
+            WebtrekkLogging.log(WebtrekkLogging.WARN, "SQLite request store isn't supported in multi process mode, file store is used");
+            isSQLite = false;
+        }
+
+        for (RequestLane lane : RequestLane.values()) {
+            mLaneStores.put(lane, createRequestStore(lane.getStoreSuffix() + processSuffix, lane.getCapacity(),
+                    WebtrekkMetrics.Gauge.STORE_SIZE, isSQLite));
+        }
+        mRequestUrlStore = mLaneStores.get(RequestLane.GENERAL);
+        mQuarantineStore = createRequestStore(QUARANTINE_STORE_SUFFIX + processSuffix, QUARANTINE_CAPACITY,
+                WebtrekkMetrics.Gauge.QUARANTINE_SIZE, isSQLite);
+        removeExpiredRequests();
+        mStorageQuota = new StorageQuota(mConfigurationHolder);
+        // quarantined requests are evicted first, then lanes from lowest weight to highest one
+        mStorageQuota.addEvictableStore(mQuarantineStore);
+        for (RequestLane lane : getLanesByWeight()) {
+            mStorageQuota.addEvictableStore(mLaneStores.get(lane));
+        }
+        for (RequestStore store : mLaneStores.values()) {
+            store.setStorageQuota(mStorageQuota);
+        }
+        mQuarantineStore.setStorageQuota(mStorageQuota);
         mConstGlobalTrackingParameter = new TrackingParameter();
         mGlobalTrackingParameter = new TrackingParameter();
-        mPendingRequestStore = new TrackingRequestTemporaryStore(mContext, mTrackingConfiguration);
+        mPendingRequestStore = new TrackingRequestTemporaryStore(mContext, mConfigurationHolder, mStorageQuota, processSuffix);
         mValidator = new PinConnectionValidator(validPins);
     }
 
+    /**
+     * @return lanes from lowest weight to highest one
+     */
+    private static List<RequestLane> getLanesByWeight() {
+        final List<RequestLane> lanes = new ArrayList<>(Arrays.asList(RequestLane.values()));
+
+        Collections.sort(lanes, new Comparator<RequestLane>() {
+            @Override
+            public int compare(RequestLane lhs, RequestLane rhs) {
+                return lhs.getWeight() < rhs.getWeight() ? -1 : (lhs.getWeight() == rhs.getWeight() ? 0 : 1);
+            }
+        });
+        return lanes;
+    }
+
     public boolean isOptout() {
         return mIsOptout;
     }
@@ -182,18 +257,135 @@ public class RequestFactory {
     public void setCurrentActivityName(String currentActivityName) {
         mCurrentActivityName = currentActivityName;
         mCustomPageName = null;
+        mPageURL = null;
     }
 
     public void setCustomPageName(String customPageName) {
         mCustomPageName = customPageName;
     }
 
-    public RequestUrlStore getRequestUrlStore() {
+    /**
+     * @param pageURL url that overrides PAGE_URL parameter of current activity configuration
+     */
+    public void setPageURL(String pageURL) {
+        mPageURL = pageURL;
+    }
+
+    public RequestStore getRequestUrlStore() {
         return mRequestUrlStore;
     }
 
-    public void setRequestUrlStore(RequestUrlStore requestUrlStore) {
+    public RequestStore getRequestUrlStore(RequestLane lane) {
+        return mLaneStores.get(lane);
+    }
+
+    public void setRequestUrlStore(RequestStore requestUrlStore) {
         mRequestUrlStore = requestUrlStore;
+        mLaneStores.put(RequestLane.GENERAL, requestUrlStore);
+    }
+
+    /**
+     * creates store of configured implementation. Not sent requests of other implementation are moved to it,
+     * so they aren't lost when implementation is changed.
+     */
+    private RequestStore createRequestStore(String suffix, int capacity, WebtrekkMetrics.Gauge sizeGauge, boolean isSQLite) {
+        if (!isSQLite) {
+            final RequestUrlStore fileStore = new RequestUrlStore(mContext, suffix, capacity, sizeGauge);
+            if (SQLiteRequestStore.exists(mContext, suffix)) {
+                final SQLiteRequestStore sqliteStore = new SQLiteRequestStore(mContext, suffix, capacity, sizeGauge);
+                moveURLs(sqliteStore, fileStore);
+                sqliteStore.deleteDatabase();
+            }
+            return fileStore;
+        }
+
+        final SQLiteRequestStore sqliteStore = new SQLiteRequestStore(mContext, suffix, capacity, sizeGauge);
+        // file store is opened only to move its urls, it isn't recovered on each start
+        if (RequestUrlStore.exists(mContext, suffix)) {
+            final RequestUrlStore fileStore = new RequestUrlStore(mContext, suffix, capacity, sizeGauge);
+            moveURLs(fileStore, sqliteStore);
+            fileStore.deleteRequestsFile();
+        }
+        return sqliteStore;
+    }
+
+    static void moveURLs(RequestStore from, RequestStore to) {
+        final int size = from.size();
+
+        if (size == 0) {
+            return;
+        }
+
+        while (from.size() > 0) {
+            final String url = from.peek();
+            if (url != null) {
+                // original time is kept, so moving doesn't restart ttl of request
+                to.addURL(url, from.getHeadTime());
+            }
+            from.removeLastURL();
+        }
+        to.flush();
+        from.flush();
+        WebtrekkLogging.log(size + " requests are moved to new request store");
+    }
+
+    /**
+     * @return number of not sent requests in all lanes
+     */
+    public int getRequestsCount() {
+        int count = 0;
+        for (RequestStore store : mLaneStores.values()) {
+            count += store.size();
+        }
+        return count;
+    }
+
+    /**
+     * @return quota that counts bytes of all request queue files
+     */
+    public StorageQuota getStorageQuota() {
+        return mStorageQuota;
+    }
+
+    /**
+     * remove not sent requests of all lanes
+     */
+    public void clearAllTrackingData() {
+        for (RequestStore store : mLaneStores.values()) {
+            store.clearAllTrackingData();
+        }
+        mQuarantineStore.clearAllTrackingData();
+        if (mSegments != null) {
+            mSegments.clear();
+        }
+    }
+
+    /**
+     * @return time in milliseconds after that not sent request is removed, 0 if requests don't expire
+     */
+    private long getEventTtl() {
+        return mConfigurationHolder.getSnapshot().getConfiguration().getEventTtl() * 1000L;
+    }
+
+    /**
+     * removes requests that are saved in previous sessions and are expired already
+     */
+    private void removeExpiredRequests() {
+        final long eventTtl = getEventTtl();
+
+        if (eventTtl <= 0) {
+            return;
+        }
+
+        final long minTime = System.currentTimeMillis() - eventTtl;
+        for (RequestStore store : mLaneStores.values()) {
+            store.removeExpired(minTime);
+        }
+        mQuarantineStore.removeExpired(minTime);
+    }
+
+    public RequestStore getQuarantineStore() {
+        return mQuarantineStore;
     }
 
     public TrackingParameter getGlobalTrackingParameter() {
@@ -212,12 +404,37 @@ public class RequestFactory {
         mConstGlobalTrackingParameter = constGlobalTrackingParameter;
     }
 
+    /**
+     * publish new configuration snapshot. Snapshot is built in calling thread
+     */
     public void setTrackingConfiguration(TrackingConfiguration trackingConfiguration) {
-        mTrackingConfiguration = trackingConfiguration;
+        mConfigurationHolder.publish(trackingConfiguration);
     }
 
     public TrackingConfiguration getTrackingConfiguration() {
-        return mTrackingConfiguration;
+        return mConfigurationHolder.getConfiguration();
+    }
+
+    public ConfigurationHolder getConfigurationHolder() {
+        return mConfigurationHolder;
+    }
+
+    /**
+     * is used only by tests that send requests to local plain http collector. Requests are sent by https
+     * only without factory.
+     *
+     * @param connectionFactory factory that is passed to next request processors, null to send by https again
+     */
+    public void setConnectionFactory(RequestProcessor.ConnectionFactory connectionFactory) {
+        mConnectionFactory = connectionFactory;
+    }
+
+    /**
+     * @return suffix of files that are written by this process only, it is empty if multi process mode is off
+     * or process is main one
+     */
+    public String getProcessSuffix() {
+        return mSegments == null ? "" : mSegments.getProcessSuffix();
     }
 
     private void initInternalParameter(boolean isFirstStart) {
@@ -254,29 +471,30 @@ public class RequestFactory {
      * it can be reset with changing the xml config
      */
     private void initSampling() {
+        final int sampling = getTrackingConfiguration().getSampling();
         SharedPreferences preferences = HelperFunctions.getWebTrekkSharedPreference(mContext);
 
         if(preferences.contains(PREFERENCE_KEY_IS_SAMPLING)) {
             // key exists so set sampling value and return
             mIsSampling = preferences.getBoolean(PREFERENCE_KEY_IS_SAMPLING, false);
             // check if the sampling value is unchanged, if so return
-            if(preferences.getInt(PREFERENCE_KEY_SAMPLING, -1) == mTrackingConfiguration.getSampling()) {
+            if(preferences.getInt(PREFERENCE_KEY_SAMPLING, -1) == sampling) {
                 return;
             }
         }
         // from here on they sampling either changed or is missing, so reinitialize it
         SharedPreferences.Editor editor = preferences.edit();
         // calculate if the device is sampling
-        if(mTrackingConfiguration.getSampling()>1) {
-            mIsSampling = (Long.valueOf(HelperFunctions.getEverId(mContext)) % mTrackingConfiguration.getSampling()) != 0;
+        if(sampling>1) {
+            mIsSampling = (Long.valueOf(HelperFunctions.getEverId(mContext)) % sampling) != 0;
         } else {
             mIsSampling = false;
         }
         // store the preference keys if the device is sampling and the sampling value
         editor.putBoolean(PREFERENCE_KEY_IS_SAMPLING, mIsSampling);
-        editor.putInt(PREFERENCE_KEY_SAMPLING, mTrackingConfiguration.getSampling());
+        editor.putInt(PREFERENCE_KEY_SAMPLING, sampling);
         editor.apply();
-        WebtrekkLogging.log("isSampling = " + mIsSampling + ", samplingRate = " + mTrackingConfiguration.getSampling());
+        WebtrekkLogging.log("isSampling = " + mIsSampling + ", samplingRate = " + sampling);
     }
 
     /**
@@ -298,7 +516,7 @@ public class RequestFactory {
 
 
         // for compatibility reasons always add the sampling rate param to the url
-        mWebtrekkParameter.put(Parameter.SAMPLING, "" + mTrackingConfiguration.getSampling());
+        mWebtrekkParameter.put(Parameter.SAMPLING, "" + getTrackingConfiguration().getSampling());
 
         // always track the wt everid
         initEverID();
@@ -315,63 +533,66 @@ public class RequestFactory {
      * the customer can also add new ones, unknown entries will be ignored by the server
      */
     public void initAutoCustomParameter() {
-        if(mAutoCustomParameter == null) {
-            mAutoCustomParameter = new HashMap<>();
-        }
-
         if(mCustomParameter == null) {
             mCustomParameter = new HashMap<>();
         }
 
-        if(mTrackingConfiguration.isAutoTrackAppVersionName()) {
-            mAutoCustomParameter.put("appVersion", HelperFunctions.getAppVersionName(mContext));
+        final TrackingConfiguration configuration = getTrackingConfiguration();
+        final Map<String, String> previousAutoCustomParameter = mAutoCustomParameter;
+        final Map<String, String> autoCustomParameter = new HashMap<>();
+
+        if(configuration.isAutoTrackAppVersionName()) {
+            autoCustomParameter.put("appVersion", HelperFunctions.getAppVersionName(mContext));
         }
 
-        if(mTrackingConfiguration.isAutoTrackAppVersionCode()) {
-            mAutoCustomParameter.put("appVersionCode", String.valueOf(HelperFunctions.getAppVersionCode(mContext)));
+        if(configuration.isAutoTrackAppVersionCode()) {
+            autoCustomParameter.put("appVersionCode", String.valueOf(HelperFunctions.getAppVersionCode(mContext)));
         }
 
-        if(mTrackingConfiguration.isAutoTrackPlaystoreUsername()) {
+        if(configuration.isAutoTrackPlaystoreUsername()) {
             Map<String, String> playstoreprofile = HelperFunctions.getUserProfile(mContext);
-            mAutoCustomParameter.put("playstoreFamilyname", playstoreprofile.get("sname"));
-            mAutoCustomParameter.put("playstoreGivenname", playstoreprofile.get("gname"));
+            autoCustomParameter.put("playstoreFamilyname", playstoreprofile.get("sname"));
+            autoCustomParameter.put("playstoreGivenname", playstoreprofile.get("gname"));
         }
 
-        if(mTrackingConfiguration.isAutoTrackPlaystoreMail()) {
+        if(configuration.isAutoTrackPlaystoreMail()) {
             //Map<String, String> playstoreprofile = HelperFunctions.getUserProfile(mContext);
             //customParameter.put("playstoreMail", playstoreprofile.get("email"));
-            mAutoCustomParameter.put("playstoreMail", HelperFunctions.getMailByAccountManager(mContext));
+            autoCustomParameter.put("playstoreMail", HelperFunctions.getMailByAccountManager(mContext));
         }
 
-        if (mTrackingConfiguration.isAutoTrackAppPreInstalled()) {
-            mAutoCustomParameter.put("appPreinstalled", String.valueOf(HelperFunctions.isAppPreinstalled(mContext)));
+        if (configuration.isAutoTrackAppPreInstalled()) {
+            autoCustomParameter.put("appPreinstalled", String.valueOf(HelperFunctions.isAppPreinstalled(mContext)));
         }
 
-        if(mTrackingConfiguration.isAutoTrackAdClearId()) {
-            mAutoCustomParameter.put("adClearId", String.valueOf(HelperFunctions.getAdClearId(mContext)));
+        if(configuration.isAutoTrackAdClearId()) {
+            autoCustomParameter.put("adClearId", String.valueOf(HelperFunctions.getAdClearId(mContext)));
         }
 
         // if the app was updated, send out the update request once
 
-        if(mTrackingConfiguration.isAutoTrackAppUpdate()) {
+        if(configuration.isAutoTrackAppUpdate()) {
             int currentVersion = HelperFunctions.getAppVersionCode(mContext);
             // store the app version code to check for updates
             if(HelperFunctions.firstStart(mContext)) {
                 HelperFunctions.setAppVersionCode(currentVersion, mContext);
             }
 
-            if(HelperFunctions.updated(mContext, currentVersion)) {
-                mAutoCustomParameter.put("appUpdated", "1");
+            // update flag that isn't sent yet is kept when map is rebuilt for new configuration
+            if(HelperFunctions.updated(mContext, currentVersion) || (previousAutoCustomParameter != null
+                    && "1".equals(previousAutoCustomParameter.get("appUpdated")))) {
+                autoCustomParameter.put("appUpdated", "1");
             } else  {
-                mAutoCustomParameter.put("appUpdated", "0");
+                autoCustomParameter.put("appUpdated", "0");
             }
 
         }
-        if(mTrackingConfiguration.isAutoTrackApiLevel()) {
-            mAutoCustomParameter.put("apiLevel", HelperFunctions.getAPILevel());
+        if(configuration.isAutoTrackApiLevel()) {
+            autoCustomParameter.put("apiLevel", HelperFunctions.getAPILevel());
 
         }
 
+        mAutoCustomParameter = autoCustomParameter;
     }
 
     /**
@@ -381,20 +602,22 @@ public class RequestFactory {
     public void updateDynamicParameter() {
         // put the screen orientation to into the custom parameter, will change with every request
         if(mAutoCustomParameter != null) {
+            final TrackingConfiguration configuration = getTrackingConfiguration();
+
             mAutoCustomParameter.put("screenOrientation", HelperFunctions.getOrientation(mContext));
             mAutoCustomParameter.put("connectionType", HelperFunctions.getConnectionString(mContext));
 
-            if(mTrackingConfiguration.isAutoTrackAdvertiserId() && !mAutoCustomParameter.containsKey("advertiserId")
+            if(configuration.isAutoTrackAdvertiserId() && !mAutoCustomParameter.containsKey("advertiserId")
                     && Campaign.getAdvId(mContext) != null) {
                 mAutoCustomParameter.put("advertiserId", Campaign.getAdvId(mContext));
 
-                if (mTrackingConfiguration.isAutoTrackAdvertismentOptOut() && !mAutoCustomParameter.containsKey("advertisingOptOut"))
+                if (configuration.isAutoTrackAdvertismentOptOut() && !mAutoCustomParameter.containsKey("advertisingOptOut"))
                     mAutoCustomParameter.put("advertisingOptOut", String.valueOf(Campaign.getOptOut(mContext)));
             }
 
 
-            if(mRequestUrlStore != null && mTrackingConfiguration.isAutoTrackRequestUrlStoreSize()) {
-                mAutoCustomParameter.put("requestUrlStoreSize", String.valueOf(mRequestUrlStore.size()));
+            if(mRequestUrlStore != null && configuration.isAutoTrackRequestUrlStoreSize()) {
+                mAutoCustomParameter.put("requestUrlStoreSize", String.valueOf(getRequestsCount()));
             }
         }
 
@@ -407,12 +630,15 @@ public class RequestFactory {
     /*
     Process campaignData
      */
-    private void processInstallGoals(TrackingRequest request)
+    //return true if install goal or campaign is added to request
+    private boolean processInstallGoals(TrackingRequest request)
     {
+        boolean isInstall = false;
 
         if (mAppinstallGoal.isAppinstallGoal(mContext)){
             request.mTrackingParameter.add(Parameter.ECOM, "900", "1");
             mAppinstallGoal.finishAppinstallGoal(mContext);
+            isInstall = true;
         }
 
         final String mediaCode = Campaign.getMediaCode(mContext);
@@ -420,12 +646,15 @@ public class RequestFactory {
         if (mediaCode != null && !mediaCode.isEmpty()) {
             request.mTrackingParameter.add(Parameter.ADVERTISEMENT, mediaCode);
             request.mTrackingParameter.add(Parameter.ADVERTISEMENT_ACTION, "c");
+            isInstall = true;
         } else {
             String deepLinkMediaCode = HelperFunctions.getDeepLinkMediaCode(mContext, true);
             if (deepLinkMediaCode != null && !deepLinkMediaCode.isEmpty()) {
                 request.mTrackingParameter.add(Parameter.ADVERTISEMENT, deepLinkMediaCode);
             }
         }
+
+        return isInstall;
     }
 
     public void onFirstStart()
@@ -447,7 +676,10 @@ public class RequestFactory {
 
     public void restore()
     {
-        mRequestUrlStore.reset();
+        for (RequestStore store : mLaneStores.values()) {
+            store.reset();
+        }
+        mQuarantineStore.reset();
         // remove the old backupfile after the requests are loaded into memory/requestUrlStore
         //mRequestUrlStore.deleteRequestsFile();
     }
@@ -455,7 +687,14 @@ public class RequestFactory {
     public void flush()
     {
         stopSendURLProcess();
-        mRequestUrlStore.flush();
+        for (RequestStore store : mLaneStores.values()) {
+            store.flush();
+        }
+        mQuarantineStore.flush();
+        if (mSegments != null) {
+            mSegments.flush(mLaneStores);
+        }
+        WebtrekkMetrics.getInstance().notifyListener();
     }
 
     /**
@@ -466,6 +705,9 @@ public class RequestFactory {
      * @return
      */
     public TrackingRequest createTrackingRequest(TrackingParameter tp) {
+        // the same snapshot is used for whole request even if configuration is changed meanwhile
+        final ConfigurationSnapshot snapshot = mConfigurationHolder.getSnapshot();
+        final TrackingConfiguration configuration = snapshot.getConfiguration();
         // create a new trackingParameter object
         TrackingParameter trackingParameter = new TrackingParameter();
         // add the name of the current activity
@@ -477,7 +719,7 @@ public class RequestFactory {
 
         // action params are a special case, no other params but the ones given as parameter in the code
         if(tp.containsKey(Parameter.ACTION_NAME)) {
-            applyActivityConfiguration(trackingParameter, true);
+            applyActivityConfiguration(configuration, trackingParameter, true);
             overrideCustomPageName(trackingParameter);
             trackingParameter.add(Parameter.SCREEN_RESOLUTION, mWebtrekkParameter.get(Parameter.SCREEN_RESOLUTION));
             trackingParameter.add(Parameter.SCREEN_DEPTH, mWebtrekkParameter.get(Parameter.SCREEN_DEPTH));
@@ -489,11 +731,11 @@ public class RequestFactory {
 
             // Also add the auto parameters that are defined to be send with action requests
             if(mAutoCustomParameter!= null) {
-                trackingParameter.add(mTrackingConfiguration.getAutoTrackedParameters(mAutoCustomParameter, true));
+                trackingParameter.add(configuration.getAutoTrackedParameters(mAutoCustomParameter, true));
             }
 
             trackingParameter.add(tp);
-            return new TrackingRequest(trackingParameter, mTrackingConfiguration);
+            return new TrackingRequest(trackingParameter, snapshot, TrackingRequest.RequestType.GENERAL);
         }
 
         // update the dynamic parameter which change with every request
@@ -514,7 +756,7 @@ public class RequestFactory {
 
         // apply autotracking parameters
         if(mAutoCustomParameter!= null) {
-            trackingParameter.add(mTrackingConfiguration.getAutoTrackedParameters(mAutoCustomParameter, false));
+            trackingParameter.add(configuration.getAutoTrackedParameters(mAutoCustomParameter, false));
         }
 
         //now map the string values from the code tracking parameters to the custom values defined by webtrekk or the customer
@@ -525,12 +767,12 @@ public class RequestFactory {
         }
 
         // second add the globally configured const trackingparams from the xml which may override the ones above
-        if(mTrackingConfiguration.getConstGlobalTrackingParameter() != null) {
-            trackingParameter.add(mTrackingConfiguration.getConstGlobalTrackingParameter());
+        if(configuration.getConstGlobalTrackingParameter() != null) {
+            trackingParameter.add(configuration.getConstGlobalTrackingParameter());
         }
         // also add the globally configured mapped trackingparams from the xml which may override the ones above
-        if(mTrackingConfiguration.getGlobalTrackingParameter() != null) {
-            TrackingParameter mappedTrackingParameter = mTrackingConfiguration.getGlobalTrackingParameter().applyMapping(mCustomParameter);
+        if(configuration.getGlobalTrackingParameter() != null) {
+            TrackingParameter mappedTrackingParameter = configuration.getGlobalTrackingParameter().applyMapping(mCustomParameter);
             trackingParameter.add(mappedTrackingParameter);
         }
 
@@ -538,17 +780,20 @@ public class RequestFactory {
         trackingParameter.add(tp);
 
         //forth add the local ones which each activity has defined in its xml configuration, they will override the ones above
-        applyActivityConfiguration(trackingParameter, false);
+        applyActivityConfiguration(configuration, trackingParameter, false);
         overrideCustomPageName(trackingParameter);
+        if (mPageURL != null) {
+            trackingParameter.add(Parameter.PAGE_URL, mPageURL);
+        }
 
-        return new TrackingRequest(trackingParameter, mTrackingConfiguration);
+        return new TrackingRequest(trackingParameter, snapshot, TrackingRequest.RequestType.GENERAL);
 
     }
 
-    private void applyActivityConfiguration(TrackingParameter trackingParameter, boolean onlyNameApply)
+    private void applyActivityConfiguration(TrackingConfiguration configuration, TrackingParameter trackingParameter, boolean onlyNameApply)
     {
-        if(mTrackingConfiguration.getActivityConfigurations()!= null && mTrackingConfiguration.getActivityConfigurations().containsKey(mCurrentActivityName)){
-            ActivityConfiguration activityConfiguration = mTrackingConfiguration.getActivityConfigurations().get(mCurrentActivityName);
+        if(configuration.getActivityConfigurations()!= null && configuration.getActivityConfigurations().containsKey(mCurrentActivityName)){
+            ActivityConfiguration activityConfiguration = configuration.getActivityConfigurations().get(mCurrentActivityName);
             if(activityConfiguration != null) {
                 if(activityConfiguration.getConstActivityTrackingParameter() != null && !onlyNameApply) {
                     trackingParameter.add(activityConfiguration.getConstActivityTrackingParameter());
@@ -582,14 +827,13 @@ public class RequestFactory {
      * @param request the Tracking Request
      */
     public void addRequest(TrackingRequest request)  {
+        WebtrekkMetrics.getInstance().increment(WebtrekkMetrics.Counter.EVENTS_TRACKED);
 
         if (!isCampaignFinished()){
             mPendingRequestStore.saveTrackingRequest(request);
         } else {
-            if (!sendPendingRequests()){
-                processInstallGoals(request);
-            }
-            addURL(request.getUrlString());
+            final boolean isInstall = !sendPendingRequests() && processInstallGoals(request);
+            addURL(request.getUrlString(), RequestLane.forRequest(request, isInstall));
         }
 
         // after the url is created reset the internal parameters to zero
@@ -599,11 +843,13 @@ public class RequestFactory {
         mAutoCustomParameter.put("appUpdated", "0");
     }
 
-    void addURL(String url){
+    void addURL(String url, RequestLane lane){
         // only track if not opted out
         if(!mIsOptout && !mIsSampling) {
-            WebtrekkLogging.log("adding url: " + url);
-            mRequestUrlStore.addURL(url);
+            WebtrekkLogging.log(WebtrekkLogging.DEBUG, "adding url: {} to lane {}", url, lane);
+            mLaneStores.get(lane).addURL(url);
+        } else {
+            WebtrekkMetrics.getInstance().increment(mIsOptout ? WebtrekkMetrics.Counter.OPTED_OUT : WebtrekkMetrics.Counter.SAMPLED_OUT);
         }
     }
 
@@ -613,16 +859,19 @@ public class RequestFactory {
         if (isCampaignFinished() && !mPendingRequestStore.queueIsEmpty()){
             WebtrekkLogging.log("sending pending requests");
             List<TrackingRequest> requests = mPendingRequestStore.getAllSavedRequests();
+            // release quota of pending requests before they are added to request stores
+            mPendingRequestStore.deleteQueue();
 
+            boolean isInstall = false;
             if (!requests.isEmpty()){
-                processInstallGoals(requests.get(0));
+                isInstall = processInstallGoals(requests.get(0));
                 result = true;
             }
 
             for (TrackingRequest request:requests){
-                addURL(request.getUrlString());
+                addURL(request.getUrlString(), RequestLane.forRequest(request, isInstall));
+                isInstall = false;
             }
-            mPendingRequestStore.deleteQueue();
         }
         return result;
     }
@@ -639,34 +888,66 @@ public class RequestFactory {
     public void startAdvertizingThread(boolean isFirstStart)
     {
         if (!mIsOptout) {
-            mCampaign = Campaign.start(mContext, mTrackingConfiguration.getTrackId(), isFirstStart,
-                    mTrackingConfiguration.isAutoTrackAdvertiserId(), mTrackingConfiguration.isEnableCampaignTracking(), mValidator);
+            final TrackingConfiguration configuration = getTrackingConfiguration();
+            mCampaign = Campaign.start(mContext, configuration.getTrackId(), isFirstStart,
+                    configuration.isAutoTrackAdvertiserId(), configuration.isEnableCampaignTracking(), mValidator);
         }
     }
 
 
     /**
      * starts the timer service, it executes after initial send delay for the first time, and then
-     * every sendDelay seconds, it processes the stored requests in a separate thread
+     * every sendDelay seconds, it processes the stored requests in a separate thread.
+     * It is called again when send delay of configuration is changed, previous timer is cancelled
      */
-    void initURLSendTimerService() {
-        if (mTrackingConfiguration.getSendDelay() > 0) {
+    synchronized void initURLSendTimerService() {
+        final int sendDelay = mConfigurationHolder.getSnapshot().getSendDelay();
+
+        if (mURLSendTimerFuture != null) {
+            mURLSendTimerFuture.cancel(false);
+            mURLSendTimerFuture = null;
+        }
+
+        if (sendDelay > 0) {
             // start the timer service
-            mURLSendTimerService = Executors.newSingleThreadScheduledExecutor();
+            if (mURLSendTimerService == null) {
+                mURLSendTimerService = Executors.newSingleThreadScheduledExecutor();
+            }
             mURLSendTimerFuture = mURLSendTimerService.scheduleWithFixedDelay(new Runnable() {
                 @Override
                 public void run() {
                     onSendIntervalOver();
                 }
-            }, mTrackingConfiguration.getSendDelay(), mTrackingConfiguration.getSendDelay(), TimeUnit.SECONDS);
+            }, sendDelay, sendDelay, TimeUnit.SECONDS);
             WebtrekkLogging.log("timer service started");
         }
     }
 
+    private final ConfigurationHolder.OnConfigurationChangedListener mConfigurationListener = new ConfigurationHolder.OnConfigurationChangedListener() {
+        @Override
+        public void onConfigurationChanged(ConfigurationSnapshot oldSnapshot, ConfigurationSnapshot newSnapshot) {
+            if (mContext != null && (oldSnapshot == null || oldSnapshot.getSendDelay() != newSnapshot.getSendDelay())) {
+                WebtrekkLogging.log("send delay is changed to " + newSnapshot.getSendDelay());
+                initURLSendTimerService();
+            }
+
+            // state that is derived from configuration is rebuilt with new snapshot
+            if (mContext != null && oldSnapshot != null) {
+                if (oldSnapshot.getConfiguration().getSampling() != newSnapshot.getConfiguration().getSampling()) {
+                    initSampling();
+                    if (mWebtrekkParameter != null) {
+                        mWebtrekkParameter.put(Parameter.SAMPLING, "" + newSnapshot.getConfiguration().getSampling());
+                    }
+                }
+                initAutoCustomParameter();
+            }
+        }
+    };
+
     /**
      * Init service that do flush by 1 min timeout
      */
-    private void initFlashTimerService() {
+    private synchronized void initFlashTimerService() {
         if (mURLSendTimerService == null)
             mURLSendTimerService = Executors.newSingleThreadScheduledExecutor();
         mFlashTimerService = Executors.newSingleThreadScheduledExecutor();
@@ -686,7 +967,23 @@ public class RequestFactory {
     public boolean onSendIntervalOver() {
         //WebtrekkLogging.log("onSendIntervalOver: request urls: " + mRequestUrlStore.size()
         //+ " thread done:"+(mRequestProcessorFuture == null ? "null": mRequestProcessorFuture.isDone()));
-        if(mRequestUrlStore.size() > 0  && (mRequestProcessorFuture == null || mRequestProcessorFuture.isDone())) {
+        final long now = System.currentTimeMillis();
+        final boolean isQuarantineRetryDue = mQuarantineStore.size() > 0 && now - mLastQuarantineRetryTime >= QUARANTINE_RETRY_INTERVAL;
+        final boolean isProcessorIdle = mRequestProcessorFuture == null || mRequestProcessorFuture.isDone();
+        Map<? extends RequestStore, RequestLane> segmentStores = Collections.emptyMap();
+
+        if (mSegments != null) {
+            if (!mSegments.isSender()) {
+                // other process sends requests, saved requests are moved to segments for it
+                mSegments.handOver(mLaneStores);
+                return false;
+            }
+            if (isProcessorIdle) {
+                segmentStores = mSegments.updateSegmentStores(mStorageQuota);
+            }
+        }
+
+        if((getRequestsCount() > 0 || !segmentStores.isEmpty() || isQuarantineRetryDue) && isProcessorIdle) {
             if (mExecutorService == null) {
                 // use daemon thread.
                 mExecutorService = Executors.newSingleThreadExecutor(new ThreadFactory() {
@@ -699,7 +996,13 @@ public class RequestFactory {
                     }
                 });
             }
-            mRequestProcessorFuture = mExecutorService.submit(new RequestProcessor(mRequestUrlStore, mValidator));
+            RequestProcessor processor = new RequestProcessor(mLaneStores, segmentStores, mValidator, mConnectionFactory);
+            processor.setQuarantine(mQuarantineStore, isQuarantineRetryDue);
+            processor.setEventTtl(getEventTtl());
+            if (isQuarantineRetryDue) {
+                mLastQuarantineRetryTime = now;
+            }
+            mRequestProcessorFuture = mExecutorService.submit(processor);
             return true;
         }else
             return false;
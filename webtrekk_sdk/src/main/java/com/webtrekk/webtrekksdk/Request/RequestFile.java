@@ -0,0 +1,640 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Request;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.webtrekk.webtrekksdk.Utils.Crc32c;
+import com.webtrekk.webtrekksdk.Utils.WebtrekkLogging;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Request queue file with its index. Data file is [header][record]..., header is magic, version, offset of
+ * first not sent record and send attempts of this record. Record is payload length, CRC32C of enqueue time
+ * and payload, enqueue time and UTF-8 url. Index file has entry with enqueue time and end offset for each record.
+ *
+ * Files are only appended, so after crash only tail of files can be broken. {@link #open()} checks last
+ * indexed record, scans records after it and truncates data file after last valid record. Append streams
+ * are kept open between appends until {@link #close()}.
+ * Class isn't thread safe, {@link RequestUrlStore} synchronizes access.
+ */
+class RequestFile {
+    static final int HEADER_SIZE = 20;
+    static final int RECORD_HEADER_SIZE = 16;
+    static final int INDEX_ENTRY_SIZE = 16;
+    static final int MAX_RECORD_SIZE = 1024 * 1024;
+
+    private static final int MAGIC = 0x57545251;
+    private static final int VERSION = 1;
+    private static final int HEAD_OFFSET_POSITION = 8;
+    private static final int HEAD_ATTEMPTS_POSITION = 16;
+
+    private final File mDataFile;
+    private final File mIndexFile;
+    private final Crc32c mCrc = new Crc32c();
+    // length of valid data, it is tracked so file size isn't requested for each append
+    private long mLength;
+    private long mEntries;
+    // false if index write failed, index isn't appended until file is deleted
+    private boolean mIndexValid = true;
+    private long mHeadOffset = HEADER_SIZE;
+    private int mHeadAttempts;
+    private long mHeadEntry;
+    // index entries of records that are written but not saved to index yet
+    private long[] mPendingIndex = new long[32];
+    private int mPendingIndexSize;
+    // length before current append, data is truncated to it if append fails
+    private long mAppendStart;
+    private FileOutputStream mDataFileOut;
+    private DataOutputStream mDataOut;
+    private FileOutputStream mIndexFileOut;
+    private DataOutputStream mIndexOut;
+
+    RequestFile(@NonNull File dataFile, @NonNull File indexFile) {
+        mDataFile = dataFile;
+        mIndexFile = indexFile;
+    }
+
+    /**
+     * @return true if file exists and starts with header of record format
+     */
+    static boolean isRecordFile(@NonNull File file) {
+        if (!file.exists() || file.length() < HEADER_SIZE) {
+            return false;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            return in.readInt() == MAGIC;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            close(in);
+        }
+    }
+
+    /**
+     * opens existed files and recovers them after crash. Only records after last index entry are read,
+     * so time of recovery doesn't depend on queue size.
+     */
+    void open() {
+        final long start = System.nanoTime();
+
+        close();
+        mLength = 0;
+        mEntries = 0;
+        mIndexValid = true;
+        mHeadOffset = HEADER_SIZE;
+        mHeadAttempts = 0;
+        mHeadEntry = 0;
+        mPendingIndexSize = 0;
+
+        if (!mDataFile.exists()) {
+            mIndexFile.delete();
+            return;
+        }
+
+        RandomAccessFile data = null;
+        RandomAccessFile index = null;
+        try {
+            data = new RandomAccessFile(mDataFile, "rw");
+            final long dataLength = data.length();
+
+            if (dataLength < HEADER_SIZE || data.readInt() != MAGIC || data.readInt() != VERSION) {
+                WebtrekkLogging.log(WebtrekkLogging.WARN, "Request file {} has unknown format, it is removed", mDataFile.getName());
+                close(data);
+                data = null;
+                delete();
+                return;
+            }
+            final long headOffset = data.readLong();
+            mHeadAttempts = data.readInt();
+
+            index = new RandomAccessFile(mIndexFile, "rw");
+            mEntries = findIndexEnd(index, dataLength);
+            long validEnd = mEntries == 0 ? HEADER_SIZE : getEndOffset(index, mEntries - 1);
+            index.setLength(mEntries * INDEX_ENTRY_SIZE);
+
+            // records after last index entry are added to index, scan is stopped on first broken record
+            final RecordReader reader = new RecordReader(validEnd, dataLength);
+            try {
+                while (reader.next() != null && reader.isValid()) {
+                    validEnd = reader.getOffset();
+                    addPendingIndex(reader.getTime(), validEnd);
+                }
+            } finally {
+                reader.close();
+            }
+
+            if (validEnd < dataLength) {
+                WebtrekkLogging.log(WebtrekkLogging.WARN, "Request file {} is truncated to last valid record, {} bytes are removed",
+                        mDataFile.getName(), dataLength - validEnd);
+                data.setLength(validEnd);
+            }
+            mLength = validEnd;
+            close(index);
+            index = null;
+            writeIndex();
+
+            initHead(headOffset);
+        } catch (IOException e) {
+            WebtrekkLogging.log("Can't open request file", e);
+            close(data);
+            close(index);
+            data = index = null;
+            delete();
+        } finally {
+            close(data);
+            close(index);
+        }
+
+        if (WebtrekkLogging.isLoggable(WebtrekkLogging.DEBUG)) {
+            WebtrekkLogging.log(WebtrekkLogging.DEBUG, "Request file {} is opened in {} us, records:{}",
+                    mDataFile.getName(), (System.nanoTime() - start) / 1000, mEntries - mHeadEntry);
+        }
+    }
+
+    /**
+     * @return number of index entries that point to complete records
+     */
+    private long findIndexEnd(RandomAccessFile index, long dataLength) throws IOException {
+        long low = 0, high = index.length() / INDEX_ENTRY_SIZE;
+
+        // end offsets are increasing, find entries that aren't after end of data
+        while (low < high) {
+            final long mid = (low + high) >>> 1;
+            if (getEndOffset(index, mid) <= dataLength) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        // index is written after data, check that last indexed record is written completely
+        while (low > 0) {
+            final long start = low == 1 ? HEADER_SIZE : getEndOffset(index, low - 2);
+            final RecordReader reader = new RecordReader(start, dataLength);
+            try {
+                if (reader.next() != null && reader.isValid() && reader.getOffset() == getEndOffset(index, low - 1)) {
+                    break;
+                }
+            } finally {
+                reader.close();
+            }
+            low--;
+        }
+        return low;
+    }
+
+    /**
+     * finds first not sent entry, head offset should be end of record
+     */
+    private void initHead(long headOffset) throws IOException {
+        if (headOffset <= HEADER_SIZE || mEntries == 0) {
+            mHeadEntry = 0;
+        } else {
+            RandomAccessFile index = new RandomAccessFile(mIndexFile, "r");
+            try {
+                long low = 0, high = mEntries;
+                while (low < high) {
+                    final long mid = (low + high) >>> 1;
+                    if (getEndOffset(index, mid) <= headOffset) {
+                        low = mid + 1;
+                    } else {
+                        high = mid;
+                    }
+                }
+                mHeadEntry = low;
+            } finally {
+                close(index);
+            }
+        }
+        mHeadOffset = getEndOffset(mHeadEntry - 1);
+        if (mHeadOffset != headOffset && headOffset > HEADER_SIZE) {
+            WebtrekkLogging.log(WebtrekkLogging.WARN, "Head offset {} isn't record boundary, {} is used", headOffset, mHeadOffset);
+        }
+    }
+
+    long getLength() {
+        return mLength;
+    }
+
+    /**
+     * @return offset of first not sent record after open
+     */
+    long getHeadOffset() {
+        return mHeadOffset;
+    }
+
+    /**
+     * @return send attempts of first not sent record after open
+     */
+    int getHeadAttempts() {
+        return mHeadAttempts;
+    }
+
+    /**
+     * @return index entry of first not sent record after open
+     */
+    long getHeadEntry() {
+        return mHeadEntry;
+    }
+
+    /**
+     * @return number of records
+     */
+    long getEntries() {
+        return mEntries;
+    }
+
+    /**
+     * @return end offset of record with index entry or offset of first record for entry -1
+     */
+    long getEndOffset(long entry) throws IOException {
+        if (entry < 0) {
+            return HEADER_SIZE;
+        }
+
+        RandomAccessFile index = new RandomAccessFile(mIndexFile, "r");
+        try {
+            return getEndOffset(index, entry);
+        } finally {
+            close(index);
+        }
+    }
+
+    /**
+     * @return enqueue time of record with index entry
+     */
+    long getTime(long entry) throws IOException {
+        RandomAccessFile index = new RandomAccessFile(mIndexFile, "r");
+        try {
+            index.seek(entry * INDEX_ENTRY_SIZE);
+            return index.readLong();
+        } finally {
+            close(index);
+        }
+    }
+
+    /**
+     * @return number of first entries from firstEntry that have enqueue time less than minTime. Is done with binary search.
+     */
+    int countExpired(long firstEntry, int count, long minTime) throws IOException {
+        RandomAccessFile index = new RandomAccessFile(mIndexFile, "r");
+        try {
+            int low = 0, high = count;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                index.seek((firstEntry + mid) * INDEX_ENTRY_SIZE);
+                if (index.readLong() < minTime) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        } finally {
+            close(index);
+        }
+    }
+
+    private static long getEndOffset(RandomAccessFile index, long entry) throws IOException {
+        index.seek(entry * INDEX_ENTRY_SIZE + 8);
+        return index.readLong();
+    }
+
+    /**
+     * starts append to data file, stream is opened if it isn't opened yet. Header is written if file is new
+     */
+    DataOutputStream openAppend() throws IOException {
+        final boolean isNew = mLength < HEADER_SIZE;
+
+        if (mDataOut == null) {
+            mDataFileOut = new FileOutputStream(mDataFile, !isNew);
+            mDataOut = new DataOutputStream(new BufferedOutputStream(mDataFileOut));
+        }
+
+        if (isNew) {
+            mIndexFile.delete();
+            closeIndex();
+            mDataOut.writeInt(MAGIC);
+            mDataOut.writeInt(VERSION);
+            mDataOut.writeLong(HEADER_SIZE);
+            mDataOut.writeInt(0);
+            mLength = HEADER_SIZE;
+            mEntries = 0;
+            mIndexValid = true;
+            mAppendStart = 0;
+        } else {
+            mAppendStart = mLength;
+        }
+        mPendingIndexSize = 0;
+        return mDataOut;
+    }
+
+    /**
+     * writes record to stream that is returned by {@link #openAppend()}
+     * @return offset of record
+     */
+    long writeRecord(@NonNull DataOutputStream out, long time, @NonNull String url) throws IOException {
+        final byte[] payload = url.getBytes("UTF-8");
+        final long offset = mLength;
+
+        mCrc.reset();
+        mCrc.updateLong(time);
+        mCrc.update(payload);
+        out.writeInt(payload.length);
+        out.writeInt((int) mCrc.getValue());
+        out.writeLong(time);
+        out.write(payload);
+        mLength += RECORD_HEADER_SIZE + payload.length;
+        addPendingIndex(time, mLength);
+        return offset;
+    }
+
+    /**
+     * flushes records that are written after {@link #openAppend()} and writes their index, stream is kept open
+     * @param success false if writing failed, in this case appended data is removed
+     * @return true if records are written
+     */
+    boolean commitAppend(boolean success) {
+        if (success && mDataOut != null) {
+            try {
+                mDataOut.flush();
+            } catch (IOException e) {
+                WebtrekkLogging.log("Can't write request file", e);
+                success = false;
+            }
+        }
+
+        if (success) {
+            writeIndex();
+            return true;
+        }
+
+        // partial record isn't left in file, so next appends are readable
+        close();
+        mPendingIndexSize = 0;
+        mLength = mAppendStart;
+        RandomAccessFile data = null;
+        try {
+            data = new RandomAccessFile(mDataFile, "rw");
+            data.setLength(mAppendStart);
+        } catch (IOException e) {
+            WebtrekkLogging.log("Can't truncate request file", e);
+        } finally {
+            close(data);
+        }
+        return false;
+    }
+
+    private void addPendingIndex(long time, long endOffset) {
+        if (mPendingIndexSize + 2 > mPendingIndex.length) {
+            mPendingIndex = Arrays.copyOf(mPendingIndex, mPendingIndex.length * 2);
+        }
+        mPendingIndex[mPendingIndexSize++] = time;
+        mPendingIndex[mPendingIndexSize++] = endOffset;
+    }
+
+    private void writeIndex() {
+        if (!mIndexValid || mPendingIndexSize == 0) {
+            mPendingIndexSize = 0;
+            return;
+        }
+
+        try {
+            if (mIndexOut == null) {
+                mIndexFileOut = new FileOutputStream(mIndexFile, true);
+                mIndexOut = new DataOutputStream(new BufferedOutputStream(mIndexFileOut));
+            }
+            for (int i = 0; i < mPendingIndexSize; i++) {
+                mIndexOut.writeLong(mPendingIndex[i]);
+            }
+            mIndexOut.flush();
+            mEntries += mPendingIndexSize / 2;
+        } catch (IOException e) {
+            // index is recovered from data file on next open
+            WebtrekkLogging.log("Can't write request index", e);
+            mIndexValid = false;
+            closeIndex();
+        } finally {
+            mPendingIndexSize = 0;
+        }
+    }
+
+    /**
+     * waits until committed records and index are written to storage
+     */
+    void sync() {
+        try {
+            if (mDataFileOut != null) {
+                mDataFileOut.getFD().sync();
+            }
+            if (mIndexFileOut != null) {
+                mIndexFileOut.getFD().sync();
+            }
+        } catch (IOException e) {
+            WebtrekkLogging.log("Can't sync request file", e);
+        }
+    }
+
+    /**
+     * closes append streams, they are opened again on next append
+     */
+    void close() {
+        close(mDataOut);
+        mDataOut = null;
+        mDataFileOut = null;
+        closeIndex();
+    }
+
+    private void closeIndex() {
+        close(mIndexOut);
+        mIndexOut = null;
+        mIndexFileOut = null;
+    }
+
+    /**
+     * saves progress in file header
+     */
+    void writeHead(long headOffset, int headAttempts) {
+        if (mLength < HEADER_SIZE) {
+            return;
+        }
+
+        RandomAccessFile data = null;
+        try {
+            data = new RandomAccessFile(mDataFile, "rw");
+            data.seek(HEAD_OFFSET_POSITION);
+            data.writeLong(headOffset);
+            data.writeInt(headAttempts);
+        } catch (IOException e) {
+            WebtrekkLogging.log("Can't write request file header", e);
+        } finally {
+            close(data);
+        }
+    }
+
+    /**
+     * saves send attempts of first record in file header
+     */
+    void writeHeadAttempts(int headAttempts) {
+        if (mLength < HEADER_SIZE) {
+            return;
+        }
+
+        RandomAccessFile data = null;
+        try {
+            data = new RandomAccessFile(mDataFile, "rw");
+            data.seek(HEAD_ATTEMPTS_POSITION);
+            data.writeInt(headAttempts);
+        } catch (IOException e) {
+            WebtrekkLogging.log("Can't write request file header", e);
+        } finally {
+            close(data);
+        }
+    }
+
+    /**
+     * @return true if data file is deleted or doesn't exist
+     */
+    boolean delete() {
+        close();
+        final boolean success = !mDataFile.exists() || mDataFile.delete();
+
+        mIndexFile.delete();
+        mLength = 0;
+        mEntries = 0;
+        mIndexValid = true;
+        mPendingIndexSize = 0;
+        return success;
+    }
+
+    boolean exists() {
+        return mDataFile.exists();
+    }
+
+    /**
+     * reads records from offset
+     */
+    @NonNull
+    RecordReader openReader(long offset) throws IOException {
+        return new RecordReader(offset, mLength);
+    }
+
+    /**
+     * Sequential reader of records. Record with wrong checksum is returned as empty string, so it can be skipped.
+     */
+    class RecordReader implements Closeable {
+        private final DataInputStream mIn;
+        private final Crc32c mReaderCrc = new Crc32c();
+        private final long mEnd;
+        private long mOffset;
+        private long mTime;
+        private boolean mValid;
+
+        RecordReader(long offset, long end) throws IOException {
+            final FileInputStream in = new FileInputStream(mDataFile);
+            mIn = new DataInputStream(new BufferedInputStream(in));
+            mOffset = offset;
+            mEnd = end;
+            in.getChannel().position(offset);
+        }
+
+        /**
+         * @return url of next record, empty string if checksum is wrong or null if there is no complete record
+         */
+        @Nullable
+        String next() throws IOException {
+            if (mEnd - mOffset < RECORD_HEADER_SIZE) {
+                return null;
+            }
+
+            try {
+                final int length = mIn.readInt();
+                final int crc = mIn.readInt();
+                mTime = mIn.readLong();
+
+                if (length < 0 || length > MAX_RECORD_SIZE || length > mEnd - mOffset - RECORD_HEADER_SIZE) {
+                    return null;
+                }
+
+                final byte[] payload = new byte[length];
+                mIn.readFully(payload);
+                mOffset += RECORD_HEADER_SIZE + length;
+
+                mReaderCrc.reset();
+                mReaderCrc.updateLong(mTime);
+                mReaderCrc.update(payload);
+                mValid = (int) mReaderCrc.getValue() == crc;
+                return mValid ? new String(payload, "UTF-8") : "";
+            } catch (EOFException e) {
+                return null;
+            }
+        }
+
+        /**
+         * @return false if checksum of last record is wrong
+         */
+        boolean isValid() {
+            return mValid;
+        }
+
+        /**
+         * @return end offset of last read record
+         */
+        long getOffset() {
+            return mOffset;
+        }
+
+        /**
+         * @return enqueue time of last read record
+         */
+        long getTime() {
+            return mTime;
+        }
+
+        @Override
+        public void close() {
+            RequestFile.close(mIn);
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                WebtrekkLogging.log("Can't close request file:" + e);
+            }
+        }
+    }
+}
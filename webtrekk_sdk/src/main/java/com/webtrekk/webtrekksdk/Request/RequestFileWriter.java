@@ -0,0 +1,215 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Request;
+
+import android.support.annotation.NonNull;
+
+import com.webtrekk.webtrekksdk.Utils.WebtrekkLogging;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes urls of {@link RequestUrlStore} to {@link RequestFile} on shared I/O thread. Urls are queued by caller
+ * and written with group commit: when {@link #GROUP_COMMIT_SIZE} urls are queued or {@link #GROUP_COMMIT_DELAY_MILLISECONDS}
+ * after first queued url. Urls are written in order of queueing, {@link #sync()} is durability barrier.
+ */
+class RequestFileWriter {
+    static final int GROUP_COMMIT_SIZE = 64;
+    static final long GROUP_COMMIT_DELAY_MILLISECONDS = 5;
+
+    private static ScheduledExecutorService sExecutor;
+
+    /**
+     * Is called on I/O thread
+     */
+    interface Callback {
+        /**
+         * @return false if url is removed from store already and shouldn't be written
+         */
+        boolean shouldWrite(int id);
+
+        /**
+         * url is written and committed to file
+         */
+        void onWritten(int id, long offset);
+
+        /**
+         * group commit is done
+         * @param success false if urls of commit aren't written
+         */
+        void onCommitted(boolean success, long fileLength);
+    }
+
+    private static class Record {
+        final int mID;
+        final long mTime;
+        final String mURL;
+
+        Record(int id, long time, String url) {
+            mID = id;
+            mTime = time;
+            mURL = url;
+        }
+    }
+
+    private final RequestFile mFile;
+    private final Callback mCallback;
+    private List<Record> mQueue = new ArrayList<>(GROUP_COMMIT_SIZE);
+    private boolean mCommitScheduled;
+    private final Runnable mCommitTask = new Runnable() {
+        @Override
+        public void run() {
+            commit();
+        }
+    };
+
+    RequestFileWriter(@NonNull RequestFile file, @NonNull Callback callback) {
+        mFile = file;
+        mCallback = callback;
+    }
+
+    /**
+     * queues url for writing, it is written on I/O thread
+     */
+    void enqueue(int id, long time, @NonNull String url) {
+        synchronized (this) {
+            mQueue.add(new Record(id, time, url));
+
+            if (mQueue.size() == GROUP_COMMIT_SIZE) {
+                getExecutor().execute(mCommitTask);
+            } else if (!mCommitScheduled) {
+                mCommitScheduled = true;
+                getExecutor().schedule(mCommitTask, GROUP_COMMIT_DELAY_MILLISECONDS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * writes all queued urls and waits until they are saved to storage. Shouldn't be called from {@link Callback}
+     */
+    void sync() {
+        runAfterCommit(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mFile) {
+                    mFile.sync();
+                }
+            }
+        });
+    }
+
+    /**
+     * writes all queued urls and runs task on I/O thread, so there is no other commit during task. Waits for task.
+     * Shouldn't be called from {@link Callback}
+     */
+    void runAfterCommit(@NonNull final Runnable task) {
+        final Future<?> future = submit(task);
+
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            WebtrekkLogging.log("Waiting for request file writing is interrupted");
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            WebtrekkLogging.log("Can't write request file", e);
+        }
+    }
+
+    /**
+     * writes all queued urls and runs task on I/O thread without waiting, is used to read urls in background
+     */
+    Future<?> submit(@NonNull final Runnable task) {
+        return getExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                commit();
+                task.run();
+            }
+        });
+    }
+
+    private void commit() {
+        final List<Record> records;
+
+        synchronized (this) {
+            mCommitScheduled = false;
+            if (mQueue.isEmpty()) {
+                return;
+            }
+            records = mQueue;
+            mQueue = new ArrayList<>(GROUP_COMMIT_SIZE);
+        }
+
+        final long[] offsets = new long[records.size()];
+        boolean success = false;
+        final long fileLength;
+
+        synchronized (mFile) {
+            try {
+                final DataOutputStream out = mFile.openAppend();
+                for (int i = 0; i < offsets.length; i++) {
+                    final Record record = records.get(i);
+                    offsets[i] = mCallback.shouldWrite(record.mID) ? mFile.writeRecord(out, record.mTime, record.mURL) : -1;
+                }
+                success = true;
+            } catch (IOException e) {
+                WebtrekkLogging.log("can not save urls", e);
+            } finally {
+                success = mFile.commitAppend(success);
+            }
+            fileLength = mFile.getLength();
+        }
+
+        if (success) {
+            for (int i = 0; i < offsets.length; i++) {
+                if (offsets[i] >= 0) {
+                    mCallback.onWritten(records.get(i).mID, offsets[i]);
+                }
+            }
+        }
+        mCallback.onCommitted(success, fileLength);
+    }
+
+    /**
+     * @return I/O thread that is shared by all request stores
+     */
+    static synchronized ScheduledExecutorService getExecutor() {
+        if (sExecutor == null) {
+            // use daemon thread, it is shared by all stores
+            sExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = Executors.defaultThreadFactory().newThread(r);
+                    t.setName("WebtrekkRequestWriter");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return sExecutor;
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Request;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Ids of queued urls with file offset and enqueue time of each url. Ids are consecutive, they are added to
+ * tail and are removed mostly from head, so values are kept in primitive arrays that are used as circular
+ * buffer indexed by id. Id that is removed in the middle is marked until head or tail reaches it.
+ * Arrays are doubled when range of ids doesn't fit and halved when range uses less than a quarter of them,
+ * so queue that was big once doesn't keep its arrays. Methods are synchronized, caller can synchronize on
+ * queue to do several calls atomically.
+ */
+class RequestIDQueue {
+    static final int INITIAL_CAPACITY = 64;
+    // offsets are kept with +1, so 0 is not known offset of new array
+    private static final long NO_OFFSET = 0;
+    private static final long REMOVED = -1;
+
+    private long[] mOffsets = new long[INITIAL_CAPACITY];
+    // enqueue times, 0 if time isn't known
+    private long[] mTimes = new long[INITIAL_CAPACITY];
+    // first id, it is always in queue if queue isn't empty
+    private int mHead;
+    // id after last one
+    private int mTail;
+    private int mSize;
+
+    synchronized int size() {
+        return mSize;
+    }
+
+    synchronized boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    synchronized int firstKey() {
+        if (mSize == 0) {
+            throw new NoSuchElementException();
+        }
+        return mHead;
+    }
+
+    synchronized int lastKey() {
+        if (mSize == 0) {
+            throw new NoSuchElementException();
+        }
+        return mTail - 1;
+    }
+
+    synchronized boolean containsKey(int id) {
+        return id >= mHead && id < mTail && mOffsets[slot(id)] != REMOVED;
+    }
+
+    /**
+     * @return file offset of url or -1 if it isn't known
+     */
+    synchronized long getOffset(int id) {
+        return containsKey(id) ? mOffsets[slot(id)] - 1 : -1;
+    }
+
+    /**
+     * sets offset if id is in queue
+     */
+    synchronized void setOffset(int id, long offset) {
+        if (containsKey(id)) {
+            mOffsets[slot(id)] = offset + 1;
+        }
+    }
+
+    /**
+     * @return enqueue time of url or 0 if it isn't known
+     */
+    synchronized long getTime(int id) {
+        return containsKey(id) ? mTimes[slot(id)] : 0;
+    }
+
+    /**
+     * adds id after last one, offset of new id isn't known
+     */
+    synchronized void add(int id, long time) {
+        if (mSize == 0) {
+            mHead = id;
+            mTail = id;
+        } else if (id < mTail) {
+            throw new IllegalArgumentException("id " + id + " is less than next id " + mTail);
+        }
+
+        ensureCapacity(id - mHead + 1);
+        // ids that are skipped are marked as removed
+        for (; mTail < id; mTail++) {
+            mOffsets[slot(mTail)] = REMOVED;
+        }
+        mOffsets[slot(id)] = NO_OFFSET;
+        mTimes[slot(id)] = time;
+        mTail = id + 1;
+        mSize++;
+    }
+
+    /**
+     * replaces queue with ids from 0 to count - 1, which offsets and times aren't known. Arrays are
+     * allocated without filling.
+     */
+    synchronized void reset(int count, long headOffset) {
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < count) {
+            capacity <<= 1;
+        }
+        mOffsets = new long[capacity];
+        mTimes = new long[capacity];
+        mHead = 0;
+        mTail = count;
+        mSize = count;
+        if (count > 0) {
+            mOffsets[0] = headOffset + 1;
+        }
+    }
+
+    /**
+     * @return false if id isn't in queue
+     */
+    synchronized boolean remove(int id) {
+        if (!containsKey(id)) {
+            return false;
+        }
+
+        mOffsets[slot(id)] = REMOVED;
+        mSize--;
+        if (mSize == 0) {
+            mHead = mTail;
+        } else {
+            while (mOffsets[slot(mHead)] == REMOVED) {
+                mHead++;
+            }
+            while (mOffsets[slot(mTail - 1)] == REMOVED) {
+                mTail--;
+            }
+        }
+        shrinkIfSparse();
+        return true;
+    }
+
+    synchronized void clear() {
+        mHead = 0;
+        mTail = 0;
+        mSize = 0;
+        if (mOffsets.length > INITIAL_CAPACITY) {
+            mOffsets = new long[INITIAL_CAPACITY];
+            mTimes = new long[INITIAL_CAPACITY];
+        }
+    }
+
+    private int slot(int id) {
+        return id & (mOffsets.length - 1);
+    }
+
+    /**
+     * @return length of arrays, is used by tests
+     */
+    synchronized int capacity() {
+        return mOffsets.length;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mOffsets.length) {
+            return;
+        }
+
+        int newCapacity = mOffsets.length << 1;
+        while (newCapacity < capacity) {
+            newCapacity <<= 1;
+        }
+        resize(newCapacity);
+    }
+
+    /**
+     * arrays are halved while range of ids uses less than a quarter of them, so range fills at least quarter
+     * of new arrays and next adds don't grow them again at once
+     */
+    private void shrinkIfSparse() {
+        int newCapacity = mOffsets.length;
+        final int range = mTail - mHead;
+
+        while (newCapacity > INITIAL_CAPACITY && range < newCapacity / 4) {
+            newCapacity >>= 1;
+        }
+        if (newCapacity != mOffsets.length) {
+            resize(newCapacity);
+        }
+    }
+
+    private void resize(int newCapacity) {
+        final long[] offsets = new long[newCapacity];
+        final long[] times = new long[newCapacity];
+        for (int id = mHead; id < mTail; id++) {
+            offsets[id & (newCapacity - 1)] = mOffsets[slot(id)];
+            times[id & (newCapacity - 1)] = mTimes[slot(id)];
+        }
+        mOffsets = offsets;
+        mTimes = times;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Request;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Delivery lanes of requests. Each lane has own {@link RequestUrlStore} with own capacity, so
+ * big number of page views can't evict exception or CDB requests. {@link RequestProcessor} sends
+ * requests from not empty lanes with weighted round robin, lanes with bigger weight are sent first.
+ */
+public enum RequestLane {
+    EXCEPTION("-exception", 8, 100),
+    CDB("-cdb", 4, 50),
+    INSTALL("-install", 4, 20),
+    // general lane keeps file and settings of single store, capacity isn't limited as before
+    GENERAL("", 1, 0);
+
+    private final String mStoreSuffix;
+    private final int mWeight;
+    private final int mCapacity;
+
+    RequestLane(String storeSuffix, int weight, int capacity) {
+        mStoreSuffix = storeSuffix;
+        mWeight = weight;
+        mCapacity = capacity;
+    }
+
+    /**
+     * @return suffix of file and settings keys of lane store
+     */
+    public String getStoreSuffix() {
+        return mStoreSuffix;
+    }
+
+    public int getWeight() {
+        return mWeight;
+    }
+
+    /**
+     * @return maximum number of requests in lane, oldest ones are removed if it is exceeded. 0 for unlimited
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @param isInstall true if request reports application install goal or campaign
+     */
+    @NonNull
+    static RequestLane forRequest(@NonNull TrackingRequest request, boolean isInstall) {
+        switch (request.getRequestType()) {
+            case ECXEPTION:
+                return EXCEPTION;
+            case CDB:
+                return CDB;
+            case INSTALL:
+                return INSTALL;
+            default:
+                if (isInstall) {
+                    return INSTALL;
+                }
+                return request.getMergedRequestType() == TrackingRequest.RequestType.CDB ? CDB : GENERAL;
+        }
+    }
+}
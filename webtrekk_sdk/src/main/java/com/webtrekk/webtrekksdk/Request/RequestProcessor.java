@@ -20,19 +20,27 @@ package com.webtrekk.webtrekksdk.Request;
 
 import com.webtrekk.webtrekksdk.Utils.PinConnectionValidator;
 import com.webtrekk.webtrekksdk.Utils.WebtrekkLogging;
+import com.webtrekk.webtrekksdk.Utils.WebtrekkMetrics;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.net.HttpURLConnection;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.Map;
 
 import javax.net.ssl.HttpsURLConnection;
 
 /**
  * this class sends the requests to the server
- * it handles just the networking tasks
+ * it handles just the networking tasks. Requests of several lanes are sent with smooth weighted
+ * round robin, so lane with weight 8 sends 8 requests per each request of lane with weight 1.
+ * Request that receives server error {@link #MAX_ATTEMPTS} times is moved to quarantine, so it doesn't
+ * block other requests. Quarantine is retried only if it is due, see {@link #setQuarantine(RequestStore, boolean)}.
+ * Connectivity errors aren't counted as attempts, request stays in its store until network is available again.
  *
  * @hide
  */
@@ -40,17 +48,84 @@ public class RequestProcessor implements Runnable {
 
     public static final int NETWORK_CONNECTION_TIMEOUT = 60 * 1000;  // 1 minute
     private static final int NETWORK_READ_TIMEOUT = 60 * 1000;  // 1 minute
+    // server errors after that request is moved to quarantine
+    static final int MAX_ATTEMPTS = 3;
+    // server errors in quarantine after that request is removed
+    static final int MAX_QUARANTINE_ATTEMPTS = 10;
+    // maximum number of quarantined requests that are sent in one run
+    static final int QUARANTINE_BATCH = 10;
+    // status of request that isn't sent because of connectivity error, it is retried later without counting attempt
+    public static final int NETWORK_ERROR = 0;
 
-    private final RequestUrlStore mRequestUrlStore;
+    private final RequestStore[] mStores;
+    private final int[] mWeights;
+    private final int[] mCurrentWeights;
     private final PinConnectionValidator mValidator;
+    private RequestStore mQuarantineStore;
+    private boolean mIsQuarantineRetryDue;
+    private long mEventTtl;
 
     public interface ProcessOutputCallback {
         void process(int statusCode, HttpsURLConnection connection);
     }
 
-    public RequestProcessor(RequestUrlStore requestUrlStore, PinConnectionValidator validator) {
-        mRequestUrlStore = requestUrlStore;
+    /**
+     * opens connections instead of {@link #getUrlConnection(URL)}. Is used only by tests that send requests to
+     * local plain http collector, see {@link RequestFactory#setConnectionFactory(ConnectionFactory)}
+     */
+    public interface ConnectionFactory {
+        HttpURLConnection openConnection(URL url) throws IOException;
+    }
+
+    private final ConnectionFactory mConnectionFactory;
+
+    public RequestProcessor(RequestStore requestUrlStore, PinConnectionValidator validator) {
+        mStores = new RequestStore[]{requestUrlStore};
+        mWeights = new int[]{1};
+        mCurrentWeights = new int[1];
         mValidator = validator;
+        mConnectionFactory = null;
+    }
+
+    /**
+     * @param stores stores of lanes, weight of lane is used for scheduling
+     */
+    public RequestProcessor(Map<RequestLane, ? extends RequestStore> stores, PinConnectionValidator validator) {
+        this(stores, Collections.<RequestStore, RequestLane>emptyMap(), validator);
+    }
+
+    /**
+     * @param stores stores of lanes, weight of lane is used for scheduling
+     * @param segmentStores stores with requests of other processes in multi process mode, they are sent
+     *                      with weight of their lanes
+     */
+    public RequestProcessor(Map<RequestLane, ? extends RequestStore> stores, Map<? extends RequestStore, RequestLane> segmentStores,
+                            PinConnectionValidator validator) {
+        this(stores, segmentStores, validator, null);
+    }
+
+    /**
+     * @param connectionFactory factory of test connections, they aren't pinned and ProcessOutputCallback isn't
+     *                          called for them. Null to send by https only
+     */
+    RequestProcessor(Map<RequestLane, ? extends RequestStore> stores, Map<? extends RequestStore, RequestLane> segmentStores,
+                     PinConnectionValidator validator, ConnectionFactory connectionFactory) {
+        mConnectionFactory = connectionFactory;
+        final int size = stores.size() + segmentStores.size();
+        mStores = new RequestStore[size];
+        mWeights = new int[size];
+        mCurrentWeights = new int[size];
+        mValidator = validator;
+
+        int i = 0;
+        for (Map.Entry<RequestLane, ? extends RequestStore> entry : stores.entrySet()) {
+            mStores[i] = entry.getValue();
+            mWeights[i++] = entry.getKey().getWeight();
+        }
+        for (Map.Entry<? extends RequestStore, RequestLane> entry : segmentStores.entrySet()) {
+            mStores[i] = entry.getKey();
+            mWeights[i++] = entry.getValue().getWeight();
+        }
     }
 
     /**
@@ -83,12 +158,12 @@ public class RequestProcessor implements Runnable {
      * sends the request to the server and returns the status code
      *
      * @param url
-     * @return statusCode, 0 for retry, -1 for remove, 200 for success
+     * @return statusCode, {@link #NETWORK_ERROR} for retry, -1 for remove, 200 for success
      */
     public int sendRequest(URL url, ProcessOutputCallback processOutput) throws InterruptedException {
-        HttpsURLConnection connection = null;
+        HttpURLConnection connection = null;
         try {
-            connection = getUrlConnection(url);
+            connection = mConnectionFactory == null ? getUrlConnection(url) : mConnectionFactory.openConnection(url);
 
             if (Thread.interrupted())
                 throw new InterruptedException();
@@ -98,26 +173,29 @@ public class RequestProcessor implements Runnable {
             connection.setReadTimeout(NETWORK_READ_TIMEOUT);
             connection.setUseCaches(false);
             connection.connect();
-            mValidator.validatePinning(connection);
+            final HttpsURLConnection httpsConnection = connection instanceof HttpsURLConnection ? (HttpsURLConnection) connection : null;
+            if (httpsConnection != null) {
+                mValidator.validatePinning(httpsConnection);
+            }
             int statusCode = connection.getResponseCode();
 
-            if (processOutput != null)
-                processOutput.process(statusCode, connection);
+            if (processOutput != null && httpsConnection != null)
+                processOutput.process(statusCode, httpsConnection);
 
             return statusCode;
 
         } catch (EOFException e) {
             WebtrekkLogging.log("RequestProcessor: EOF > Will retry later.", e);
-            return 500;
+            return NETWORK_ERROR;
         } catch (SocketTimeoutException e) {
             WebtrekkLogging.log("RequestProcessor: SocketTimeout > Will retry later.", e);
-            return 500;
+            return NETWORK_ERROR;
         } catch (SocketException e) {
             WebtrekkLogging.log("RequestProcessor: Socket Exception.", e);
-            return 500;
+            return NETWORK_ERROR;
         } catch (UnknownHostException e) {
             WebtrekkLogging.log("RequestProcessor: UnknownHost > Will retry later.", e);
-            return 500;
+            return NETWORK_ERROR;
         } catch (IOException e) {
             WebtrekkLogging.log("io exception: can not connect to host", e);
             WebtrekkLogging.log("RequestProcessor: IO > Removing URL from queue because exception cannot be handled.", e);
@@ -137,36 +215,190 @@ public class RequestProcessor implements Runnable {
     }
 
 
+    /**
+     * @param quarantineStore store for requests that fail repeatedly, null disables quarantine
+     * @param isRetryDue if true some quarantined requests are sent before other ones
+     */
+    public void setQuarantine(RequestStore quarantineStore, boolean isRetryDue) {
+        mQuarantineStore = quarantineStore;
+        mIsQuarantineRetryDue = isRetryDue;
+    }
+
+    /**
+     * @param eventTtl time in milliseconds after that request is removed without sending, 0 disables expiry
+     */
+    public void setEventTtl(long eventTtl) {
+        mEventTtl = eventTtl;
+    }
+
+    /**
+     * removes expired requests from all stores before sending
+     */
+    private void removeExpired() {
+        final long minTime = System.currentTimeMillis() - mEventTtl;
+
+        for (RequestStore store : mStores) {
+            store.removeExpired(minTime);
+        }
+        if (mQuarantineStore != null) {
+            mQuarantineStore.removeExpired(minTime);
+        }
+    }
+
+    private static boolean isSuccess(int statusCode) {
+        return statusCode >= 200 && statusCode < 400;
+    }
+
+    private static boolean isNetworkError(int statusCode) {
+        return statusCode == NETWORK_ERROR;
+    }
+
+    private static boolean isServerError(int statusCode) {
+        return statusCode >= 500 && statusCode < 600;
+    }
+
+    /**
+     * sends first requests of quarantine. Stops on first server or connectivity error, as server probably isn't available
+     */
+    private void retryQuarantine() throws InterruptedException {
+        final WebtrekkMetrics metrics = WebtrekkMetrics.getInstance();
+
+        for (int i = 0; i < QUARANTINE_BATCH && mQuarantineStore.size() > 0; i++) {
+            final URL url = getUrl(mQuarantineStore.peek());
+
+            if (url == null) {
+                mQuarantineStore.removeLastURL();
+                metrics.increment(WebtrekkMetrics.Counter.EVICTED);
+                continue;
+            }
+
+            final long sendStart = System.nanoTime();
+            final int statusCode = sendRequest(url, null);
+            metrics.recordTime(WebtrekkMetrics.Timer.SEND, sendStart);
+
+            if (isSuccess(statusCode)) {
+                mQuarantineStore.removeLastURL();
+                metrics.increment(WebtrekkMetrics.Counter.SENT);
+            } else if (isNetworkError(statusCode)) {
+                break;
+            } else if (isServerError(statusCode)) {
+                final int attempts = mQuarantineStore.getHeadAttempts() + 1;
+                if (attempts >= MAX_QUARANTINE_ATTEMPTS) {
+                    WebtrekkLogging.log(WebtrekkLogging.WARN, "Removing URL from quarantine after {} attempts", attempts);
+                    mQuarantineStore.removeLastURL();
+                    metrics.increment(WebtrekkMetrics.Counter.EVICTED);
+                } else {
+                    mQuarantineStore.setHeadAttempts(attempts);
+                }
+                break;
+            } else {
+                mQuarantineStore.removeLastURL();
+                metrics.increment(WebtrekkMetrics.Counter.DROPPED_4XX);
+            }
+        }
+    }
+
+    /**
+     * selects store of next request with smooth weighted round robin between not empty stores
+     * @return store or null if all stores are empty
+     */
+    private RequestStore nextStore() {
+        int selected = -1;
+        int totalWeight = 0;
+
+        for (int i = 0; i < mStores.length; i++) {
+            if (mStores[i].size() > 0) {
+                mCurrentWeights[i] += mWeights[i];
+                totalWeight += mWeights[i];
+                if (selected < 0 || mCurrentWeights[i] > mCurrentWeights[selected]) {
+                    selected = i;
+                }
+            }
+        }
+
+        if (selected < 0) {
+            return null;
+        }
+
+        mCurrentWeights[selected] -= totalWeight;
+        return mStores[selected];
+    }
+
     @Override
     public void run() {
-        while (mRequestUrlStore.size() > 0) {
+        final WebtrekkMetrics metrics = WebtrekkMetrics.getInstance();
+        RequestStore store;
+        // request before current one is quarantined
+        boolean isQuarantinedBefore = false;
+
+        if (mEventTtl > 0) {
+            removeExpired();
+        }
+
+        if (mQuarantineStore != null && mIsQuarantineRetryDue) {
+            try {
+                retryQuarantine();
+            } catch (InterruptedException e) {
+                // thread is interrupted, don't send other requests
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        while ((store = nextStore()) != null) {
 
             Thread.yield();
             if (Thread.interrupted())
                 break;
 
-            final String urlString = mRequestUrlStore.peek();
+            final String urlString = store.peek();
             final URL url = getUrl(urlString);
             if (url == null) {
-                WebtrekkLogging.log("Removing invalid URL '" + urlString + "' from queue. remaining: " + mRequestUrlStore.size());
-                mRequestUrlStore.removeLastURL();
+                WebtrekkLogging.log(WebtrekkLogging.WARN, "Removing invalid URL '{}' from queue.", urlString);
+                store.removeLastURL();
+                metrics.increment(WebtrekkMetrics.Counter.EVICTED);
                 continue;
             }
 
 
             try {
                 final int statusCode;
+                final long sendStart = System.nanoTime();
                 statusCode = sendRequest(url, null);
-                WebtrekkLogging.log("received status " + statusCode);
-                if (statusCode >= 200 && statusCode < 400) {
+                metrics.recordTime(WebtrekkMetrics.Timer.SEND, sendStart);
+                if (WebtrekkLogging.isLoggable(WebtrekkLogging.DEBUG)) {
+                    WebtrekkLogging.log(WebtrekkLogging.DEBUG, "received status {}", statusCode);
+                }
+                if (isSuccess(statusCode)) {
                     //successful send, remove url from store
-                    mRequestUrlStore.removeLastURL();
-                } else if (statusCode >= 500 && statusCode < 600) {
+                    store.removeLastURL();
+                    metrics.increment(WebtrekkMetrics.Counter.SENT);
+                    isQuarantinedBefore = false;
+                } else if (isNetworkError(statusCode)) {
+                    //server isn't reachable, try to send later without counting attempt
+                    metrics.increment(WebtrekkMetrics.Counter.RETRIED);
+                    break;
+                } else if (isServerError(statusCode)) {
+                    final int attempts = store.getHeadAttempts() + 1;
+                    // if next request fails as well, server isn't available and request isn't quarantined
+                    if (mQuarantineStore != null && attempts >= MAX_ATTEMPTS && !isQuarantinedBefore) {
+                        // url is removed from lane only if quarantine accepted it, otherwise it is retried in lane
+                        if (mQuarantineStore.addURL(urlString)) {
+                            WebtrekkLogging.log(WebtrekkLogging.WARN, "Move URL to quarantine after {} attempts: {}", attempts, urlString);
+                            store.removeLastURL();
+                            metrics.increment(WebtrekkMetrics.Counter.QUARANTINED);
+                            isQuarantinedBefore = true;
+                            continue;
+                        }
+                        WebtrekkLogging.log(WebtrekkLogging.WARN, "Quarantine rejected URL, it stays in lane: {}", urlString);
+                    }
                     //try to send later
+                    store.setHeadAttempts(attempts);
+                    metrics.increment(WebtrekkMetrics.Counter.RETRIED);
                     break;
                 } else { //400-499 case
                     WebtrekkLogging.log("removing URL from queue as status code is between 400 and 499 or unexpected.");
-                    mRequestUrlStore.removeLastURL();
+                    store.removeLastURL();
+                    metrics.increment(WebtrekkMetrics.Counter.DROPPED_4XX);
                 }
             } catch (InterruptedException e) {
                 // thread is interrupted exit from run loop
@@ -174,8 +406,13 @@ public class RequestProcessor implements Runnable {
             }
         }
 
-        if (mRequestUrlStore.size() == 0)
-            mRequestUrlStore.deleteRequestsFile();
+        for (RequestStore laneStore : mStores) {
+            if (laneStore.size() == 0)
+                laneStore.deleteRequestsFile();
+        }
+        if (mQuarantineStore != null && mQuarantineStore.size() == 0)
+            mQuarantineStore.deleteRequestsFile();
         WebtrekkLogging.log("Processing URL task is finished");
+        metrics.notifyListener();
     }
 }
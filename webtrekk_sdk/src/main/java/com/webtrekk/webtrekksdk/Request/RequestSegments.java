@@ -0,0 +1,249 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Request;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+
+import com.webtrekk.webtrekksdk.Utils.WebtrekkLogging;
+import com.webtrekk.webtrekksdk.Utils.WebtrekkMetrics;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Request stores of several processes in multi process mode. Each process saves requests to own stores, their
+ * files have process suffix. Only one process sends requests, it is elected with lock of sender lock file.
+ * Other processes move saved requests to segment files with {@link #handOver(Map)}, sender sends segments
+ * as additional stores of their lanes and removes them when they are empty. Lock is released by system
+ * when process dies, so other process becomes sender. Index of segment is moved before its request file, so
+ * sender opens only complete segments.
+ * <p>
+ * Other files of SDK are kept consistent between processes too: state file is locked with file lock,
+ * crash buffer and product list journal have process suffix and configuration cache is replaced with rename.
+ */
+class RequestSegments {
+    static final String SEGMENTS_DIR = "wt-request-segments";
+    private static final String SENDER_LOCK_FILE = "wt-sender.lock";
+    private static final String INDEX_FILE_SUFFIX = "-index";
+
+    private final Context mContext;
+    private final File mSegmentsDir;
+    private final String mProcessSuffix;
+    private RandomAccessFile mSenderLockFile;
+    private FileLock mSenderLock;
+    private int mSegmentNumber;
+    // opened segments of other processes
+    private final Map<String, RequestUrlStore> mSegmentStores = new HashMap<>();
+    private final Map<RequestUrlStore, RequestLane> mSegmentLanes = new HashMap<>();
+
+    RequestSegments(@NonNull Context context) {
+        mContext = context;
+        mSegmentsDir = new File(context.getFilesDir(), SEGMENTS_DIR);
+
+        final String processName = getProcessName(context);
+        final int separator = processName.indexOf(':');
+        // main process keeps file names of single process mode
+        mProcessSuffix = processName.equals(context.getPackageName()) ? ""
+                : "-" + processName.substring(separator + 1).replaceAll("[^A-Za-z0-9_]", "_");
+        WebtrekkLogging.log("Multi process mode, process: " + processName);
+    }
+
+    /**
+     * @return suffix that is added to store files of this process, it is empty for main process
+     */
+    @NonNull
+    String getProcessSuffix() {
+        return mProcessSuffix;
+    }
+
+    /**
+     * @return true if this process sends requests. Lock is acquired if no process holds it
+     */
+    synchronized boolean isSender() {
+        if (mSenderLock != null) {
+            return true;
+        }
+
+        try {
+            if (mSenderLockFile == null) {
+                mSenderLockFile = new RandomAccessFile(new File(mContext.getFilesDir(), SENDER_LOCK_FILE), "rw");
+            }
+            mSenderLock = mSenderLockFile.getChannel().tryLock();
+        } catch (IOException e) {
+            WebtrekkLogging.log("Can't lock sender file", e);
+        } catch (OverlappingFileLockException e) {
+            WebtrekkLogging.log("Sender file is locked already: " + e);
+        }
+
+        if (mSenderLock != null) {
+            WebtrekkLogging.log("Process is elected as sender of requests");
+        }
+        return mSenderLock != null;
+    }
+
+    /**
+     * moves saved requests of stores to segments, so sender process sends them. Segments are request files,
+     * so only {@link RequestUrlStore} can be handed over.
+     */
+    void handOver(@NonNull Map<RequestLane, RequestStore> stores) {
+        for (Map.Entry<RequestLane, RequestStore> entry : stores.entrySet()) {
+            if (!(entry.getValue() instanceof RequestUrlStore)) {
+                continue;
+            }
+
+            final RequestUrlStore store = (RequestUrlStore) entry.getValue();
+
+            if (store.size() == 0) {
+                continue;
+            }
+
+            final File laneDir = new File(mSegmentsDir, entry.getKey().name());
+            if (!laneDir.isDirectory() && !laneDir.mkdirs()) {
+                WebtrekkLogging.log("Can't create segments directory " + laneDir.getPath());
+                continue;
+            }
+
+            store.flush();
+            // time is first, so segments are sorted by time of hand over
+            final String name = String.format("%013d-%d-%d", System.currentTimeMillis(), android.os.Process.myPid(), mSegmentNumber++);
+            store.moveSavedURLs(new File(laneDir, name));
+        }
+    }
+
+    /**
+     * saves progress of opened segments if process is sender, otherwise moves saved requests of stores to segments
+     */
+    void flush(@NonNull Map<RequestLane, RequestStore> stores) {
+        if (!isSender()) {
+            handOver(stores);
+            return;
+        }
+
+        for (RequestUrlStore store : mSegmentLanes.keySet()) {
+            store.flush();
+        }
+    }
+
+    /**
+     * removes requests of all segments, is done only by sender
+     */
+    void clear() {
+        if (!isSender()) {
+            return;
+        }
+
+        for (RequestUrlStore store : mSegmentLanes.keySet()) {
+            store.clearAllTrackingData();
+            store.setStorageQuota(null);
+        }
+        mSegmentStores.clear();
+        mSegmentLanes.clear();
+
+        for (RequestLane lane : RequestLane.values()) {
+            final File[] files = new File(mSegmentsDir, lane.name()).listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * opens segments that are handed over by other processes and closes removed ones. Should be called by sender
+     * only, before requests are sent
+     *
+     * @return segment stores with their lanes
+     */
+    @NonNull
+    Map<RequestUrlStore, RequestLane> updateSegmentStores(StorageQuota quota) {
+        final Iterator<Map.Entry<String, RequestUrlStore>> iterator = mSegmentStores.entrySet().iterator();
+
+        while (iterator.hasNext()) {
+            final RequestUrlStore store = iterator.next().getValue();
+            if (store.size() == 0) {
+                store.deleteRequestsFile();
+                store.setStorageQuota(null);
+                mSegmentLanes.remove(store);
+                iterator.remove();
+            }
+        }
+
+        for (RequestLane lane : RequestLane.values()) {
+            final String[] names = new File(mSegmentsDir, lane.name()).list();
+
+            if (names == null) {
+                continue;
+            }
+
+            Arrays.sort(names);
+            for (String name : names) {
+                final File file = new File(new File(mSegmentsDir, lane.name()), name);
+                if (name.endsWith(INDEX_FILE_SUFFIX) || mSegmentStores.containsKey(file.getPath())) {
+                    continue;
+                }
+
+                final RequestUrlStore store = new RequestUrlStore(mContext, file, "", 0, WebtrekkMetrics.Gauge.STORE_SIZE);
+                store.setStorageQuota(quota);
+                mSegmentStores.put(file.getPath(), store);
+                mSegmentLanes.put(store, lane);
+                WebtrekkLogging.log("Segment " + name + " is opened, requests:" + store.size());
+            }
+        }
+        return new HashMap<>(mSegmentLanes);
+    }
+
+    /**
+     * @return process name from proc file system or package name if it can't be read
+     */
+    @NonNull
+    private static String getProcessName(@NonNull Context context) {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream("/proc/self/cmdline");
+            final byte[] buffer = new byte[256];
+            final int length = in.read(buffer);
+            int end = 0;
+            while (end < length && buffer[end] != 0) {
+                end++;
+            }
+            if (end > 0) {
+                return new String(buffer, 0, end, "UTF-8");
+            }
+        } catch (IOException e) {
+            WebtrekkLogging.log("Can't read process name", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    WebtrekkLogging.log("Can't close process name file", e);
+                }
+            }
+        }
+        return context.getPackageName();
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Request;
+
+import android.support.annotation.NonNull;
+
+import java.util.List;
+
+/**
+ * Queue of request urls that aren't sent yet. Urls are sent in order of adding, only first url is sent
+ * and removed when it is acknowledged by server. {@link RequestUrlStore} saves urls to own file format,
+ * {@link SQLiteRequestStore} saves them to SQLite database, implementation is selected with configuration.
+ */
+public interface RequestStore {
+    /**
+     * adds url to the end of queue, drops old ones if capacity or storage quota is exceeded
+     *
+     * @return false if url is rejected by storage quota
+     */
+    boolean addURL(String requestUrl);
+
+    /**
+     * adds url with original enqueue time, is used when urls are moved from other store
+     *
+     * @param enqueueTime time when url was added first, urls should be added in order of time
+     * @return false if url is rejected by storage quota
+     */
+    boolean addURL(String requestUrl, long enqueueTime);
+
+    /**
+     * @return first url of queue. Queue shouldn't be empty. Url is remembered for {@link #removeLastURL()}
+     * and {@link #setHeadAttempts(int)}, as it can be evicted by other thread while it is sent
+     */
+    String peek();
+
+    /**
+     * @param maxCount maximum number of urls
+     * @return first urls of queue that can be got without additional reading, list can be shorter than
+     * maxCount even if queue has more urls
+     */
+    @NonNull
+    List<String> peek(int maxCount);
+
+    /**
+     * @return time when first url was added. Queue shouldn't be empty
+     */
+    long getHeadTime();
+
+    /**
+     * removes first url of queue after it is sent or dropped. If url that was returned by last {@link #peek()}
+     * isn't first one anymore, because it is evicted meanwhile, nothing is removed
+     */
+    void removeLastURL();
+
+    /**
+     * removes oldest url because capacity or storage quota is exceeded. Url that is sent now stays peeked,
+     * see {@link #removeLastURL()}
+     *
+     * @return false if queue is empty
+     */
+    boolean evictOldest();
+
+    /**
+     * @return number of urls in queue
+     */
+    int size();
+
+    /**
+     * saves all urls and position of first url, after that queue is restored after restart
+     */
+    void flush();
+
+    /**
+     * removes all urls and saved data
+     */
+    void clearAllTrackingData();
+
+    /**
+     * @return number of failed send attempts of first url
+     */
+    int getHeadAttempts();
+
+    /**
+     * set number of failed send attempts of first url, value is saved immediately. Attempts are ignored if
+     * url that was returned by last {@link #peek()} is evicted meanwhile
+     */
+    void setHeadAttempts(int attempts);
+
+    /**
+     * removes urls that are added before minTime
+     *
+     * @return number of removed urls
+     */
+    int removeExpired(long minTime);
+
+    /**
+     * restores saved queue if queue is empty
+     */
+    void reset();
+
+    /**
+     * removes saved data if queue is empty
+     */
+    void deleteRequestsFile();
+
+    /**
+     * sets quota that limits bytes of this store together with other ones
+     */
+    void setStorageQuota(StorageQuota quota);
+
+    /**
+     * @return bytes of queued urls
+     */
+    long getQueuedBytes();
+}
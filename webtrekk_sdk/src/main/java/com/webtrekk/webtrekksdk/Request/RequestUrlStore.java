@@ -20,208 +20,715 @@ package com.webtrekk.webtrekksdk.Request;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.util.LruCache;
+import android.support.annotation.NonNull;
 
 import com.webtrekk.webtrekksdk.Utils.HelperFunctions;
 import com.webtrekk.webtrekksdk.Utils.WebtrekkLogging;
+import com.webtrekk.webtrekksdk.Utils.WebtrekkMetrics;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.io.UnsupportedEncodingException;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * this class acts as a local storage for the url strings before the are send
- * it gets instantiated only once by the main webtrekk class
+ * it gets instantiated once for each {@link RequestLane} by the main webtrekk class
+ *
+ * Urls are saved in {@link RequestFile} as checksummed records in order of ids. File header keeps offset
+ * of first not sent url, index keeps enqueue time of each url, so expired urls can be found with binary
+ * search and removed without reading them. Urls that are evicted from cache are written by {@link RequestFileWriter}
+ * on I/O thread, they are kept in memory until they are written. Ids with their offsets and enqueue times are
+ * kept in {@link RequestIDQueue}, cached and loaded urls are kept in {@link URLWindow}, so there are no boxed entries per url.
  */
 
-public class RequestUrlStore {
+public class RequestUrlStore implements RequestStore {
 
     final static private String FILE_NAME = "wt-tracking-requests";
+    final static private String INDEX_FILE_SUFFIX = "-index";
+    final static private String MIGRATION_FILE_SUFFIX = "-migration";
+    // urls of old text file that are written with one commit
+    final static private int MIGRATION_GROUP_SIZE = 1000;
+    final static private int NO_ID = -1;
     final private File mRequestStoreFile;
-    final private LruCache<Integer, String> mURLCache;
-    //keys for current queu. Key can be point to not loaded URL
-    final private SortedMap<Integer, Long> mIDs = Collections.synchronizedSortedMap(new TreeMap<Integer, Long>());
+    final private File mIndexFile;
+    final private RequestFile mFile;
+    final private RequestFileWriter mWriter;
+    // last added urls, evicted ones are written to file
+    final private URLWindow mURLCache;
+    //keys for current queu with file offset and enqueue time. Key can be point to not loaded URL
+    final private RequestIDQueue mIDs = new RequestIDQueue();
     final int mReadGroupSize = 200;
-    final private Map<Integer, String> mLoaddedIDs = new HashMap<>(mReadGroupSize);
+    // urls that are loaded from file. While they are sent, next group is read to second window on I/O thread
+    private volatile URLWindow mLoaddedIDs = new URLWindow(mReadGroupSize);
+    private URLWindow mPrefetchedIDs = new URLWindow(mReadGroupSize);
+    final private Object mPrefetchLock = new Object();
+    // read of next group that isn't taken yet, null if read isn't started
+    private Future<?> mPrefetch;
+    // is increased when ids are changed without sending, so started read is ignored
+    private int mPrefetchGeneration;
+    // id after last url of read group, is set on I/O thread
+    private int mPrefetchEndID;
 
     //Next string index
     private int mIndex;
-    // current readed index in file
+    // urls with id up to this one are saved to file, urls are saved in order of ids
     private volatile long mLatestSavedURLID = -1;
+    // urls with id up to this one are queued for writing, not written ones are in mPendingURLs
+    private long mLatestQueuedURLID = -1;
+    final private Map<Integer, String> mPendingURLs = Collections.synchronizedMap(new HashMap<Integer, String>());
+    // settings keys of text file format, they are used only to migrate old file
     private static String URL_STORE_CURRENT_SIZE = "URL_STORE_CURRENT_SIZE";
     private static String URL_STORE_SENDED_URL_OFSSET = "URL_STORE_SENDED_URL_OFSSET";
+    private static String URL_STORE_HEAD_ATTEMPTS = "URL_STORE_HEAD_ATTEMPTS";
+    final private String mSizeKey;
+    final private String mOffsetKey;
+    final private String mHeadAttemptsKey;
+    final private int mCapacity;
+    final private WebtrekkMetrics.Gauge mSizeGauge;
+    // failed send attempts of first url, only first url is sent, so other urls don't have attempts
+    private int mHeadAttempts;
+    // first url is read, removed and evicted under this lock, so eviction on track thread doesn't remove
+    // url that is sent instead of evicted one
+    final private Object mHeadLock = new Object();
+    // id of url that is returned by last peek, NO_ID if it is removed
+    private int mPeekedID = NO_ID;
     final private Context mContext;
+    // values that are added to metrics gauges by this store, gauges are sum of all lanes
+    private long mReportedSize;
+    private long mReportedBytes;
+    // urls with id less than this one are loaded from previous session, their times are in index only
+    private int mRestoredCount;
+    // index entry of url with id 0
+    private long mBaseEntry;
+    // bytes of queued urls with their index entries, they are reserved in storage quota
+    private long mQueuedBytes;
+    private StorageQuota mQuota;
 
     /**
-     * constructs a new RequestlStore object
+     * constructs a new RequestlStore object for general requests
      *
      * @param context the application/activity context to find the cache dir
      */
     public RequestUrlStore(Context context) {
+        this(context, RequestLane.GENERAL);
+    }
+
+    /**
+     * constructs a new RequestlStore object for lane
+     *
+     * @param context the application/activity context to find the cache dir
+     * @param lane lane that defines file, settings keys and capacity of store
+     */
+    public RequestUrlStore(Context context, RequestLane lane) {
+        this(context, lane.getStoreSuffix(), lane.getCapacity(), WebtrekkMetrics.Gauge.STORE_SIZE);
+    }
+
+    /**
+     * constructs a new RequestlStore object
+     *
+     * @param context the application/activity context to find the cache dir
+     * @param suffix suffix of file and settings keys
+     * @param capacity maximum number of urls, 0 for unlimited
+     * @param sizeGauge gauge that counts urls of store
+     */
+    public RequestUrlStore(Context context, String suffix, int capacity, WebtrekkMetrics.Gauge sizeGauge) {
+        this(context, context == null ? null : new File(context.getFilesDir(), FILE_NAME + suffix), suffix, capacity, sizeGauge);
+    }
+
+    /**
+     * @return true if request file of store with suffix exists, old file in cache dir is checked for general store
+     */
+    static boolean exists(@NonNull Context context, String suffix) {
+        return new File(context.getFilesDir(), FILE_NAME + suffix).exists()
+                || (suffix.isEmpty() && new File(context.getCacheDir(), FILE_NAME).exists());
+    }
+
+    /**
+     * constructs a new RequestlStore object for file, is used for segments of other processes
+     *
+     * @param context the application/activity context to find the cache dir
+     * @param file request file, index file has the same name with index suffix
+     * @param suffix suffix of settings keys
+     * @param capacity maximum number of urls, 0 for unlimited
+     * @param sizeGauge gauge that counts urls of store
+     */
+    RequestUrlStore(Context context, File file, String suffix, int capacity, WebtrekkMetrics.Gauge sizeGauge) {
 
         if(context == null) {
             throw new IllegalArgumentException("no valid context");
         }
 
         mContext = context;
-        mRequestStoreFile = new File(context.getFilesDir(), FILE_NAME);
+        mRequestStoreFile = file;
+        mIndexFile = new File(file.getPath() + INDEX_FILE_SUFFIX);
+        mFile = new RequestFile(mRequestStoreFile, mIndexFile);
+        mWriter = new RequestFileWriter(mFile, new RequestFileWriter.Callback() {
+            @Override
+            public boolean shouldWrite(int id) {
+                return mIDs.containsKey(id);
+            }
 
-        File fileInCash = new File(context.getCacheDir(), FILE_NAME);
+            @Override
+            public void onWritten(int id, long offset) {
+                mIDs.setOffset(id, offset);
+                mLatestSavedURLID = id;
+                mPendingURLs.remove(id);
+            }
 
-        if (fileInCash.exists() && !mRequestStoreFile.exists()){
-            fileInCash.renameTo(mRequestStoreFile);
-        }
+            @Override
+            public void onCommitted(boolean success, long fileLength) {
+                if (!success) {
+                    WebtrekkLogging.log(WebtrekkLogging.WARN, "Urls aren't saved to file, they are kept in memory only");
+                }
+                updateBytesGauge(fileLength);
+            }
+        });
+        mSizeKey = URL_STORE_CURRENT_SIZE + suffix;
+        mOffsetKey = URL_STORE_SENDED_URL_OFSSET + suffix;
+        mHeadAttemptsKey = URL_STORE_HEAD_ATTEMPTS + suffix;
+        mCapacity = capacity;
+        mSizeGauge = sizeGauge;
 
-        initFileAttributes();
+        // old versions kept only general queue of main process in cache dir
+        if (mRequestStoreFile.equals(new File(context.getFilesDir(), FILE_NAME))) {
+            File fileInCash = new File(context.getCacheDir(), FILE_NAME);
+
+            if (fileInCash.exists() && !mRequestStoreFile.exists()) {
+                fileInCash.renameTo(mRequestStoreFile);
+            }
+        }
 
         final int maxSize = 20;
 
-        mURLCache = new LruCache<Integer, String>(maxSize){
+        mURLCache = new URLWindow(maxSize){
             @Override
-            protected void entryRemoved(boolean evicted, Integer key, final String oldValue, String newValue) {
-                if (evicted && oldValue != null)
-                {
-                    saveURLsToFile(new SaveURLAction(){
-
-                        @Override
-                        public void onSave(PrintWriter writer) {
-                            writer.println(oldValue);
-                        }
-                    });
-
-                    mLatestSavedURLID = key;
+            protected void entryEvicted(int key, String oldValue) {
+                synchronized (mPendingURLs) {
+                    if (key > mLatestQueuedURLID) {
+                        // older urls that are still in cache are queued first to keep order of ids in file
+                        queueURLs(key - 1);
+                        queueURL(key, oldValue);
+                        mLatestQueuedURLID = key;
+                    }
                 }
             }
         };
+
+        initFileAttributes();
     }
 
     private void initFileAttributes() {
-        SharedPreferences pref = HelperFunctions.getWebTrekkSharedPreference(mContext);
-        mIndex = pref.getInt(URL_STORE_CURRENT_SIZE, 0);
-        long sentURLFileOffset = pref.getLong(URL_STORE_SENDED_URL_OFSSET, -1);
+        if (mRequestStoreFile.exists() && !RequestFile.isRecordFile(mRequestStoreFile)) {
+            migrateTextFile();
+        }
+
+        mFile.open();
+        mIndex = (int)(mFile.getEntries() - mFile.getHeadEntry());
+        mHeadAttempts = mIndex > 0 ? mFile.getHeadAttempts() : 0;
         WebtrekkLogging.log("read store size:"+mIndex);
 
-        for (int i = 0; i < mIndex; i++) {
-            mIDs.put(i, -1l);
+        // offsets of restored urls are set when they are loaded, only first one is known
+        mIDs.reset(mIndex, mFile.getHeadOffset());
+        discardPrefetch();
+        mLoaddedIDs.clear();
+        mPendingURLs.clear();
+        mLatestSavedURLID = mIndex - 1;
+        mLatestQueuedURLID = mIndex - 1;
+        mRestoredCount = mIndex;
+        mBaseEntry = mFile.getHeadEntry();
+        // urls of previous session are in the end of request file
+        mQueuedBytes = mIndex == 0 ? 0 : mFile.getLength() - mFile.getHeadOffset() + (long)mIndex * RequestFile.INDEX_ENTRY_SIZE;
+        if (mQuota != null) {
+            mQuota.add(mQueuedBytes);
+        }
+        updateSizeGauges();
+    }
+
+    /**
+     * converts request file of previous text format, where each url is line and progress is saved in settings
+     */
+    private void migrateTextFile() {
+        final SharedPreferences pref = HelperFunctions.getWebTrekkSharedPreference(mContext);
+        final int size = pref.getInt(mSizeKey, 0);
+        final long offset = Math.max(pref.getLong(mOffsetKey, -1), 0);
+        final int headAttempts = pref.getInt(mHeadAttemptsKey, 0);
+        // records are written to temporary file line by line, so queue isn't kept in memory
+        final File migratedFile = new File(mRequestStoreFile.getPath() + MIGRATION_FILE_SUFFIX);
+        final RequestFile migrated = new RequestFile(migratedFile, new File(migratedFile.getPath() + INDEX_FILE_SUFFIX));
+        // enqueue time isn't known, so time of migration is used
+        final long now = System.currentTimeMillis();
+        int count = 0;
+        boolean success = false;
+
+        migrated.delete();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(mRequestStoreFile), "UTF-8"));
+            reader.skip(offset);
+            DataOutputStream out = migrated.openAppend();
+            String line;
+            while (count < size && (line = readLegacyLine(reader)) != null) {
+                migrated.writeRecord(out, now, line);
+                // index entries are kept in memory until commit, so they are written in groups
+                if (++count % MIGRATION_GROUP_SIZE == 0) {
+                    if (!migrated.commitAppend(true)) {
+                        throw new IOException("cannot write migrated urls");
+                    }
+                    out = migrated.openAppend();
+                }
+            }
+            success = true;
+        } catch (IOException e) {
+            WebtrekkLogging.log("cannot migrate request file", e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    WebtrekkLogging.log("cannot close old request file", e);
+                }
+            }
+        }
+
+        // if writing failed, urls of committed groups are kept
+        migrated.commitAppend(success);
+        migrated.writeHead(RequestFile.HEADER_SIZE, headAttempts);
+        migrated.close();
+        mFile.delete();
+        if (migratedFile.renameTo(mRequestStoreFile)
+                && new File(migratedFile.getPath() + INDEX_FILE_SUFFIX).renameTo(mIndexFile)) {
+            WebtrekkLogging.log("Migrate " + count + " urls to record format");
+        } else {
+            WebtrekkLogging.log("Old request file isn't migrated, its urls are removed");
+            migrated.delete();
+            mFile.delete();
+        }
+        pref.edit().remove(mSizeKey).remove(mOffsetKey).remove(mHeadAttemptsKey).apply();
+    }
+
+    /**
+     * @return next url of old text file or null if file end is reached or can't be read
+     */
+    private static String readLegacyLine(BufferedReader reader) {
+        try {
+            return reader.readLine();
+        } catch (IOException e) {
+            WebtrekkLogging.log("cannot read old request file", e);
+            return null;
+        }
+    }
+
+    /**
+     * sets quota that limits bytes of this store together with other ones. Bytes of urls that are in store already
+     * are added to quota.
+     */
+    public void setStorageQuota(StorageQuota quota) {
+        if (mQuota != null) {
+            mQuota.release(mQueuedBytes);
+        }
+        mQuota = quota;
+        if (mQuota != null) {
+            mQuota.add(mQueuedBytes);
+        }
+    }
+
+    /**
+     * @return bytes of queued urls including index entries
+     */
+    public synchronized long getQueuedBytes() {
+        return mQueuedBytes;
+    }
+
+    private static long getURLBytes(String url) {
+        return RequestFile.RECORD_HEADER_SIZE + url.length() + RequestFile.INDEX_ENTRY_SIZE;
+    }
+
+    private synchronized void releaseBytes(long bytes) {
+        bytes = Math.min(bytes, mQueuedBytes);
+        mQueuedBytes -= bytes;
+        if (mQuota != null) {
+            mQuota.release(bytes);
         }
-        if (mIndex > 0) {
-            mIDs.put(0, sentURLFileOffset);
+    }
+
+    /**
+     * reserves quota bytes for new url, removes oldest urls of this or lower priority stores if quota policy allows it
+     * @return false if url should be rejected
+     */
+    private boolean reserveBytes(long bytes) {
+        while (!mQuota.tryReserve(bytes)) {
+            // urls of lower priority stores are evicted first
+            if (!mQuota.isEvictPolicy() || !mQuota.evict(this)) {
+                WebtrekkLogging.log(WebtrekkLogging.WARN, "Storage quota {} bytes is exceeded, url is rejected", mQuota.getMaxBytes());
+                WebtrekkMetrics.getInstance().increment(WebtrekkMetrics.Counter.QUOTA_REJECTED);
+                return false;
+            }
         }
+        return true;
     }
 
+    private void updateSizeGauges()
+    {
+        updateSizeGauge();
+        updateBytesGauge(mFile.getLength());
+    }
+
+    private synchronized void updateSizeGauge()
+    {
+        final int size = mIDs.size();
+        WebtrekkMetrics.getInstance().addGauge(mSizeGauge, size - mReportedSize);
+        mReportedSize = size;
+    }
+
+    private synchronized void updateBytesGauge(long bytes)
+    {
+        WebtrekkMetrics.getInstance().addGauge(WebtrekkMetrics.Gauge.STORE_BYTES, bytes - mReportedBytes);
+        mReportedBytes = bytes;
+    }
+
+    /**
+     * saves offset of first url and its attempts in file header
+     */
     private void writeFileAttributes()
     {
-        WebtrekkLogging.log("save store size:"+mIDs.size());
-        SharedPreferences.Editor prefEdit = HelperFunctions.getWebTrekkSharedPreference(mContext).edit();
-        prefEdit.putLong(URL_STORE_SENDED_URL_OFSSET, mIDs.size() == 0 ? -1:mIDs.get(mIDs.firstKey()));
-        prefEdit.putInt(URL_STORE_CURRENT_SIZE, mIDs.size()).apply();
+        if (WebtrekkLogging.isLoggable(WebtrekkLogging.DEBUG)) {
+            WebtrekkLogging.log(WebtrekkLogging.DEBUG, "save store size:{}", mIDs.size());
+        }
+        synchronized (mFile) {
+            mFile.writeHead(getHeadOffset(), mHeadAttempts);
+        }
     }
 
-    private interface SaveURLAction
+    /**
+     * @return offset of first url in file. If first url isn't saved, all saved urls are sent already
+     */
+    private long getHeadOffset()
     {
-        void onSave(PrintWriter writer);
+        synchronized (mIDs) {
+            final long offset = mIDs.isEmpty() ? -1 : mIDs.getOffset(mIDs.firstKey());
+            return offset < 0 ? mFile.getLength() : offset;
+        }
+    }
+
+    /**
+     * @return number of failed send attempts of first url
+     */
+    public int getHeadAttempts() {
+        return mHeadAttempts;
+    }
+
+    /**
+     * set number of failed send attempts of first url, value is saved immediately
+     */
+    public void setHeadAttempts(int attempts) {
+        synchronized (mHeadLock) {
+            // peeked url is evicted, attempts don't belong to current first url
+            if (mPeekedID != NO_ID && (mIDs.isEmpty() || mIDs.firstKey() != mPeekedID)) {
+                return;
+            }
+            saveHeadAttempts(attempts);
+        }
+    }
+
+    private void saveHeadAttempts(int attempts) {
+        mHeadAttempts = attempts;
+        synchronized (mFile) {
+            mFile.writeHeadAttempts(attempts);
+        }
     }
 
     public void reset()
     {
         // reset only if class was removed
-        if (mIDs.size() == 0)
-          initFileAttributes();
+        if (mIDs.size() == 0) {
+            mWriter.sync();
+            initFileAttributes();
+        }
     }
 
-    //Save URL to file
-    private void saveURLsToFile(SaveURLAction action)
+    // queues url for writing, it is kept in memory until it is written
+    private void queueURL(int id, String url)
     {
-        try {
-            PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mRequestStoreFile, true), "UTF-8")));
-            try {
-                action.onSave(writer);
+        final long time = mIDs.getTime(id);
+        mPendingURLs.put(id, url);
+        mWriter.enqueue(id, time == 0 ? System.currentTimeMillis() : time, url);
+    }
+
+    // queues urls up to lastID that aren't queued yet in order of ids
+    private void queueURLs(int lastID)
+    {
+        synchronized (mPendingURLs) {
+            if (lastID <= mLatestQueuedURLID) {
+                return;
+            }
+
+            int id;
+            synchronized (mIDs) {
+                id = mIDs.isEmpty() ? lastID + 1 : Math.max((int)mLatestQueuedURLID + 1, mIDs.firstKey());
             }
-            finally {
-                writer.close();
+
+            for (; id <= lastID; id++) {
+                if (!mIDs.containsKey(id)) {
+                    continue;
+                }
+                final String url = mURLCache.get(id);
+                if (url == null) {
+                    if (!mIDs.containsKey(id)) {
+                        continue;
+                    }
+                    // url is evicted on other thread now, it and next urls are queued there
+                    mLatestQueuedURLID = id - 1;
+                    return;
+                }
+                queueURL(id, url);
             }
+            mLatestQueuedURLID = lastID;
         }
-        catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
+    }
+
+    /**
+     * moves saved urls to other file and removes them from store, so other process can send them.
+     * Urls that aren't saved yet stay in store and are saved to new file.
+     *
+     * @param target new request file, index is moved to file with index suffix
+     * @return number of moved urls
+     */
+    int moveSavedURLs(@NonNull final File target)
+    {
+        final int[] moved = new int[1];
+
+        mWriter.runAfterCommit(new Runnable() {
+            @Override
+            public void run() {
+                final long movedBytes;
+
+                // writer thread is used, so there is no commit between move and removing of saved ids
+                synchronized (mFile) {
+                    if (!mFile.exists() || mLatestSavedURLID < 0) {
+                        return;
+                    }
+                    final long headOffset = getHeadOffset();
+                    mFile.writeHead(headOffset, mHeadAttempts);
+                    movedBytes = mFile.getLength() - headOffset;
+                    mFile.close();
+                    // index is moved first, other process opens target only when request file appears,
+                    // so it never reads request file without its index
+                    final File targetIndex = new File(target.getPath() + INDEX_FILE_SUFFIX);
+                    if (mIndexFile.exists() && !mIndexFile.renameTo(targetIndex)) {
+                        WebtrekkLogging.log("Can't move index file to " + targetIndex.getPath());
+                        mFile.open();
+                        return;
+                    }
+                    if (!mRequestStoreFile.renameTo(target)) {
+                        WebtrekkLogging.log("Can't move request file to " + target.getPath());
+                        if (targetIndex.exists() && !targetIndex.renameTo(mIndexFile)) {
+                            WebtrekkLogging.log("Can't restore index file " + mIndexFile.getPath());
+                        }
+                        mFile.open();
+                        return;
+                    }
+                    mFile.open();
+                }
+                discardPrefetch();
+
+                final int lastSavedID = (int)mLatestSavedURLID;
+                int id;
+                synchronized (mIDs) {
+                    id = mIDs.isEmpty() ? lastSavedID + 1 : mIDs.firstKey();
+                }
+                for (; id <= lastSavedID; id++) {
+                    // url that isn't written because of error is kept in memory
+                    if (mIDs.containsKey(id) && !mPendingURLs.containsKey(id)) {
+                        removeKey(id);
+                        moved[0]++;
+                    }
+                }
+                releaseBytes(movedBytes + (long)moved[0] * RequestFile.INDEX_ENTRY_SIZE);
+                mRestoredCount = 0;
+                mHeadAttempts = 0;
+                updateBytesGauge(0);
+            }
+        });
+
+        if (moved[0] > 0) {
+            WebtrekkLogging.log(moved[0] + " urls are moved to " + target.getName());
         }
-        catch (Exception e) {
-            WebtrekkLogging.log("can not save url", e);
+        return moved[0];
+    }
+
+    /**
+     * removes urls that are added before minTime. Urls are in order of adding, so only first ones are checked.
+     * Urls from previous session are found with binary search in index and removed without reading them.
+     *
+     * @param minTime minimum enqueue time of url that isn't expired
+     * @return number of removed urls
+     */
+    public int removeExpired(long minTime)
+    {
+        int removed = 0;
+
+        if (size() > 0 && mIDs.firstKey() < mRestoredCount) {
+            removed += removeExpiredRestored(minTime);
+        }
+
+        while (size() > 0 && mIDs.firstKey() >= mRestoredCount) {
+            final int id = mIDs.firstKey();
+            final long time = mIDs.getTime(id);
+
+            if (time == 0 || time >= minTime) {
+                break;
+            }
+            // bytes of url that is saved to file and isn't loaded are calculated from offsets before it is removed
+            final long savedBytes = getSavedURLBytes(id);
+            final String url = removeKey(id);
+            releaseBytes(url == null ? savedBytes : getURLBytes(url));
+            removed++;
+        }
+
+        if (removed > 0) {
+            WebtrekkLogging.log(WebtrekkLogging.WARN, "{} urls are expired and removed", removed);
+            WebtrekkMetrics.getInstance().add(WebtrekkMetrics.Counter.EXPIRED, removed);
+            if (mHeadAttempts != 0) {
+                saveHeadAttempts(0);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return bytes of saved url with its index entry. Record ends at offset of next saved url or at end of file
+     * if next urls aren't saved yet. 0 if url isn't saved
+     */
+    private long getSavedURLBytes(int id)
+    {
+        long end = -1;
+
+        synchronized (mIDs) {
+            final long offset = mIDs.getOffset(id);
+            if (offset < 0) {
+                return 0;
+            }
+
+            final int lastID = mIDs.lastKey();
+            for (int next = id + 1; next <= lastID; next++) {
+                if (mIDs.containsKey(next)) {
+                    end = mIDs.getOffset(next);
+                    break;
+                }
+            }
+            if (end < 0) {
+                end = mFile.getLength();
+            }
+            return Math.max(0, end - offset) + RequestFile.INDEX_ENTRY_SIZE;
+        }
+    }
+
+    private int removeExpiredRestored(long minTime)
+    {
+        final int firstID = mIDs.firstKey();
+
+        try {
+            final int expired = mFile.countExpired(mBaseEntry + firstID, mRestoredCount - firstID, minTime);
+
+            if (expired == 0) {
+                return 0;
+            }
+
+            final long firstOffset = mFile.getEndOffset(mBaseEntry + firstID - 1);
+            final long headOffset = mFile.getEndOffset(mBaseEntry + firstID + expired - 1);
+            for (int id = firstID; id < firstID + expired; id++) {
+                removeKey(id);
+            }
+            releaseBytes(headOffset - firstOffset + (long)expired * RequestFile.INDEX_ENTRY_SIZE);
+            // next url starts after last expired one
+            mIDs.setOffset(firstID + expired, headOffset);
+            return expired;
+        } catch (IOException e) {
+            WebtrekkLogging.log("can't read request index", e);
+            return 0;
         }
     }
 
     // flush to file all data, clear cache.
     public void flush()
     {
-        if (size() > 0 && mLatestSavedURLID < mIDs.lastKey()) {
-            WebtrekkLogging.log("Flush items to memory. Size:"+size() + " latest saved URL ID:"+ mLatestSavedURLID + " latest IDS:"+ mIDs.lastKey());
-            saveURLsToFile(new SaveURLAction() {
-                @Override
-                public void onSave(PrintWriter writer) {
-                    for (Integer id : mIDs.keySet()) {
-                        if (id <= mLatestSavedURLID)
-                            continue;
-                        String url = mURLCache.get(id);
-                        if (url != null) {
-                            writer.println(url);
-                            mLatestSavedURLID = id;
-                        }
-                    }
-                }
-            });
+        final long flushStart = System.nanoTime();
+
+        if (size() > 0 && mLatestQueuedURLID < mIDs.lastKey()) {
+            if (WebtrekkLogging.isLoggable(WebtrekkLogging.DEBUG)) {
+                WebtrekkLogging.log(WebtrekkLogging.DEBUG, "Flush items to memory. Size:{} latest saved URL ID:{} latest IDS:{}",
+                        size(), mLatestSavedURLID, mIDs.lastKey());
+            }
+            queueURLs(mIDs.lastKey());
         }
+        // wait until all queued urls are written, so header points to saved url
+        mWriter.sync();
         writeFileAttributes();
-        // for debug only uncomment
-        //dumpFile();
+        WebtrekkMetrics.getInstance().recordTime(WebtrekkMetrics.Timer.FLUSH, flushStart);
     }
 
     public void clearAllTrackingData()
     {
-        clearLruCash();
+        mURLCache.clear();
         mIDs.clear();
+        // queued urls aren't written after ids are cleared, wait for current writing
+        mWriter.sync();
+        discardPrefetch();
         mLoaddedIDs.clear();
+        mPendingURLs.clear();
+        releaseBytes(mQueuedBytes);
         mIndex = 0;
         mLatestSavedURLID = -1;
+        mLatestQueuedURLID = -1;
+        mRestoredCount = 0;
+        mHeadAttempts = 0;
         deleteRequestsFile();
-        writeFileAttributes();
+        updateSizeGauges();
     }
 
-    // Should be called befor clear ids
-    private void clearLruCash()
+    public String peek()
     {
-        for (Integer id: mIDs.keySet())
-        {
-            mURLCache.remove(id);
+        synchronized (mHeadLock) {
+            final String url = loadHead();
+            mPeekedID = mIDs.isEmpty() ? NO_ID : mIDs.firstKey();
+            return url;
         }
     }
 
-
-    public String peek()
+    /**
+     * @return first url, it is loaded from file if required. Is called under head lock
+     */
+    private String loadHead()
     {
         int id = mIDs.firstKey();
         String url = mURLCache.get(id);
         if (url == null) {
             url = mLoaddedIDs.get(id);
+            if (url == null)
+                url = mPendingURLs.get(id);
+            if (url == null)
+                url = takePrefetchedURL(id);
             if (url == null) {
                 //not url in cash, get it from file
                 if (mLoaddedIDs.size() > 0)
                     WebtrekkLogging.log("Something wrong with logic. mLoaddedIDs should be zero if url isn't found");
                 if (isURLFileExists()) {
-                    if (loadRequestsFromFile(mReadGroupSize, mIDs.get(id), id))
-                       url = mLoaddedIDs.get(id);
+                    final URLWindow loaded = mLoaddedIDs;
+                    final int endID = loadRequestsFromFile(loaded, mReadGroupSize, mIDs.getOffset(id), id);
+                    if (endID > id) {
+                        url = loaded.get(id);
+                        schedulePrefetch(endID);
+                    }
                     else // file is corrupted or missed
                     {
                         deleteAllCashedIDs();
@@ -239,20 +746,91 @@ public class RequestUrlStore {
         return url;
     }
 
+    /**
+     * returns first url and next urls that are cached, loaded with it or not written yet
+     */
+    @NonNull
+    @Override
+    public List<String> peek(int maxCount)
+    {
+        final List<String> urls = new ArrayList<>();
+
+        if (size() == 0 || maxCount <= 0) {
+            return urls;
+        }
+
+        final String first;
+        synchronized (mHeadLock) {
+            first = loadHead();
+        }
+        if (first == null) {
+            return urls;
+        }
+        urls.add(first);
+
+        final int[] ids;
+        int count = 0;
+        synchronized (mIDs) {
+            ids = new int[Math.min(maxCount, mIDs.size())];
+            if (!mIDs.isEmpty()) {
+                final int lastID = mIDs.lastKey();
+                for (int id = mIDs.firstKey(); id <= lastID && count < ids.length; id++) {
+                    if (mIDs.containsKey(id)) {
+                        ids[count++] = id;
+                    }
+                }
+            }
+        }
+
+        for (int i = 1; i < count; i++) {
+            final int id = ids[i];
+            String url = mURLCache.get(id);
+            if (url == null)
+                url = mLoaddedIDs.get(id);
+            if (url == null)
+                url = mPendingURLs.get(id);
+            if (url == null)
+                break;
+            urls.add(url);
+        }
+        return urls;
+    }
+
     private boolean isURLFileExists()
     {
-        return mRequestStoreFile.exists();
+        return mFile.exists();
     }
 
 
     /**
-     * adds a new url string to the store, drops old ones if the maximum request limit is exceeded
+     * adds a new url string to the store, drops old ones if the lane capacity is exceeded or if storage quota
+     * is exceeded and its policy is evict
      *
      * @param requestUrl string representation of a tracking request
+     * @return false if url is rejected by storage quota
      */
-    public void addURL(String requestUrl) {
+    public boolean addURL(String requestUrl) {
+        return addURL(requestUrl, System.currentTimeMillis());
+    }
+
+    public boolean addURL(String requestUrl, long enqueueTime) {
+        final long bytes = getURLBytes(requestUrl);
+
+        while (mCapacity > 0 && size() >= mCapacity) {
+            WebtrekkLogging.log(WebtrekkLogging.WARN, "Lane capacity {} is exceeded, remove oldest url", mCapacity);
+            evictOldest();
+        }
+        if (mQuota != null && !reserveBytes(bytes)) {
+            return false;
+        }
+        synchronized (this) {
+            mQueuedBytes += bytes;
+        }
+        // url is cached before id is added, so flush on other thread doesn't see id without url
         mURLCache.put(mIndex, requestUrl);
-        mIDs.put(mIndex++, -1l);
+        mIDs.add(mIndex++, enqueueTime);
+        updateSizeGauge();
+        return true;
     }
 
     public int size()
@@ -260,89 +838,240 @@ public class RequestUrlStore {
        return mIDs.size();
     }
 
+    public long getHeadTime() {
+        final int id = mIDs.firstKey();
+        long time = mIDs.getTime(id);
+
+        // times of urls from previous session are kept in index file only
+        if (time == 0 && id < mRestoredCount) {
+            try {
+                time = mFile.getTime(mBaseEntry + id);
+            } catch (IOException e) {
+                WebtrekkLogging.log("Can't read enqueue time of url:" + e);
+            }
+        }
+        return time == 0 ? System.currentTimeMillis() : time;
+    }
+
     public void removeLastURL() {
-        removeKey(mIDs.firstKey());
+        synchronized (mHeadLock) {
+            final int peekedID = mPeekedID;
+
+            mPeekedID = NO_ID;
+            if (mIDs.isEmpty() || (peekedID != NO_ID && mIDs.firstKey() != peekedID)) {
+                // peeked url is evicted already, next url isn't sent yet
+                return;
+            }
+            removeHead();
+        }
     }
 
-    private void removeKey(int key)
+    /**
+     * removes oldest url on adding thread. Sender can send it now, then its removeLastURL doesn't remove next url
+     */
+    public boolean evictOldest() {
+        synchronized (mHeadLock) {
+            if (mIDs.isEmpty()) {
+                return false;
+            }
+            // url is loaded from file if required, so offset of next url is known after remove
+            loadHead();
+            removeHead();
+        }
+        WebtrekkMetrics.getInstance().increment(WebtrekkMetrics.Counter.EVICTED);
+        return true;
+    }
+
+    private void removeHead() {
+        final String url = removeKey(mIDs.firstKey());
+        if (url != null) {
+            releaseBytes(getURLBytes(url));
+        }
+        if (mHeadAttempts != 0) {
+            saveHeadAttempts(0);
+        }
+    }
+
+    /**
+     * @return removed url or null if it isn't loaded
+     */
+    private String removeKey(int key)
     {
-        if (mLoaddedIDs.remove(key) == null)
-            mURLCache.remove(key);
+        // id is removed first, so url that isn't in cache is queued for writing only if id exists
         mIDs.remove(key);
+        String url = mLoaddedIDs.remove(key);
+        if (url == null)
+            url = mURLCache.remove(key);
+        final String pendingURL = mPendingURLs.remove(key);
+        if (url == null)
+            url = pendingURL;
+        if (mIDs.isEmpty()) {
+            // release bytes of urls that are removed without loading
+            releaseBytes(mQueuedBytes);
+        }
+        updateSizeGauge();
+        return url;
     }
 
-    private void dumpFile()
+    /**
+     * starts read of urls from firstID on I/O thread, so they are ready when loaded urls are sent.
+     * Only urls that are written to file are read.
+     */
+    private void schedulePrefetch(final int firstID)
     {
-        BufferedReader reader = null;
+        if (firstID > mLatestSavedURLID || !mIDs.containsKey(firstID) || mPendingURLs.containsKey(firstID)) {
+            return;
+        }
+
+        final long offset = mIDs.getOffset(firstID);
+        if (offset < 0) {
+            return;
+        }
+
+        synchronized (mPrefetchLock) {
+            if (mPrefetch != null) {
+                return;
+            }
+
+            final URLWindow target = mPrefetchedIDs;
+            mPrefetch = mWriter.submit(new Runnable() {
+                @Override
+                public void run() {
+                    // window can have urls of ignored read
+                    target.clear();
+                    mPrefetchEndID = loadRequestsFromFile(target, mReadGroupSize, offset, firstID);
+                }
+            });
+        }
+    }
+
+    /**
+     * waits for read that is started by {@link #schedulePrefetch(int)}, usually it is finished already.
+     * Read urls replace loaded ones and read of next group is started.
+     *
+     * @return url of id or null if it isn't read
+     */
+    private String takePrefetchedURL(int id)
+    {
+        final Future<?> prefetch;
+        final int generation;
+
+        synchronized (mPrefetchLock) {
+            prefetch = mPrefetch;
+            generation = mPrefetchGeneration;
+            mPrefetch = null;
+        }
+
+        if (prefetch == null) {
+            return null;
+        }
+
         try {
-            reader = new BufferedReader(new InputStreamReader(new FileInputStream(mRequestStoreFile), "UTF-8"));
+            prefetch.get();
+        } catch (InterruptedException e) {
+            WebtrekkLogging.log("Waiting for request read is interrupted");
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            WebtrekkLogging.log("Can't read requests", e);
+            return null;
+        }
 
-            WebtrekkLogging.log("Dump flushed file start ------------------------------------------------");
-            String line;
-            while ((line = reader.readLine()) != null){
-                WebtrekkLogging.log(line);
+        final int endID;
+        synchronized (mPrefetchLock) {
+            if (generation != mPrefetchGeneration) {
+                return null;
             }
-            WebtrekkLogging.log("Dump flushed file end --------------------------------------------------");
-            WebtrekkLogging.log("IDS:" + Arrays.asList(mIDs).toString());
+            // urls of current window are sent already
+            final URLWindow sent = mLoaddedIDs;
+            sent.clear();
+            mLoaddedIDs = mPrefetchedIDs;
+            mPrefetchedIDs = sent;
+            endID = mPrefetchEndID;
+        }
 
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
+        final String url = mLoaddedIDs.get(id);
+        if (url == null) {
+            mLoaddedIDs.clear();
+            return null;
         }
+        schedulePrefetch(endID);
+        return url;
+    }
 
+    /**
+     * ignores started read, is called when ids are changed without sending
+     */
+    private void discardPrefetch()
+    {
+        synchronized (mPrefetchLock) {
+            mPrefetch = null;
+            mPrefetchGeneration++;
+        }
     }
 
     /**
-     * loads the requests from the cache file if present
+     * loads the requests from the cache file if present. Url with wrong checksum is loaded as empty string,
+     * so it is removed as invalid url during sending.
+     *
+     * @param target window for loaded urls
+     * @return id after last loaded url, it is firstID if nothing is loaded
      */
-    private boolean loadRequestsFromFile(int numbersToLoad, long startOffset, int firstID) {
+    private int loadRequestsFromFile(URLWindow target, int numbersToLoad, long startOffset, int firstID) {
 
         int id = firstID;
-        long offset = startOffset < 0 ? 0 : startOffset;
+        long offset = startOffset < 0 ? RequestFile.HEADER_SIZE : startOffset;
 
         try {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mRequestStoreFile), "UTF-8"));
-            reader.skip(offset);
+            final RequestFile.RecordReader reader;
+            synchronized (mFile) {
+                reader = mFile.openReader(offset);
+            }
             try {
-                String line;
+                String url;
                 int ind = 0;
                 //set offset for first id
-                mIDs.put(id, offset);
-                while ((line = reader.readLine()) != null && ind++ < numbersToLoad && mURLCache.get(id) == null) {
-                    if (mIDs.get(id) == null)
+                mIDs.setOffset(id, offset);
+                while (ind++ < numbersToLoad && mURLCache.get(id) == null && !mPendingURLs.containsKey(id)
+                        && (url = reader.next()) != null) {
+                    if (!mIDs.containsKey(id))
                         WebtrekkLogging.log("File is more then existed keys. Error. Key:" + id + " offset:" + offset);
+                    if (!reader.isValid()) {
+                        WebtrekkLogging.log(WebtrekkLogging.WARN, "Request record at offset {} is corrupted", offset);
+                    }
                     //put URL and increment id
-                    mLoaddedIDs.put(id++, line);
-                    offset += (line.length() + System.getProperty("line.separator").length());
+                    target.put(id++, url);
+                    offset = reader.getOffset();
                    //set offset of next id if exists
-                    if (mIDs.get(id) != null && (mLatestSavedURLID >= id || mLatestSavedURLID == -1) )
-                        mIDs.put(id, offset);
+                    if (mLatestSavedURLID >= id)
+                        mIDs.setOffset(id, offset);
                 }
             } finally {
                 reader.close();
             }
 
-        } catch (Exception e) {
+        } catch (IOException e) {
             WebtrekkLogging.log("cannot load backup file '" + mRequestStoreFile.getAbsolutePath() + "'", e);
-            return false;
+            return firstID;
         }
 
-        return true;
+        return id;
     }
 
     private void deleteAllCashedIDs()
     {
-        while(true)
+        while(size() > 0)
         {
             int id = mIDs.firstKey();
             String url = mURLCache.get(id);
-            if (url == null) {
+            if (url == null)
                 url = mLoaddedIDs.get(id);
-                if (url == null)
-                    removeKey(id);
+            if (url == null)
+                url = mPendingURLs.get(id);
+            if (url == null) {
+                removeKey(id);
+                mHeadAttempts = 0;
+                WebtrekkMetrics.getInstance().increment(WebtrekkMetrics.Counter.EVICTED);
             }else
                 break;
         }
@@ -361,14 +1090,18 @@ public class RequestUrlStore {
             return;
         }
 
-        boolean success = mRequestStoreFile.delete();
+        mWriter.sync();
+        boolean success;
+        synchronized (mFile) {
+            success = mFile.delete();
+        }
         if(success) {
             WebtrekkLogging.log("old backup file deleted");
+            updateBytesGauge(0);
+            mRestoredCount = 0;
         } else {
             WebtrekkLogging.log("error deleting old backup file");
         }
-
-        writeFileAttributes();
     }
 
     /**
@@ -0,0 +1,638 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Request;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.support.annotation.NonNull;
+
+import com.webtrekk.webtrekksdk.Utils.WebtrekkLogging;
+import com.webtrekk.webtrekksdk.Utils.WebtrekkMetrics;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Request store on bundled SQLite database, alternative to {@link RequestUrlStore}. Database uses write
+ * ahead log. New urls are kept in memory and inserted with one transaction per batch on I/O thread of
+ * {@link RequestFileWriter}, so adding thread doesn't wait for database. Sent urls are deleted
+ * by primary key with one statement per batch. Each row has enqueue time column with index, so expired
+ * urls are removed without reading them. Send attempts of first url are kept in its row.
+ * Is used only in single process mode, see {@link RequestSegments}.
+ */
+public class SQLiteRequestStore implements RequestStore {
+    static final String DATABASE_NAME = "wt-tracking-requests";
+    static final int DATABASE_VERSION = 1;
+    // urls that are inserted or deleted with one transaction
+    static final int BATCH_SIZE = 64;
+    // urls that are read with one query
+    static final int READ_GROUP_SIZE = 200;
+    // approximate bytes of row without url, is used for storage quota
+    static final int ROW_OVERHEAD = 32;
+
+    private static final String TABLE = "requests";
+    private static final String COLUMN_ID = "id";
+    private static final String COLUMN_URL = "url";
+    private static final String COLUMN_ENQUEUE_TIME = "enqueue_time";
+    private static final String COLUMN_ATTEMPTS = "attempts";
+
+    private static class Entry {
+        long mID = -1;
+        final String mURL;
+        final long mTime;
+        int mAttempts;
+
+        Entry(String url, long time) {
+            mURL = url;
+            mTime = time;
+        }
+    }
+
+    private static class Helper extends SQLiteOpenHelper {
+        Helper(Context context, String name) {
+            super(context, name, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE + " (" + COLUMN_ID + " INTEGER PRIMARY KEY, " + COLUMN_URL + " TEXT NOT NULL, "
+                    + COLUMN_ENQUEUE_TIME + " INTEGER NOT NULL, " + COLUMN_ATTEMPTS + " INTEGER NOT NULL DEFAULT 0)");
+            db.execSQL("CREATE INDEX " + TABLE + "_" + COLUMN_ENQUEUE_TIME + " ON " + TABLE + " (" + COLUMN_ENQUEUE_TIME + ")");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            // there is only first version, new columns should be added here with ALTER TABLE
+        }
+    }
+
+    private final Context mContext;
+    private final String mDatabaseName;
+    private final Helper mHelper;
+    private final int mCapacity;
+    private final WebtrekkMetrics.Gauge mSizeGauge;
+    private SQLiteDatabase mDatabase;
+    private SQLiteStatement mInsertStatement;
+    private SQLiteStatement mUpdateAttemptsStatement;
+    private boolean mInsertScheduled;
+    private final Runnable mInsertTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (SQLiteRequestStore.this) {
+                mInsertScheduled = false;
+                insertNewEntries();
+            }
+        }
+    };
+    // urls that aren't inserted yet, they are newer than all rows
+    private final List<Entry> mNewEntries = new ArrayList<>();
+    // first not sent rows of database
+    private final ArrayDeque<Entry> mLoadedEntries = new ArrayDeque<>();
+    // url that is returned by last peek, it can be evicted by adding thread while it is sent
+    private Entry mPeekedEntry;
+    // not sent rows in database
+    private int mSavedCount;
+    // rows up to this id are sent, but aren't deleted yet
+    private long mSentID = -1;
+    private int mSentCount;
+    private long mQueuedBytes;
+    private StorageQuota mQuota;
+    // values that are added to metrics gauges by this store, gauges are sum of all lanes
+    private long mReportedSize;
+    private long mReportedBytes;
+
+    /**
+     * constructs a new store and opens its database
+     *
+     * @param context the application/activity context to find the database dir
+     * @param suffix suffix of database name
+     * @param capacity maximum number of urls, 0 for unlimited
+     * @param sizeGauge gauge that counts urls of store
+     */
+    public SQLiteRequestStore(Context context, String suffix, int capacity, WebtrekkMetrics.Gauge sizeGauge) {
+        mContext = context;
+        mDatabaseName = getDatabaseName(suffix);
+        mHelper = new Helper(context, mDatabaseName);
+        mCapacity = capacity;
+        mSizeGauge = sizeGauge;
+        initFromDatabase();
+    }
+
+    static String getDatabaseName(String suffix) {
+        return DATABASE_NAME + suffix + ".db";
+    }
+
+    /**
+     * @return true if database of store with suffix exists
+     */
+    static boolean exists(@NonNull Context context, String suffix) {
+        return context.getDatabasePath(getDatabaseName(suffix)).exists();
+    }
+
+    private SQLiteDatabase getDatabase() {
+        if (mDatabase == null) {
+            mDatabase = mHelper.getWritableDatabase();
+            mDatabase.enableWriteAheadLogging();
+            mInsertStatement = mDatabase.compileStatement("INSERT INTO " + TABLE + " (" + COLUMN_URL + ", "
+                    + COLUMN_ENQUEUE_TIME + ") VALUES (?, ?)");
+            mUpdateAttemptsStatement = mDatabase.compileStatement("UPDATE " + TABLE + " SET "
+                    + COLUMN_ATTEMPTS + " = ? WHERE " + COLUMN_ID + " = ?");
+        }
+        return mDatabase;
+    }
+
+    /**
+     * reads number and bytes of saved urls
+     */
+    private synchronized void initFromDatabase() {
+        deleteSentRows();
+        mLoadedEntries.clear();
+        mSentID = -1;
+        mSentCount = 0;
+        mSavedCount = 0;
+        releaseBytes(mQueuedBytes);
+
+        Cursor cursor = null;
+        try {
+            cursor = getDatabase().rawQuery("SELECT COUNT(*), SUM(LENGTH(" + COLUMN_URL + ")) FROM " + TABLE, null);
+            if (cursor.moveToFirst()) {
+                mSavedCount = cursor.getInt(0);
+                reserveSavedBytes(mSavedCount, cursor.getLong(1));
+            }
+        } catch (SQLiteException e) {
+            WebtrekkLogging.log("can't read request database", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        updateGauges();
+    }
+
+    private void reserveSavedBytes(int count, long urlBytes) {
+        final long bytes = urlBytes + (long)count * ROW_OVERHEAD;
+        mQueuedBytes += bytes;
+        if (mQuota != null) {
+            mQuota.add(bytes);
+        }
+    }
+
+    @Override
+    public synchronized void setStorageQuota(StorageQuota quota) {
+        if (mQuota != null) {
+            mQuota.release(mQueuedBytes);
+        }
+        mQuota = quota;
+        if (mQuota != null) {
+            mQuota.add(mQueuedBytes);
+        }
+    }
+
+    @Override
+    public synchronized long getQueuedBytes() {
+        return mQueuedBytes;
+    }
+
+    private static long getURLBytes(String url) {
+        return url.length() + ROW_OVERHEAD;
+    }
+
+    private void releaseBytes(long bytes) {
+        bytes = Math.min(bytes, mQueuedBytes);
+        mQueuedBytes -= bytes;
+        if (mQuota != null) {
+            mQuota.release(bytes);
+        }
+    }
+
+    /**
+     * reserves quota bytes for new url, removes oldest urls of this or lower priority stores if quota policy allows it
+     * @return false if url should be rejected
+     */
+    private boolean reserveBytes(long bytes) {
+        while (!mQuota.tryReserve(bytes)) {
+            // urls of lower priority stores are evicted first
+            if (!mQuota.isEvictPolicy() || !mQuota.evict(this)) {
+                WebtrekkLogging.log(WebtrekkLogging.WARN, "Storage quota {} bytes is exceeded, url is rejected", mQuota.getMaxBytes());
+                WebtrekkMetrics.getInstance().increment(WebtrekkMetrics.Counter.QUOTA_REJECTED);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean addURL(String requestUrl) {
+        return addURL(requestUrl, System.currentTimeMillis());
+    }
+
+    @Override
+    public synchronized boolean addURL(String requestUrl, long enqueueTime) {
+        final long bytes = getURLBytes(requestUrl);
+
+        while (mCapacity > 0 && size() >= mCapacity) {
+            WebtrekkLogging.log(WebtrekkLogging.WARN, "Lane capacity {} is exceeded, remove oldest url", mCapacity);
+            evictOldest();
+        }
+        if (mQuota != null && !reserveBytes(bytes)) {
+            return false;
+        }
+        mQueuedBytes += bytes;
+        mNewEntries.add(new Entry(requestUrl, enqueueTime));
+        if (mNewEntries.size() >= BATCH_SIZE && !mInsertScheduled) {
+            mInsertScheduled = true;
+            RequestFileWriter.getExecutor().execute(mInsertTask);
+        }
+        updateSizeGauge();
+        return true;
+    }
+
+    @Override
+    public synchronized int size() {
+        return mSavedCount + mNewEntries.size();
+    }
+
+    @Override
+    public synchronized String peek() {
+        final Entry entry = getHead();
+
+        if (entry == null) {
+            WebtrekkLogging.log("Can't get URL, store is empty");
+            return null;
+        }
+        mPeekedEntry = entry;
+        return entry.mURL;
+    }
+
+    @NonNull
+    @Override
+    public synchronized List<String> peek(int maxCount) {
+        final List<String> urls = new ArrayList<>();
+
+        if (getHead() == null) {
+            return urls;
+        }
+
+        for (Entry entry : mLoadedEntries) {
+            if (urls.size() >= maxCount) {
+                return urls;
+            }
+            urls.add(entry.mURL);
+        }
+        // new urls follow rows only if all rows are loaded
+        if (mLoadedEntries.size() == mSavedCount) {
+            for (Entry entry : mNewEntries) {
+                if (urls.size() >= maxCount) {
+                    break;
+                }
+                urls.add(entry.mURL);
+            }
+        }
+        return urls;
+    }
+
+    @Override
+    public synchronized long getHeadTime() {
+        final Entry entry = getHead();
+        return entry == null ? System.currentTimeMillis() : entry.mTime;
+    }
+
+    @Override
+    public synchronized void removeLastURL() {
+        final Entry peeked = mPeekedEntry;
+
+        mPeekedEntry = null;
+        if (peeked != null && !isHead(peeked)) {
+            // peeked url is evicted already, next url isn't sent yet
+            return;
+        }
+        removeHead();
+    }
+
+    /**
+     * removes oldest url on adding thread. Sender can send it now, then its removeLastURL doesn't remove next url
+     */
+    @Override
+    public synchronized boolean evictOldest() {
+        if (getHead() == null) {
+            return false;
+        }
+        removeHead();
+        WebtrekkMetrics.getInstance().increment(WebtrekkMetrics.Counter.EVICTED);
+        return true;
+    }
+
+    /**
+     * @return true if entry is still first url. Loaded rows can be read again, so rows are compared by id
+     */
+    private boolean isHead(@NonNull Entry entry) {
+        final Entry head = getHead();
+        return head == entry || (head != null && entry.mID >= 0 && head.mID == entry.mID);
+    }
+
+    private void removeHead() {
+        final Entry entry = getHead();
+
+        if (entry == null) {
+            return;
+        }
+
+        if (mSavedCount > 0) {
+            mLoadedEntries.poll();
+            mSavedCount--;
+            mSentID = entry.mID;
+            mSentCount++;
+            if (mSentCount >= BATCH_SIZE) {
+                deleteSentRows();
+            }
+        } else {
+            mNewEntries.remove(0);
+        }
+        releaseBytes(getURLBytes(entry.mURL));
+        updateSizeGauge();
+    }
+
+    @Override
+    public synchronized int getHeadAttempts() {
+        final Entry entry = getHead();
+        return entry == null ? 0 : entry.mAttempts;
+    }
+
+    @Override
+    public synchronized void setHeadAttempts(int attempts) {
+        if (mSavedCount == 0) {
+            // attempts are saved in row, so first url should be inserted
+            insertNewEntries();
+        }
+
+        final Entry entry = getHead();
+        if (entry == null || entry.mID < 0 || (mPeekedEntry != null && !isHead(mPeekedEntry))) {
+            return;
+        }
+
+        entry.mAttempts = attempts;
+        try {
+            getDatabase();
+            mUpdateAttemptsStatement.bindLong(1, attempts);
+            mUpdateAttemptsStatement.bindLong(2, entry.mID);
+            mUpdateAttemptsStatement.executeUpdateDelete();
+        } catch (SQLiteException e) {
+            WebtrekkLogging.log("can't save send attempts", e);
+        }
+    }
+
+    /**
+     * removes urls that are added before minTime. Saved urls are found with enqueue time index.
+     */
+    @Override
+    public synchronized int removeExpired(long minTime) {
+        int removed = 0;
+
+        if (mSavedCount > 0) {
+            final String where = COLUMN_ID + " > ? AND " + COLUMN_ENQUEUE_TIME + " < ?";
+            final String[] args = {Long.toString(mSentID), Long.toString(minTime)};
+            Cursor cursor = null;
+
+            try {
+                final SQLiteDatabase db = getDatabase();
+                db.beginTransaction();
+                try {
+                    cursor = db.rawQuery("SELECT COUNT(*), SUM(LENGTH(" + COLUMN_URL + ")) FROM " + TABLE + " WHERE " + where, args);
+                    if (cursor.moveToFirst() && cursor.getInt(0) > 0) {
+                        final int count = cursor.getInt(0);
+                        db.delete(TABLE, where, args);
+                        releaseBytes(cursor.getLong(1) + (long)count * ROW_OVERHEAD);
+                        mSavedCount -= count;
+                        removed += count;
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            } catch (SQLiteException e) {
+                WebtrekkLogging.log("can't remove expired requests", e);
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+            // loaded rows can be removed, next peek reads rows again
+            mLoadedEntries.clear();
+        }
+
+        final Iterator<Entry> iterator = mNewEntries.iterator();
+        while (iterator.hasNext()) {
+            final Entry entry = iterator.next();
+            if (entry.mTime < minTime) {
+                iterator.remove();
+                releaseBytes(getURLBytes(entry.mURL));
+                removed++;
+            }
+        }
+
+        if (removed > 0) {
+            WebtrekkLogging.log(WebtrekkLogging.WARN, "{} urls are expired and removed", removed);
+            WebtrekkMetrics.getInstance().add(WebtrekkMetrics.Counter.EXPIRED, removed);
+            updateSizeGauge();
+        }
+        return removed;
+    }
+
+    @Override
+    public void flush() {
+        final long flushStart = System.nanoTime();
+
+        synchronized (this) {
+            insertNewEntries();
+            deleteSentRows();
+            updateGauges();
+        }
+        WebtrekkMetrics.getInstance().recordTime(WebtrekkMetrics.Timer.FLUSH, flushStart);
+    }
+
+    @Override
+    public synchronized void clearAllTrackingData() {
+        mNewEntries.clear();
+        mLoadedEntries.clear();
+        mSavedCount = 0;
+        mSentID = -1;
+        mSentCount = 0;
+        releaseBytes(mQueuedBytes);
+        try {
+            getDatabase().delete(TABLE, null, null);
+        } catch (SQLiteException e) {
+            WebtrekkLogging.log("can't clear request database", e);
+        }
+        updateGauges();
+    }
+
+    @Override
+    public synchronized void reset() {
+        // reset only if store is empty
+        if (size() == 0) {
+            initFromDatabase();
+        }
+    }
+
+    /**
+     * database is kept, sent rows are deleted from it
+     */
+    @Override
+    public synchronized void deleteRequestsFile() {
+        if (size() != 0) {
+            WebtrekkLogging.log("still items to send. Don't delete sent requests");
+            return;
+        }
+        deleteSentRows();
+    }
+
+    /**
+     * closes and deletes database, is used when store implementation is changed
+     */
+    synchronized void deleteDatabase() {
+        if (size() != 0) {
+            WebtrekkLogging.log("still items to send. Error delete request database");
+            return;
+        }
+
+        if (mDatabase != null) {
+            mInsertStatement.close();
+            mUpdateAttemptsStatement.close();
+            mHelper.close();
+            mDatabase = null;
+        }
+        if (mContext.deleteDatabase(mDatabaseName)) {
+            WebtrekkLogging.log("request database deleted");
+        }
+        updateGauges();
+    }
+
+    /**
+     * @return first url, rows are loaded if required
+     */
+    private Entry getHead() {
+        if (mSavedCount > 0) {
+            if (mLoadedEntries.isEmpty()) {
+                loadRows();
+            }
+            if (!mLoadedEntries.isEmpty()) {
+                return mLoadedEntries.peek();
+            }
+            // rows can't be read, don't block new urls
+            WebtrekkLogging.log("Request database is corrupted, saved urls are skipped:" + mSavedCount);
+            mSavedCount = 0;
+        }
+        return mNewEntries.isEmpty() ? null : mNewEntries.get(0);
+    }
+
+    private void loadRows() {
+        Cursor cursor = null;
+
+        try {
+            cursor = getDatabase().query(TABLE, new String[]{COLUMN_ID, COLUMN_URL, COLUMN_ENQUEUE_TIME, COLUMN_ATTEMPTS},
+                    COLUMN_ID + " > ?", new String[]{Long.toString(mSentID)}, null, null, COLUMN_ID,
+                    Integer.toString(READ_GROUP_SIZE));
+            while (cursor.moveToNext()) {
+                final Entry entry = new Entry(cursor.getString(1), cursor.getLong(2));
+                entry.mID = cursor.getLong(0);
+                entry.mAttempts = cursor.getInt(3);
+                mLoadedEntries.add(entry);
+            }
+        } catch (SQLiteException e) {
+            WebtrekkLogging.log("can't read request database", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * inserts new urls with one transaction, they are kept in memory if insert fails
+     */
+    private void insertNewEntries() {
+        if (mNewEntries.isEmpty()) {
+            return;
+        }
+
+        try {
+            final SQLiteDatabase db = getDatabase();
+            db.beginTransaction();
+            try {
+                for (Entry entry : mNewEntries) {
+                    mInsertStatement.bindString(1, entry.mURL);
+                    mInsertStatement.bindLong(2, entry.mTime);
+                    entry.mID = mInsertStatement.executeInsert();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLiteException e) {
+            WebtrekkLogging.log("can't save requests", e);
+            for (Entry entry : mNewEntries) {
+                entry.mID = -1;
+            }
+            return;
+        }
+
+        // inserted rows are kept loaded if all previous rows are loaded and read group isn't exceeded
+        if (mLoadedEntries.size() == mSavedCount && mSavedCount + mNewEntries.size() <= READ_GROUP_SIZE) {
+            mLoadedEntries.addAll(mNewEntries);
+        }
+        mSavedCount += mNewEntries.size();
+        mNewEntries.clear();
+    }
+
+    /**
+     * deletes sent rows by primary key with one statement
+     */
+    private void deleteSentRows() {
+        if (mSentCount == 0) {
+            return;
+        }
+
+        try {
+            getDatabase().delete(TABLE, COLUMN_ID + " <= ?", new String[]{Long.toString(mSentID)});
+            mSentCount = 0;
+        } catch (SQLiteException e) {
+            WebtrekkLogging.log("can't delete sent requests", e);
+        }
+    }
+
+    private void updateGauges() {
+        updateSizeGauge();
+
+        final File file = mContext.getDatabasePath(mDatabaseName);
+        final long bytes = file.length();
+        WebtrekkMetrics.getInstance().addGauge(WebtrekkMetrics.Gauge.STORE_BYTES, bytes - mReportedBytes);
+        mReportedBytes = bytes;
+    }
+
+    private void updateSizeGauge() {
+        final int size = size();
+        WebtrekkMetrics.getInstance().addGauge(mSizeGauge, size - mReportedSize);
+        mReportedSize = size;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Request;
+
+import android.support.annotation.NonNull;
+
+import com.webtrekk.webtrekksdk.Configuration.ConfigurationHolder;
+import com.webtrekk.webtrekksdk.Configuration.ConfigurationSnapshot;
+import com.webtrekk.webtrekksdk.Configuration.TrackingConfiguration;
+import com.webtrekk.webtrekksdk.Utils.WebtrekkLogging;
+import com.webtrekk.webtrekksdk.Utils.WebtrekkMetrics;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Byte quota that is shared by all request queue files. Stores reserve bytes of each request before
+ * it is appended and release them when request is removed, so used bytes are known without reading
+ * file sizes. Limit and policy are taken from current configuration snapshot for each reservation.
+ * If quota is exceeded with evict policy, oldest requests of lowest priority store are removed first,
+ * so flood of general requests removes only general ones and can't starve exception or CDB lanes.
+ */
+public class StorageQuota {
+    private final ConfigurationHolder mConfigurationHolder;
+    private final AtomicLong mUsedBytes = new AtomicLong();
+    // stores that can be evicted, from lowest priority to highest one
+    private final List<RequestStore> mEvictionOrder = new CopyOnWriteArrayList<>();
+
+    StorageQuota(@NonNull ConfigurationHolder configurationHolder) {
+        mConfigurationHolder = configurationHolder;
+    }
+
+    /**
+     * @return maximum bytes of all queue files, 0 if there is no limit
+     */
+    public long getMaxBytes() {
+        final ConfigurationSnapshot snapshot = mConfigurationHolder.getSnapshot();
+        return snapshot == null ? 0 : snapshot.getConfiguration().getMaxStorageBytes();
+    }
+
+    /**
+     * @return true if oldest requests should be removed when quota is exceeded, otherwise new request is rejected
+     */
+    public boolean isEvictPolicy() {
+        final ConfigurationSnapshot snapshot = mConfigurationHolder.getSnapshot();
+        return snapshot == null || TrackingConfiguration.STORAGE_QUOTA_POLICY_EVICT.equals(snapshot.getConfiguration().getStorageQuotaPolicy());
+    }
+
+    /**
+     * @return bytes that are used by all queue files now
+     */
+    public long getUsedBytes() {
+        return mUsedBytes.get();
+    }
+
+    /**
+     * reserves bytes for new request
+     * @return false if quota doesn't have enough free bytes, nothing is reserved in this case
+     */
+    boolean tryReserve(long bytes) {
+        final long maxBytes = getMaxBytes();
+
+        while (true) {
+            final long used = mUsedBytes.get();
+            if (maxBytes > 0 && used + bytes > maxBytes) {
+                return false;
+            }
+            if (mUsedBytes.compareAndSet(used, used + bytes)) {
+                WebtrekkMetrics.getInstance().addGauge(WebtrekkMetrics.Gauge.STORAGE_BYTES, bytes);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * adds bytes that are used already, for example by requests from previous session. Limit isn't checked.
+     */
+    void add(long bytes) {
+        mUsedBytes.addAndGet(bytes);
+        WebtrekkMetrics.getInstance().addGauge(WebtrekkMetrics.Gauge.STORAGE_BYTES, bytes);
+    }
+
+    void release(long bytes) {
+        add(-bytes);
+    }
+
+    /**
+     * adds store to eviction order, stores should be added from lowest priority to highest one
+     */
+    void addEvictableStore(@NonNull RequestStore store) {
+        if (!mEvictionOrder.contains(store)) {
+            mEvictionOrder.add(store);
+        }
+    }
+
+    /**
+     * removes oldest request of lowest priority store that isn't empty. Stores with higher priority than
+     * requester aren't evicted. Store that isn't in eviction order can evict only own requests.
+     *
+     * @param requester store that needs bytes for new request
+     * @return false if there is no request that can be removed
+     */
+    boolean evict(@NonNull RequestStore requester) {
+        if (mEvictionOrder.contains(requester)) {
+            for (RequestStore store : mEvictionOrder) {
+                if (store.evictOldest()) {
+                    WebtrekkLogging.log(WebtrekkLogging.WARN, "Storage quota {} bytes is exceeded, oldest url is removed", getMaxBytes());
+                    return true;
+                }
+                if (store == requester) {
+                    break;
+                }
+            }
+            return false;
+        }
+
+        if (requester.evictOldest()) {
+            WebtrekkLogging.log(WebtrekkLogging.WARN, "Storage quota {} bytes is exceeded, oldest url is removed", getMaxBytes());
+            return true;
+        }
+        return false;
+    }
+}
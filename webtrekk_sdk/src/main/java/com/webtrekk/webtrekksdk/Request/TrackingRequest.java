@@ -24,11 +24,13 @@ import android.support.annotation.NonNull;
 import java.util.Map;
 import java.util.SortedMap;
 
+import com.webtrekk.webtrekksdk.Configuration.ConfigurationSnapshot;
 import com.webtrekk.webtrekksdk.Configuration.TrackingConfiguration;
 import com.webtrekk.webtrekksdk.TrackingParameter;
 import com.webtrekk.webtrekksdk.TrackingParameter.Parameter;
 import com.webtrekk.webtrekksdk.Utils.HelperFunctions;
 import com.webtrekk.webtrekksdk.Utils.WebtrekkLogging;
+import com.webtrekk.webtrekksdk.Utils.WebtrekkMetrics;
 import com.webtrekk.webtrekksdk.Webtrekk;
 
 import org.json.JSONException;
@@ -45,6 +47,8 @@ public class TrackingRequest {
     public final TrackingParameter mTrackingParameter;
     final private TrackingConfiguration mTrackingConfiguration;
     final private RequestType mRequestType;
+    // address and track id part of request, it is taken from configuration snapshot if request is created for it
+    final private String mUrlPrefix;
     private RequestType mMergedRequestType;
     private int mRequestSize;
 
@@ -69,6 +73,7 @@ public class TrackingRequest {
         mTrackingParameter = tp;
         mTrackingConfiguration = trackingConfiguration;
         mRequestType = RequestType.GENERAL;
+        mUrlPrefix = null;
     }
 
     /**
@@ -82,6 +87,21 @@ public class TrackingRequest {
         mTrackingParameter = tp;
         mTrackingConfiguration = trackingConfiguration;
         mRequestType = type;
+        mUrlPrefix = null;
+    }
+
+    /**
+     * creates a new tracking request object for configuration snapshot
+     *
+     * @param tp the TrackingParameter for the TrackingRequest
+     * @param snapshot current configuration snapshot
+     * @param type of request
+     */
+    public TrackingRequest(TrackingParameter tp, ConfigurationSnapshot snapshot, RequestType type) {
+        mTrackingParameter = tp;
+        mTrackingConfiguration = snapshot.getConfiguration();
+        mRequestType = type;
+        mUrlPrefix = snapshot.getUrlPrefix();
     }
 
     /**
@@ -90,13 +110,19 @@ public class TrackingRequest {
 
     private String getBaseURLPart()
     {
-       return  mTrackingConfiguration.getTrackDomain() + "/" + mTrackingConfiguration.getTrackId() + "/wt?";
+        if (mUrlPrefix != null) {
+            return mUrlPrefix;
+        }
+        return  mTrackingConfiguration.getTrackDomain() + "/" + mTrackingConfiguration.getTrackId() + "/wt?";
     }
 
     /**
      * add to size base part size
      */
     private int getBasePartSize(){
+        if (mUrlPrefix != null) {
+            return mUrlPrefix.length();
+        }
         return 5 + mTrackingConfiguration.getTrackDomain().length()
                 + mTrackingConfiguration.getTrackId().length();
     }
@@ -515,7 +541,7 @@ public class TrackingRequest {
      * @return returns the URL as String with all the TrackingParameter url encoded
      */
     public String getUrlString() {
-
+        final long buildStart = System.nanoTime();
         StringBuffer url = new StringBuffer();
         URLFactory urlFactory = null;
 
@@ -540,6 +566,7 @@ public class TrackingRequest {
 
         if (urlFactory.isEORAppend())
            url.append("&eor=1");
+        WebtrekkMetrics.getInstance().recordTime(WebtrekkMetrics.Timer.URL_BUILD, buildStart);
         return url.toString();
     }
 
@@ -572,6 +599,17 @@ public class TrackingRequest {
         return mTrackingConfiguration;
     }
 
+    public RequestType getRequestType() {
+        return mRequestType;
+    }
+
+    /**
+     * @return type of request that is merged to this one or null
+     */
+    public RequestType getMergedRequestType() {
+        return mMergedRequestType;
+    }
+
     /**
      * return url size.
      * @return size of url
@@ -599,10 +637,10 @@ public class TrackingRequest {
 
     @NonNull
     static public TrackingRequest createFromJson(JSONObject jsonObject,
-              @NonNull TrackingConfiguration trackingConfiguration) throws JSONException {
+              @NonNull ConfigurationSnapshot snapshot) throws JSONException {
         final int type = jsonObject.getInt(TrackingRequest.JSON_REQUEST_TYPE_KEY);
         final JSONObject parameterJson = (JSONObject) jsonObject.get(TrackingRequest.JSON_PARAMETER_KEY);
         TrackingParameter parameter = TrackingParameter.createFromJson(parameterJson);
-        return new TrackingRequest(parameter, trackingConfiguration, RequestType.values()[type]);
+        return new TrackingRequest(parameter, snapshot, RequestType.values()[type]);
     }
 }
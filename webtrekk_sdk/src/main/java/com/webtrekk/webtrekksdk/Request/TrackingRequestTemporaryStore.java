@@ -21,8 +21,10 @@ package com.webtrekk.webtrekksdk.Request;
 import android.content.Context;
 import android.support.annotation.NonNull;
 
-import com.webtrekk.webtrekksdk.Configuration.TrackingConfiguration;
+import com.webtrekk.webtrekksdk.Configuration.ConfigurationHolder;
+import com.webtrekk.webtrekksdk.Configuration.ConfigurationSnapshot;
 import com.webtrekk.webtrekksdk.Utils.WebtrekkLogging;
+import com.webtrekk.webtrekksdk.Utils.WebtrekkMetrics;
 import com.webtrekk.webtrekksdk.Webtrekk;
 
 import org.json.JSONException;
@@ -43,24 +45,100 @@ import java.util.ArrayList;
 import java.util.List;
 
 class TrackingRequestTemporaryStore {
-    final static private String FILE_NAME = "wt-pending-requests.json";
+    final static private String FILE_NAME = "wt-pending-requests";
+    final static private String FILE_EXTENSION = ".json";
     final File mStoreFile;
-    final TrackingConfiguration mConfiguration;
+    final ConfigurationHolder mConfigurationHolder;
+    final StorageQuota mQuota;
+    // bytes of store file, they are reserved in quota
+    private long mBytes;
+    // true when saved requests are counted for PENDING_STORE_SIZE gauge, guarded by this
+    private boolean mIsSizeCounted;
 
 
     TrackingRequestTemporaryStore(@NonNull Context context,
-                                  @NonNull TrackingConfiguration trackingConfiguration){
-        mStoreFile = new File(context.getFilesDir(), FILE_NAME);
-        mConfiguration = trackingConfiguration;
+                                  @NonNull ConfigurationHolder configurationHolder,
+                                  @NonNull StorageQuota quota){
+        this(context, configurationHolder, quota, "");
     }
 
-    void saveTrackingRequest(@NonNull TrackingRequest request){
+    /**
+     * @param suffix suffix of file name, is used for processes in multi process mode
+     */
+    TrackingRequestTemporaryStore(@NonNull Context context,
+                                  @NonNull ConfigurationHolder configurationHolder,
+                                  @NonNull StorageQuota quota,
+                                  @NonNull String suffix){
+        mStoreFile = new File(context.getFilesDir(), FILE_NAME + suffix + FILE_EXTENSION);
+        mConfigurationHolder = configurationHolder;
+        mQuota = quota;
+        mBytes = mStoreFile.length();
+        mQuota.add(mBytes);
+        // file is read on I/O thread, so constructor doesn't read whole pending store on initialization
+        RequestFileWriter.getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                countSize();
+            }
+        });
+    }
+
+    /**
+     * set PENDING_STORE_SIZE gauge to number of saved requests. Requests that are saved before it are
+     * counted here, later ones are added by {@link #saveTrackingRequest(TrackingRequest)}
+     */
+    private synchronized void countSize(){
+        if (!mIsSizeCounted) {
+            WebtrekkMetrics.getInstance().setGauge(WebtrekkMetrics.Gauge.PENDING_STORE_SIZE, countSavedRequests());
+            mIsSizeCounted = true;
+        }
+    }
+
+    private int countSavedRequests(){
+        if (queueIsEmpty()){
+            return 0;
+        }
+
+        BufferedReader reader = null;
+        int count = 0;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(mStoreFile), "UTF-8"));
+            while (reader.readLine() != null){
+                count++;
+            }
+        } catch (IOException e) {
+            WebtrekkLogging.log("can't read pending tracking request:" + e.getLocalizedMessage());
+        } finally {
+            if (reader != null){
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    WebtrekkLogging.log("can't close pending tracking requests:" + e.getLocalizedMessage());
+                }
+            }
+        }
+        return count;
+    }
+
+    synchronized void saveTrackingRequest(@NonNull TrackingRequest request){
         PrintWriter writer = null;
         try {
-            JSONObject jsonObject = request.saveToJson();
+            final String line = request.saveToJson().toString();
+            final long bytes = line.length() + System.getProperty("line.separator").length();
+
+            // pending requests are saved in one file, so new request is rejected for any quota policy
+            if (!mQuota.tryReserve(bytes)) {
+                WebtrekkLogging.log(WebtrekkLogging.WARN, "Storage quota {} bytes is exceeded, pending request is rejected", mQuota.getMaxBytes());
+                WebtrekkMetrics.getInstance().increment(WebtrekkMetrics.Counter.QUOTA_REJECTED);
+                return;
+            }
+            mBytes += bytes;
             writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
                     new FileOutputStream(mStoreFile, true), "UTF-8")));
-            writer.println(jsonObject.toString());
+            writer.println(line);
+            if (mIsSizeCounted) {
+                WebtrekkMetrics.getInstance().addGauge(WebtrekkMetrics.Gauge.PENDING_STORE_SIZE, 1);
+            }
         } catch (JSONException e) {
             WebtrekkLogging.log("can't save pending tracking request:" + e.getLocalizedMessage());
         } catch (FileNotFoundException e) {
@@ -78,6 +156,12 @@ class TrackingRequestTemporaryStore {
     List<TrackingRequest> getAllSavedRequests(){
         BufferedReader reader = null;
         List<TrackingRequest> list = new ArrayList<>();
+        // requests are restored with configuration that is current now
+        final ConfigurationSnapshot snapshot = mConfigurationHolder.getSnapshot();
+
+        if (snapshot == null) {
+            return list;
+        }
 
         try {
             reader = new BufferedReader(new InputStreamReader(
@@ -85,7 +169,7 @@ class TrackingRequestTemporaryStore {
             String line;
             while ((line = reader.readLine()) != null){
                 JSONObject jsonObject = new JSONObject(line);
-                list.add(TrackingRequest.createFromJson(jsonObject, mConfiguration));
+                list.add(TrackingRequest.createFromJson(jsonObject, snapshot));
             }
         } catch (UnsupportedEncodingException e) {
             WebtrekkLogging.log("can't read pending tracking request:" + e.getLocalizedMessage());
@@ -99,8 +183,12 @@ class TrackingRequestTemporaryStore {
         return list;
     }
 
-    void deleteQueue(){
+    synchronized void deleteQueue(){
         mStoreFile.delete();
+        mQuota.release(mBytes);
+        mBytes = 0;
+        WebtrekkMetrics.getInstance().setGauge(WebtrekkMetrics.Gauge.PENDING_STORE_SIZE, 0);
+        mIsSizeCounted = true;
     }
 
     boolean queueIsEmpty(){
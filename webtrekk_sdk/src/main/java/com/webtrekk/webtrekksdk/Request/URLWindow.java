@@ -0,0 +1,94 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Request;
+
+/**
+ * Urls of consecutive ids. Url is kept in slot of id modulo capacity, so url of new id replaces url of id
+ * that is older by capacity, {@link #entryEvicted(int, String)} is called for replaced url outside of lock.
+ */
+class URLWindow {
+    private final int[] mIDs;
+    private final String[] mURLs;
+    private int mSize;
+
+    URLWindow(int capacity) {
+        mIDs = new int[capacity];
+        mURLs = new String[capacity];
+    }
+
+    synchronized String get(int id) {
+        final int slot = slot(id);
+        return mIDs[slot] == id ? mURLs[slot] : null;
+    }
+
+    void put(int id, String url) {
+        final int evictedID;
+        final String evicted;
+
+        synchronized (this) {
+            final int slot = slot(id);
+            evictedID = mIDs[slot];
+            evicted = evictedID == id ? null : mURLs[slot];
+            if (mURLs[slot] == null) {
+                mSize++;
+            }
+            mIDs[slot] = id;
+            mURLs[slot] = url;
+        }
+
+        if (evicted != null) {
+            entryEvicted(evictedID, evicted);
+        }
+    }
+
+    /**
+     * @return removed url or null if there is no url of id
+     */
+    synchronized String remove(int id) {
+        final int slot = slot(id);
+
+        if (mIDs[slot] != id || mURLs[slot] == null) {
+            return null;
+        }
+
+        final String url = mURLs[slot];
+        mURLs[slot] = null;
+        mSize--;
+        return url;
+    }
+
+    synchronized int size() {
+        return mSize;
+    }
+
+    synchronized void clear() {
+        for (int i = 0; i < mURLs.length; i++) {
+            mURLs[i] = null;
+        }
+        mSize = 0;
+    }
+
+    /**
+     * is called when url is replaced by url of newer id
+     */
+    protected void entryEvicted(int id, String url) {
+    }
+
+    private int slot(int id) {
+        return id % mIDs.length;
+    }
+}
@@ -77,8 +77,8 @@ public class ActivityTrackingStatus implements Application.ActivityLifecycleCall
 
     @Override
     public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
-        WebtrekkLogging.log("Tracking Activity Created: "+getActivityName(activity) + " instance hash:" + activity.hashCode() + (savedInstanceState != null ? " as recreation":""));
-        WebtrekkLogging.log("CurrentStatus before:"+mCurrentStatus + " Current Activity:"+mCurrentActivityName + " Previous Activity:"+mPreviousActivitiesQueue.peek());
+        logActivityEvent("Created", activity, savedInstanceState != null ? " as recreation" : "");
+        logStatus("before");
 
         Configuration currentConfiguration = getCurrentConfiguration(activity);
         mIsConfigurationChanged = mLatestConfiguration != null && !currentConfiguration.equals(mLatestConfiguration);
@@ -103,14 +103,14 @@ public class ActivityTrackingStatus implements Application.ActivityLifecycleCall
         if (!mIsActivityRestored)
             mCurrentActivitiesCount++;
 
-        WebtrekkLogging.log("Configuration is changed:"+mIsConfigurationChanged);
-        WebtrekkLogging.log("CurrentStatus after:"+mCurrentStatus + " Current Activity:"+mCurrentActivityName + " Previous Activity:"+mPreviousActivitiesQueue.peek());
+        WebtrekkLogging.log(WebtrekkLogging.DEBUG, "Configuration is changed:{}", mIsConfigurationChanged);
+        logStatus("after");
     }
 
     @Override
     public void onActivityStarted(Activity activity) {
-        WebtrekkLogging.log("Tracking Activity started: " + getActivityName(activity) + " instance hash:" + activity.hashCode());
-        WebtrekkLogging.log("CurrentStatus before:"+mCurrentStatus + " Current Activity:"+mCurrentActivityName + " Previous Activity:"+mPreviousActivitiesQueue.peek());
+        logActivityEvent("started", activity, "");
+        logStatus("before");
 
         //this is first start, but initialization was done in onCreate of MainActivity
         if (!mIsActivityRestored && mCurrentActivitiesCount == 0)
@@ -132,36 +132,35 @@ public class ActivityTrackingStatus implements Application.ActivityLifecycleCall
             mReturnFromBackgroundTime = System.currentTimeMillis();
         }
 
-        WebtrekkLogging.log("CurrentStatus after:"+mCurrentStatus + " Current Activity:"+mCurrentActivityName + " Previous Activity:"+mPreviousActivitiesQueue.peek());
+        logStatus("after");
     }
 
     @Override
     public void onActivityResumed(Activity activity) {
-        WebtrekkLogging.log("Tracking Activity Resumed: " + getActivityName(activity) + " instance hash:" + activity.hashCode() + (mIsActivityRestored ? " as recreation":""));
-        WebtrekkLogging.log("CurrentStatus before:"+mCurrentStatus + " Current Activity:"+mCurrentActivityName + " Previous Activity:"+mPreviousActivitiesQueue.peek());
+        logActivityEvent("Resumed", activity, mIsActivityRestored ? " as recreation" : "");
+        logStatus("before");
         mIsActivityRestored = false;
         mIsConfigurationChanged = false;
         mCurrentStatus = STATUS.ACTIVITY_IS_SHOWN;
-        WebtrekkLogging.log("CurrentStatus after:"+mCurrentStatus + " Current Activity:"+mCurrentActivityName + " Previous Activity:"+mPreviousActivitiesQueue.peek());
+        logStatus("after");
     }
 
     @Override
     public void onActivityPaused(Activity activity) {
-      WebtrekkLogging.log("Tracking Activity Paused: " + getActivityName(activity));
-
-        WebtrekkLogging.log("CurrentStatus before:"+mCurrentStatus + " Current Activity:"+mCurrentActivityName + " instance hash:" + activity.hashCode() + " Previous Activity:"+mPreviousActivitiesQueue.peek());
+        logActivityEvent("Paused", activity, "");
+        logStatus("before");
         if (activity.isFinishing() && mCurrentActivityName != null && mCurrentActivityName.equals(getActivityName(activity))) {
             mCurrentActivityName = mPreviousActivitiesQueue.pollFirst();
             mCurrentActivityInstance = null;
         }
 
-        WebtrekkLogging.log("CurrentStatus after:"+mCurrentStatus + " Current Activity:"+mCurrentActivityName + " Previous Activity:"+mPreviousActivitiesQueue.peek());
+        logStatus("after");
     }
 
     @Override
     public void onActivityStopped(Activity activity) {
-        WebtrekkLogging.log("Tracking Activity stopped: " + getActivityName(activity) + " instance hash:" + activity.hashCode() + (activity.isFinishing() ? " as finishing" : " as sleeping"));
-        WebtrekkLogging.log("CurrentStatus before:"+mCurrentStatus+ " Current Activity:"+mCurrentActivityName + " Previous Activity:"+mPreviousActivitiesQueue.peek());
+        logActivityEvent("stopped", activity, activity.isFinishing() ? " as finishing" : " as sleeping");
+        logStatus("before");
         if (activity.isFinishing()) {
             //activity is finishing increase activity counter and determine applicaiton shut down
             mCurrentActivitiesCount--;
@@ -177,25 +176,25 @@ public class ActivityTrackingStatus implements Application.ActivityLifecycleCall
                 mLastActivityVisibleTime = System.currentTimeMillis();
             }
         }
-        WebtrekkLogging.log("CurrentStatus after:"+mCurrentStatus + " Current Activity:"+mCurrentActivityName + " Previous Activity:"+mPreviousActivitiesQueue.peek());
+        logStatus("after");
     }
 
     @Override
     public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
-        WebtrekkLogging.log("Tracking Activity SaveInstance: " + getActivityName(activity) + (outState != null ? " as recreation":""));
-        WebtrekkLogging.log("CurrentStatus:"+mCurrentStatus + " Current Activity:"+mCurrentActivityName + " Previous Activity:"+mPreviousActivitiesQueue.peek());
+        logActivityEvent("SaveInstance", activity, outState != null ? " as recreation" : "");
+        logStatus("");
     }
 
     @Override
     public void onActivityDestroyed(Activity activity) {
-        WebtrekkLogging.log("Tracking Activity Destroyed: " + getActivityName(activity) + " instance hash:" + activity.hashCode() + (activity.isFinishing() ? " as finishing" : " as sleeping"));
-        WebtrekkLogging.log("CurrentStatus before:"+mCurrentStatus + " Current Activity:"+mCurrentActivityName + " Previous Activity:"+mPreviousActivitiesQueue.peek());
+        logActivityEvent("Destroyed", activity, activity.isFinishing() ? " as finishing" : " as sleeping");
+        logStatus("before");
 
         if (activity.isFinishing() && mCurrentStatus != STATUS.SHUT_DOWNING &&
                     (mCurrentActivitiesCount == 0 || (mFirstActivityName != null && mFirstActivityName.equals(getActivityName(activity))))) {
                 mCurrentStatus = STATUS.SHUT_DOWNING;
         }
-        WebtrekkLogging.log("CurrentStatus after:"+mCurrentStatus + " Current Activity:"+mCurrentActivityName + " Previous Activity:"+mPreviousActivitiesQueue.peek());
+        logStatus("after");
     }
 
     private String getActivityName(Activity activity)
@@ -206,4 +205,19 @@ public class ActivityTrackingStatus implements Application.ActivityLifecycleCall
     private Configuration getCurrentConfiguration(Activity activity){
         return activity.getResources().getConfiguration();
     }
+
+    private void logActivityEvent(String event, Activity activity, String details)
+    {
+        // activity name and hash are calculated only if message is written
+        if (WebtrekkLogging.isLoggable(WebtrekkLogging.DEBUG)) {
+            WebtrekkLogging.log(WebtrekkLogging.DEBUG, "Tracking Activity {}: {} instance hash:{}{}", event,
+                    getActivityName(activity), activity.hashCode(), details);
+        }
+    }
+
+    private void logStatus(String stage)
+    {
+        WebtrekkLogging.log(WebtrekkLogging.DEBUG, "CurrentStatus {}:{} Current Activity:{} Previous Activity:{}",
+                stage, mCurrentStatus, mCurrentActivityName, mPreviousActivitiesQueue.peek());
+    }
 }
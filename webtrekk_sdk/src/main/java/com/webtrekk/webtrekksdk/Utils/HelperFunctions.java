@@ -41,6 +41,7 @@ import android.view.WindowManager;
 import com.webtrekk.webtrekksdk.Request.RequestProcessor;
 import com.webtrekk.webtrekksdk.Webtrekk;
 
+import java.io.ByteArrayOutputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
@@ -67,8 +68,6 @@ import java.util.regex.Pattern;
  * this class contains various static helper functions to get device details
  */
 final public class HelperFunctions {
-
-    private static final String MEDIA_CODE_DEEP_LINK = "DEEP_LINK_SETTINGS_MEDIA_CODE";
     /**
      * private constructor as this is a utility class
      */
@@ -269,18 +268,12 @@ final public class HelperFunctions {
     }
 
     public static String getEverId(Context context) {
-        SharedPreferences preferences = getWebTrekkSharedPreference(context);
-        if (!preferences.contains(Webtrekk.PREFERENCE_KEY_EVER_ID)) {
-            preferences.edit().putString(Webtrekk.PREFERENCE_KEY_EVER_ID, HelperFunctions.generateEverid()).apply();
-            // for compatibility reasons put the key here for new installation
-            //preferences.edit().putString(Webtrekk.PREFERENCE_KEY_INSTALLATION_FLAG, "1");
-        }
-        return preferences.getString(Webtrekk.PREFERENCE_KEY_EVER_ID, "");
+        // ever id is generated if it doesn't exist yet
+        return StateStore.getInstance(context).getEverId();
     }
 
     public static void setEverId(Context context, String value) {
-        SharedPreferences preferences = getWebTrekkSharedPreference(context);
-        preferences.edit().putString(Webtrekk.PREFERENCE_KEY_EVER_ID, value).apply();
+        StateStore.getInstance(context).setEverId(value);
     }
 
 
@@ -376,8 +369,7 @@ final public class HelperFunctions {
      */
     public static boolean firstStart(Context context) {
         // if no everid is set, this is the first start
-        SharedPreferences preferences = getWebTrekkSharedPreference(context);
-        return !preferences.contains(Webtrekk.PREFERENCE_KEY_EVER_ID);
+        return StateStore.getInstance(context).isFirstStart();
     }
 
 
@@ -576,6 +568,24 @@ final public class HelperFunctions {
         return builder.toString();
     }
 
+    /**
+     * read whole stream to byte array and close it
+     */
+    public static byte[] bytesFromStream(InputStream inputStream) throws java.io.IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(8 * 1024);
+        byte[] buffer = new byte[8 * 1024];
+        int read;
+
+        try {
+            while ((read = inputStream.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+        } finally {
+            inputStream.close();
+        }
+        return output.toByteArray();
+    }
+
     public String getXmlFromUrl(String url) throws IOException {
         String xml = null;
         // defaultHttpClient
@@ -685,20 +695,11 @@ final public class HelperFunctions {
 
     public static void setDeepLinkMediaCode(Context context, String value)
     {
-        SharedPreferences.Editor editor = HelperFunctions.getWebTrekkSharedPreference(context).edit();
-
-        editor.putString(MEDIA_CODE_DEEP_LINK, value).apply();
+        StateStore.getInstance(context).setDeepLinkMediaCode(value);
     }
 
     public static String getDeepLinkMediaCode(Context context, boolean deleteFlag)
     {
-        SharedPreferences preferences = HelperFunctions.getWebTrekkSharedPreference(context);
-
-        String result = preferences.getString(MEDIA_CODE_DEEP_LINK, null);
-
-        if (deleteFlag)
-            preferences.edit().remove(MEDIA_CODE_DEEP_LINK).apply();
-
-        return result;
+        return StateStore.getInstance(context).getDeepLinkMediaCode(deleteFlag);
     }
 }
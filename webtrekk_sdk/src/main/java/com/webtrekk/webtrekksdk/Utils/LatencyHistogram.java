@@ -0,0 +1,164 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free latency histogram with log-linear buckets in microseconds like HDR histogram does.
+ * Values below {@link #SUB_BUCKETS} are counted exactly, bigger values are counted in
+ * {@link #SUB_BUCKETS} buckets per power of two, so relative error is less than 1/16.
+ * Values above {@link #MAX_VALUE} are counted in the last bucket.
+ */
+public class LatencyHistogram {
+    static final int SUB_BUCKET_BITS = 4;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int MAX_VALUE_BITS = 36;
+    static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+    static final int BUCKETS_NUMBER = SUB_BUCKETS + (MAX_VALUE_BITS - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS_NUMBER);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * add value in microseconds, negative value is counted as zero
+     */
+    public void record(long micros) {
+        final long value = micros < 0 ? 0 : Math.min(micros, MAX_VALUE);
+
+        mBuckets.incrementAndGet(getBucketIndex(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    public Snapshot getSnapshot() {
+        final long[] buckets = new long[BUCKETS_NUMBER];
+        long count = 0;
+
+        // count is calculated from buckets, so snapshot is consistent even if values are recorded meanwhile
+        for (int i = 0; i < BUCKETS_NUMBER; i++) {
+            buckets[i] = mBuckets.get(i);
+            count += buckets[i];
+        }
+        return new Snapshot(buckets, count, mSum.get(), mMax.get());
+    }
+
+    static int getBucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        final int highestBit = 63 - Long.numberOfLeadingZeros(value);
+        final int shift = highestBit - SUB_BUCKET_BITS;
+        final int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+
+        return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return maximum value that is counted in bucket
+     */
+    static long getBucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+
+        final int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        final int subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+
+        return ((long) (SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * Immutable copy of histogram values. All values are in microseconds.
+     */
+    public static class Snapshot {
+        private final long[] mBuckets;
+        private final long mCount;
+        private final long mSum;
+        private final long mMax;
+
+        Snapshot(long[] buckets, long count, long sum, long max) {
+            mBuckets = buckets;
+            mCount = count;
+            mSum = sum;
+            mMax = max;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+
+        public long getMean() {
+            return mCount == 0 ? 0 : mSum / mCount;
+        }
+
+        /**
+         * @param percentile value from 0 to 100
+         * @return upper bound of bucket that contains percentile value, 0 if there are no values
+         */
+        public long getPercentile(double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+
+            final long rank = Math.max(1, (long) Math.ceil(mCount * Math.min(Math.max(percentile, 0), 100) / 100));
+            long counted = 0;
+
+            for (int i = 0; i < mBuckets.length; i++) {
+                counted += mBuckets[i];
+                if (counted >= rank) {
+                    return Math.min(getBucketUpperBound(i), mMax);
+                }
+            }
+            return mMax;
+        }
+
+        public int getBucketsNumber() {
+            return mBuckets.length;
+        }
+
+        public long getBucketCount(int index) {
+            return mBuckets[index];
+        }
+
+        /**
+         * @return maximum value that is counted in bucket with this index
+         */
+        public long getBucketUpperBound(int index) {
+            return LatencyHistogram.getBucketUpperBound(index);
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + mCount + " mean=" + getMean() + " p50=" + getPercentile(50) + " p90=" + getPercentile(90)
+                    + " p99=" + getPercentile(99) + " max=" + mMax;
+        }
+    }
+}
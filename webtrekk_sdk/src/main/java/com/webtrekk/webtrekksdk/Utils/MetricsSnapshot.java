@@ -0,0 +1,73 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Utils;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Immutable values of {@link WebtrekkMetrics} at one moment. Counters are counted from process start,
+ * so difference of two snapshots should be used to get rate. Latencies are in microseconds.
+ */
+public final class MetricsSnapshot {
+    private final long mTime;
+    private final long[] mCounters;
+    private final long[] mGauges;
+    private final LatencyHistogram.Snapshot[] mHistograms;
+
+    MetricsSnapshot(long time, long[] counters, long[] gauges, LatencyHistogram.Snapshot[] histograms) {
+        mTime = time;
+        mCounters = counters;
+        mGauges = gauges;
+        mHistograms = histograms;
+    }
+
+    /**
+     * @return time of snapshot in milliseconds
+     */
+    public long getTime() {
+        return mTime;
+    }
+
+    public long getCounter(@NonNull WebtrekkMetrics.Counter counter) {
+        return mCounters[counter.ordinal()];
+    }
+
+    public long getGauge(@NonNull WebtrekkMetrics.Gauge gauge) {
+        return mGauges[gauge.ordinal()];
+    }
+
+    @NonNull
+    public LatencyHistogram.Snapshot getHistogram(@NonNull WebtrekkMetrics.Timer timer) {
+        return mHistograms[timer.ordinal()];
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder(512);
+
+        for (WebtrekkMetrics.Counter counter : WebtrekkMetrics.Counter.values()) {
+            builder.append(counter.name()).append('=').append(getCounter(counter)).append('\n');
+        }
+        for (WebtrekkMetrics.Gauge gauge : WebtrekkMetrics.Gauge.values()) {
+            builder.append(gauge.name()).append('=').append(getGauge(gauge)).append('\n');
+        }
+        for (WebtrekkMetrics.Timer timer : WebtrekkMetrics.Timer.values()) {
+            builder.append(timer.name()).append(": ").append(getHistogram(timer)).append('\n');
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,700 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Utils;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary key-value file for SDK state. Small values are kept in memory and each change is
+ * appended to record log as [length][type][key][value], so small write doesn't rewrite whole state.
+ * Log is rewritten when it has much more records than live keys. Strings longer than {@link #BLOB_THRESHOLD}
+ * are saved to separate blob files and log keeps only file name, so they aren't kept in memory and
+ * aren't copied during log compaction. Incomplete record at the end of log (e.g. process was killed
+ * during write) is dropped on open.
+ * Log, blobs and compaction are changed only under file lock, so several processes can share state directory.
+ * Lock file keeps version of log that is increased by each change, process that sees other version reads
+ * log again before its change, so changes of other processes aren't lost and replaced log is reopened.
+ * Class is thread safe.
+ */
+public class StateFile {
+    static final String LOG_FILE_NAME = "state.log";
+    static final String LOCK_FILE_NAME = "state.lock";
+    static final int BLOB_THRESHOLD = 2 * 1024;
+    static final int MIN_COMPACTION_RECORDS = 64;
+
+    private static final String BLOB_PREFIX = "blob-";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int MAGIC = 0x57545354;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 64 * 1024;
+
+    private static final byte TYPE_REMOVED = 0;
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_BOOLEAN = 2;
+    private static final byte TYPE_INT = 3;
+    private static final byte TYPE_LONG = 4;
+    private static final byte TYPE_FLOAT = 5;
+    private static final byte TYPE_BLOB = 6;
+
+    /**
+     * reference to value that is saved in separate file
+     */
+    private static class Blob {
+        final String mFileName;
+
+        Blob(String fileName) {
+            mFileName = fileName;
+        }
+    }
+
+    // file lock is held by process, so instances of one process are serialized with this object
+    private static final Object sProcessLock = new Object();
+
+    private final File mDirectory;
+    private final File mLogFile;
+    private final Map<String, Object> mValues = new HashMap<>();
+    private FileOutputStream mLogStream;
+    private int mLogRecords;
+    private long mBlobSequence;
+    private boolean mIsCreated;
+    private RandomAccessFile mLockFile;
+    // version of log that is read or written by this instance
+    private long mLogVersion;
+
+    public StateFile(@NonNull File directory) {
+        mDirectory = directory;
+        mLogFile = new File(directory, LOG_FILE_NAME);
+    }
+
+    /**
+     * read state from log. If log can't be opened values are kept only in memory.
+     * @return false if state can't be saved
+     */
+    public synchronized boolean open() {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            WebtrekkLogging.log("Can't create state directory");
+            return false;
+        }
+
+        synchronized (sProcessLock) {
+            final FileLock lock = lockFile();
+
+            try {
+                mIsCreated = !mLogFile.exists();
+                mLogVersion = readLogVersion();
+                final boolean isRewritten = reloadLog(true);
+
+                deleteUnusedBlobs();
+                if (isRewritten) {
+                    writeLogVersion();
+                }
+                return true;
+            } catch (IOException e) {
+                WebtrekkLogging.log("Can't open state file:" + e);
+                closeLog();
+                return false;
+            } finally {
+                unlockFile(lock);
+            }
+        }
+    }
+
+    /**
+     * @return true if state file didn't exist before {@link #open()}, so state should be migrated
+     */
+    public synchronized boolean isCreated() {
+        return mIsCreated;
+    }
+
+    public synchronized boolean contains(@NonNull String key) {
+        return mValues.containsKey(key);
+    }
+
+    /**
+     * @return value of key, blob value is read from file
+     */
+    @Nullable
+    public synchronized Object get(@NonNull String key) {
+        synchronized (sProcessLock) {
+            final FileLock lock = lockFile();
+
+            try {
+                // blob can be replaced and deleted by other process
+                syncWithLog();
+                final Object value = mValues.get(key);
+                return value instanceof Blob ? readBlob((Blob) value) : value;
+            } finally {
+                unlockFile(lock);
+            }
+        }
+    }
+
+    /**
+     * @return all values except values that are saved as blob. Those should be read with {@link #get(String)}
+     */
+    @NonNull
+    public synchronized Map<String, Object> getAll() {
+        final Map<String, Object> values = new HashMap<>(mValues.size());
+
+        for (Map.Entry<String, Object> entry : mValues.entrySet()) {
+            if (!(entry.getValue() instanceof Blob)) {
+                values.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return values;
+    }
+
+    public void put(@NonNull String key, @Nullable Object value) {
+        final Map<String, Object> changes = new HashMap<>(1);
+        changes.put(key, value);
+        write(changes);
+    }
+
+    public void remove(@NonNull String key) {
+        put(key, null);
+    }
+
+    /**
+     * change all values with one log write. Supported values are String, Boolean, Integer, Long and Float,
+     * null value removes key.
+     */
+    public synchronized void write(@NonNull Map<String, ?> changes) {
+        synchronized (sProcessLock) {
+            final FileLock lock = lockFile();
+
+            try {
+                syncWithLog();
+                writeChanges(changes);
+            } finally {
+                unlockFile(lock);
+            }
+        }
+    }
+
+    /**
+     * @return value of key that is saved by any process, if there is no one value is saved. Is used for
+     * values that should be the same in all processes and are generated on first use
+     */
+    @Nullable
+    public synchronized Object putIfAbsent(@NonNull String key, @NonNull Object value) {
+        synchronized (sProcessLock) {
+            final FileLock lock = lockFile();
+
+            try {
+                syncWithLog();
+                if (!mValues.containsKey(key)) {
+                    final Map<String, Object> changes = new HashMap<>(1);
+                    changes.put(key, value);
+                    writeChanges(changes);
+                }
+                final Object savedValue = mValues.get(key);
+                return savedValue instanceof Blob ? readBlob((Blob) savedValue) : savedValue;
+            } finally {
+                unlockFile(lock);
+            }
+        }
+    }
+
+    /**
+     * append changes to log. Should be called under file lock after {@link #syncWithLog()}
+     */
+    private void writeChanges(@NonNull Map<String, ?> changes) {
+        final ByteArrayOutputStream data = new ByteArrayOutputStream(256);
+        final DataOutputStream out = new DataOutputStream(data);
+        final List<Blob> unusedBlobs = new ArrayList<>();
+        int records = 0;
+        boolean isSaved = false;
+
+        try {
+            for (Map.Entry<String, ?> change : changes.entrySet()) {
+                final String key = change.getKey();
+                Object value = change.getValue();
+
+                if (value instanceof String && ((String) value).length() > BLOB_THRESHOLD) {
+                    value = writeBlob((String) value);
+                    if (value == null) {
+                        continue;
+                    }
+                } else if (value != null && getType(value) == TYPE_REMOVED) {
+                    WebtrekkLogging.log("unsupported state value type for key: " + key);
+                    continue;
+                }
+
+                final Object oldValue = value == null ? mValues.remove(key) : mValues.put(key, value);
+                if (oldValue instanceof Blob) {
+                    unusedBlobs.add((Blob) oldValue);
+                }
+
+                writeRecord(out, key, value);
+                records++;
+            }
+            out.flush();
+
+            if (mLogStream != null && records > 0) {
+                data.writeTo(mLogStream);
+                mLogRecords += records;
+                isSaved = true;
+                writeLogVersion();
+            }
+        } catch (IOException e) {
+            WebtrekkLogging.log("Can't write state file:" + e);
+        }
+
+        // log on disk references old blobs until changes are saved, otherwise they are deleted on next open
+        if (isSaved) {
+            for (Blob blob : unusedBlobs) {
+                deleteFile(new File(mDirectory, blob.mFileName));
+            }
+        }
+
+        if (mLogStream != null && isCompactionRequired()) {
+            try {
+                rewriteLog();
+                writeLogVersion();
+            } catch (IOException e) {
+                WebtrekkLogging.log("Can't compact state file:" + e);
+                closeLog();
+            }
+        }
+    }
+
+    /**
+     * remove all values and files
+     */
+    public synchronized void clear() {
+        synchronized (sProcessLock) {
+            final FileLock lock = lockFile();
+
+            closeLog();
+            mValues.clear();
+            mLogRecords = 0;
+
+            try {
+                deleteUnusedBlobs();
+                rewriteLog();
+                writeLogVersion();
+            } catch (IOException e) {
+                WebtrekkLogging.log("Can't clear state file:" + e);
+            } finally {
+                unlockFile(lock);
+            }
+        }
+    }
+
+    /**
+     * read log again if other process changed it after last read or write of this instance. Should be called
+     * under file lock
+     */
+    private void syncWithLog() {
+        if (mLockFile == null || readLogVersion() == mLogVersion) {
+            return;
+        }
+
+        try {
+            mLogVersion = readLogVersion();
+            if (reloadLog(false)) {
+                writeLogVersion();
+            }
+        } catch (IOException e) {
+            WebtrekkLogging.log("Can't read state file changed by other process:" + e);
+            closeLog();
+        }
+    }
+
+    /**
+     * replace values with values of log and reopen it. Log is rewritten if it is missed, corrupted or has
+     * too many records
+     * @return true if log is rewritten
+     */
+    private boolean reloadLog(boolean isCompactionAllowed) throws IOException {
+        closeLog();
+        mValues.clear();
+        mLogRecords = 0;
+
+        final boolean isRewriteRequired = !mLogFile.exists() || !readLog() || (isCompactionAllowed && isCompactionRequired());
+
+        for (Object value : mValues.values()) {
+            if (value instanceof Blob) {
+                updateBlobSequence(((Blob) value).mFileName);
+            }
+        }
+
+        if (isRewriteRequired) {
+            rewriteLog();
+        } else {
+            mLogStream = new FileOutputStream(mLogFile, true);
+        }
+        return isRewriteRequired;
+    }
+
+    /**
+     * @return false if log is corrupted and should be rewritten
+     */
+    private boolean readLog() throws IOException {
+        final long fileSize = mLogFile.length();
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                HelperFunctions.bytesFromStream(new FileInputStream(mLogFile))));
+
+        if (fileSize < HEADER_SIZE || in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+            WebtrekkLogging.log("State file has unknown format, it is cleared");
+            return false;
+        }
+
+        long offset = HEADER_SIZE;
+
+        while (offset + 4 <= fileSize) {
+            final int length = in.readInt();
+
+            if (length <= 0 || length > MAX_RECORD_SIZE || offset + 4 + length > fileSize) {
+                WebtrekkLogging.log("State file has incomplete record at the end, it is dropped");
+                return false;
+            }
+
+            final byte[] record = new byte[length];
+            in.readFully(record);
+
+            if (!readRecord(record)) {
+                WebtrekkLogging.log("State file has incorrect record, rest of file is dropped");
+                return false;
+            }
+
+            offset += 4 + length;
+            mLogRecords++;
+        }
+
+        return offset == fileSize;
+    }
+
+    private boolean readRecord(byte[] record) {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+
+        try {
+            final byte type = in.readByte();
+            final String key = in.readUTF();
+
+            switch (type) {
+                case TYPE_REMOVED:
+                    mValues.remove(key);
+                    break;
+                case TYPE_STRING:
+                    mValues.put(key, in.readUTF());
+                    break;
+                case TYPE_BOOLEAN:
+                    mValues.put(key, in.readBoolean());
+                    break;
+                case TYPE_INT:
+                    mValues.put(key, in.readInt());
+                    break;
+                case TYPE_LONG:
+                    mValues.put(key, in.readLong());
+                    break;
+                case TYPE_FLOAT:
+                    mValues.put(key, in.readFloat());
+                    break;
+                case TYPE_BLOB:
+                    mValues.put(key, new Blob(in.readUTF()));
+                    break;
+                default:
+                    return false;
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void writeRecord(DataOutputStream out, String key, @Nullable Object value) throws IOException {
+        final ByteArrayOutputStream data = new ByteArrayOutputStream(64);
+        final DataOutputStream record = new DataOutputStream(data);
+        final byte type = value == null ? TYPE_REMOVED : getType(value);
+
+        record.writeByte(type);
+        record.writeUTF(key);
+
+        switch (type) {
+            case TYPE_STRING:
+                record.writeUTF((String) value);
+                break;
+            case TYPE_BOOLEAN:
+                record.writeBoolean((Boolean) value);
+                break;
+            case TYPE_INT:
+                record.writeInt((Integer) value);
+                break;
+            case TYPE_LONG:
+                record.writeLong((Long) value);
+                break;
+            case TYPE_FLOAT:
+                record.writeFloat((Float) value);
+                break;
+            case TYPE_BLOB:
+                record.writeUTF(((Blob) value).mFileName);
+                break;
+            default:
+                break;
+        }
+        record.flush();
+
+        out.writeInt(data.size());
+        data.writeTo(out);
+    }
+
+    /**
+     * @return type of value or TYPE_REMOVED if type isn't supported
+     */
+    private static byte getType(@NonNull Object value) {
+        if (value instanceof String) {
+            return TYPE_STRING;
+        } else if (value instanceof Boolean) {
+            return TYPE_BOOLEAN;
+        } else if (value instanceof Integer) {
+            return TYPE_INT;
+        } else if (value instanceof Long) {
+            return TYPE_LONG;
+        } else if (value instanceof Float) {
+            return TYPE_FLOAT;
+        } else if (value instanceof Blob) {
+            return TYPE_BLOB;
+        }
+        return TYPE_REMOVED;
+    }
+
+    private boolean isCompactionRequired() {
+        return mLogRecords > MIN_COMPACTION_RECORDS && mLogRecords > 2 * mValues.size();
+    }
+
+    /**
+     * write log with only current values to temporary file and replace log with it
+     */
+    private void rewriteLog() throws IOException {
+        closeLog();
+
+        final File tmpFile = new File(mDirectory, LOG_FILE_NAME + TMP_SUFFIX);
+        final ByteArrayOutputStream data = new ByteArrayOutputStream(1024);
+        final DataOutputStream out = new DataOutputStream(data);
+
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        for (Map.Entry<String, Object> entry : mValues.entrySet()) {
+            writeRecord(out, entry.getKey(), entry.getValue());
+        }
+        out.flush();
+
+        writeFile(tmpFile, data);
+        if (!tmpFile.renameTo(mLogFile)) {
+            deleteFile(tmpFile);
+            throw new IOException("Can't replace state log");
+        }
+
+        mLogRecords = mValues.size();
+        mLogStream = new FileOutputStream(mLogFile, true);
+    }
+
+    @Nullable
+    private Blob writeBlob(@NonNull String value) {
+        File file;
+
+        // sequence of other process can be behind, existing blob isn't replaced
+        do {
+            file = new File(mDirectory, BLOB_PREFIX + (++mBlobSequence));
+        } while (file.exists());
+
+        final Blob blob = new Blob(file.getName());
+        final File tmpFile = new File(mDirectory, blob.mFileName + TMP_SUFFIX);
+
+        try {
+            final ByteArrayOutputStream data = new ByteArrayOutputStream(value.length());
+            data.write(value.getBytes("UTF-8"));
+            writeFile(tmpFile, data);
+
+            if (!tmpFile.renameTo(file)) {
+                WebtrekkLogging.log("Can't save state blob file");
+                deleteFile(tmpFile);
+                return null;
+            }
+            return blob;
+        } catch (IOException e) {
+            WebtrekkLogging.log("Can't save state blob file:" + e);
+            deleteFile(tmpFile);
+            return null;
+        }
+    }
+
+    @Nullable
+    private String readBlob(@NonNull Blob blob) {
+        try {
+            return new String(HelperFunctions.bytesFromStream(
+                    new FileInputStream(new File(mDirectory, blob.mFileName))), "UTF-8");
+        } catch (IOException e) {
+            WebtrekkLogging.log("Can't read state blob file:" + e);
+            return null;
+        }
+    }
+
+    /**
+     * delete blob and temporary files that aren't referenced from log. Sets blob sequence after
+     * the latest existed blob.
+     */
+    private void deleteUnusedBlobs() {
+        final List<String> usedFiles = new ArrayList<>();
+
+        for (Object value : mValues.values()) {
+            if (value instanceof Blob) {
+                usedFiles.add(((Blob) value).mFileName);
+            }
+        }
+
+        final File[] files = mDirectory.listFiles();
+
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            final String name = file.getName();
+
+            if (name.equals(LOG_FILE_NAME) || name.equals(LOCK_FILE_NAME)) {
+                continue;
+            }
+
+            if (usedFiles.contains(name)) {
+                updateBlobSequence(name);
+            } else {
+                deleteFile(file);
+            }
+        }
+    }
+
+    private void updateBlobSequence(String blobFileName) {
+        try {
+            mBlobSequence = Math.max(mBlobSequence, Long.parseLong(blobFileName.substring(BLOB_PREFIX.length())));
+        } catch (NumberFormatException e) {
+            WebtrekkLogging.log("Incorrect state blob file name: " + blobFileName);
+        } catch (IndexOutOfBoundsException e) {
+            WebtrekkLogging.log("Incorrect state blob file name: " + blobFileName);
+        }
+    }
+
+    /**
+     * lock state directory for other processes. Lock file is opened on first call
+     * @return lock or null if lock isn't supported, then state is changed without lock
+     */
+    @Nullable
+    private FileLock lockFile() {
+        try {
+            if (mLockFile == null) {
+                mLockFile = new RandomAccessFile(new File(mDirectory, LOCK_FILE_NAME), "rw");
+            }
+            return mLockFile.getChannel().lock();
+        } catch (IOException e) {
+            WebtrekkLogging.log("Can't lock state file:" + e);
+            return null;
+        }
+    }
+
+    private static void unlockFile(@Nullable FileLock lock) {
+        if (lock != null) {
+            try {
+                lock.release();
+            } catch (IOException e) {
+                WebtrekkLogging.log("Can't unlock state file:" + e);
+            }
+        }
+    }
+
+    /**
+     * @return version of log that is saved in lock file, 0 if it isn't saved yet
+     */
+    private long readLogVersion() {
+        if (mLockFile == null) {
+            return mLogVersion;
+        }
+
+        try {
+            if (mLockFile.length() < 8) {
+                return 0;
+            }
+            mLockFile.seek(0);
+            return mLockFile.readLong();
+        } catch (IOException e) {
+            WebtrekkLogging.log("Can't read state version:" + e);
+            return mLogVersion;
+        }
+    }
+
+    /**
+     * increase version of log after change, so other processes read log again. Should be called under file lock
+     */
+    private void writeLogVersion() {
+        mLogVersion++;
+        if (mLockFile == null) {
+            return;
+        }
+
+        try {
+            mLockFile.seek(0);
+            mLockFile.writeLong(mLogVersion);
+        } catch (IOException e) {
+            WebtrekkLogging.log("Can't save state version:" + e);
+        }
+    }
+
+    private static void writeFile(File file, ByteArrayOutputStream data) throws IOException {
+        final FileOutputStream stream = new FileOutputStream(file);
+
+        try {
+            data.writeTo(stream);
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static void deleteFile(File file) {
+        if (file.exists() && !file.delete()) {
+            WebtrekkLogging.log("Can't delete state file: " + file.getName());
+        }
+    }
+
+    private void closeLog() {
+        if (mLogStream != null) {
+            try {
+                mLogStream.close();
+            } catch (IOException e) {
+                WebtrekkLogging.log("Can't close state file:" + e);
+            }
+            mLogStream = null;
+        }
+    }
+}
@@ -0,0 +1,552 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.webtrekk.webtrekksdk.Webtrekk;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * In-memory copy of SDK state that is read on hot paths. State is saved in {@link StateFile}, it is
+ * loaded once and is served from fields. Changes are written through to state file asynchronously,
+ * all changes done during {@link #BATCH_DELAY_MILLISECONDS} are written with one log write.
+ * State keys that are found in preferences (state of previous SDK versions or values that are written
+ * there directly) are moved to state file, values that are written later are moved on executor thread.
+ * Ever id is public preference value, it is copied to state file and is kept in preferences as well.
+ */
+public class StateStore {
+    static final long BATCH_DELAY_MILLISECONDS = 100;
+    static final String DIRECTORY_NAME = "webtrekk-state";
+
+    public static final String KEY_ADV_ID = "INSTALL_SETTINGS_ADV_ID";
+    public static final String KEY_MEDIA_CODE = "INSTALL_SETTINGS_MEDIA_CODE";
+    public static final String KEY_OPT_OUT = "INSTALL_SETTINGS_OPT_OUT";
+    public static final String KEY_CAMPAIGN_PROCESS_FINISHED = "CAMPAIGN_PROCESS_FINISHED";
+    public static final String KEY_DEEP_LINK_MEDIA_CODE = "DEEP_LINK_SETTINGS_MEDIA_CODE";
+    public static final String KEY_APPINSTALL_GOAL = "appinstallGoal";
+    public static final String KEY_APPINSTALL_GOAL_PROCESSED = "appinstallGoalProcessed";
+    public static final String KEY_LAST_CDB_REQUEST_DATE = "LAST_CBD_REQUEST_DATE";
+    // hash of stored remote configuration, is saved with configuration
+    static final String KEY_CONFIGURATION_HASH = "webtrekkTrackingConfigurationHash";
+
+    // keys that are moved from preferences to state file
+    private static final List<String> STATE_KEYS = Arrays.asList(
+            KEY_ADV_ID, KEY_MEDIA_CODE, KEY_OPT_OUT, KEY_CAMPAIGN_PROCESS_FINISHED, KEY_DEEP_LINK_MEDIA_CODE,
+            KEY_APPINSTALL_GOAL, KEY_APPINSTALL_GOAL_PROCESSED, KEY_LAST_CDB_REQUEST_DATE,
+            Webtrekk.PREFERENCE_KEY_CONFIGURATION);
+
+    // marks key that should be removed from state file
+    private static final Object REMOVED = new Object();
+
+    private static volatile StateStore sInstance;
+
+    private final SharedPreferences mPreferences;
+    private final StateFile mFile;
+    private final Map<String, Object> mPendingChanges = new HashMap<>();
+    private ScheduledExecutorService mExecutor;
+    private boolean mIsFlushScheduled;
+    private boolean mIsImportScheduled;
+
+    private volatile String mEverId;
+    private volatile String mAdvId;
+    private volatile String mMediaCode;
+    private volatile boolean mOptOut;
+    private volatile boolean mCampaignProcessFinished;
+    private volatile String mDeepLinkMediaCode;
+    private volatile boolean mAppinstallGoal;
+    private volatile boolean mAppinstallGoalProcessed;
+    // -1 if CDB request date isn't set
+    private volatile long mLastCDBRequestDate;
+
+    private final SharedPreferences.OnSharedPreferenceChangeListener mPreferenceListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+            // removal notification is received also after key is moved to state file, it is ignored
+            if (key != null && (STATE_KEYS.contains(key) || key.equals(Webtrekk.PREFERENCE_KEY_EVER_ID))
+                    && sharedPreferences.contains(key)) {
+                scheduleImport();
+            }
+        }
+    };
+
+    private final Runnable mImportAction = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (StateStore.this) {
+                mIsImportScheduled = false;
+                importPreferences();
+            }
+        }
+    };
+
+    private StateStore(@NonNull Context context) {
+        mPreferences = HelperFunctions.getWebTrekkSharedPreference(context);
+        mFile = new StateFile(new File(context.getFilesDir(), DIRECTORY_NAME));
+        mFile.open();
+        load();
+        importPreferences();
+        // preferences keep listener with weak reference, it is kept by this object
+        mPreferences.registerOnSharedPreferenceChangeListener(mPreferenceListener);
+    }
+
+    @NonNull
+    public static StateStore getInstance(@NonNull Context context) {
+        StateStore store = sInstance;
+
+        if (store == null) {
+            synchronized (StateStore.class) {
+                if (sInstance == null) {
+                    sInstance = new StateStore(context.getApplicationContext() == null ? context : context.getApplicationContext());
+                }
+                store = sInstance;
+            }
+        }
+        return store;
+    }
+
+    /**
+     * write pending changes and move state values that are found in preferences to state file. Is called
+     * during initialization, so changes that are done directly in preferences before it are taken into account.
+     */
+    public synchronized void reload() {
+        writePendingChanges();
+        importPreferences();
+    }
+
+    /**
+     * write pending changes immediately
+     */
+    public synchronized void flush() {
+        writePendingChanges();
+    }
+
+    public boolean isFirstStart() {
+        return mEverId == null;
+    }
+
+    /**
+     * @return ever id, it is generated if it doesn't exist yet. Generated id is saved immediately under file
+     * lock, so processes that start together use the same id
+     */
+    @NonNull
+    public String getEverId() {
+        String everId = mEverId;
+
+        if (everId == null) {
+            synchronized (this) {
+                if (mEverId == null) {
+                    // pending removal of ever id is written first
+                    writePendingChanges();
+                    final Object savedEverId = mFile.putIfAbsent(Webtrekk.PREFERENCE_KEY_EVER_ID, HelperFunctions.generateEverid());
+                    applyValue(Webtrekk.PREFERENCE_KEY_EVER_ID, savedEverId);
+                    if (mEverId == null) {
+                        setValue(Webtrekk.PREFERENCE_KEY_EVER_ID, HelperFunctions.generateEverid());
+                    } else {
+                        copyEverIdToPreferences(mEverId);
+                    }
+                }
+                everId = mEverId;
+            }
+        }
+        return everId;
+    }
+
+    public synchronized void setEverId(String everId) {
+        setValue(Webtrekk.PREFERENCE_KEY_EVER_ID, everId);
+    }
+
+    @Nullable
+    public String getAdvId() {
+        return mAdvId;
+    }
+
+    public boolean getOptOut() {
+        return mOptOut;
+    }
+
+    /**
+     * @param remove if true media code is removed after it is read
+     */
+    @Nullable
+    public String getMediaCode(boolean remove) {
+        if (!remove) {
+            return mMediaCode;
+        }
+
+        synchronized (this) {
+            final String mediaCode = mMediaCode;
+            if (mediaCode != null) {
+                setValue(KEY_MEDIA_CODE, null);
+            }
+            return mediaCode;
+        }
+    }
+
+    /**
+     * save campaign result. Null values aren't changed
+     */
+    public synchronized void setCampaignData(@Nullable String mediaCode, @Nullable String advId, boolean optOut) {
+        if (mediaCode != null) {
+            setValue(KEY_MEDIA_CODE, mediaCode);
+        }
+        if (advId != null) {
+            setValue(KEY_ADV_ID, advId);
+        }
+        setValue(KEY_OPT_OUT, optOut);
+    }
+
+    public boolean isCampaignProcessFinished() {
+        return mCampaignProcessFinished;
+    }
+
+    public synchronized void setCampaignProcessFinished() {
+        setValue(KEY_CAMPAIGN_PROCESS_FINISHED, true);
+    }
+
+    /**
+     * @param remove if true deep link media code is removed after it is read
+     */
+    @Nullable
+    public String getDeepLinkMediaCode(boolean remove) {
+        if (!remove) {
+            return mDeepLinkMediaCode;
+        }
+
+        synchronized (this) {
+            final String mediaCode = mDeepLinkMediaCode;
+            if (mediaCode != null) {
+                setValue(KEY_DEEP_LINK_MEDIA_CODE, null);
+            }
+            return mediaCode;
+        }
+    }
+
+    public synchronized void setDeepLinkMediaCode(@Nullable String mediaCode) {
+        setValue(KEY_DEEP_LINK_MEDIA_CODE, mediaCode);
+    }
+
+    public boolean isAppinstallGoal() {
+        return mAppinstallGoal;
+    }
+
+    public boolean isAppinstallGoalProcessed() {
+        return mAppinstallGoalProcessed;
+    }
+
+    public synchronized void setAppinstallGoal(boolean isGoal) {
+        setValue(KEY_APPINSTALL_GOAL, isGoal ? Boolean.TRUE : null);
+    }
+
+    public synchronized void finishAppinstallGoal() {
+        setValue(KEY_APPINSTALL_GOAL, null);
+        setValue(KEY_APPINSTALL_GOAL_PROCESSED, true);
+    }
+
+    /**
+     * @return date counter of last CDB request or -1 if there was no request
+     */
+    public long getLastCDBRequestDate() {
+        return mLastCDBRequestDate;
+    }
+
+    /**
+     * @param date date counter or -1 to remove it
+     */
+    public synchronized void setLastCDBRequestDate(long date) {
+        setValue(KEY_LAST_CDB_REQUEST_DATE, date < 0 ? null : date);
+    }
+
+    /**
+     * @return stored remote configuration xml or null if there is no one. Is read from file on each call.
+     */
+    @Nullable
+    public synchronized String getConfiguration() {
+        writePendingChanges();
+        final Object configuration = mFile.get(Webtrekk.PREFERENCE_KEY_CONFIGURATION);
+        return configuration instanceof String ? (String) configuration : null;
+    }
+
+    public synchronized void setConfiguration(@Nullable String configuration) {
+        final Map<String, Object> changes = new HashMap<>(2);
+
+        mPendingChanges.remove(Webtrekk.PREFERENCE_KEY_CONFIGURATION);
+        mPendingChanges.remove(KEY_CONFIGURATION_HASH);
+        changes.put(Webtrekk.PREFERENCE_KEY_CONFIGURATION, configuration);
+        changes.put(KEY_CONFIGURATION_HASH, configuration == null ? null : getConfigurationHash(configuration));
+        mFile.write(changes);
+    }
+
+    /**
+     * @return hash of stored remote configuration or 0 if there is no one. Configuration itself isn't read,
+     * so it can be used to check if configuration is changed. Hash is calculated and saved if configuration
+     * was stored without it (e.g. it is moved from preferences).
+     */
+    public synchronized long getConfigurationHash() {
+        writePendingChanges();
+        final Object hash = mFile.get(KEY_CONFIGURATION_HASH);
+
+        if (hash instanceof Long) {
+            return (Long) hash;
+        }
+
+        final Object configuration = mFile.get(Webtrekk.PREFERENCE_KEY_CONFIGURATION);
+        if (!(configuration instanceof String)) {
+            return 0;
+        }
+
+        final long configurationHash = getConfigurationHash((String) configuration);
+        mFile.put(KEY_CONFIGURATION_HASH, configurationHash);
+        return configurationHash;
+    }
+
+    static long getConfigurationHash(@NonNull String configuration) {
+        final CRC32 crc = new CRC32();
+
+        try {
+            crc.update(configuration.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+        // length is added, so there is no 0 hash for stored configuration
+        return (crc.getValue() << 32) ^ (configuration.length() + 1);
+    }
+
+    public synchronized boolean contains(@NonNull String key) {
+        final Object value = mPendingChanges.get(key);
+        return value == null ? mFile.contains(key) : value != REMOVED;
+    }
+
+    /**
+     * remove state value
+     */
+    public synchronized void remove(@NonNull String key) {
+        setValue(key, null);
+    }
+
+    private void load() {
+        final Map<String, ?> values = mFile.getAll();
+
+        mEverId = getString(values, Webtrekk.PREFERENCE_KEY_EVER_ID);
+        mAdvId = getString(values, KEY_ADV_ID);
+        mMediaCode = getString(values, KEY_MEDIA_CODE);
+        mOptOut = getBoolean(values, KEY_OPT_OUT);
+        mCampaignProcessFinished = getBoolean(values, KEY_CAMPAIGN_PROCESS_FINISHED);
+        mDeepLinkMediaCode = getString(values, KEY_DEEP_LINK_MEDIA_CODE);
+        mAppinstallGoal = getBoolean(values, KEY_APPINSTALL_GOAL);
+        mAppinstallGoalProcessed = getBoolean(values, KEY_APPINSTALL_GOAL_PROCESSED);
+
+        final Object date = values.get(KEY_LAST_CDB_REQUEST_DATE);
+        mLastCDBRequestDate = date instanceof Long ? (Long) date : -1;
+    }
+
+    /**
+     * Moves state values from preferences to state file. The first call after update migrates whole state
+     * of previous version, later values appear in preferences only if they are written there directly.
+     * Should be called under lock
+     */
+    private void importPreferences() {
+        final Map<String, ?> values = mPreferences.getAll();
+        SharedPreferences.Editor editor = null;
+
+        // ever id is read from preferences by applications and previous SDK versions, it stays there
+        final Object everId = values.get(Webtrekk.PREFERENCE_KEY_EVER_ID);
+        if (everId instanceof String) {
+            if (!everId.equals(mEverId)) {
+                setValue(Webtrekk.PREFERENCE_KEY_EVER_ID, everId);
+            }
+        } else if (mEverId != null) {
+            mPreferences.edit().putString(Webtrekk.PREFERENCE_KEY_EVER_ID, mEverId).apply();
+        }
+
+        for (String key : STATE_KEYS) {
+            if (values.containsKey(key)) {
+                setValue(key, values.get(key));
+                if (key.equals(Webtrekk.PREFERENCE_KEY_CONFIGURATION)) {
+                    // hash is calculated again for moved configuration
+                    setValue(KEY_CONFIGURATION_HASH, null);
+                }
+                if (editor == null) {
+                    editor = mPreferences.edit();
+                }
+                editor.remove(key);
+            }
+        }
+
+        if (editor != null) {
+            WebtrekkLogging.log("state is moved from preferences to state file");
+            // value is removed from preferences only after it is saved to state file
+            writePendingChanges();
+            editor.apply();
+        }
+    }
+
+    /**
+     * set field and add change to pending changes. Should be called under lock
+     */
+    private void setValue(@NonNull String key, @Nullable Object value) {
+        applyValue(key, value);
+        mPendingChanges.put(key, value == null ? REMOVED : value);
+        scheduleWrite();
+
+        if (key.equals(Webtrekk.PREFERENCE_KEY_EVER_ID)) {
+            copyEverIdToPreferences(value);
+        }
+    }
+
+    private void copyEverIdToPreferences(@Nullable Object everId) {
+        if (equals(everId, mPreferences.getString(Webtrekk.PREFERENCE_KEY_EVER_ID, null))) {
+            return;
+        }
+
+        if (everId instanceof String) {
+            mPreferences.edit().putString(Webtrekk.PREFERENCE_KEY_EVER_ID, (String) everId).apply();
+        } else {
+            mPreferences.edit().remove(Webtrekk.PREFERENCE_KEY_EVER_ID).apply();
+        }
+    }
+
+    private static boolean equals(@Nullable Object value1, @Nullable Object value2) {
+        return value1 == null ? value2 == null : value1.equals(value2);
+    }
+
+    private void applyValue(@NonNull String key, @Nullable Object value) {
+        switch (key) {
+            case Webtrekk.PREFERENCE_KEY_EVER_ID:
+                mEverId = value instanceof String ? (String) value : null;
+                break;
+            case KEY_ADV_ID:
+                mAdvId = value instanceof String ? (String) value : null;
+                break;
+            case KEY_MEDIA_CODE:
+                mMediaCode = value instanceof String ? (String) value : null;
+                break;
+            case KEY_OPT_OUT:
+                mOptOut = value instanceof Boolean && (Boolean) value;
+                break;
+            case KEY_CAMPAIGN_PROCESS_FINISHED:
+                mCampaignProcessFinished = value instanceof Boolean && (Boolean) value;
+                break;
+            case KEY_DEEP_LINK_MEDIA_CODE:
+                mDeepLinkMediaCode = value instanceof String ? (String) value : null;
+                break;
+            case KEY_APPINSTALL_GOAL:
+                mAppinstallGoal = value instanceof Boolean && (Boolean) value;
+                break;
+            case KEY_APPINSTALL_GOAL_PROCESSED:
+                mAppinstallGoalProcessed = value instanceof Boolean && (Boolean) value;
+                break;
+            case KEY_LAST_CDB_REQUEST_DATE:
+                mLastCDBRequestDate = value instanceof Long ? (Long) value : -1;
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * move changed preferences to state file on executor thread. Listener is called on main thread,
+     * several changes that are done together are moved with one import
+     */
+    private synchronized void scheduleImport() {
+        if (mIsImportScheduled) {
+            return;
+        }
+
+        mIsImportScheduled = true;
+        getExecutor().execute(mImportAction);
+    }
+
+    private void scheduleWrite() {
+        if (mIsFlushScheduled) {
+            return;
+        }
+
+        mIsFlushScheduled = true;
+        getExecutor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, BATCH_DELAY_MILLISECONDS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Should be called under lock
+     */
+    private ScheduledExecutorService getExecutor() {
+        if (mExecutor == null) {
+            // use daemon thread.
+            mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = Executors.defaultThreadFactory().newThread(r);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return mExecutor;
+    }
+
+    /**
+     * write all pending changes with one log write. Should be called under lock
+     */
+    private void writePendingChanges() {
+        mIsFlushScheduled = false;
+
+        if (mPendingChanges.isEmpty()) {
+            return;
+        }
+
+        final Map<String, Object> changes = new HashMap<>(mPendingChanges.size());
+
+        for (Map.Entry<String, Object> change : mPendingChanges.entrySet()) {
+            changes.put(change.getKey(), change.getValue() == REMOVED ? null : change.getValue());
+        }
+
+        mPendingChanges.clear();
+        mFile.write(changes);
+    }
+
+    @Nullable
+    private static String getString(@NonNull Map<String, ?> values, @NonNull String key) {
+        final Object value = values.get(key);
+        return value instanceof String ? (String) value : null;
+    }
+
+    private static boolean getBoolean(@NonNull Map<String, ?> values, @NonNull String key) {
+        final Object value = values.get(key);
+        return value instanceof Boolean && (Boolean) value;
+    }
+}
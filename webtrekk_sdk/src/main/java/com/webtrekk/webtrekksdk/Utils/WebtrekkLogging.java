@@ -15,29 +15,88 @@
  *
  * Created by Thomas Dahlmann on 17.09.15.
  */
-
 package com.webtrekk.webtrekksdk.Utils;
 
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
 /**
  * custom logging class for the sdk defining the logTag and allows a global isLogging switch
- *
+ * Messages can be written with level and format where each "{}" is replaced with next argument.
+ * Message is formatted only if level is enabled, so disabled call doesn't allocate anything if
+ * arguments are already existed objects. Optionally last events are kept in memory ring buffer and
+ * can be received with {@link #getRecentEvents()} even if output to logcat is disabled.
  */
 public class WebtrekkLogging {
     public static final String logTag = "WebtrekkSDK";
-    volatile public static boolean isLogging = true;
+
+    // the same values as android.util.Log levels
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    volatile public static boolean isLogging = false;
+    private static volatile int sLevel = DEBUG;
+    private static volatile RingBuffer sRingBuffer;
 
     public static void log(String message) {
-        if(isLogging) {
-            android.util.Log.d(logTag, message);
+        if (isLoggable(DEBUG)) {
+            write(DEBUG, message, 0, null, null, null, null, null);
         }
     }
 
     public static void log(String message, Throwable t) {
-        if(isLogging) {
-            android.util.Log.d(logTag, message, t);
+        if (isLoggable(DEBUG)) {
+            write(DEBUG, message, 0, null, null, null, null, t);
+        }
+    }
+
+    public static void log(int level, String message) {
+        if (isLoggable(level)) {
+            write(level, message, 0, null, null, null, null, null);
+        }
+    }
+
+    public static void log(int level, String format, Object arg1) {
+        if (isLoggable(level)) {
+            write(level, format, 1, arg1, null, null, null, null);
+        }
+    }
+
+    public static void log(int level, String format, Object arg1, Object arg2) {
+        if (isLoggable(level)) {
+            write(level, format, 2, arg1, arg2, null, null, null);
         }
     }
 
+    public static void log(int level, String format, Object arg1, Object arg2, Object arg3) {
+        if (isLoggable(level)) {
+            write(level, format, 3, arg1, arg2, arg3, null, null);
+        }
+    }
+
+    public static void log(int level, String format, Object arg1, Object arg2, Object arg3, Object arg4) {
+        if (isLoggable(level)) {
+            write(level, format, 4, arg1, arg2, arg3, arg4, null);
+        }
+    }
+
+    /**
+     * Should be checked before log call if arguments should be calculated or primitive values boxed.
+     * @return true if message of this level is written to logcat or ring buffer
+     */
+    public static boolean isLoggable(int level) {
+        return level >= sLevel && (isLogging || sRingBuffer != null);
+    }
+
     public static boolean isLogging() {
         return isLogging;
     }
@@ -50,4 +109,166 @@ public class WebtrekkLogging {
     public static void setIsLogging(boolean isLogging) {
         WebtrekkLogging.isLogging = isLogging;
     }
+
+    /**
+     * @param level minimum level of messages that are written, {@link #DEBUG} by default
+     */
+    public static void setLevel(int level) {
+        sLevel = level;
+    }
+
+    public static int getLevel() {
+        return sLevel;
+    }
+
+    /**
+     * Enables in memory buffer of last SDK events. Events are saved to buffer independently from
+     * {@link #setIsLogging(boolean)} and formatted only when they are received.
+     * @param size number of events to keep, 0 disables buffer and removes saved events
+     */
+    public static void setRecentEventsBufferSize(int size) {
+        sRingBuffer = size > 0 ? new RingBuffer(size) : null;
+    }
+
+    /**
+     * @return formatted events of ring buffer from oldest to newest. Empty if buffer is disabled
+     */
+    @NonNull
+    public static List<String> getRecentEvents() {
+        final RingBuffer ringBuffer = sRingBuffer;
+
+        return ringBuffer == null ? new ArrayList<String>() : ringBuffer.dump();
+    }
+
+    private static void write(int level, String format, int argsNumber, Object arg1, Object arg2,
+                              Object arg3, Object arg4, Throwable t) {
+        final RingBuffer ringBuffer = sRingBuffer;
+
+        if (ringBuffer != null) {
+            ringBuffer.add(level, format, argsNumber, arg1, arg2, arg3, arg4, t);
+        }
+
+        if (isLogging) {
+            final String message = argsNumber == 0 ? format : format(format, argsNumber, arg1, arg2, arg3, arg4);
+
+            if (t != null) {
+                android.util.Log.println(level, logTag, message + '\n' + android.util.Log.getStackTraceString(t));
+            } else {
+                android.util.Log.println(level, logTag, message);
+            }
+        }
+    }
+
+    /**
+     * replace "{}" with arguments in their order
+     */
+    static String format(String format, int argsNumber, Object arg1, Object arg2, Object arg3, Object arg4) {
+        if (format == null) {
+            return "null";
+        }
+
+        final StringBuilder builder = new StringBuilder(format.length() + 16 * argsNumber);
+        int start = 0;
+
+        for (int i = 0; i < argsNumber; i++) {
+            final int position = format.indexOf("{}", start);
+
+            if (position < 0) {
+                break;
+            }
+
+            builder.append(format, start, position);
+            builder.append(i == 0 ? arg1 : i == 1 ? arg2 : i == 2 ? arg3 : arg4);
+            start = position + 2;
+        }
+
+        builder.append(format, start, format.length());
+        return builder.toString();
+    }
+
+    /**
+     * Fixed size buffer of last events. Format and arguments are saved without formatting, mutable
+     * arguments are converted to string to keep value of event time and not to keep references.
+     */
+    private static class RingBuffer {
+        private static final int SLOTS_NUMBER = 5;
+
+        private final long[] mTimes;
+        private final int[] mLevels;
+        private final String[] mFormats;
+        private final int[] mArgsNumbers;
+        // 4 arguments and throwable per event
+        private final Object[] mSlots;
+        private int mNext;
+        private int mSize;
+
+        RingBuffer(int capacity) {
+            mTimes = new long[capacity];
+            mLevels = new int[capacity];
+            mFormats = new String[capacity];
+            mArgsNumbers = new int[capacity];
+            mSlots = new Object[capacity * SLOTS_NUMBER];
+        }
+
+        synchronized void add(int level, String format, int argsNumber, Object arg1, Object arg2,
+                              Object arg3, Object arg4, Throwable t) {
+            final int slot = mNext * SLOTS_NUMBER;
+
+            mTimes[mNext] = System.currentTimeMillis();
+            mLevels[mNext] = level;
+            mFormats[mNext] = format;
+            mArgsNumbers[mNext] = argsNumber;
+            mSlots[slot] = toValue(arg1);
+            mSlots[slot + 1] = toValue(arg2);
+            mSlots[slot + 2] = toValue(arg3);
+            mSlots[slot + 3] = toValue(arg4);
+            mSlots[slot + 4] = t == null ? null : t.toString();
+
+            mNext = (mNext + 1) % mTimes.length;
+            mSize = Math.min(mSize + 1, mTimes.length);
+        }
+
+        synchronized List<String> dump() {
+            final List<String> events = new ArrayList<>(mSize);
+            final SimpleDateFormat dateFormat = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
+            int index = (mNext - mSize + mTimes.length) % mTimes.length;
+
+            for (int i = 0; i < mSize; i++) {
+                final int slot = index * SLOTS_NUMBER;
+                String message = format(mFormats[index], mArgsNumbers[index], mSlots[slot], mSlots[slot + 1],
+                        mSlots[slot + 2], mSlots[slot + 3]);
+
+                if (mSlots[slot + 4] != null) {
+                    message += ' ' + (String) mSlots[slot + 4];
+                }
+                events.add(dateFormat.format(new Date(mTimes[index])) + ' ' + getLevelName(mLevels[index]) + ' ' + message);
+                index = (index + 1) % mTimes.length;
+            }
+            return events;
+        }
+
+        @Nullable
+        private static Object toValue(Object arg) {
+            if (arg == null || arg instanceof String || arg instanceof Number || arg instanceof Boolean
+                    || arg instanceof Character || arg instanceof Enum) {
+                return arg;
+            }
+            return String.valueOf(arg);
+        }
+
+        private static char getLevelName(int level) {
+            switch (level) {
+                case VERBOSE:
+                    return 'V';
+                case DEBUG:
+                    return 'D';
+                case INFO:
+                    return 'I';
+                case WARN:
+                    return 'W';
+                default:
+                    return 'E';
+            }
+        }
+    }
 }
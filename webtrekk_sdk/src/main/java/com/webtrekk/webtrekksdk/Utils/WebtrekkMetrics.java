@@ -0,0 +1,165 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Webtrekk GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.webtrekk.webtrekksdk.Utils;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Internal metrics of tracking pipeline: counters of tracked and dropped events, gauges of request
+ * store and latency histograms. All methods are lock free and can be called from any thread.
+ * Current values are received with {@link #getSnapshot()}, listener receives snapshot after each
+ * send cycle and when application goes to background.
+ */
+public class WebtrekkMetrics {
+
+    public enum Counter {
+        // request is created by track call
+        EVENTS_TRACKED,
+        // request isn't stored because user isn't in sampling
+        SAMPLED_OUT,
+        // request isn't stored because user is opted out
+        OPTED_OUT,
+        // request is removed without sending
+        EVICTED,
+        // request is successfully sent
+        SENT,
+        // request is removed as server responded with 4xx status
+        DROPPED_4XX,
+        // sending is postponed as server isn't available
+        RETRIED,
+        // request is moved to quarantine after repeated server errors
+        QUARANTINED,
+        // request is removed without sending as it is older than event TTL
+        EXPIRED,
+        // request isn't stored because storage quota is exceeded
+        QUOTA_REJECTED
+    }
+
+    public enum Gauge {
+        // number of requests in request store
+        STORE_SIZE,
+        // size of request store file in bytes
+        STORE_BYTES,
+        // number of requests that wait for campaign process
+        PENDING_STORE_SIZE,
+        // number of requests in quarantine
+        QUARANTINE_SIZE,
+        // bytes of all request queue files that are counted by storage quota
+        STORAGE_BYTES
+    }
+
+    public enum Timer {
+        // track call from parameters to stored URL
+        TRACK,
+        // build of request URL
+        URL_BUILD,
+        // flush of request store to file
+        FLUSH,
+        // round trip of request sending
+        SEND
+    }
+
+    public interface Listener {
+        /**
+         * is called on SDK background thread or on thread where application goes to background
+         */
+        void onMetrics(@NonNull MetricsSnapshot snapshot);
+    }
+
+    private static final WebtrekkMetrics sInstance = new WebtrekkMetrics();
+
+    private final AtomicLongArray mCounters = new AtomicLongArray(Counter.values().length);
+    private final AtomicLongArray mGauges = new AtomicLongArray(Gauge.values().length);
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[Timer.values().length];
+    private volatile Listener mListener;
+
+    private WebtrekkMetrics() {
+        for (int i = 0; i < mHistograms.length; i++) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    @NonNull
+    public static WebtrekkMetrics getInstance() {
+        return sInstance;
+    }
+
+    public void increment(@NonNull Counter counter) {
+        mCounters.incrementAndGet(counter.ordinal());
+    }
+
+    public void add(@NonNull Counter counter, long value) {
+        mCounters.addAndGet(counter.ordinal(), value);
+    }
+
+    public void setGauge(@NonNull Gauge gauge, long value) {
+        mGauges.set(gauge.ordinal(), value);
+    }
+
+    public void addGauge(@NonNull Gauge gauge, long delta) {
+        mGauges.addAndGet(gauge.ordinal(), delta);
+    }
+
+    /**
+     * @param startNanos value of {@link System#nanoTime()} when measured operation is started
+     */
+    public void recordTime(@NonNull Timer timer, long startNanos) {
+        mHistograms[timer.ordinal()].record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    @NonNull
+    public MetricsSnapshot getSnapshot() {
+        final long[] counters = new long[mCounters.length()];
+        final long[] gauges = new long[mGauges.length()];
+        final LatencyHistogram.Snapshot[] histograms = new LatencyHistogram.Snapshot[mHistograms.length];
+
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = mCounters.get(i);
+        }
+        for (int i = 0; i < gauges.length; i++) {
+            gauges[i] = mGauges.get(i);
+        }
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = mHistograms[i].getSnapshot();
+        }
+
+        return new MetricsSnapshot(System.currentTimeMillis(), counters, gauges, histograms);
+    }
+
+    public void setListener(@Nullable Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * send current snapshot to listener if it is set
+     */
+    public void notifyListener() {
+        final Listener listener = mListener;
+
+        if (listener != null) {
+            try {
+                listener.onMetrics(getSnapshot());
+            } catch (RuntimeException e) {
+                WebtrekkLogging.log("Metrics listener failed:" + e);
+            }
+        }
+    }
+}
@@ -20,32 +20,41 @@ package com.webtrekk.webtrekksdk;
 
 import android.app.Application;
 import android.content.Context;
-import android.content.SharedPreferences;
+import android.os.Handler;
 import android.os.Looper;
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.webkit.JavascriptInterface;
 import android.webkit.WebView;
 
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.util.Arrays;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import com.webtrekk.webtrekksdk.Modules.ExceptionHandler;
 import com.webtrekk.webtrekksdk.Request.RequestFactory;
+import com.webtrekk.webtrekksdk.Request.StorageQuota;
 import com.webtrekk.webtrekksdk.Request.TrackingRequest;
 import com.webtrekk.webtrekksdk.TrackingParameter.Parameter;
 import com.webtrekk.webtrekksdk.Configuration.ActivityConfiguration;
+import com.webtrekk.webtrekksdk.Configuration.ConfigurationSnapshot;
 import com.webtrekk.webtrekksdk.Utils.ActivityListener;
 import com.webtrekk.webtrekksdk.Utils.ActivityTrackingStatus;
 import com.webtrekk.webtrekksdk.Utils.HelperFunctions;
+import com.webtrekk.webtrekksdk.Utils.MetricsSnapshot;
+import com.webtrekk.webtrekksdk.Utils.StateStore;
 import com.webtrekk.webtrekksdk.Configuration.TrackingConfiguration;
+import com.webtrekk.webtrekksdk.Configuration.TrackingConfigurationCache;
 import com.webtrekk.webtrekksdk.Configuration.TrackingConfigurationDownloadTask;
 import com.webtrekk.webtrekksdk.Configuration.TrackingConfigurationXmlParser;
 import com.webtrekk.webtrekksdk.Utils.WebtrekkLogging;
+import com.webtrekk.webtrekksdk.Utils.WebtrekkMetrics;
 
 /**
  * The WebtrekkSDK main class, the developer/customer interacts with the SDK through this class.
@@ -63,15 +72,36 @@ public class Webtrekk implements ActivityListener.Callback {
     public static String mTrackingLibraryVersion;
 
     final private RequestFactory mRequestFactory = new RequestFactory();
-    private TrackingConfiguration trackingConfiguration;
 
     private Context mContext;
 
     //Current status of activities
     private ActivityListener mActivityStatus;
     final private ExceptionHandler mExceptionHandler = new ExceptionHandler();
+    final private RecommendationCache mRecommendationCache = new RecommendationCache();
     private ProductListTracker mProductListTracker;
-    private boolean mIsInitialized;
+    volatile private boolean mIsInitialized;
+
+    //max number of calls that are saved before deferred initialization is completed
+    static final int PRE_INIT_BUFFER_SIZE = 50;
+    final private ArrayDeque<Runnable> mPreInitCalls = new ArrayDeque<>();
+    final private List<InitListener> mInitListeners = new ArrayList<>();
+    volatile private boolean mIsInitializing;
+    //values that are returned by configuration getters before initialization is completed
+    private static final TrackingConfiguration NOT_INITIALIZED_CONFIGURATION = new TrackingConfiguration();
+    //initialization is done once, either by initWebtrekk or by thread of initWebtrekkAsync
+    final private Object mInitLock = new Object();
+
+    /**
+     * Listener for deferred initialization {@link #initWebtrekkAsync(Application, int, Set, InitListener)}.
+     * It is called on UI thread after all calls done before initialization are processed.
+     */
+    public interface InitListener {
+        /**
+         * @param success false if initialization is failed, for example configuration is invalid
+         */
+        void onInitCompleted(boolean success);
+    }
 
 
     /**
@@ -143,6 +173,143 @@ public class Webtrekk implements ActivityListener.Callback {
         initWebtrekk(app.getApplicationContext(), configResourceID, validPins);
     }
 
+    /**
+     * Deferred initialization with R.raw.webtrekk_config as config.
+     * See {@link #initWebtrekkAsync(Application, int, Set, InitListener)}
+     * @param app application instance
+     * @param listener listener that is called when initialization is completed, can be null
+     */
+    final public void initWebtrekkAsync(final Application app, @Nullable InitListener listener) {
+        initWebtrekkAsync(app, R.raw.webtrekk_config, null, listener);
+    }
+
+    /**
+     * Deferred initialization. Function returns immediately and initialization is done in background thread.
+     * Track calls and activity events that are done before initialization is completed are saved
+     * (maximum {@link #PRE_INIT_BUFFER_SIZE}, the oldest are removed) and are processed in the same order after it.
+     * Parameters of saved calls are kept by reference, so they shouldn't be changed after call.
+     * @param app application instance
+     * @param configResourceID id of config resource
+     * @param validPins SHA-256 pins
+     * @param listener listener that is called when initialization is completed, can be null
+     */
+    final public void initWebtrekkAsync(final Application app, final int configResourceID, final Set<String> validPins,
+                                        @Nullable final InitListener listener) {
+        if (app == null) {
+            throw new IllegalArgumentException("no valid app");
+        }
+
+        synchronized (mPreInitCalls) {
+            if (mIsInitializing) {
+                if (listener != null) {
+                    mInitListeners.add(listener);
+                }
+                return;
+            }
+
+            if (!mIsInitialized) {
+                mIsInitializing = true;
+                if (listener != null) {
+                    mInitListeners.add(listener);
+                }
+            }
+        }
+
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+        if (!mIsInitializing) {
+            //already initialized
+            if (listener != null) {
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onInitCompleted(true);
+                    }
+                });
+            }
+            return;
+        }
+
+        initVersions(app.getApplicationContext());
+        // activity callbacks are registered immediately, events are saved until initialization is done
+        initAutoTracking(app);
+
+        final Context context = app.getApplicationContext();
+        // context is available for calls that don't depend on configuration, like ever id
+        mContext = context;
+        Thread initThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                boolean success = true;
+                try {
+                    initWebtrekk(context, configResourceID, validPins);
+                } catch (RuntimeException e) {
+                    WebtrekkLogging.log("Deferred initialization is failed", e);
+                    success = false;
+                }
+
+                final boolean isSuccess = success;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        completeDeferredInit(isSuccess);
+                    }
+                });
+            }
+        }, "Webtrekk-init");
+        initThread.start();
+    }
+
+    /**
+     * process saved calls and notify listeners. It is called on UI thread.
+     */
+    private void completeDeferredInit(boolean success) {
+        WebtrekkLogging.log("Deferred initialization completed, success: " + success + ", calls to process: " + mPreInitCalls.size());
+
+        final List<InitListener> listeners;
+
+        while (true) {
+            Runnable call;
+            synchronized (mPreInitCalls) {
+                call = mPreInitCalls.pollFirst();
+                if (call == null) {
+                    mIsInitializing = false;
+                    listeners = new ArrayList<>(mInitListeners);
+                    mInitListeners.clear();
+                    break;
+                }
+            }
+
+            if (success) {
+                call.run();
+            }
+        }
+
+        for (InitListener listener : listeners) {
+            listener.onInitCompleted(success);
+        }
+    }
+
+    /**
+     * save call if deferred initialization is in progress
+     * @return true if call is saved and will be processed later
+     */
+    private boolean deferUntilInitialized(Runnable call) {
+        synchronized (mPreInitCalls) {
+            if (!mIsInitializing) {
+                return false;
+            }
+
+            if (mPreInitCalls.size() >= PRE_INIT_BUFFER_SIZE) {
+                mPreInitCalls.pollFirst();
+                WebtrekkMetrics.getInstance().increment(WebtrekkMetrics.Counter.EVICTED);
+                WebtrekkLogging.log("Pre-init buffer is full, the oldest call is removed");
+            }
+            mPreInitCalls.addLast(call);
+            return true;
+        }
+    }
+
     /**
      * @deprecated use {@link #initWebtrekk(Application, int)} instead
      * this initializes the webtrekk tracking configuration, it has to be called only once when the
@@ -166,30 +333,40 @@ public class Webtrekk implements ActivityListener.Callback {
         if (c == null) {
             throw new IllegalArgumentException("no valid mContext");
         }
-        if (mIsInitialized) {
-            //this can also occur on screen orientation changes
-            //TODO: recheck desired behaviour
-            return;
-            //throw new IllegalStateException("The initWebtrekk method must be called only once");
+
+        // synchronous call waits for deferred initialization that is in progress and returns
+        synchronized (mInitLock) {
+            if (mIsInitialized) {
+                //this can also occur on screen orientation changes
+                //TODO: recheck desired behaviour
+                return;
+                //throw new IllegalStateException("The initWebtrekk method must be called only once");
+            }
+            initComponents(c, configResourceID, validPins);
+            mIsInitialized = true;
         }
+    }
+
+    private void initComponents(final Context c, int configResourceID, Set<String> validPins) {
         this.mContext = c;
 
+        //preferences could be changed before init, read current state
+        StateStore.getInstance(mContext).reload();
         boolean isFirstStart = HelperFunctions.firstStart(mContext);
 
         initTrackingConfiguration(configResourceID);
-        mRequestFactory.init(mContext, trackingConfiguration, this, validPins);
+        mRequestFactory.init(mContext, getTrackingConfiguration(), this, validPins);
         //TODO: make sure this can not break
         //Application act = (Application) mContext.getApplicationContext();
         mExceptionHandler.init(mRequestFactory, mContext);
 
-        mProductListTracker = new ProductListTracker(trackingConfiguration, mContext);
+        mProductListTracker = new ProductListTracker(mRequestFactory.getConfigurationHolder(), mContext,
+                mRequestFactory.getProcessSuffix());
 
 
-        WebtrekkLogging.log("requestUrlStore created: max requests - " + trackingConfiguration.getMaxRequests());
+        WebtrekkLogging.log("requestUrlStore created: max requests - " + getTrackingConfiguration().getMaxRequests());
 
         WebtrekkLogging.log("tracking initialized");
-        mIsInitialized = true;
-
     }
 
     /**
@@ -215,17 +392,34 @@ public class Webtrekk implements ActivityListener.Callback {
     final void initTrackingConfiguration(final String configurationString, int configResourceID) {
 
         // always parse the local raw config version first, this is fallback, default and also the way to fix broken online configs
-        //TODO: this could me more elegant by only parsing it when its a new app version which needs to be set anyway
+        // parsed result is cached and xml is parsed again only if raw or stored remote config is changed
         String trackingConfigurationString;
-        String defaultConfigurationString = null;
+        TrackingConfigurationCache configurationCache = null;
+        long configurationKey = 0;
+        TrackingConfiguration trackingConfiguration = null;
+
         if (configurationString == null) {
+            byte[] configurationResource;
+            try {
+                configurationResource = HelperFunctions.bytesFromStream(mContext.getResources().openRawResource(configResourceID));
+            } catch (IOException e) {
+                WebtrekkLogging.log("no custom config was found, illegal state, provide a valid config in res id:"+configResourceID);
+                throw new IllegalStateException("can not load xml configuration file, invalid state");
+            }
+
+            configurationCache = new TrackingConfigurationCache(mContext);
+            configurationKey = TrackingConfigurationCache.getKey(configurationResource,
+                    StateStore.getInstance(mContext).getConfigurationHash());
+            trackingConfiguration = configurationCache.load(configurationKey, mTrackingLibraryVersion);
+
             try {
-                trackingConfigurationString = HelperFunctions.stringFromStream(mContext.getResources().openRawResource(configResourceID));
+                trackingConfigurationString = trackingConfiguration != null ? null :
+                        HelperFunctions.stringFromStream(new ByteArrayInputStream(configurationResource));
             } catch (IOException e) {
                 WebtrekkLogging.log("no custom config was found, illegal state, provide a valid config in res id:"+configResourceID);
                 throw new IllegalStateException("can not load xml configuration file, invalid state");
             }
-            if(trackingConfigurationString.length() < 80) {
+            if(trackingConfiguration == null && trackingConfigurationString.length() < 80) {
                 // neccesary to make sure it uses the placeholder which has 66 chars length
                 WebtrekkLogging.log("no custom config was found, illegal state, provide a valid config in res id:"+configResourceID);
                 throw new IllegalStateException("can not load xml configuration file, invalid state");
@@ -234,6 +428,72 @@ public class Webtrekk implements ActivityListener.Callback {
             trackingConfigurationString = configurationString;
         }
 
+        final boolean isParsingRequired = trackingConfiguration == null;
+
+        if (isParsingRequired) {
+            trackingConfiguration = parseTrackingConfiguration(trackingConfigurationString);
+        }
+
+        // check if we have a valid configuration
+        if(trackingConfiguration != null && trackingConfiguration.validateConfiguration()) {
+            WebtrekkLogging.log("xml trackingConfiguration value: trackid - " + trackingConfiguration.getTrackId());
+            WebtrekkLogging.log("xml trackingConfiguration value: trackdomain - " + trackingConfiguration.getTrackDomain());
+            WebtrekkLogging.log("xml trackingConfiguration value: send_delay - " + trackingConfiguration.getSendDelay());
+
+            for(ActivityConfiguration cfg : trackingConfiguration.getActivityConfigurations().values()) {
+                WebtrekkLogging.log("xml trackingConfiguration activity for: " + cfg.getClassName() + " mapped to: " + cfg.getMappingName() + " autotracked: " + cfg.isAutoTrack());
+            }
+        } else {
+            WebtrekkLogging.log("error loading the configuration - can not initialize tracking");
+            throw new IllegalStateException("could not get valid configuration, invalid state");
+        }
+
+        if (isParsingRequired && configurationCache != null) {
+            configurationCache.save(configurationKey, mTrackingLibraryVersion, trackingConfiguration);
+        }
+
+        // publish snapshot for all components
+        mRequestFactory.setTrackingConfiguration(trackingConfiguration);
+
+        if(trackingConfiguration.isEnableRemoteConfiguration()) {
+            // third check online for newer versions
+            startConfigurationDownload(trackingConfiguration.getTrackingConfigurationUrl());
+        }
+
+        WebtrekkLogging.log("tracking configuration initialized");
+
+    }
+
+    /**
+     * AsyncTask should be started from UI thread, so post it if initialization is deferred.
+     * Download isn't started if configuration was checked less than refresh interval ago.
+     */
+    private void startConfigurationDownload(final String url) {
+        if (!TrackingConfigurationDownloadTask.isRefreshRequired(mContext, url)) {
+            WebtrekkLogging.log("remote configuration was checked recently, skip download");
+            return;
+        }
+
+        if (Looper.getMainLooper().getThread() == Thread.currentThread()) {
+            new TrackingConfigurationDownloadTask(this, null).execute(url);
+        } else {
+            new Handler(Looper.getMainLooper()).post(new Runnable() {
+                @Override
+                public void run() {
+                    new TrackingConfigurationDownloadTask(Webtrekk.this, null).execute(url);
+                }
+            });
+        }
+    }
+
+    /**
+     * parse local xml configuration and newer remote configuration that is stored in preferences
+     * @param trackingConfigurationString local xml configuration
+     * @return newest configuration
+     */
+    private TrackingConfiguration parseTrackingConfiguration(String trackingConfigurationString) {
+        TrackingConfiguration trackingConfiguration;
+
         try {
             // parse default configuration without default, will throw exceptions when its not valid
             trackingConfiguration = new TrackingConfigurationXmlParser().parse(trackingConfigurationString);
@@ -242,13 +502,13 @@ public class Webtrekk implements ActivityListener.Callback {
         }
 
         if(trackingConfiguration != null && trackingConfiguration.isEnableRemoteConfiguration()) {
-            SharedPreferences sharedPrefs = HelperFunctions.getWebTrekkSharedPreference(mContext);
             // second check if a newer remote config version is stored locally
-            if(sharedPrefs.contains(Webtrekk.PREFERENCE_KEY_CONFIGURATION)) {
-                WebtrekkLogging.log("found trackingConfiguration in preferences");
+            final String storedConfigurationString = StateStore.getInstance(mContext).getConfiguration();
+            if(storedConfigurationString != null) {
+                WebtrekkLogging.log("found trackingConfiguration in state file");
                 // in this case we already have a configuration xml stored
                 // parse the existing one and check if an update is online available
-                trackingConfigurationString = sharedPrefs.getString(Webtrekk.PREFERENCE_KEY_CONFIGURATION, null);
+                trackingConfigurationString = storedConfigurationString;
                 TrackingConfiguration sharedPreferencetrackingConfiguration = null;
                 try {
                     sharedPreferencetrackingConfiguration = new TrackingConfigurationXmlParser().parse(trackingConfigurationString);
@@ -264,27 +524,9 @@ public class Webtrekk implements ActivityListener.Callback {
 
 
             }
-            // third check online for newer versions
-            //TODO: maybe store just the version number locally in preferences might reduce some parsing
-            new TrackingConfigurationDownloadTask(this, null).execute(trackingConfiguration.getTrackingConfigurationUrl());
-        }
-
-        // check if we have a valid configuration
-        if(trackingConfiguration != null && trackingConfiguration.validateConfiguration()) {
-            WebtrekkLogging.log("xml trackingConfiguration value: trackid - " + trackingConfiguration.getTrackId());
-            WebtrekkLogging.log("xml trackingConfiguration value: trackdomain - " + trackingConfiguration.getTrackDomain());
-            WebtrekkLogging.log("xml trackingConfiguration value: send_delay - " + trackingConfiguration.getSendDelay());
-
-            for(ActivityConfiguration cfg : trackingConfiguration.getActivityConfigurations().values()) {
-                WebtrekkLogging.log("xml trackingConfiguration activity for: " + cfg.getClassName() + " mapped to: " + cfg.getMappingName() + " autotracked: " + cfg.isAutoTrack());
-            }
-        } else {
-            WebtrekkLogging.log("error loading the configuration - can not initialize tracking");
-            throw new IllegalStateException("could not get valid configuration, invalid state");
         }
 
-        WebtrekkLogging.log("tracking configuration initialized");
-
+        return trackingConfiguration;
     }
 
     /**
@@ -292,10 +534,12 @@ public class Webtrekk implements ActivityListener.Callback {
      * @param app application object of the tracked app, can either be a custom one or required by getApplication()
      */
     void initAutoTracking(Application app){
-        if(mActivityStatus == null) {
-            WebtrekkLogging.log("enabling callbacks");
-            mActivityStatus = new ActivityListener(this);
-            mActivityStatus.init(app);
+        synchronized (mInitLock) {
+            if (mActivityStatus == null) {
+                WebtrekkLogging.log("enabling callbacks");
+                mActivityStatus = new ActivityListener(this);
+                mActivityStatus.init(app);
+            }
         }
     }
 
@@ -305,9 +549,22 @@ public class Webtrekk implements ActivityListener.Callback {
      * tracking will be in invalid state, until init is called again
      */
     public void stopTracking() {
+        if (mIsInitializing && deferUntilInitialized(new Runnable() {
+            @Override
+            public void run() {
+                clearTracking();
+            }
+        })) {
+            return;
+        }
+
+        clearTracking();
+    }
+
+    private void clearTracking() {
         if(mRequestFactory.getRequestUrlStore() != null) {
             mRequestFactory.stopSendURLProcess();
-            mRequestFactory.getRequestUrlStore().clearAllTrackingData();
+            mRequestFactory.clearAllTrackingData();
         }
     }
 
@@ -349,7 +606,16 @@ public class Webtrekk implements ActivityListener.Callback {
      * Don't call this function. If you need override page name call {@link Webtrekk#setCustomPageName(String)} instead
      * @param currentActivityName
      */
-    public void setCurrentActivityName(String currentActivityName) {
+    public void setCurrentActivityName(final String currentActivityName) {
+        if (mIsInitializing && deferUntilInitialized(new Runnable() {
+            @Override
+            public void run() {
+                mRequestFactory.setCurrentActivityName(currentActivityName);
+            }
+        })) {
+            return;
+        }
+
         mRequestFactory.setCurrentActivityName(currentActivityName);
     }
 
@@ -358,8 +624,17 @@ public class Webtrekk implements ActivityListener.Callback {
      *set in <mappingname> tag in configuration xml. name is cleaned on next activity start.
      * @param pageName
      */
-    public void setCustomPageName(String pageName)
+    public void setCustomPageName(final String pageName)
     {
+        if (mIsInitializing && deferUntilInitialized(new Runnable() {
+            @Override
+            public void run() {
+                mRequestFactory.setCustomPageName(pageName);
+            }
+        })) {
+            return;
+        }
+
         mRequestFactory.setCustomPageName(pageName);
     }
 
@@ -377,9 +652,10 @@ public class Webtrekk implements ActivityListener.Callback {
     void autoTrackActivity() {
         // only track if auto tracking is enabled for that activity
         // the default value and the activities autoTracked value is based on the global xml settings
-        boolean autoTrack = trackingConfiguration.isAutoTracked();
-        if(trackingConfiguration.getActivityConfigurations()!= null && trackingConfiguration.getActivityConfigurations().containsKey(mRequestFactory.getCurrentActivityName())) {
-            autoTrack = trackingConfiguration.getActivityConfigurations().get(mRequestFactory.getCurrentActivityName()).isAutoTrack();
+        final TrackingConfiguration configuration = getTrackingConfiguration();
+        boolean autoTrack = configuration.isAutoTracked();
+        if(configuration.getActivityConfigurations()!= null && configuration.getActivityConfigurations().containsKey(mRequestFactory.getCurrentActivityName())) {
+            autoTrack = configuration.getActivityConfigurations().get(mRequestFactory.getCurrentActivityName()).isAutoTrack();
         }
         if(autoTrack) {
             track();
@@ -393,7 +669,20 @@ public class Webtrekk implements ActivityListener.Callback {
      * @throws IllegalStateException when the SDK has not benn initialized, activity was not started or the trackingParameter are invalid
      */
     public void track(final TrackingParameter tp) {
-        if (mRequestFactory.getRequestUrlStore() == null || trackingConfiguration == null) {
+        if (mIsInitializing && deferUntilInitialized(new Runnable() {
+            @Override
+            public void run() {
+                trackParameter(tp);
+            }
+        })) {
+            return;
+        }
+
+        trackParameter(tp);
+    }
+
+    private void trackParameter(final TrackingParameter tp) {
+        if (mRequestFactory.getRequestUrlStore() == null || getTrackingConfiguration() == null) {
             WebtrekkLogging.log("webtrekk has not been initialized");
             return;
         }
@@ -408,6 +697,7 @@ public class Webtrekk implements ActivityListener.Callback {
             return;
         }
 
+        final long trackStart = System.nanoTime();
         boolean addCDBRequestType = false;
 
         if (WebtrekkUserParameters.needUpdateCDBRequest(mContext)){
@@ -429,6 +719,7 @@ public class Webtrekk implements ActivityListener.Callback {
 
         mRequestFactory.addRequest(request);
         mRequestFactory.setLasTrackTime(System.currentTimeMillis());
+        WebtrekkMetrics.getInstance().recordTime(WebtrekkMetrics.Timer.TRACK, trackStart);
     }
 
     /**
@@ -439,7 +730,21 @@ public class Webtrekk implements ActivityListener.Callback {
      * setPhone("some phone"))
      * @param userParameters - user parameters
      */
-    public void track(WebtrekkUserParameters userParameters)
+    public void track(final WebtrekkUserParameters userParameters)
+    {
+        if (mIsInitializing && deferUntilInitialized(new Runnable() {
+            @Override
+            public void run() {
+                trackUserParameters(userParameters);
+            }
+        })) {
+            return;
+        }
+
+        trackUserParameters(userParameters);
+    }
+
+    private void trackUserParameters(WebtrekkUserParameters userParameters)
     {
         if (userParameters.saveToSettings(mContext))
             WebtrekkLogging.log("CDB request is received and saved to settings");
@@ -453,7 +758,7 @@ public class Webtrekk implements ActivityListener.Callback {
         trackingParameter.add(Parameter.EVERID, getEverId());
         trackingParameter.setCustomUserParameters(userParameters.getCustomParameters());
 
-        TrackingRequest request = new TrackingRequest(trackingParameter, trackingConfiguration, TrackingRequest.RequestType.CDB);
+        TrackingRequest request = new TrackingRequest(trackingParameter, mRequestFactory.getConfigurationHolder().getSnapshot(), TrackingRequest.RequestType.CDB);
         mRequestFactory.addRequest(request);
         WebtrekkLogging.log("CDB request is sent");
         WebtrekkUserParameters.updateCDBRequestDate(mContext);
@@ -463,8 +768,17 @@ public class Webtrekk implements ActivityListener.Callback {
      * track exception that is caught by internal application handler.
      * @param ex - caught exception
      */
-    public void trackException(Throwable ex)
+    public void trackException(final Throwable ex)
     {
+        if (mIsInitializing && deferUntilInitialized(new Runnable() {
+            @Override
+            public void run() {
+                mExceptionHandler.trackCatched(ex);
+            }
+        })) {
+            return;
+        }
+
         mExceptionHandler.trackCatched(ex);
     }
 
@@ -473,7 +787,16 @@ public class Webtrekk implements ActivityListener.Callback {
      * @param name max 255 characters
      * @param message max 255 characters
      */
-    public void trackException(String name, String message) {
+    public void trackException(final String name, final String message) {
+        if (mIsInitializing && deferUntilInitialized(new Runnable() {
+            @Override
+            public void run() {
+                mExceptionHandler.trackInfo(name, message);
+            }
+        })) {
+            return;
+        }
+
         mExceptionHandler.trackInfo(name, message);
     }
 
@@ -482,16 +805,29 @@ public class Webtrekk implements ActivityListener.Callback {
      * @hide
      * */
     @Override
-    public void onStart(boolean isRecreationInProcess, ActivityTrackingStatus.STATUS status,
-                        long inactivityTime, String activityName) {
-        if (mRequestFactory.getRequestUrlStore() == null || trackingConfiguration == null) {
+    public void onStart(final boolean isRecreationInProcess, final ActivityTrackingStatus.STATUS status,
+                        final long inactivityTime, final String activityName) {
+        if (mIsInitializing && deferUntilInitialized(new Runnable() {
+            @Override
+            public void run() {
+                processStart(isRecreationInProcess, status, inactivityTime, activityName);
+            }
+        })) {
+            return;
+        }
+
+        processStart(isRecreationInProcess, status, inactivityTime, activityName);
+    }
+
+    private void processStart(boolean isRecreationInProcess, ActivityTrackingStatus.STATUS status,
+                              long inactivityTime, String activityName) {
+        if (mRequestFactory.getRequestUrlStore() == null || getTrackingConfiguration() == null) {
             WebtrekkLogging.log("webtrekk has not been initialized");
             return;
         }
 
-        //reset page URL if activity is changed
+        //page URL is reset with activity name if activity is changed
         if (!isRecreationInProcess) {
-            resetPageURLTrack();
             mRequestFactory.setCurrentActivityName(activityName);
         }
 
@@ -501,7 +837,7 @@ public class Webtrekk implements ActivityListener.Callback {
 
         // track only if it isn't in background and session timeout isn't passed
         if (status == ActivityTrackingStatus.STATUS.RETURNINIG_FROM_BACKGROUND){
-            if (inactivityTime > trackingConfiguration.getResendOnStartEventTime())
+            if (inactivityTime > getTrackingConfiguration().getResendOnStartEventTime())
                 mRequestFactory.forceNewSession();
             mRequestFactory.restore();
         }
@@ -525,8 +861,21 @@ public class Webtrekk implements ActivityListener.Callback {
      * @hide
      */
     @Override
-    public void onStop(ActivityTrackingStatus.STATUS status) {
-        if (mRequestFactory.getRequestUrlStore() == null || trackingConfiguration == null) {
+    public void onStop(final ActivityTrackingStatus.STATUS status) {
+        if (mIsInitializing && deferUntilInitialized(new Runnable() {
+            @Override
+            public void run() {
+                processStop(status);
+            }
+        })) {
+            return;
+        }
+
+        processStop(status);
+    }
+
+    private void processStop(ActivityTrackingStatus.STATUS status) {
+        if (mRequestFactory.getRequestUrlStore() == null || getTrackingConfiguration() == null) {
             throw new IllegalStateException("webtrekk has not been initialized");
         }
 
@@ -547,7 +896,21 @@ public class Webtrekk implements ActivityListener.Callback {
      * as in some cases stop isn't called during application showt down.
      */
     @Override
-    public void onDestroy(ActivityTrackingStatus.STATUS status)
+    public void onDestroy(final ActivityTrackingStatus.STATUS status)
+    {
+        if (mIsInitializing && deferUntilInitialized(new Runnable() {
+            @Override
+            public void run() {
+                processDestroy(status);
+            }
+        })) {
+            return;
+        }
+
+        processDestroy(status);
+    }
+
+    private void processDestroy(ActivityTrackingStatus.STATUS status)
     {
         if(status == ActivityTrackingStatus.STATUS.SHUT_DOWNING) {
             stop();
@@ -560,7 +923,9 @@ public class Webtrekk implements ActivityListener.Callback {
      * @hide
      */
     void stop() {
+        mExceptionHandler.flush();
         mRequestFactory.stop();
+        StateStore.getInstance(mContext).flush();
     }
 
     /**
@@ -568,7 +933,9 @@ public class Webtrekk implements ActivityListener.Callback {
      * it stores all requests to file.
      */
     private void flush() {
+        mExceptionHandler.flush();
         mRequestFactory.flush();
+        StateStore.getInstance(mContext).flush();
     }
 
     void setContext(Context context) {
@@ -591,7 +958,16 @@ public class Webtrekk implements ActivityListener.Callback {
      * and also stops tracking in case the user opts out
      * @param value boolean value indicating if the user opted out or not
      */
-    public void setOptout(boolean value) {
+    public void setOptout(final boolean value) {
+        if (mIsInitializing && deferUntilInitialized(new Runnable() {
+            @Override
+            public void run() {
+                mRequestFactory.setIsOptout(value);
+            }
+        })) {
+            return;
+        }
+
         mRequestFactory.setIsOptout(value);
     }
 
@@ -602,32 +978,45 @@ public class Webtrekk implements ActivityListener.Callback {
      * @return
      */
 
-    public boolean setPageURL(String url)
+    public boolean setPageURL(final String url)
     {
-        ActivityConfiguration acConf = trackingConfiguration.getActivityConfigurations().get(mRequestFactory.getCurrentActivityName());
-
         if (!HelperFunctions.testIsValidURL(url)) {
             WebtrekkLogging.log("setPageURL. Invalid url format");
             return false;
-        }else {
+        }
 
-            if (acConf != null) {
-                acConf.setOverridenPageURL(url);
-                return true;
-            } else {
-                WebtrekkLogging.log("setPageURL. Activity configuration isn't defined.");
-                return false;
+        //activity configuration isn't known before initialization is completed
+        if (mIsInitializing && deferUntilInitialized(new Runnable() {
+            @Override
+            public void run() {
+                applyPageURL(url);
             }
+        })) {
+            return true;
         }
+
+        return applyPageURL(url);
     }
 
-    //reset overrated URLTrack
-    private void resetPageURLTrack()
+    private boolean applyPageURL(String url)
     {
-        ActivityConfiguration acConf = trackingConfiguration.getActivityConfigurations().get(mRequestFactory.getCurrentActivityName());
+        final TrackingConfiguration configuration = getTrackingConfiguration();
+
+        if (configuration == null) {
+            WebtrekkLogging.log("setPageURL. webtrekk has not been initialized");
+            return false;
+        }
 
-        if (acConf != null)
-            acConf.resetOverridenPageURL();
+        ActivityConfiguration acConf = configuration.getActivityConfigurations().get(mRequestFactory.getCurrentActivityName());
+
+        if (acConf != null) {
+            //configuration snapshot is shared and immutable, url is kept in request factory
+            mRequestFactory.setPageURL(url);
+            return true;
+        } else {
+            WebtrekkLogging.log("setPageURL. Activity configuration isn't defined.");
+            return false;
+        }
     }
 
     /**
@@ -635,11 +1024,12 @@ public class Webtrekk implements ActivityListener.Callback {
      * Each time method returns new instance of recommendation object that is initialized accornding to
      * configuration xml. Using WebtrekkRecommendations object you can have independed several recommendation
      * request.
+     * Configuration is taken when query is done, so query returns null if initialization isn't completed yet.
      * @return WebtrekkRecommendations object
      */
     public WebtrekkRecommendations getRecommendations()
     {
-        return new WebtrekkRecommendations(trackingConfiguration, mContext);
+        return new WebtrekkRecommendations(mRequestFactory.getConfigurationHolder(), mContext, mRecommendationCache);
     }
 
 
@@ -647,14 +1037,61 @@ public class Webtrekk implements ActivityListener.Callback {
         return mProductListTracker;
     }
 
+    /**
+     * @return current values of SDK pipeline metrics: event counters, request store gauges and latency histograms.
+     */
+    @NonNull
+    public MetricsSnapshot getMetricsSnapshot(){
+        return WebtrekkMetrics.getInstance().getSnapshot();
+    }
+
+    /**
+     * @return bytes that are used by not sent requests in all queue files. They are limited by <maxStorageBytes>.
+     * 0 is returned until initialization is completed.
+     */
+    public long getStorageBytesUsed(){
+        final StorageQuota quota = mRequestFactory.getStorageQuota();
+        return quota == null ? 0 : quota.getUsedBytes();
+    }
+
+    /**
+     * Set listener that receives metrics snapshot after each send cycle and when application goes to background.
+     * Listener is called on SDK thread and should return quickly.
+     * @param listener listener or null to remove it
+     */
+    public void setMetricsListener(@Nullable WebtrekkMetrics.Listener listener){
+        WebtrekkMetrics.getInstance().setListener(listener);
+    }
+
     /**
      * Send manual tracks to server from tracks queue. Is done in separate thread and can be called from UI thread.
      * It must be called when <sendDelay> is zero, otherwise no message is sent to server.
      * @return true if sending is called and false if previous send procedure hasn't called or nothing to send
-     *              or manual send mode is off (<sendDelay> not zero).
+     *              or manual send mode is off (<sendDelay> not zero). If deferred initialization is in progress
+     *              sending is called after it and true is returned.
      */
     public boolean send() {
-        if (mRequestFactory.getTrackingConfiguration().getSendDelay() == 0) {
+        if (mIsInitializing && deferUntilInitialized(new Runnable() {
+            @Override
+            public void run() {
+                sendRequests();
+            }
+        })) {
+            return true;
+        }
+
+        return sendRequests();
+    }
+
+    private boolean sendRequests() {
+        final TrackingConfiguration configuration = mRequestFactory.getTrackingConfiguration();
+
+        if (configuration == null) {
+            WebtrekkLogging.log("webtrekk has not been initialized");
+            return false;
+        }
+
+        if (configuration.getSendDelay() == 0) {
             return mRequestFactory.onSendIntervalOver();
         }else {
             WebtrekkLogging.log("Custom url send mode isn't switched on. Send isn't available. For custom send mode set <sendDelay> to zero ");
@@ -670,7 +1107,16 @@ public class Webtrekk implements ActivityListener.Callback {
         return mRequestFactory.getGlobalTrackingParameter();
     }
 
-    public void setGlobalTrackingParameter(TrackingParameter globalTrackingParameter) {
+    public void setGlobalTrackingParameter(final TrackingParameter globalTrackingParameter) {
+        if (mIsInitializing && deferUntilInitialized(new Runnable() {
+            @Override
+            public void run() {
+                mRequestFactory.setGlobalTrackingParameter(globalTrackingParameter);
+            }
+        })) {
+            return;
+        }
+
         mRequestFactory.setGlobalTrackingParameter(globalTrackingParameter);
     }
 
@@ -678,7 +1124,16 @@ public class Webtrekk implements ActivityListener.Callback {
         return mRequestFactory.getConstGlobalTrackingParameter();
     }
 
-    public void setConstGlobalTrackingParameter(TrackingParameter constGlobalTrackingParameter) {
+    public void setConstGlobalTrackingParameter(final TrackingParameter constGlobalTrackingParameter) {
+        if (mIsInitializing && deferUntilInitialized(new Runnable() {
+            @Override
+            public void run() {
+                mRequestFactory.setConstGlobalTrackingParameter(constGlobalTrackingParameter);
+            }
+        })) {
+            return;
+        }
+
         mRequestFactory.setConstGlobalTrackingParameter(constGlobalTrackingParameter);
     }
 
@@ -695,7 +1150,16 @@ public class Webtrekk implements ActivityListener.Callback {
      * this method alles the customer to set the custom parameters map
      *
      */
-    public void setCustomParameter(Map<String, String> customParameter) {
+    public void setCustomParameter(final Map<String, String> customParameter) {
+        if (mIsInitializing && deferUntilInitialized(new Runnable() {
+            @Override
+            public void run() {
+                mRequestFactory.setCustomParameter(customParameter);
+            }
+        })) {
+            return;
+        }
+
         mRequestFactory.setCustomParameter(customParameter);
     }
 
@@ -713,11 +1177,13 @@ public class Webtrekk implements ActivityListener.Callback {
      * @return current Tracking ID
      */
     public List<String> getTrackingIDs() {
-        if (trackingConfiguration == null){
+        final ConfigurationSnapshot snapshot = mRequestFactory.getConfigurationHolder().getSnapshot();
+
+        if (snapshot == null){
             WebtrekkLogging.log("webtrekk has not been initialized");
             return null;
         }else {
-            return Arrays.asList(trackingConfiguration.getTrackId().split(","));
+            return snapshot.getTrackIds();
         }
     }
 
@@ -725,7 +1191,22 @@ public class Webtrekk implements ActivityListener.Callback {
      * set EverId. This ever ID will be used for all tracking request until application reinstall.
      * @param everId - 19 digits string value
      */
-    public void setEverId(String everId)
+    public void setEverId(final String everId)
+    {
+        //ever id parameter of request factory is initialized during initialization
+        if (mIsInitializing && deferUntilInitialized(new Runnable() {
+            @Override
+            public void run() {
+                applyEverId(everId);
+            }
+        })) {
+            return;
+        }
+
+        applyEverId(everId);
+    }
+
+    private void applyEverId(String everId)
     {
         if (mContext == null)
         {
@@ -811,15 +1292,15 @@ public class Webtrekk implements ActivityListener.Callback {
      * @return
      */
     public TrackingConfiguration getTrackingConfiguration() {
-        return trackingConfiguration;
+        return mRequestFactory.getTrackingConfiguration();
     }
 
     /**
+     * Publishes new configuration snapshot for all components. Can be called from any thread.
      * @hide
      * @param trackingConfiguration
      */
     public void setTrackingConfiguration(TrackingConfiguration trackingConfiguration) {
-        this.trackingConfiguration = trackingConfiguration;
         mRequestFactory.setTrackingConfiguration(trackingConfiguration);
     }
 
@@ -833,26 +1314,35 @@ public class Webtrekk implements ActivityListener.Callback {
         mTrackingLibraryVersion = mTrackingLibraryVersionUI.replaceAll("\\D","");
     }
 
+    /**
+     * @return configuration or empty one with default values if initialization isn't completed yet
+     */
+    private TrackingConfiguration getConfigurationOrDefault() {
+        final TrackingConfiguration configuration = getTrackingConfiguration();
+        return configuration == null ? NOT_INITIALIZED_CONFIGURATION : configuration;
+    }
+
     /**
      * for unit testing in the application and debugging
      */
-    public int getVersion() { return trackingConfiguration.getVersion(); }
-    public String getTrackDomain() { return trackingConfiguration.getTrackDomain(); }
-    public int getSampling() { return trackingConfiguration.getSampling(); }
+    public int getVersion() { return getConfigurationOrDefault().getVersion(); }
+    public String getTrackDomain() { return getConfigurationOrDefault().getTrackDomain(); }
+    public int getSampling() { return getConfigurationOrDefault().getSampling(); }
     public void setIsSampling(boolean isSampling ) { mRequestFactory.setIsSampling(isSampling); }
-    public int getSendDelay() { return trackingConfiguration.getSendDelay(); }
-    public int getResendOnStartEventTime() { return trackingConfiguration.getResendOnStartEventTime(); }
-    public int getMaxRequests() { return trackingConfiguration.getMaxRequests(); }
-    public String getTrackingConfigurationUrl() { return trackingConfiguration.getTrackingConfigurationUrl(); }
-    public boolean isAutoTracked() { return trackingConfiguration.isAutoTracked(); }
-    public boolean isAutoTrackApiLevel() { return trackingConfiguration.isAutoTrackApiLevel(); }
-    public boolean isEnableRemoteConfiguration() { return trackingConfiguration.isEnableRemoteConfiguration(); }
+    public int getSendDelay() { return getConfigurationOrDefault().getSendDelay(); }
+    public int getResendOnStartEventTime() { return getConfigurationOrDefault().getResendOnStartEventTime(); }
+    public int getMaxRequests() { return getConfigurationOrDefault().getMaxRequests(); }
+    public String getTrackingConfigurationUrl() { return getConfigurationOrDefault().getTrackingConfigurationUrl(); }
+    public boolean isAutoTracked() { return getConfigurationOrDefault().isAutoTracked(); }
+    public boolean isAutoTrackApiLevel() { return getConfigurationOrDefault().isAutoTrackApiLevel(); }
+    public boolean isEnableRemoteConfiguration() { return getConfigurationOrDefault().isEnableRemoteConfiguration(); }
 
     /**
      * @deprecated use {@link #getTrackingIDs()} instead
      * @return
      */
     public String getTrackId(){
-        return getTrackingIDs().get(0);
+        final List<String> trackIds = getTrackingIDs();
+        return trackIds == null || trackIds.isEmpty() ? null : trackIds.get(0);
     }
 }
\ No newline at end of file
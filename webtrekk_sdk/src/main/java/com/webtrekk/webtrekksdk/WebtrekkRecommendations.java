@@ -21,10 +21,10 @@ package com.webtrekk.webtrekksdk;
 import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
-import android.os.Message;
 import android.util.JsonReader;
 
 import com.webtrekk.webtrekksdk.Utils.HelperFunctions;
+import com.webtrekk.webtrekksdk.Configuration.ConfigurationHolder;
 import com.webtrekk.webtrekksdk.Configuration.TrackingConfiguration;
 import com.webtrekk.webtrekksdk.Utils.WebtrekkLogging;
 
@@ -135,6 +135,9 @@ public class WebtrekkRecommendations {
         NO_PLACEMENT_ID_FOUND,
         ACCOUNT_ID_NOT_FOUND,
         RECOMENDATION_API_DEACITVATED,
+        /**
+         * server can't be reached or connection is broken, products are null
+         */
         NO_CONNECTION,
         INCORRECT_URL_FORMAT,
         INCORRECT_RESPONSE
@@ -156,20 +159,25 @@ public class WebtrekkRecommendations {
     private final String USER_ID_PAR_NAME = "userId";
     private final String PRODUCT_ID_PAR_NAME = "product";
     private final String PRODUCT_CAT_PAR_NAME = "productCat";
-    final private TrackingConfiguration mConfiguration;
+    final private ConfigurationHolder mConfigurationHolder;
     final private Context mContext;
-    private RecommendationCallThread mThread;
+    final private RecommendationCache mCache;
+    private String mRecommendationName;
+    private long mRecommendationTTL;
+    static final int CONNECTION_TIMEOUT = 15 * 1000;
 
 
     /**
      * @hide
-     * @param configuration
+     * @param configurationHolder holder of current configuration, it is empty until initialization is completed
      * @param context
+     * @param cache shared recommendation cache
      */
-    WebtrekkRecommendations(TrackingConfiguration configuration, Context context)
+    WebtrekkRecommendations(ConfigurationHolder configurationHolder, Context context, RecommendationCache cache)
     {
-        mConfiguration = configuration;
+        mConfigurationHolder = configurationHolder;
         mContext = context;
+        mCache = cache;
     }
 
     /**
@@ -179,7 +187,15 @@ public class WebtrekkRecommendations {
      */
     public String getConfiguredRecommendationURL(String key)
     {
-        return mConfiguration.getRecommendationConfiguration().get(key);
+        final TrackingConfiguration configuration = mConfigurationHolder.getConfiguration();
+
+        if (configuration == null)
+        {
+            WebtrekkLogging.log("Webtrekk isn't initialized yet. Recommendation isn't available");
+            return null;
+        }
+
+        return configuration.getRecommendationConfiguration().get(key);
     }
 
     /**
@@ -204,6 +220,8 @@ public class WebtrekkRecommendations {
             return null;
         }
 
+        mRecommendationName = recommendationName;
+        mRecommendationTTL = mConfigurationHolder.getConfiguration().getRecommendationTTL(recommendationName) * 1000L;
         mProductID= null;
         mProductCat = null;
 
@@ -239,27 +257,17 @@ public class WebtrekkRecommendations {
 */
 
     /**
-     * Call recommendation. Result will be provided in callback that was set in queryRecommendation
+     * Call recommendation. Result will be provided in callback that was set in queryRecommendation.
+     * Response can be provided from cache if ttl attribute is configured for recommendation.
+     * Callback is called for failed requests as well, e.g. with {@link QueryRecommendationResult#NO_CONNECTION}
+     * and null products if server can't be reached. Failed responses aren't cached.
      */
     public void call()
     {
         boolean isUIThread = Looper.getMainLooper().getThread() == Thread.currentThread();
-        Handler handler;
-
-        if (isUIThread)
-        {
-            handler = new Handler() {
-                @Override
-                public void handleMessage(Message inputMessage) {
-                    if (inputMessage.what == 1)
-                       mCallback.onReceiveRecommendations(mThread.getProductList(), mThread.getQueryResult());
-                }
-            };
-        }else
-            handler = null;
+        Handler handler = isUIThread ? new Handler(Looper.getMainLooper()) : null;
 
-        mThread = new RecommendationCallThread(mCallback, getRequestURL(), handler);
-        mThread.start();
+        mCache.query(getRequestURL(), mRecommendationTTL, mCallback, handler);
     }
 
     /**
@@ -286,23 +294,20 @@ public class WebtrekkRecommendations {
     /**
      * @hide
      */
-    private static class RecommendationCallThread extends Thread
+    static class RecommendationCall
     {
-
-        final private RecommendationCallback mCallback;
         final private String mUrl;
         private List<RecommendationProduct> mRequestResults;
         volatile private QueryRecommendationResult mQueryResult;
-        final private Handler mHandler;
 
-        public RecommendationCallThread(RecommendationCallback callback, String url, Handler handler )
+        RecommendationCall(String url)
         {
-            mCallback = callback;
             mUrl = url;
-            mHandler = handler;
         }
 
-        @Override
+        /**
+         * do request and parse response. Results are available in {@link #getProductList()} and {@link #getQueryResult()}
+         */
         public void run()
         {
             JsonReader reader = null;
@@ -311,6 +316,8 @@ public class WebtrekkRecommendations {
                 URL url = new URL(mUrl);
                 connection = (HttpURLConnection) url.openConnection();
                 connection.setRequestMethod("GET");
+                connection.setConnectTimeout(CONNECTION_TIMEOUT);
+                connection.setReadTimeout(CONNECTION_TIMEOUT);
                 WebtrekkLogging.log("Sending recommendation request: "+mUrl);
                 int resp = connection.getResponseCode();
 
@@ -331,13 +338,6 @@ public class WebtrekkRecommendations {
                     mQueryResult = QueryRecommendationResult.INCORRECT_RESPONSE;
                     WebtrekkLogging.log("Recommendation request Incorrect Response:"+resp);
                 }
-
-                if (mHandler == null)
-                {
-                    mCallback.onReceiveRecommendations(mRequestResults, mQueryResult);
-                }else
-                    mHandler.sendEmptyMessage(1);
-
             } catch (MalformedURLException e) {
                 mQueryResult = QueryRecommendationResult.NO_PLACEMENT_ID_FOUND;
                 WebtrekkLogging.log("Incorrect recommendation URL. Check your configuration xml." + e);
@@ -23,6 +23,7 @@ import android.content.SharedPreferences;
 
 import com.webtrekk.webtrekksdk.TrackingParameter.Parameter;
 import com.webtrekk.webtrekksdk.Utils.HelperFunctions;
+import com.webtrekk.webtrekksdk.Utils.StateStore;
 import com.webtrekk.webtrekksdk.Utils.WebtrekkLogging;
 
 import java.util.HashMap;
@@ -44,7 +45,6 @@ public class WebtrekkUserParameters {
             Parameter.CDB_ANDROID_ID, Parameter.CDB_IOS_ADD_ID, Parameter.CDB_WIN_AD_ID, Parameter.CDB_FACEBOOK_ID,
             Parameter.CDB_TWITTER_ID, Parameter.CDB_GOOGLE_PLUS_ID, Parameter.CDB_LINKEDIN_ID};
     static final int CUSTOM_PAR_BASE_INDEX = 50;
-    private static String LAST_CBD_REQUEST_DATE = "LAST_CBD_REQUEST_DATE";
     private static final long DATE_DELIMETER = 1000*60*60*24;
 
     /**
@@ -396,11 +396,9 @@ public class WebtrekkUserParameters {
 
     static boolean needUpdateCDBRequest(Context context)
     {
-        SharedPreferences preferences = HelperFunctions.getWebTrekkSharedPreference(context);
-
-        if (preferences.contains(LAST_CBD_REQUEST_DATE)) {
-            long dates = preferences.getLong(LAST_CBD_REQUEST_DATE, 0);
+        final long dates = StateStore.getInstance(context).getLastCDBRequestDate();
 
+        if (dates >= 0) {
             return dates < getCurrentDateCounter();
         }else
             return false;
@@ -412,9 +410,7 @@ public class WebtrekkUserParameters {
      */
     static void updateCDBRequestDate(Context context)
     {
-        SharedPreferences preferences = HelperFunctions.getWebTrekkSharedPreference(context);
-
-        preferences.edit().putLong(LAST_CBD_REQUEST_DATE, getCurrentDateCounter()).apply();
+        StateStore.getInstance(context).setLastCDBRequestDate(getCurrentDateCounter());
     }
 
     static long getCurrentDateCounter()